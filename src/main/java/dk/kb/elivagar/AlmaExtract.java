@@ -1,14 +1,23 @@
 package dk.kb.elivagar;
 
+import dk.kb.elivagar.config.AlmaConfiguration;
 import dk.kb.elivagar.config.Configuration;
+import dk.kb.elivagar.metadata.AlmaBulkExtractor;
 import dk.kb.elivagar.metadata.AlmaMetadataRetriever;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Extracts the MODS metadata from alma.
@@ -16,6 +25,14 @@ import java.io.OutputStream;
  * Usage:
  * dk.kb.elivagar.AlmaExtract /PATH/TO/elivagar.yml [ISBN]+
  * 
+ * Bulk usage:
+ * dk.kb.elivagar.AlmaExtract /PATH/TO/elivagar.yml -f ISBN_FILE [-o OUTPUT_DIR | -z OUTPUT.zip] [-w WORKERS]
+ * 
+ * In bulk mode the ISBNs are read from the file, one per line, or from stdin if the file is '-'.
+ * They are retrieved concurrently by the workers (default is the configured number of Alma workers), and the 
+ * MODS records are written as individual files in the output directory (default is the current directory), or 
+ * into a ZIP archive. The status of each ISBN is written to a CSV manifest in the output directory or next to the
+ * archive, and a new run with the same output will resume where the previous run stopped.
  */
 public class AlmaExtract {
     /** The logger.*/
@@ -24,6 +41,17 @@ public class AlmaExtract {
     /** The output directory.*/
     protected static File outputDir = new File(".");
 
+    /** The argument for the file with the ISBNs for the bulk mode.*/
+    protected static final String ARG_ISBN_FILE = "-f";
+    /** The argument for the output directory in the bulk mode.*/
+    protected static final String ARG_OUTPUT_DIR = "-o";
+    /** The argument for the ZIP archive in the bulk mode.*/
+    protected static final String ARG_ZIP_FILE = "-z";
+    /** The argument for the number of workers in the bulk mode.*/
+    protected static final String ARG_WORKERS = "-w";
+    /** The ISBN file name for reading the ISBNs from stdin.*/
+    protected static final String STDIN = "-";
+
     /**
      * Requires at least the two arguments the configuration file and a list of ISBN of books to retrieve.
      * @param args The arguments.
@@ -33,11 +61,18 @@ public class AlmaExtract {
             System.err.println("Needs at least two arguments: ");
             System.err.println(" * The configuration file.");
             System.err.println(" * List of ISBN of books to retrieve.");
+            System.err.println("   Or the bulk options: " + ARG_ISBN_FILE + " ISBN_FILE [" + ARG_OUTPUT_DIR 
+                    + " OUTPUT_DIR | " + ARG_ZIP_FILE + " OUTPUT.zip] [" + ARG_WORKERS + " WORKERS]");
             System.exit(-1);
         }
         String confPath = args[0];
         File confFile = new File(confPath);
         
+        if(args[1].startsWith("-")) {
+            runBulkExtraction(confFile, args);
+            return;
+        }
+        
         try {
             Configuration conf = Configuration.createFromYAMLFile(confFile);
             HttpClient httpClient = new HttpClient();
@@ -56,6 +91,79 @@ public class AlmaExtract {
         }
     }
     
+    /**
+     * Runs the bulk extraction with the options from the arguments.
+     * @param confFile The configuration file.
+     * @param args The arguments, where the first is the configuration file.
+     */
+    protected static void runBulkExtraction(File confFile, String[] args) {
+        String isbnFile = null;
+        File dir = outputDir;
+        File zipFile = null;
+        Integer workers = null;
+        List<String> isbns = new ArrayList<String>();
+        for(int i = 1; i < args.length; i++) {
+            String arg = args[i];
+            if(arg.startsWith("-") && i + 1 >= args.length) {
+                System.err.println("Missing value for the argument: " + arg);
+                System.exit(-1);
+            }
+            if(arg.equals(ARG_ISBN_FILE)) {
+                isbnFile = args[++i];
+            } else if(arg.equals(ARG_OUTPUT_DIR)) {
+                dir = new File(args[++i]);
+            } else if(arg.equals(ARG_ZIP_FILE)) {
+                zipFile = new File(args[++i]);
+            } else if(arg.equals(ARG_WORKERS)) {
+                workers = Integer.parseInt(args[++i]);
+            } else if(arg.startsWith("-")) {
+                System.err.println("Unknown argument: " + arg);
+                System.exit(-1);
+            } else {
+                isbns.add(arg);
+            }
+        }
+        
+        try {
+            Configuration conf = Configuration.createFromYAMLFile(confFile);
+            if(isbnFile != null) {
+                isbns.addAll(readIsbns(isbnFile));
+            }
+            if(workers == null) {
+                AlmaConfiguration almaConf = conf.getAlmaConfiguration();
+                workers = almaConf == null ? AlmaConfiguration.DEFAULT_WORKERS : almaConf.getWorkers();
+            }
+            AlmaBulkExtractor.ExtractOutput output;
+            if(zipFile != null) {
+                output = new AlmaBulkExtractor.ZipOutput(zipFile);
+            } else {
+                output = new AlmaBulkExtractor.DirectoryOutput(dir);
+            }
+            AlmaMetadataRetriever almaMetadataRetriever = new AlmaMetadataRetriever(conf, new HttpClient());
+            AlmaBulkExtractor extractor = new AlmaBulkExtractor(almaMetadataRetriever, workers, output);
+            extractor.extract(isbns);
+            log.info("The status of the ISBNs can be found at: " + output.getManifestFile().getAbsolutePath());
+        } catch (Exception e) {
+            throw new IllegalStateException("Failure to retrieve alma metadata in MODS.", e);
+        }
+    }
+    
+    /**
+     * Reads the ISBNs for the bulk extraction.
+     * @param isbnFile The path to the file with the ISBNs, or '-' for reading them from stdin.
+     * @return The ISBNs.
+     * @throws IOException If it fails to read the ISBNs.
+     */
+    protected static List<String> readIsbns(String isbnFile) throws IOException {
+        if(isbnFile.equals(STDIN)) {
+            return AlmaBulkExtractor.readIsbns(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+        }
+        try (InputStream in = new FileInputStream(isbnFile);
+                Reader reader = new InputStreamReader(in, StandardCharsets.UTF_8)) {
+            return AlmaBulkExtractor.readIsbns(reader);
+        }
+    }
+    
     /**
      * Retrieves the different kinds of metadata for given ISBN number.
      * @param conf The configuration.
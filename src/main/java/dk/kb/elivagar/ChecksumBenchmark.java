@@ -0,0 +1,149 @@
+package dk.kb.elivagar;
+
+import dk.kb.elivagar.utils.ChecksumService;
+import dk.kb.elivagar.utils.ChecksumUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Measures the throughput of the checksum calculations on the given files;
+ * a stream with a 4 KB buffer (the original implementation), the file channels of ChecksumUtils for MD5 alone and
+ * for MD5 and SHA-256 in the same pass, and the ChecksumService calculating MD5 and SHA-256 of the files concurrently.
+ *
+ * Usage:
+ * dk.kb.elivagar.ChecksumBenchmark ITERATIONS /PATH/TO/FILE [/PATH/TO/FILE ...]
+ *
+ * The result is written to standard out, with the average time and throughput for each method.
+ * Note that after the first iteration, the files are likely to be in the page cache of the operating system.
+ */
+public class ChecksumBenchmark {
+    /** The logger.*/
+    private static final Logger log = LoggerFactory.getLogger(ChecksumBenchmark.class);
+
+    /** The size of the buffer of the original stream implementation.*/
+    protected static final int STREAM_BUFFER_SIZE = 4096;
+    /** The number of bytes in a megabyte.*/
+    protected static final double BYTES_PER_MB = 1024.0 * 1024.0;
+
+    /**
+     * Main method.
+     * Requires the number of iterations and at least one file.
+     * @param args The arguments.
+     */
+    public static void main(String ... args) {
+        if(args.length < 2) {
+            System.err.println("Needs at least two arguments: ");
+            System.err.println(" * The number of iterations.");
+            System.err.println(" * The file(s) to calculate the checksums of.");
+            System.exit(-1);
+        }
+        try {
+            int iterations = Integer.parseInt(args[0]);
+            List<File> files = new ArrayList<File>();
+            for(int i = 1; i < args.length; i++) {
+                files.add(new File(args[i]));
+            }
+            runBenchmark(files, iterations, new ChecksumService(), System.out);
+        } catch (Exception e) {
+            log.error("Failure to run the checksum benchmark.", e);
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Runs the benchmark of each checksum method, and prints the results.
+     * @param files The files to calculate the checksums of.
+     * @param iterations The number of iterations for each method.
+     * @param checksumService The checksum service for the concurrent calculation.
+     * @param out The stream to write the results to.
+     * @throws IOException If a calculation fails.
+     */
+    protected static void runBenchmark(List<File> files, int iterations, ChecksumService checksumService,
+            PrintStream out) throws IOException {
+        List<String> bothAlgorithms = Arrays.asList(ChecksumUtils.MD5_ALGORITHM, ChecksumUtils.SHA256_ALGORITHM);
+        long size = 0L;
+        for(File f : files) {
+            size += f.length();
+        }
+        out.println("Calculating the checksums of " + files.size() + " files (" + size + " bytes), " + iterations
+                + " iterations.");
+
+        long streamTime = 0L;
+        long channelTime = 0L;
+        long onePassTime = 0L;
+        long parallelTime = 0L;
+        for(int i = 0; i < iterations; i++) {
+            long start = System.nanoTime();
+            for(File f : files) {
+                calculateStreamChecksum(f);
+            }
+            streamTime += System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for(File f : files) {
+                ChecksumUtils.calculateMD5Checksum(f);
+            }
+            channelTime += System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for(File f : files) {
+                ChecksumUtils.calculateChecksums(f, bothAlgorithms);
+            }
+            onePassTime += System.nanoTime() - start;
+
+            start = System.nanoTime();
+            checksumService.calculateChecksums(files, bothAlgorithms);
+            parallelTime += System.nanoTime() - start;
+        }
+
+        out.println(formatResult("Stream MD5 (4 KB buffer)", streamTime, iterations, size));
+        out.println(formatResult("Channel MD5", channelTime, iterations, size));
+        out.println(formatResult("Channel MD5 + SHA-256", onePassTime, iterations, size));
+        out.println(formatResult("Concurrent MD5 + SHA-256", parallelTime, iterations, size));
+    }
+
+    /**
+     * Calculates the MD5 checksum through a stream with a 4 KB buffer, like the original implementation.
+     * @param f The file.
+     * @return The digest.
+     * @throws IOException If it fails to read the file.
+     */
+    protected static byte[] calculateStreamChecksum(File f) throws IOException {
+        try (InputStream in = new FileInputStream(f)) {
+            MessageDigest digester = MessageDigest.getInstance(ChecksumUtils.MD5_ALGORITHM);
+            byte[] bytes = new byte[STREAM_BUFFER_SIZE];
+            int bytesRead;
+            while((bytesRead = in.read(bytes)) > 0) {
+                digester.update(bytes, 0, bytesRead);
+            }
+            return digester.digest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("Cannot calculate the checksum.", e);
+        }
+    }
+
+    /**
+     * @param method The name of the checksum method.
+     * @param totalNanos The total time for all the iterations, in nanoseconds.
+     * @param iterations The number of iterations.
+     * @param size The total size of the files.
+     * @return The result line with the average time and throughput.
+     */
+    protected static String formatResult(String method, long totalNanos, int iterations, long size) {
+        double seconds = totalNanos / 1e9 / iterations;
+        double throughput = seconds > 0 ? size / BYTES_PER_MB / seconds : 0.0;
+        return String.format(Locale.ROOT, "%s: %.3f ms, %.1f MB/s", method, seconds * 1000, throughput);
+    }
+}
@@ -1,14 +1,18 @@
 package dk.kb.elivagar;
 
 import dk.kb.elivagar.characterization.CharacterizationHandler;
+import dk.kb.elivagar.characterization.CharacterizationHistory;
 import dk.kb.elivagar.characterization.EpubCheckerCharacterizer;
 import dk.kb.elivagar.characterization.FitsCharacterizer;
 import dk.kb.elivagar.config.Configuration;
+import dk.kb.elivagar.metadata.AlmaCache;
 import dk.kb.elivagar.metadata.AlmaPacker;
 import dk.kb.elivagar.metadata.AlmaMetadataRetriever;
+import dk.kb.elivagar.pubhub.PubhubMetadataIndex;
 import dk.kb.elivagar.pubhub.PubhubMetadataRetriever;
 import dk.kb.elivagar.pubhub.PubhubPacker;
 import dk.kb.elivagar.pubhub.PubhubWorkflow;
+import dk.kb.elivagar.transfer.RegistryStore;
 import dk.kb.elivagar.transfer.TransferWorkflow;
 import dk.kb.elivagar.utils.CalendarUtils;
 import org.slf4j.Logger;
@@ -99,16 +103,26 @@ public class Elivagar {
                 fitsCharacterizer = new FitsCharacterizer(conf.getCharacterizationScriptFile()); 
             }
             EpubCheckerCharacterizer epubCharacterizer = new EpubCheckerCharacterizer();
-            CharacterizationHandler characterizer = new CharacterizationHandler(fitsCharacterizer, epubCharacterizer);
+            CharacterizationHistory characterizationHistory = new CharacterizationHistory(conf.getStateDir(), 
+                    conf.getCharacterizationConfiguration());
+            CharacterizationHandler characterizer = new CharacterizationHandler(fitsCharacterizer, epubCharacterizer,
+                    characterizationHistory);
             HttpClient httpClient = new HttpClient();
-            PubhubPacker packer = new PubhubPacker(conf, retriever.getServiceNamespace(), characterizer, httpClient);
+            PubhubMetadataIndex pubhubIndex = new PubhubMetadataIndex(conf.getStateDir());
+            PubhubPacker packer = new PubhubPacker(conf, retriever.getServiceNamespace(), characterizer, httpClient,
+                    pubhubIndex);
 
             PubhubWorkflow pubhubWorkflow = new PubhubWorkflow(conf, retriever, characterizer, packer);
             
             AlmaMetadataRetriever almaMetadataRetriever = new AlmaMetadataRetriever(conf, new HttpClient());
-            AlmaPacker almaWorkflow = new AlmaPacker(conf, almaMetadataRetriever);
+            AlmaCache almaCache = new AlmaCache(conf.getStateDir(), conf.getAlmaConfiguration());
+            AlmaPacker almaWorkflow = new AlmaPacker(conf, almaMetadataRetriever, almaCache, pubhubIndex);
 
-            TransferWorkflow transferWorkflow = new TransferWorkflow(conf);
+            RegistryStore registryStore = null;
+            if(conf.getTransferConfiguration() != null && conf.getTransferConfiguration().isRegistryStore()) {
+                registryStore = new RegistryStore(conf.getStateDir());
+            }
+            TransferWorkflow transferWorkflow = new TransferWorkflow(conf, pubhubIndex, registryStore);
             
             if(modifyDate < 0) {
                 pubhubWorkflow.retrieveAllBooks(maxDownloads);
@@ -128,7 +142,8 @@ public class Elivagar {
                 pubhubWorkflow.makeStatistics(ps, beginDate);                
             }
             log.info("Finished! Written statistics at " + statisticsFile.getAbsolutePath());
-        } catch (IOException | JAXBException | RuntimeException e) {
+            characterizer.finishQuarantineLane();
+        } catch (IOException | JAXBException | InterruptedException | RuntimeException e) {
             log.error("Failure to run the workflow. \nThe waters of Elivagar must have frozen over!", e);
             System.exit(1);
         }
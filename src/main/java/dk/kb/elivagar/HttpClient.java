@@ -1,6 +1,7 @@
 package dk.kb.elivagar;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 
 import org.apache.http.client.methods.CloseableHttpResponse;
@@ -11,6 +12,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import dk.kb.elivagar.exception.ArgumentCheck;
+import dk.kb.elivagar.exception.HttpStatusException;
 import dk.kb.elivagar.utils.StreamUtils;
 
 /**
@@ -28,26 +30,48 @@ public class HttpClient {
 
     /**
      * Method for extracting the content of a given URL.
-     * It will throw an exception, if the response status code is not in the 200-299 range.
+     * It will throw a HttpStatusException, if the response status code is not in the 200-299 range.
      * @param url The text URL to retrieve.
      * @param out The output stream, where the content from the URL is delivered.
      * @throws IOException If any connection issues occur.
      */
-    public void retrieveUrlContent(String url, OutputStream out) throws IOException {
-        ArgumentCheck.checkNotNullOrEmpty(url, "String url");
+    public void retrieveUrlContent(String url, final OutputStream out) throws IOException {
         ArgumentCheck.checkNotNull(out, "OutputStream out");
+        retrieveUrlContent(url, new ContentHandler() {
+            @Override
+            public void handleContent(InputStream content) throws IOException {
+                StreamUtils.copyInputStreamToOutputStream(content, out);
+            }
+        });
+    }
+    
+    /**
+     * Method for handling the content of a given URL directly from the response stream, 
+     * e.g. for parsing it without buffering it first.
+     * It will throw a HttpStatusException, if the response status code is not in the 200-299 range.
+     * @param url The text URL to retrieve.
+     * @param handler The handler of the content from the URL.
+     * @throws IOException If any connection issues occur.
+     */
+    public void retrieveUrlContent(String url, ContentHandler handler) throws IOException {
+        ArgumentCheck.checkNotNullOrEmpty(url, "String url");
+        ArgumentCheck.checkNotNull(handler, "ContentHandler handler");
         
         log.debug("Retrieving content from URL: " + url);
         try (CloseableHttpClient client = HttpClients.createDefault();) {
             HttpGet getMethod = new HttpGet(url);
             
-            CloseableHttpResponse response = client.execute(getMethod);
-            int statusCode = response.getStatusLine().getStatusCode();
-            if(!validateResponseCode(statusCode)) {
-                throw new IllegalStateException("Received erroneous status code for url " + url + ", " + statusCode);
+            try (CloseableHttpResponse response = client.execute(getMethod)) {
+                int statusCode = response.getStatusLine().getStatusCode();
+                if(!validateResponseCode(statusCode)) {
+                    throw new HttpStatusException("Received erroneous status code for url " + url + ", " 
+                            + statusCode, statusCode);
+                }
+                
+                try (InputStream content = response.getEntity().getContent()) {
+                    handler.handleContent(content);
+                }
             }
-            
-            StreamUtils.copyInputStreamToOutputStream(response.getEntity().getContent(), out);
         }
     }
     
@@ -62,4 +86,16 @@ public class HttpClient {
         }
         return true;
     }
+    
+    /**
+     * Interface for handling the content of a HTTP response.
+     */
+    public interface ContentHandler {
+        /**
+         * Handles the content.
+         * @param content The stream with the content of the HTTP response.
+         * @throws IOException If it fails to handle the content.
+         */
+        void handleContent(InputStream content) throws IOException;
+    }
 }
@@ -0,0 +1,83 @@
+package dk.kb.elivagar;
+
+import dk.kb.elivagar.characterization.CharacterizationCampaign;
+import dk.kb.elivagar.characterization.CharacterizationHandler;
+import dk.kb.elivagar.characterization.EpubCheckerCharacterizer;
+import dk.kb.elivagar.characterization.FitsCharacterizer;
+import dk.kb.elivagar.config.Configuration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+
+/**
+ * Runs a re-characterization campaign for all the content files in the output directories.
+ *
+ * Usage:
+ * dk.kb.elivagar.Recharacterize /PATH/TO/elivagar.yml [CAMPAIGN NAME] [all|fits|epubcheck]
+ *
+ * The campaign name is used for the checkpoint, so a stopped campaign will continue where it left off,
+ * when it is started again with the same name. A new name must be used for a new campaign.
+ * Default campaign name is 'default', and default is to run all the characterizations.
+ */
+public class Recharacterize {
+    /** The logger.*/
+    private static final Logger log = LoggerFactory.getLogger(Recharacterize.class);
+
+    /** The default name of the campaign.*/
+    protected static final String DEFAULT_CAMPAIGN_NAME = "default";
+    /** The argument for running all the characterizations.*/
+    protected static final String ARG_ALL = "all";
+    /** The argument for only running the FITS characterization.*/
+    protected static final String ARG_FITS = "fits";
+    /** The argument for only running the epubcheck characterization.*/
+    protected static final String ARG_EPUBCHECK = "epubcheck";
+
+    /**
+     * Main method.
+     * Requires at least the one argument for the configuration.
+     * @param args The arguments.
+     */
+    public static void main(String ... args) {
+        if(args.length < 1) {
+            System.err.println("Needs at least one argument: ");
+            System.err.println(" * The configuration file.");
+            System.err.println(" * The name of the campaign (OPTIONAL)");
+            System.err.println(" * The characterization to run; " + ARG_ALL + ", " + ARG_FITS + " or "
+                    + ARG_EPUBCHECK + " (OPTIONAL)");
+            System.exit(-1);
+        }
+        File confFile = new File(args[0]);
+        String campaignName = DEFAULT_CAMPAIGN_NAME;
+        if(args.length > 1) {
+            campaignName = args[1];
+        }
+        String characterization = ARG_ALL;
+        if(args.length > 2) {
+            characterization = args[2].toLowerCase();
+        }
+        if(!characterization.equals(ARG_ALL) && !characterization.equals(ARG_FITS)
+                && !characterization.equals(ARG_EPUBCHECK)) {
+            System.err.println("Unknown characterization: " + characterization);
+            System.exit(-1);
+        }
+        log.debug("Running characterization campaign '" + campaignName + "' with the characterization: "
+                + characterization);
+
+        try {
+            Configuration conf = Configuration.createFromYAMLFile(confFile);
+            FitsCharacterizer fitsCharacterizer = null;
+            if(conf.getCharacterizationScriptFile() != null) {
+                fitsCharacterizer = new FitsCharacterizer(conf.getCharacterizationScriptFile());
+            }
+            CharacterizationHandler characterizer = new CharacterizationHandler(fitsCharacterizer,
+                    new EpubCheckerCharacterizer());
+            CharacterizationCampaign campaign = new CharacterizationCampaign(conf, characterizer, campaignName,
+                    !characterization.equals(ARG_EPUBCHECK), !characterization.equals(ARG_FITS));
+            campaign.run();
+        } catch (Exception e) {
+            log.error("Failure to run the characterization campaign.", e);
+            System.exit(1);
+        }
+    }
+}
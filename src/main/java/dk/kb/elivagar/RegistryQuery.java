@@ -0,0 +1,144 @@
+package dk.kb.elivagar;
+
+import dk.kb.elivagar.config.Configuration;
+import dk.kb.elivagar.transfer.RegistryStore;
+import dk.kb.elivagar.utils.CalendarUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.text.ParseException;
+import java.util.Collection;
+import java.util.Date;
+
+/**
+ * Queries the central store of the transfer registries.
+ *
+ * Usage:
+ * dk.kb.elivagar.RegistryQuery /PATH/TO/elivagar.yml COMMAND [ARGUMENTS]
+ *
+ * The commands are:
+ * <ul>
+ *   <li>import - imports the registry files of the books in the ebook and audio book output directories.</li>
+ *   <li>export DIR - exports the registries in the store to the given directory, in the registry file format.</li>
+ *   <li>ingested FROM TO - the books ingested from FROM (inclusive) to TO (exclusive).</li>
+ *   <li>updated FROM TO - the books latest updated from FROM (inclusive) to TO (exclusive).</li>
+ *   <li>changed-since DATE - the books ingested or updated since DATE.</li>
+ *   <li>never-updated - the books which have been ingested, but never updated.</li>
+ *   <li>checksum CHECKSUM - the books with a file with the given checksum.</li>
+ * </ul>
+ * The dates are in the format 'yyyy-MM-dd', or milliseconds since epoch.
+ * The ids of the books found by the query are written to standard out, one per line.
+ */
+public class RegistryQuery {
+    /** The logger.*/
+    private static final Logger log = LoggerFactory.getLogger(RegistryQuery.class);
+
+    /** The format of the dates in the arguments.*/
+    protected static final String DATE_FORMAT = "yyyy-MM-dd";
+
+    /** The command for importing the registry files.*/
+    protected static final String COMMAND_IMPORT = "import";
+    /** The command for exporting the registries.*/
+    protected static final String COMMAND_EXPORT = "export";
+    /** The command for the books ingested within an interval.*/
+    protected static final String COMMAND_INGESTED = "ingested";
+    /** The command for the books updated within an interval.*/
+    protected static final String COMMAND_UPDATED = "updated";
+    /** The command for the books changed since a date.*/
+    protected static final String COMMAND_CHANGED_SINCE = "changed-since";
+    /** The command for the books never updated.*/
+    protected static final String COMMAND_NEVER_UPDATED = "never-updated";
+    /** The command for the books with a given checksum.*/
+    protected static final String COMMAND_CHECKSUM = "checksum";
+
+    /**
+     * Main method.
+     * Requires at least the two arguments for the configuration and the command.
+     * @param args The arguments.
+     */
+    public static void main(String ... args) {
+        if(args.length < 2) {
+            System.err.println("Needs at least two arguments: ");
+            System.err.println(" * The configuration file.");
+            System.err.println(" * The command; " + COMMAND_IMPORT + ", " + COMMAND_EXPORT + " DIR, "
+                    + COMMAND_INGESTED + " FROM TO, " + COMMAND_UPDATED + " FROM TO, " + COMMAND_CHANGED_SINCE
+                    + " DATE, " + COMMAND_NEVER_UPDATED + " or " + COMMAND_CHECKSUM + " CHECKSUM");
+            System.exit(-1);
+        }
+        try {
+            Configuration conf = Configuration.createFromYAMLFile(new File(args[0]));
+            RegistryStore store = new RegistryStore(conf.getStateDir());
+            if(args[1].equals(COMMAND_IMPORT)) {
+                int count = store.importRegistries(conf.getEbookOutputDir());
+                if(!conf.getAudioOutputDir().equals(conf.getEbookOutputDir())) {
+                    count += store.importRegistries(conf.getAudioOutputDir());
+                }
+                System.out.println("Imported " + count + " registries.");
+            } else if(!runQuery(store, args, System.out)) {
+                System.err.println("Unknown command or missing arguments: " + args[1]);
+                System.exit(-1);
+            }
+        } catch (Exception e) {
+            log.error("Failure to query the registry store.", e);
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Runs the query of the command in the arguments.
+     * @param store The registry store.
+     * @param args The arguments, where the second is the command.
+     * @param out The stream to write the result to.
+     * @return Whether the command was known and had the required arguments.
+     * @throws IOException If it fails to export the registries.
+     * @throws ParseException If a date argument cannot be parsed.
+     */
+    protected static boolean runQuery(RegistryStore store, String[] args, PrintStream out)
+            throws IOException, ParseException {
+        String command = args[1];
+        if(command.equals(COMMAND_EXPORT) && args.length > 2) {
+            int count = store.exportRegistries(new File(args[2]));
+            out.println("Exported " + count + " registries.");
+        } else if(command.equals(COMMAND_INGESTED) && args.length > 3) {
+            print(store.getBooksIngestedBetween(parseDate(args[2]), parseDate(args[3])), out);
+        } else if(command.equals(COMMAND_UPDATED) && args.length > 3) {
+            print(store.getBooksUpdatedBetween(parseDate(args[2]), parseDate(args[3])), out);
+        } else if(command.equals(COMMAND_CHANGED_SINCE) && args.length > 2) {
+            print(store.getBooksChangedSince(parseDate(args[2])), out);
+        } else if(command.equals(COMMAND_NEVER_UPDATED)) {
+            print(store.getBooksNeverUpdated(), out);
+        } else if(command.equals(COMMAND_CHECKSUM) && args.length > 2) {
+            print(store.getBooksWithChecksum(args[2]), out);
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Parses the date argument.
+     * @param date The date, either in the date format or in milliseconds since epoch.
+     * @return The date.
+     * @throws ParseException If the date cannot be parsed.
+     */
+    protected static Date parseDate(String date) throws ParseException {
+        if(date.matches("\\d+")) {
+            return new Date(Long.parseLong(date));
+        }
+        return CalendarUtils.getDateFromString(date, DATE_FORMAT);
+    }
+
+    /**
+     * Prints the book ids, one per line.
+     * @param bookIds The book ids.
+     * @param out The stream to print to.
+     */
+    protected static void print(Collection<String> bookIds, PrintStream out) {
+        for(String bookId : bookIds) {
+            out.println(bookId);
+        }
+    }
+}
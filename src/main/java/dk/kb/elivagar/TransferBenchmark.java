@@ -0,0 +1,147 @@
+package dk.kb.elivagar;
+
+import dk.kb.elivagar.config.TransferConfiguration;
+import dk.kb.elivagar.utils.ChecksumUtils;
+import dk.kb.elivagar.utils.FileUtils;
+import dk.kb.elivagar.utils.ParallelFileCopier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Measures the throughput of the ways the transfer moves a file to a destination directory, against a plain
+ * stream copy; the copy with checksums (FileUtils.copyFileWithChecksums), the parallel copy of ranges with
+ * checksums (ParallelFileCopier), and the hard link (FileUtils.createHardLink, only when on the same file system).
+ * The checksums are MD5, as for the manifests of the transfer. Each copy is forced to disk before it is timed as
+ * finished.
+ *
+ * Usage:
+ * dk.kb.elivagar.TransferBenchmark /PATH/TO/FILE /PATH/TO/DESTINATION/DIR [ITERATIONS]
+ *
+ * The result is written to standard out, with the average time and throughput for each method.
+ */
+public class TransferBenchmark {
+    /** The logger.*/
+    private static final Logger log = LoggerFactory.getLogger(TransferBenchmark.class);
+
+    /** The default number of iterations for each method.*/
+    protected static final int DEFAULT_ITERATIONS = 5;
+    /** The number of bytes in a megabyte.*/
+    protected static final double BYTES_PER_MB = 1024.0 * 1024.0;
+    /** The checksum algorithms of the copies.*/
+    protected static final List<String> ALGORITHMS = Arrays.asList(ChecksumUtils.MD5_ALGORITHM);
+
+    /**
+     * Main method.
+     * Requires the two arguments for the file and the destination directory, and optionally the iterations.
+     * @param args The arguments.
+     */
+    public static void main(String ... args) {
+        if(args.length < 2) {
+            System.err.println("Needs at least two arguments: ");
+            System.err.println(" * The file to transfer.");
+            System.err.println(" * The destination directory.");
+            System.err.println("And optionally the number of iterations (default " + DEFAULT_ITERATIONS + ")");
+            System.exit(-1);
+        }
+        try {
+            int iterations = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_ITERATIONS;
+            File destDir = FileUtils.createDirectory(args[1]);
+            runBenchmark(new File(args[0]), destDir, iterations, System.out);
+        } catch (Exception e) {
+            log.error("Failure to run the transfer benchmark.", e);
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Runs the benchmark of each transfer method, and prints the results.
+     * @param file The file to transfer.
+     * @param destDir The destination directory.
+     * @param iterations The number of iterations for each method.
+     * @param out The stream to write the results to.
+     * @throws IOException If a transfer fails.
+     */
+    protected static void runBenchmark(File file, File destDir, int iterations, PrintStream out) throws IOException {
+        File destFile = new File(destDir, file.getName() + ".benchmark");
+        long size = file.length();
+        out.println("Transferring '" + file.getAbsolutePath() + "' (" + size + " bytes) to '"
+                + destDir.getAbsolutePath() + "', " + iterations + " iterations.");
+
+        ParallelFileCopier parallelCopier = new ParallelFileCopier(1L,
+                TransferConfiguration.DEFAULT_PARALLEL_COPY_STREAMS);
+        long streamTime = 0L;
+        long checksumTime = 0L;
+        long parallelTime = 0L;
+        long linkTime = 0L;
+        boolean linked = true;
+        for(int i = 0; i < iterations; i++) {
+            long start = System.nanoTime();
+            Files.copy(file.toPath(), destFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            force(destFile);
+            streamTime += System.nanoTime() - start;
+            FileUtils.deleteFile(destFile);
+
+            start = System.nanoTime();
+            FileUtils.copyFileWithChecksums(file, destFile, ALGORITHMS);
+            force(destFile);
+            checksumTime += System.nanoTime() - start;
+            FileUtils.deleteFile(destFile);
+
+            start = System.nanoTime();
+            parallelCopier.copyFile(file, destFile, ALGORITHMS);
+            force(destFile);
+            parallelTime += System.nanoTime() - start;
+            FileUtils.deleteFile(destFile);
+
+            start = System.nanoTime();
+            linked = FileUtils.createHardLink(file, destFile) && linked;
+            linkTime += System.nanoTime() - start;
+            FileUtils.deleteFile(destFile);
+        }
+
+        out.println(formatResult("Stream copy", streamTime, iterations, size));
+        out.println(formatResult("Checksum copy", checksumTime, iterations, size));
+        out.println(formatResult("Parallel copy (" + TransferConfiguration.DEFAULT_PARALLEL_COPY_STREAMS
+                + " streams)", parallelTime, iterations, size));
+        if(linked) {
+            out.println(formatResult("Hard link", linkTime, iterations, size));
+        } else {
+            out.println("Hard link: not possible, the destination is on another file system.");
+        }
+    }
+
+    /**
+     * Forces the content of the file to disk.
+     * @param f The file.
+     * @throws IOException If it fails to force the file.
+     */
+    protected static void force(File f) throws IOException {
+        try (FileChannel channel = FileChannel.open(f.toPath(), StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+    }
+
+    /**
+     * @param method The name of the transfer method.
+     * @param totalNanos The total time for all the iterations, in nanoseconds.
+     * @param iterations The number of iterations.
+     * @param size The size of the file.
+     * @return The result line with the average time and throughput.
+     */
+    protected static String formatResult(String method, long totalNanos, int iterations, long size) {
+        double seconds = totalNanos / 1e9 / iterations;
+        double throughput = seconds > 0 ? size / BYTES_PER_MB / seconds : 0.0;
+        return String.format(Locale.ROOT, "%s: %.3f ms, %.1f MB/s", method, seconds * 1000, throughput);
+    }
+}
@@ -0,0 +1,298 @@
+package dk.kb.elivagar.characterization;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import dk.kb.elivagar.config.CharacterizationConfiguration;
+import dk.kb.elivagar.config.Configuration;
+import dk.kb.elivagar.exception.ArgumentCheck;
+import dk.kb.elivagar.utils.FileUtils;
+import dk.kb.elivagar.utils.RateLimiter;
+
+/**
+ * Campaign for re-characterizing all the content files in the output directories,
+ * e.g. after FITS or EpubCheck has been upgraded.
+ *
+ * The files are characterized in parallel by a configurable number of threads, and at a configurable maximum
+ * rate. These two limits are what keep the campaign from starving the daily workflow; the threads have normal
+ * priority, since Java thread priorities are ignored by the JVM on Linux by default.
+ *
+ * The progress is checkpointed in a file in the state directory, where the path of each successfully
+ * re-characterized file is appended. If the campaign is stopped, then it will continue where it left off,
+ * when it is restarted with the same name. Failed files are not checkpointed, so they are retried on restart.
+ */
+public class CharacterizationCampaign {
+    /** The logger.*/
+    private static final Logger log = LoggerFactory.getLogger(CharacterizationCampaign.class);
+
+    /** The prefix for the name of the checkpoint file.*/
+    protected static final String CHECKPOINT_FILE_PREFIX = "characterization_campaign_";
+    /** The suffix for the name of the checkpoint file.*/
+    protected static final String CHECKPOINT_FILE_SUFFIX = ".checkpoint";
+    /** The number of seconds in a minute.*/
+    protected static final double SECONDS_PER_MINUTE = 60.0;
+    /** The number of files between the progress log messages.*/
+    protected static final long PROGRESS_INTERVAL = 1000L;
+
+    /** The configuration.*/
+    protected final Configuration conf;
+    /** The characterization handler.*/
+    protected final CharacterizationHandler characterizationHandler;
+    /** The file with the checkpoints for this campaign.*/
+    protected final File checkpointFile;
+    /** Whether to run the FITS characterization.*/
+    protected final boolean withFits;
+    /** Whether to run the epubcheck characterization.*/
+    protected final boolean withEpubCheck;
+
+    /** The writer for the checkpoint file, while the campaign is running.*/
+    protected Writer checkpointWriter;
+    /** The number of files successfully re-characterized.*/
+    protected final AtomicLong succeeded = new AtomicLong();
+    /** The number of files, which failed the re-characterization.*/
+    protected final AtomicLong failed = new AtomicLong();
+    /** The number of files skipped, since they were already checkpointed.*/
+    protected final AtomicLong skipped = new AtomicLong();
+
+    /**
+     * Constructor.
+     * @param conf The configuration.
+     * @param characterizationHandler The characterization handler.
+     * @param campaignName The name of the campaign, used for the checkpoint file.
+     * @param withFits Whether to run the FITS characterization.
+     * @param withEpubCheck Whether to run the epubcheck characterization.
+     */
+    public CharacterizationCampaign(Configuration conf, CharacterizationHandler characterizationHandler,
+            String campaignName, boolean withFits, boolean withEpubCheck) {
+        ArgumentCheck.checkNotNull(conf, "Configuration conf");
+        ArgumentCheck.checkNotNull(characterizationHandler, "CharacterizationHandler characterizationHandler");
+        ArgumentCheck.checkNotNullOrEmpty(campaignName, "String campaignName");
+        this.conf = conf;
+        this.characterizationHandler = characterizationHandler;
+        this.checkpointFile = new File(conf.getStateDir(), CHECKPOINT_FILE_PREFIX + campaignName
+                + CHECKPOINT_FILE_SUFFIX);
+        this.withFits = withFits;
+        this.withEpubCheck = withEpubCheck;
+    }
+
+    /**
+     * Runs the campaign.
+     * Finds all the content files, which have not already been re-characterized in this campaign,
+     * and re-characterizes them in parallel.
+     * @throws IOException If it fails to read or write the checkpoint file.
+     * @throws InterruptedException If the campaign is interrupted.
+     */
+    public void run() throws IOException, InterruptedException {
+        CharacterizationConfiguration characterizationConf = conf.getCharacterizationConfiguration();
+        int threads = characterizationConf.getCampaignThreads();
+        RateLimiter rateLimiter = new RateLimiter(
+                characterizationConf.getCampaignFilesPerMinute() / SECONDS_PER_MINUTE);
+
+        FileUtils.createDirectory(conf.getStateDir().getAbsolutePath());
+        Set<String> completed = loadCheckpoint();
+        List<File> files = findContentFiles();
+        log.info("Starting characterization campaign with '" + files.size() + "' content files, of which '"
+                + completed.size() + "' has already been completed, using '" + threads + "' threads.");
+
+        long startTime = System.currentTimeMillis();
+        ExecutorService executor = Executors.newFixedThreadPool(threads, new CampaignThreadFactory());
+        Semaphore pending = new Semaphore(threads * 2);
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(checkpointFile, true),
+                StandardCharsets.UTF_8)) {
+            checkpointWriter = writer;
+            for(File f : files) {
+                if(completed.contains(f.getAbsolutePath())) {
+                    skipped.incrementAndGet();
+                    continue;
+                }
+                rateLimiter.acquire();
+                pending.acquire();
+                executor.submit(new CampaignTask(f, pending));
+            }
+            executor.shutdown();
+            while(!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                log.debug("Waiting for the last characterizations of the campaign.");
+            }
+        } finally {
+            executor.shutdownNow();
+            checkpointWriter = null;
+        }
+        log.info("Finished characterization campaign in " + (System.currentTimeMillis() - startTime)
+                + " ms: " + succeeded.get() + " succeeded, " + failed.get() + " failed and " + skipped.get()
+                + " skipped, since they were already completed.");
+    }
+
+    /**
+     * Re-characterizes a single file, and checkpoints it, if it succeeds.
+     * @param f The content file to re-characterize.
+     */
+    protected void characterizeFile(File f) {
+        if(characterizationHandler.recharacterize(f, f.getParentFile(), withFits, withEpubCheck)) {
+            try {
+                checkpoint(f);
+            } catch (IOException e) {
+                throw new IllegalStateException("Could not write checkpoint for the file '"
+                        + f.getAbsolutePath() + "'", e);
+            }
+            long count = succeeded.incrementAndGet();
+            if(count % PROGRESS_INTERVAL == 0L) {
+                log.info("Re-characterized '" + count + "' files in the campaign.");
+            }
+        } else {
+            failed.incrementAndGet();
+        }
+    }
+
+    /**
+     * Appends the file to the checkpoint file, and flushes it, so it will be skipped after a restart.
+     * @param f The file which has been re-characterized.
+     * @throws IOException If it fails to write to the checkpoint file.
+     */
+    protected synchronized void checkpoint(File f) throws IOException {
+        checkpointWriter.write(f.getAbsolutePath() + "\n");
+        checkpointWriter.flush();
+    }
+
+    /**
+     * Loads the paths of the files, which have already been re-characterized in this campaign.
+     * @return The set of paths of the already re-characterized files.
+     * @throws IOException If it fails to read the checkpoint file.
+     */
+    protected Set<String> loadCheckpoint() throws IOException {
+        Set<String> res = new HashSet<String>();
+        if(!checkpointFile.isFile()) {
+            return res;
+        }
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(checkpointFile), StandardCharsets.UTF_8))) {
+            String line;
+            while((line = reader.readLine()) != null) {
+                if(!line.isEmpty()) {
+                    res.add(line);
+                }
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Finds all the content files in the book directories of the output directories.
+     * @return The list of content files.
+     */
+    protected List<File> findContentFiles() {
+        List<String> formats = new ArrayList<String>(conf.getEbookFormats());
+        formats.addAll(conf.getAudioFormats());
+        List<File> res = new ArrayList<File>();
+        addContentFiles(conf.getEbookOutputDir(), formats, res);
+        if(!conf.getAudioOutputDir().getAbsolutePath().equals(conf.getEbookOutputDir().getAbsolutePath())) {
+            addContentFiles(conf.getAudioOutputDir(), formats, res);
+        }
+        return res;
+    }
+
+    /**
+     * Adds the content files in the book directories within the given base directory.
+     * @param baseDir The base directory containing the book directories.
+     * @param formats The formats of the content files.
+     * @param contentFiles The list of content files to add to.
+     */
+    protected void addContentFiles(File baseDir, List<String> formats, List<File> contentFiles) {
+        File[] bookDirs = baseDir.listFiles();
+        if(bookDirs == null) {
+            log.warn("Could not list the book directories in '" + baseDir.getAbsolutePath() + "'");
+            return;
+        }
+        for(File bookDir : bookDirs) {
+            if(!bookDir.isDirectory()) {
+                continue;
+            }
+            for(String format : formats) {
+                File contentFile = new File(bookDir, bookDir.getName() + "." + format);
+                if(contentFile.isFile()) {
+                    contentFiles.add(contentFile);
+                }
+            }
+        }
+    }
+
+    /** @return The number of files successfully re-characterized.*/
+    public long getNumberOfSucceeded() {
+        return succeeded.get();
+    }
+
+    /** @return The number of files which failed the re-characterization.*/
+    public long getNumberOfFailed() {
+        return failed.get();
+    }
+
+    /** @return The number of files skipped, since they were already re-characterized by this campaign.*/
+    public long getNumberOfSkipped() {
+        return skipped.get();
+    }
+
+    /**
+     * The task for re-characterizing a single file.
+     */
+    protected class CampaignTask implements Runnable {
+        /** The file to re-characterize.*/
+        protected final File file;
+        /** The semaphore for the pending tasks, to release when the task is done.*/
+        protected final Semaphore pending;
+
+        /**
+         * Constructor.
+         * @param file The file to re-characterize.
+         * @param pending The semaphore for the pending tasks.
+         */
+        protected CampaignTask(File file, Semaphore pending) {
+            this.file = file;
+            this.pending = pending;
+        }
+
+        @Override
+        public void run() {
+            try {
+                characterizeFile(file);
+            } catch (RuntimeException e) {
+                log.warn("Failure during the campaign re-characterization of '" + file.getAbsolutePath() + "'", e);
+                failed.incrementAndGet();
+            } finally {
+                pending.release();
+            }
+        }
+    }
+
+    /**
+     * Thread factory for the campaign threads, which names them after the campaign.
+     */
+    protected static class CampaignThreadFactory implements ThreadFactory {
+        /** The number of threads created by this factory.*/
+        protected final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            return new Thread(r, "characterization-campaign-" + count.incrementAndGet());
+        }
+    }
+}
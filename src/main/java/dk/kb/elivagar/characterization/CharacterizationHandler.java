@@ -1,6 +1,15 @@
 package dk.kb.elivagar.characterization;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -11,6 +20,11 @@ import dk.kb.elivagar.utils.FileUtils;
 /**
  * The characterization handler for performing different kinds of characterization.
  * Currently supports both FITS and EpubCheck characterization.
+ * 
+ * If it has a characterization history, then the characterizations which have failed too many times or taken too
+ * long are quarantined. The quarantined characterizations are not performed inline, but in a separate quarantine
+ * lane with a single thread, and only when their back-off interval has passed. So at most one quarantined 
+ * characterization runs at a time, alongside the inline characterizations.
  */
 public class CharacterizationHandler {
     /** The logger.*/
@@ -20,6 +34,12 @@ public class CharacterizationHandler {
     protected FitsCharacterizer fitsCharacterizer;
     /** The epub characterization. */
     protected final EpubCheckerCharacterizer epubCharacterizer;
+    /** The history of the failed and slow characterizations. May be null, for no quarantine.*/
+    protected final CharacterizationHistory history;
+    /** The quarantine lane. Is created when the first quarantined characterization is due.*/
+    protected ExecutorService quarantineLane;
+    /** The paths of the output files for the characterizations currently in the quarantine lane.*/
+    protected final Set<String> quarantined = Collections.synchronizedSet(new HashSet<String>());
     
     /**
      * Constructor.
@@ -27,8 +47,20 @@ public class CharacterizationHandler {
      * @param epubCharacterizer The characterizer for epubs.
      */
     public CharacterizationHandler(FitsCharacterizer fitsScript, EpubCheckerCharacterizer epubCharacterizer) {
+        this(fitsScript, epubCharacterizer, null);
+    }
+    
+    /**
+     * Constructor.
+     * @param fitsScript The script for characterizing the book files. May be null, for no characterization.
+     * @param epubCharacterizer The characterizer for epubs.
+     * @param history The history of the failed and slow characterizations. May be null, for no quarantine.
+     */
+    public CharacterizationHandler(FitsCharacterizer fitsScript, EpubCheckerCharacterizer epubCharacterizer, 
+            CharacterizationHistory history) {
         this.fitsCharacterizer = fitsScript;
         this.epubCharacterizer = epubCharacterizer;
+        this.history = history;
     }
     
     /**
@@ -42,6 +74,63 @@ public class CharacterizationHandler {
         runEpubCheckIfNeeded(inputFile, outputDir);
     }
     
+    /**
+     * Performs the characterization regardless of whether the output files are newer than the input file,
+     * e.g. when the characterization tools have been upgraded.
+     * The new output is written to a temporary file, which replaces the existing output file when it succeeds.
+     * Thus a failed characterization does not remove the previous output.
+     * @param inputFile The file to characterize.
+     * @param outputDir The directory, where the characterization output file should be placed.
+     * @param withFits Whether to run the FITS characterization (if FITS is turned on).
+     * @param withEpubCheck Whether to run the epubcheck characterization (if it is an epub file).
+     * @return Whether all the characterizations succeeded.
+     */
+    public boolean recharacterize(File inputFile, File outputDir, boolean withFits, boolean withEpubCheck) {
+        log.debug("Re-characterizing the file '" + inputFile.getAbsolutePath() + "'.");
+        boolean success = true;
+        if(withFits && fitsCharacterizer != null) {
+            File outputFile = new File(outputDir, inputFile.getName().toLowerCase() 
+                    + Constants.FITS_METADATA_SUFFIX);
+            File tempFile = new File(outputDir, UUID.randomUUID().toString());
+            try {
+                fitsCharacterizer.performCharacterization(inputFile, tempFile);
+                replaceOutputFile(tempFile, outputFile);
+            } catch (Throwable e) {
+                log.warn("Failure when trying to re-characterize the file with FITS: "
+                        + inputFile.getAbsolutePath(), e);
+                FileUtils.deleteFile(tempFile);
+                success = false;
+            }
+        }
+        if(withEpubCheck && epubCharacterizer.hasRequiredExtension(inputFile)) {
+            File outputFile = new File(outputDir, inputFile.getName().toLowerCase() 
+                    + Constants.EPUBCHECK_METADATA_SUFFIX);
+            File tempFile = new File(outputDir, UUID.randomUUID().toString());
+            try {
+                epubCharacterizer.characterize(inputFile, tempFile);
+                replaceOutputFile(tempFile, outputFile);
+            } catch (Throwable e) {
+                log.warn("Failure when trying to re-characterize the epub file: " + inputFile.getAbsolutePath(), e);
+                FileUtils.deleteFile(tempFile);
+                success = false;
+            }
+        }
+        return success;
+    }
+    
+    /**
+     * Replaces the output file with the newly created temporary output file.
+     * @param tempFile The temporary output file.
+     * @param outputFile The output file to replace.
+     * @throws IOException If the temporary file is empty or cannot be moved.
+     */
+    protected void replaceOutputFile(File tempFile, File outputFile) throws IOException {
+        if(!tempFile.isFile() || tempFile.length() < 1L) {
+            throw new IOException("No output from the characterization in '" + tempFile.getAbsolutePath() + "'");
+        }
+        FileUtils.moveFile(tempFile, outputFile);
+    }
+    
     /**
      * Check and do the epubcheck chacracterization if it is needed.
      * @param inputFile The file to characterize, if it is needed.
@@ -57,13 +146,8 @@ public class CharacterizationHandler {
                 + Constants.EPUBCHECK_METADATA_SUFFIX);
         
         if(shouldCharacterize(outputFile, inputFile)) {
-            try {
-                epubCharacterizer.characterize(inputFile, outputFile);
-            } catch (Throwable e) {
-                log.warn("Failure when trying to characterize the epub file: " + inputFile.getAbsolutePath(), e);
-                log.info("Trying to cleanup memory. Then continue.");
-                System.gc();
-                FileUtils.deleteFile(outputFile);
+            if(!handleQuarantine(inputFile, outputFile, false)) {
+                performEpubCheck(inputFile, outputFile);
             }
         } else {
             log.trace("No need to characterizing the epub file: " + inputFile.getAbsolutePath());
@@ -86,18 +170,147 @@ public class CharacterizationHandler {
         File characterizationOutputFile = new File(outputDir, inputFile.getName().toLowerCase() 
                 + Constants.FITS_METADATA_SUFFIX);
         if(shouldCharacterize(characterizationOutputFile, inputFile)) {
-            try { 
-                fitsCharacterizer.performCharacterization(inputFile, characterizationOutputFile);
-            } catch (Throwable e) {
-                log.warn("Failure when trying to do the FITS characterization for the file: "
-                        + inputFile.getAbsolutePath(), e);
-                FileUtils.deleteFile(characterizationOutputFile);
+            if(!handleQuarantine(inputFile, characterizationOutputFile, true)) {
+                performFits(inputFile, characterizationOutputFile);
             }
         } else {
             log.trace("FITS output file is newer that the file to characterize. Not characterizing again.");
         }
     }
     
+    /**
+     * Performs the epubcheck characterization, and records it in the history.
+     * If it fails, then the output file is removed.
+     * @param inputFile The file to characterize.
+     * @param outputFile The output file for the characterization.
+     */
+    protected void performEpubCheck(File inputFile, File outputFile) {
+        long startTime = System.currentTimeMillis();
+        try {
+            epubCharacterizer.characterize(inputFile, outputFile);
+            recordSuccess(outputFile, startTime);
+        } catch (Throwable e) {
+            log.warn("Failure when trying to characterize the epub file: " + inputFile.getAbsolutePath(), e);
+            log.info("Trying to cleanup memory. Then continue.");
+            System.gc();
+            FileUtils.deleteFile(outputFile);
+            recordFailure(outputFile, startTime);
+        }
+    }
+    
+    /**
+     * Performs the FITS characterization, and records it in the history.
+     * If it fails, then the output file is removed.
+     * @param inputFile The file to characterize.
+     * @param outputFile The output file for the characterization.
+     */
+    protected void performFits(File inputFile, File outputFile) {
+        long startTime = System.currentTimeMillis();
+        try { 
+            fitsCharacterizer.performCharacterization(inputFile, outputFile);
+            recordSuccess(outputFile, startTime);
+        } catch (Throwable e) {
+            log.warn("Failure when trying to do the FITS characterization for the file: "
+                    + inputFile.getAbsolutePath(), e);
+            FileUtils.deleteFile(outputFile);
+            recordFailure(outputFile, startTime);
+        }
+    }
+    
+    /**
+     * Records a successful characterization in the history, if any.
+     * @param outputFile The output file for the characterization.
+     * @param startTime The time when the characterization started.
+     */
+    protected void recordSuccess(File outputFile, long startTime) {
+        if(history != null) {
+            history.recordSuccess(outputFile, System.currentTimeMillis() - startTime);
+        }
+    }
+    
+    /**
+     * Records a failed characterization in the history, if any.
+     * @param outputFile The output file for the characterization.
+     * @param startTime The time when the characterization started.
+     */
+    protected void recordFailure(File outputFile, long startTime) {
+        if(history != null) {
+            history.recordFailure(outputFile, System.currentTimeMillis() - startTime);
+        }
+    }
+    
+    /**
+     * Handles the characterization, if it is quarantined.
+     * A quarantined characterization is placed in the quarantine lane, if its back-off interval has passed,
+     * and it is not already in the lane. Otherwise it is skipped.
+     * @param inputFile The file to characterize.
+     * @param outputFile The output file for the characterization.
+     * @param fits Whether it is the FITS characterization, otherwise it is the epubcheck characterization.
+     * @return Whether the characterization was quarantined, and thus should not be performed inline.
+     */
+    protected boolean handleQuarantine(final File inputFile, final File outputFile, final boolean fits) {
+        if(history == null || !history.isQuarantined(outputFile)) {
+            return false;
+        }
+        if(!history.isDue(outputFile)) {
+            log.info("The characterization '" + outputFile.getAbsolutePath() + "' is quarantined, and its "
+                    + "back-off interval has not yet passed.");
+            return true;
+        }
+        if(!quarantined.add(outputFile.getAbsolutePath())) {
+            log.debug("The characterization '" + outputFile.getAbsolutePath() + "' is already in the quarantine lane.");
+            return true;
+        }
+        log.info("Placing the characterization '" + outputFile.getAbsolutePath() + "' in the quarantine lane.");
+        getQuarantineLane().submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if(fits) {
+                        performFits(inputFile, outputFile);
+                    } else {
+                        performEpubCheck(inputFile, outputFile);
+                    }
+                } finally {
+                    quarantined.remove(outputFile.getAbsolutePath());
+                }
+            }
+        });
+        return true;
+    }
+    
+    /**
+     * @return The quarantine lane. It is created, if it does not already exist.
+     */
+    protected synchronized ExecutorService getQuarantineLane() {
+        if(quarantineLane == null) {
+            quarantineLane = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    return new Thread(r, "characterization-quarantine");
+                }
+            });
+        }
+        return quarantineLane;
+    }
+    
+    /**
+     * Waits for the quarantined characterizations to finish, and then closes the quarantine lane.
+     * Should be called at the end of the workflow, so the quarantined characterizations do not delay the rest 
+     * of the workflow.
+     * @throws InterruptedException If it is interrupted while waiting.
+     */
+    public synchronized void finishQuarantineLane() throws InterruptedException {
+        if(quarantineLane == null) {
+            return;
+        }
+        quarantineLane.shutdown();
+        while(!quarantineLane.awaitTermination(1, TimeUnit.MINUTES)) {
+            log.info("Waiting for the quarantined characterizations to finish.");
+        }
+        quarantineLane = null;
+    }
+    
     /**
      * Checks whether the given type of characterization should be performed.
      * If the output file does not exist, or if it is older than the input file, then a characterization is needed.
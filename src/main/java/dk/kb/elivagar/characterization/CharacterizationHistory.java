@@ -0,0 +1,210 @@
+package dk.kb.elivagar.characterization;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import dk.kb.elivagar.config.CharacterizationConfiguration;
+import dk.kb.elivagar.exception.ArgumentCheck;
+import dk.kb.elivagar.utils.FileUtils;
+
+/**
+ * The history of the characterizations, which have either failed or taken too long.
+ * It is used for deciding whether a file should be quarantined, and when a quarantined file should be tried again.
+ *
+ * The entries are keyed by the path of the characterization output file, since it identifies both the
+ * characterized file and the type of characterization.
+ * Successful characterizations within the duration threshold removes the entry, so the history only contains
+ * the outliers.
+ *
+ * The history is persisted in a file in the state directory, with a line for each entry in the format:
+ * output-path##failures##duration##last-attempt
+ */
+public class CharacterizationHistory {
+    /** The logger.*/
+    private static final Logger log = LoggerFactory.getLogger(CharacterizationHistory.class);
+
+    /** The name of the history file.*/
+    protected static final String HISTORY_FILE_NAME = "characterization_history.txt";
+    /** The separator between the elements of an entry.*/
+    protected static final String SEPARATOR = "##";
+    /** The maximum exponent for the back-off, to avoid overflow.*/
+    protected static final int MAX_BACKOFF_EXPONENT = 30;
+
+    /** The file with the history.*/
+    protected final File historyFile;
+    /** The configuration with the thresholds and back-off.*/
+    protected final CharacterizationConfiguration conf;
+    /** The entries, mapped by the path of the output file.*/
+    protected final Map<String, Entry> entries = new HashMap<String, Entry>();
+
+    /**
+     * Constructor.
+     * @param stateDir The directory for the persistent state.
+     * @param conf The configuration with the thresholds and back-off.
+     * @throws IOException If the state directory cannot be created, or the history file cannot be read.
+     */
+    public CharacterizationHistory(File stateDir, CharacterizationConfiguration conf) throws IOException {
+        ArgumentCheck.checkNotNull(stateDir, "File stateDir");
+        ArgumentCheck.checkNotNull(conf, "CharacterizationConfiguration conf");
+        FileUtils.createDirectory(stateDir.getAbsolutePath());
+        this.historyFile = new File(stateDir, HISTORY_FILE_NAME);
+        this.conf = conf;
+        load();
+    }
+
+    /**
+     * Records a successful characterization.
+     * @param outputFile The characterization output file.
+     * @param duration The duration of the characterization, in millis.
+     */
+    public synchronized void recordSuccess(File outputFile, long duration) {
+        String key = outputFile.getAbsolutePath();
+        if(exceedsDuration(duration)) {
+            entries.put(key, new Entry(0, duration, System.currentTimeMillis()));
+        } else if(entries.remove(key) == null) {
+            return;
+        }
+        save();
+    }
+
+    /**
+     * Records a failed characterization.
+     * @param outputFile The characterization output file.
+     * @param duration The duration of the characterization, in millis.
+     */
+    public synchronized void recordFailure(File outputFile, long duration) {
+        String key = outputFile.getAbsolutePath();
+        Entry entry = entries.get(key);
+        int failures = entry == null ? 1 : entry.failures + 1;
+        entries.put(key, new Entry(failures, duration, System.currentTimeMillis()));
+        save();
+    }
+
+    /**
+     * Checks whether the characterization for the given output file is quarantined,
+     * e.g. it has failed too many times, or the latest characterization took too long.
+     * @param outputFile The characterization output file.
+     * @return Whether it is quarantined.
+     */
+    public synchronized boolean isQuarantined(File outputFile) {
+        Entry entry = entries.get(outputFile.getAbsolutePath());
+        if(entry == null) {
+            return false;
+        }
+        return exceedsDuration(entry.duration)
+                || (conf.getQuarantineFailures() > 0 && entry.failures >= conf.getQuarantineFailures());
+    }
+
+    /**
+     * Checks whether the back-off interval for the given output file has passed.
+     * The back-off is doubled for each failure in a row, until it reaches the maximum back-off.
+     * @param outputFile The characterization output file.
+     * @return Whether a new characterization attempt can be made.
+     */
+    public synchronized boolean isDue(File outputFile) {
+        Entry entry = entries.get(outputFile.getAbsolutePath());
+        if(entry == null) {
+            return true;
+        }
+        return System.currentTimeMillis() >= entry.lastAttempt + getBackoff(entry.failures);
+    }
+
+    /**
+     * Calculates the back-off interval for the given number of failures.
+     * @param failures The number of failures in a row.
+     * @return The back-off interval in millis.
+     */
+    protected long getBackoff(int failures) {
+        int exponent = Math.min(Math.max(failures - 1, 0), MAX_BACKOFF_EXPONENT);
+        long backoff = conf.getQuarantineBackoff() * (1L << exponent);
+        if(backoff < 0L || backoff > conf.getQuarantineMaxBackoff()) {
+            return conf.getQuarantineMaxBackoff();
+        }
+        return backoff;
+    }
+
+    /**
+     * @param duration The duration of a characterization.
+     * @return Whether the duration exceeds the quarantine threshold.
+     */
+    protected boolean exceedsDuration(long duration) {
+        return conf.getQuarantineDuration() > 0L && duration >= conf.getQuarantineDuration();
+    }
+
+    /**
+     * Loads the history from the file, if it exists.
+     * @throws IOException If it fails to read the file.
+     */
+    protected void load() throws IOException {
+        if(!historyFile.isFile()) {
+            return;
+        }
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(historyFile), StandardCharsets.UTF_8))) {
+            String line;
+            while((line = reader.readLine()) != null) {
+                String[] split = line.split(SEPARATOR);
+                if(split.length != 4) {
+                    log.warn("Ignoring invalid characterization history entry: " + line);
+                    continue;
+                }
+                entries.put(split[0], new Entry(Integer.parseInt(split[1]), Long.parseLong(split[2]),
+                        Long.parseLong(split[3])));
+            }
+        }
+    }
+
+    /**
+     * Saves the history to the file. It is written to a temporary file, which then replaces the history file.
+     */
+    protected void save() {
+        File tmpFile = new File(historyFile.getParentFile(), historyFile.getName() + ".tmp");
+        try {
+            try (Writer writer = new OutputStreamWriter(new FileOutputStream(tmpFile), StandardCharsets.UTF_8)) {
+                for(Map.Entry<String, Entry> e : entries.entrySet()) {
+                    writer.write(e.getKey() + SEPARATOR + e.getValue().failures + SEPARATOR + e.getValue().duration
+                            + SEPARATOR + e.getValue().lastAttempt + "\n");
+                }
+            }
+            FileUtils.moveFile(tmpFile, historyFile);
+        } catch (IOException e) {
+            log.warn("Could not save the characterization history to '" + historyFile.getAbsolutePath() + "'", e);
+        }
+    }
+
+    /**
+     * An entry in the history.
+     */
+    protected static class Entry {
+        /** The number of failures in a row.*/
+        protected final int failures;
+        /** The duration of the latest characterization, in millis.*/
+        protected final long duration;
+        /** The time of the latest characterization, in millis since epoch.*/
+        protected final long lastAttempt;
+
+        /**
+         * Constructor.
+         * @param failures The number of failures in a row.
+         * @param duration The duration of the latest characterization.
+         * @param lastAttempt The time of the latest characterization.
+         */
+        protected Entry(int failures, long duration, long lastAttempt) {
+            this.failures = failures;
+            this.duration = duration;
+            this.lastAttempt = lastAttempt;
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package dk.kb.elivagar.config;
+
+import dk.kb.elivagar.exception.ArgumentCheck;
+
+/**
+ * Configuration for the retrieval of the metadata from Alma.
+ */
+public class AlmaConfiguration {
+    /** The default number of ISBNs in each SRU request. 1 means that batching is turned off.*/
+    public static final int DEFAULT_BATCH_SIZE = 1;
+    /** The default number of workers retrieving metadata from Alma concurrently.*/
+    public static final int DEFAULT_WORKERS = 1;
+    /** The default maximum number of SRU requests per second.*/
+    public static final double DEFAULT_REQUESTS_PER_SECOND = 10.0;
+    /** The default minimum number of SRU requests per second, when backing off.*/
+    public static final double DEFAULT_MIN_REQUESTS_PER_SECOND = 0.5;
+    /** The default latency threshold, in millis, before backing off; 5 seconds.*/
+    public static final long DEFAULT_LATENCY_THRESHOLD = 5000L;
+    /** The default time-to-live for cached MODS records; 30 days.*/
+    public static final long DEFAULT_CACHE_TTL = 2592000000L;
+    /** The default initial back-off for ISBNs not found in Alma; 1 day.*/
+    public static final long DEFAULT_NOT_FOUND_BACKOFF = 86400000L;
+    /** The default initial back-off for ISBNs with several records in Alma; 7 days.*/
+    public static final long DEFAULT_AMBIGUOUS_BACKOFF = 604800000L;
+    /** The default maximum back-off for ISBNs not found or with several records in Alma; 60 days.*/
+    public static final long DEFAULT_MAX_BACKOFF = 5184000000L;
+    /** The default fraction of the MODS records to refresh in each run. 0 means that refresh is turned off.*/
+    public static final double DEFAULT_REFRESH_FRACTION = 0.0;
+
+    /** The number of ISBNs to look up in each SRU request.*/
+    protected final int batchSize;
+    /** The number of workers retrieving metadata from Alma concurrently.*/
+    protected final int workers;
+    /** The maximum number of SRU requests per second. Non-positive for no limit.*/
+    protected final double requestsPerSecond;
+    /** The minimum number of SRU requests per second, when backing off.*/
+    protected final double minRequestsPerSecond;
+    /** The latency, in millis, of a SRU request, before backing off. Non-positive for ignoring the latency.*/
+    protected final long latencyThreshold;
+    /** The time-to-live, in millis, for cached MODS records. Non-positive for not caching the records.*/
+    protected final long cacheTtl;
+    /** The initial back-off, in millis, before looking up an ISBN, which was not found in Alma.*/
+    protected final long notFoundBackoff;
+    /** The initial back-off, in millis, before looking up an ISBN, which had several records in Alma.*/
+    protected final long ambiguousBackoff;
+    /** The maximum back-off, in millis, before looking up an ISBN again.*/
+    protected final long maxBackoff;
+    /** The fraction of the existing MODS records to refresh from Alma in each run.*/
+    protected final double refreshFraction;
+
+    /**
+     * Constructor with the default values.
+     */
+    public AlmaConfiguration() {
+        this(DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * Constructor with the default values for everything but the batch size.
+     * @param batchSize The number of ISBNs to look up in each SRU request. 1 for no batching.
+     */
+    public AlmaConfiguration(int batchSize) {
+        this(batchSize, DEFAULT_WORKERS, DEFAULT_REQUESTS_PER_SECOND, DEFAULT_MIN_REQUESTS_PER_SECOND,
+                DEFAULT_LATENCY_THRESHOLD);
+    }
+
+    /**
+     * Constructor with the default values for the cache.
+     * @param batchSize The number of ISBNs to look up in each SRU request. 1 for no batching.
+     * @param workers The number of workers retrieving metadata from Alma concurrently.
+     * @param requestsPerSecond The maximum number of SRU requests per second. Non-positive for no limit.
+     * @param minRequestsPerSecond The minimum number of SRU requests per second, when backing off.
+     * @param latencyThreshold The latency, in millis, of a SRU request, before backing off.
+     * Non-positive for ignoring the latency.
+     */
+    public AlmaConfiguration(int batchSize, int workers, double requestsPerSecond, double minRequestsPerSecond,
+            long latencyThreshold) {
+        this(batchSize, workers, requestsPerSecond, minRequestsPerSecond, latencyThreshold, DEFAULT_CACHE_TTL,
+                DEFAULT_NOT_FOUND_BACKOFF, DEFAULT_AMBIGUOUS_BACKOFF, DEFAULT_MAX_BACKOFF);
+    }
+
+    /**
+     * Constructor without refresh of the MODS records.
+     * @param batchSize The number of ISBNs to look up in each SRU request. 1 for no batching.
+     * @param workers The number of workers retrieving metadata from Alma concurrently.
+     * @param requestsPerSecond The maximum number of SRU requests per second. Non-positive for no limit.
+     * @param minRequestsPerSecond The minimum number of SRU requests per second, when backing off.
+     * @param latencyThreshold The latency, in millis, of a SRU request, before backing off.
+     * Non-positive for ignoring the latency.
+     * @param cacheTtl The time-to-live, in millis, for cached MODS records. Non-positive for no caching.
+     * @param notFoundBackoff The initial back-off, in millis, for ISBNs not found in Alma.
+     * @param ambiguousBackoff The initial back-off, in millis, for ISBNs with several records in Alma.
+     * @param maxBackoff The maximum back-off, in millis.
+     */
+    public AlmaConfiguration(int batchSize, int workers, double requestsPerSecond, double minRequestsPerSecond,
+            long latencyThreshold, long cacheTtl, long notFoundBackoff, long ambiguousBackoff, long maxBackoff) {
+        this(batchSize, workers, requestsPerSecond, minRequestsPerSecond, latencyThreshold, cacheTtl,
+                notFoundBackoff, ambiguousBackoff, maxBackoff, DEFAULT_REFRESH_FRACTION);
+    }
+
+    /**
+     * Constructor.
+     * @param batchSize The number of ISBNs to look up in each SRU request. 1 for no batching.
+     * @param workers The number of workers retrieving metadata from Alma concurrently.
+     * @param requestsPerSecond The maximum number of SRU requests per second. Non-positive for no limit.
+     * @param minRequestsPerSecond The minimum number of SRU requests per second, when backing off.
+     * @param latencyThreshold The latency, in millis, of a SRU request, before backing off.
+     * Non-positive for ignoring the latency.
+     * @param cacheTtl The time-to-live, in millis, for cached MODS records. Non-positive for no caching.
+     * @param notFoundBackoff The initial back-off, in millis, for ISBNs not found in Alma.
+     * @param ambiguousBackoff The initial back-off, in millis, for ISBNs with several records in Alma.
+     * @param maxBackoff The maximum back-off, in millis.
+     * @param refreshFraction The fraction of the existing MODS records to refresh from Alma in each run, between
+     * 0 (no refresh) and 1 (refresh all records in each run).
+     */
+    public AlmaConfiguration(int batchSize, int workers, double requestsPerSecond, double minRequestsPerSecond,
+            long latencyThreshold, long cacheTtl, long notFoundBackoff, long ambiguousBackoff, long maxBackoff,
+            double refreshFraction) {
+        ArgumentCheck.checkPositiveInt(batchSize, "int batchSize");
+        ArgumentCheck.checkPositiveInt(workers, "int workers");
+        ArgumentCheck.checkNotNegativeLong(notFoundBackoff, "long notFoundBackoff");
+        ArgumentCheck.checkNotNegativeLong(ambiguousBackoff, "long ambiguousBackoff");
+        ArgumentCheck.checkNotNegativeLong(maxBackoff, "long maxBackoff");
+        if(requestsPerSecond > 0.0 && (minRequestsPerSecond <= 0.0 || minRequestsPerSecond > requestsPerSecond)) {
+            throw new ArgumentCheck("The value of the variable 'double minRequestsPerSecond' must be positive and "
+                    + "not larger than the requests per second, but was: " + minRequestsPerSecond);
+        }
+        if(refreshFraction < 0.0 || refreshFraction > 1.0) {
+            throw new ArgumentCheck("The value of the variable 'double refreshFraction' must be between 0 and 1, "
+                    + "but was: " + refreshFraction);
+        }
+        this.batchSize = batchSize;
+        this.workers = workers;
+        this.requestsPerSecond = requestsPerSecond;
+        this.minRequestsPerSecond = minRequestsPerSecond;
+        this.latencyThreshold = latencyThreshold;
+        this.cacheTtl = cacheTtl;
+        this.notFoundBackoff = notFoundBackoff;
+        this.ambiguousBackoff = ambiguousBackoff;
+        this.maxBackoff = maxBackoff;
+        this.refreshFraction = refreshFraction;
+    }
+
+    /** @return The number of ISBNs to look up in each SRU request.*/
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /** @return The number of workers retrieving metadata from Alma concurrently.*/
+    public int getWorkers() {
+        return workers;
+    }
+
+    /** @return The maximum number of SRU requests per second. Non-positive for no limit.*/
+    public double getRequestsPerSecond() {
+        return requestsPerSecond;
+    }
+
+    /** @return The minimum number of SRU requests per second, when backing off.*/
+    public double getMinRequestsPerSecond() {
+        return minRequestsPerSecond;
+    }
+
+    /** @return The latency, in millis, of a SRU request, before backing off.*/
+    public long getLatencyThreshold() {
+        return latencyThreshold;
+    }
+
+    /** @return The time-to-live, in millis, for cached MODS records. Non-positive for not caching the records.*/
+    public long getCacheTtl() {
+        return cacheTtl;
+    }
+
+    /** @return The initial back-off, in millis, before looking up an ISBN, which was not found in Alma.*/
+    public long getNotFoundBackoff() {
+        return notFoundBackoff;
+    }
+
+    /** @return The initial back-off, in millis, before looking up an ISBN, which had several records in Alma.*/
+    public long getAmbiguousBackoff() {
+        return ambiguousBackoff;
+    }
+
+    /** @return The maximum back-off, in millis, before looking up an ISBN again.*/
+    public long getMaxBackoff() {
+        return maxBackoff;
+    }
+
+    /** @return The fraction of the existing MODS records to refresh from Alma in each run.*/
+    public double getRefreshFraction() {
+        return refreshFraction;
+    }
+}
@@ -0,0 +1,98 @@
+package dk.kb.elivagar.config;
+
+import dk.kb.elivagar.exception.ArgumentCheck;
+
+/**
+ * Configuration for the characterization, which is not needed for the basic characterization,
+ * e.g. the bulk re-characterization campaigns and the quarantine of the slow or failing files.
+ */
+public class CharacterizationConfiguration {
+    /** The default number of threads for a campaign.*/
+    public static final int DEFAULT_CAMPAIGN_THREADS = 2;
+    /** The default number of files per minute for a campaign. Zero means no limit.*/
+    public static final long DEFAULT_CAMPAIGN_FILES_PER_MINUTE = 0L;
+    /** The default duration for a characterization before the file is quarantined; 10 minutes.*/
+    public static final long DEFAULT_QUARANTINE_DURATION = 600000L;
+    /** The default number of failed characterizations before the file is quarantined.*/
+    public static final int DEFAULT_QUARANTINE_FAILURES = 2;
+    /** The default initial back-off for quarantined files; 1 day.*/
+    public static final long DEFAULT_QUARANTINE_BACKOFF = 86400000L;
+    /** The default maximum back-off for quarantined files; 30 days.*/
+    public static final long DEFAULT_QUARANTINE_MAX_BACKOFF = 2592000000L;
+
+    /** The number of threads for characterizing files in parallel during a campaign.*/
+    protected final int campaignThreads;
+    /** The maximum number of files per minute to characterize during a campaign. Non-positive for no limit.*/
+    protected final long campaignFilesPerMinute;
+    /** The duration of a characterization, in millis, before the file is quarantined. Non-positive for never.*/
+    protected final long quarantineDuration;
+    /** The number of failed characterizations in a row, before the file is quarantined. Non-positive for never.*/
+    protected final int quarantineFailures;
+    /** The initial back-off interval, in millis, between characterizations of a quarantined file.*/
+    protected final long quarantineBackoff;
+    /** The maximum back-off interval, in millis, between characterizations of a quarantined file.*/
+    protected final long quarantineMaxBackoff;
+
+    /**
+     * Constructor with the default values.
+     */
+    public CharacterizationConfiguration() {
+        this(DEFAULT_CAMPAIGN_THREADS, DEFAULT_CAMPAIGN_FILES_PER_MINUTE, DEFAULT_QUARANTINE_DURATION,
+                DEFAULT_QUARANTINE_FAILURES, DEFAULT_QUARANTINE_BACKOFF, DEFAULT_QUARANTINE_MAX_BACKOFF);
+    }
+
+    /**
+     * Constructor.
+     * @param campaignThreads The number of threads for characterizing files in parallel during a campaign.
+     * @param campaignFilesPerMinute The maximum number of files per minute during a campaign.
+     * Non-positive for no limit.
+     * @param quarantineDuration The duration of a characterization, in millis, before the file is quarantined.
+     * Non-positive for never quarantining due to duration.
+     * @param quarantineFailures The number of failed characterizations in a row, before the file is quarantined.
+     * Non-positive for never quarantining due to failures.
+     * @param quarantineBackoff The initial back-off interval, in millis, for quarantined files.
+     * @param quarantineMaxBackoff The maximum back-off interval, in millis, for quarantined files.
+     */
+    public CharacterizationConfiguration(int campaignThreads, long campaignFilesPerMinute, long quarantineDuration,
+            int quarantineFailures, long quarantineBackoff, long quarantineMaxBackoff) {
+        ArgumentCheck.checkPositiveInt(campaignThreads, "int campaignThreads");
+        ArgumentCheck.checkNotNegativeLong(quarantineBackoff, "long quarantineBackoff");
+        ArgumentCheck.checkNotNegativeLong(quarantineMaxBackoff, "long quarantineMaxBackoff");
+        this.campaignThreads = campaignThreads;
+        this.campaignFilesPerMinute = campaignFilesPerMinute;
+        this.quarantineDuration = quarantineDuration;
+        this.quarantineFailures = quarantineFailures;
+        this.quarantineBackoff = quarantineBackoff;
+        this.quarantineMaxBackoff = quarantineMaxBackoff;
+    }
+
+    /** @return The number of threads for characterizing files in parallel during a campaign.*/
+    public int getCampaignThreads() {
+        return campaignThreads;
+    }
+
+    /** @return The maximum number of files per minute during a campaign. Non-positive for no limit.*/
+    public long getCampaignFilesPerMinute() {
+        return campaignFilesPerMinute;
+    }
+
+    /** @return The duration of a characterization, in millis, before the file is quarantined.*/
+    public long getQuarantineDuration() {
+        return quarantineDuration;
+    }
+
+    /** @return The number of failed characterizations in a row, before the file is quarantined.*/
+    public int getQuarantineFailures() {
+        return quarantineFailures;
+    }
+
+    /** @return The initial back-off interval, in millis, between characterizations of a quarantined file.*/
+    public long getQuarantineBackoff() {
+        return quarantineBackoff;
+    }
+
+    /** @return The maximum back-off interval, in millis, between characterizations of a quarantined file.*/
+    public long getQuarantineMaxBackoff() {
+        return quarantineMaxBackoff;
+    }
+}
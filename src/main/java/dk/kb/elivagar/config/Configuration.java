@@ -29,6 +29,7 @@ import dk.kb.elivagar.utils.YamlUtils;
  *     <li>license_key: DO_NOT_PUT_LICENSE_IN_GITHUB_FILE</li>
  *     <li>characterization_script: bin/run_fits.sh (optional)</li>
  *     <li>statistics_dir: /path/to/statistics/dir/</li>
+ *     <li>state_dir: /path/to/state/dir/ (optional - default is the 'state' folder in the statistics dir)</li>
  *     <li>ebook_formats:</li>
  *     <ul>
  *       <li>- pdf</li>
@@ -39,6 +40,28 @@ import dk.kb.elivagar.utils.YamlUtils;
  *       <li>- mp3</li>
  *     </ul>
  *     <li>alma_sru_search: $ALMA_SRU_SEARCH</li>
+ *     <li>alma: (THIS ELEMENT IS NOT REQUIRED)</li>
+ *     <ul>
+ *       <li>batch_size: 1 // NUMBER OF ISBN IN EACH SRU REQUEST</li>
+ *       <li>workers: 1</li>
+ *       <li>requests_per_second: 10 // NON-POSITIVE FOR NO LIMIT</li>
+ *       <li>min_requests_per_second: 0.5</li>
+ *       <li>latency_threshold: 5000 // IN MILLIS</li>
+ *       <li>cache_ttl: 2592000000 // IN MILLIS, NON-POSITIVE FOR NO CACHING OF THE MODS RECORDS</li>
+ *       <li>not_found_backoff: 86400000 // IN MILLIS, ALSO FOR THE ISBNS WITH AN INVALID RECORD</li>
+ *       <li>ambiguous_backoff: 604800000 // IN MILLIS</li>
+ *       <li>max_backoff: 5184000000 // IN MILLIS</li>
+ *       <li>refresh_fraction: 0.0 // FRACTION OF THE EXISTING MODS RECORDS TO REFRESH IN EACH RUN</li>
+ *     </ul>
+ *     <li>characterization: (THIS ELEMENT IS NOT REQUIRED)</li>
+ *     <ul>
+ *       <li>campaign_threads: 2</li>
+ *       <li>campaign_files_per_minute: 0 // NON-POSITIVE FOR NO LIMIT</li>
+ *       <li>quarantine_duration: 600000 // TIME IN MILLIS</li>
+ *       <li>quarantine_failures: 2</li>
+ *       <li>quarantine_backoff: 86400000 // TIME IN MILLIS</li>
+ *       <li>quarantine_max_backoff: 2592000000 // TIME IN MILLIS</li>
+ *     </ul>
  *     <li>transfer: (THIS ELEMENT IS NOT REQUIRED)</li>
  *     <ul>
  *       <li>ingest_ebook_path: /transfer/path/root/ingest/ebook/</li>
@@ -56,6 +79,22 @@ import dk.kb.elivagar.utils.YamlUtils;
  *         <li>- mods.xml</li>
  *         <li>- pubhub.xml</li>
  *       </ul>
+ *       <li>workers: 1 // NUMBER OF BOOKS TRANSFERRED CONCURRENTLY (OPTIONAL)</li>
+ *       <li>lane_concurrency: 2 // CONCURRENT WRITES TO EACH DESTINATION FILE SYSTEM (OPTIONAL)</li>
+ *       <li>manifest_sha256: false // ALSO WRITE A SHA-256 MANIFEST IN THE INGEST PACKAGES (OPTIONAL)</li>
+ *       <li>parallel_copy_threshold: 1073741824 // FILES OF THIS SIZE ARE COPIED IN PARALLEL RANGES (OPTIONAL)</li>
+ *       <li>parallel_copy_streams: 4 // CONCURRENT RANGES, WHEN COPYING A LARGE FILE. 1 DISABLES IT (OPTIONAL)</li>
+ *       <li>bytes_per_second: 0 // CAP ON THE BYTES COPIED PER SECOND. 0 FOR NO CAP (OPTIONAL)</li>
+ *       <li>run_byte_budget: 0 // BYTES TRANSFERRED IN A RUN. 0 FOR NO LIMIT (OPTIONAL)</li>
+ *       <li>run_book_budget: 0 // BOOKS TRANSFERRED IN A RUN. 0 FOR NO LIMIT (OPTIONAL)</li>
+ *       <li>order: directory // OR oldest_first OR smallest_first (OPTIONAL)</li>
+ *       <li>low_priority_io: false // LOWER THE I/O PRIORITY OF THE TRANSFER THREADS WITH IONICE (OPTIONAL)</li>
+ *       <li>eligibility_queue: false // REMEMBER WHEN EMBARGOED BOOKS BECOME ELIGIBLE FOR INGEST (OPTIONAL)</li>
+ *       <li>skip_unchanged_books: false // SKIP THE INGESTED BOOKS, WHICH MATCH THEIR SUMMARY (OPTIONAL)</li>
+ *       <li>package_format: directory // OR tar FOR A SINGLE TAR FILE PER INGEST AND UPDATE (OPTIONAL)</li>
+ *       <li>update_batch_files: 0 // FILES IN A BATCH OF UPDATES. 0 FOR NO LIMIT; BOTH 0 FOR NO BATCHES (OPTIONAL)</li>
+ *       <li>update_batch_bytes: 0 // BYTES IN A BATCH OF UPDATES. 0 FOR NO LIMIT (OPTIONAL)</li>
+ *       <li>registry_store: false // ALSO KEEP THE REGISTRIES IN A CENTRAL STORE IN THE STATE DIR (OPTIONAL)</li>
  *     </ul>
  *   </ul>
  * </ul>
@@ -84,10 +123,52 @@ public class Configuration {
     public static final String CONF_AUDIO_FORMATS = "audio_formats";
     /** The directory where the output statistics will be placed.*/
     public static final String CONF_STATISTIC_DIR = "statistics_dir";
+    /** The directory where the persistent state of the different processes will be placed.*/
+    public static final String CONF_STATE_DIR = "state_dir";
+    /** The default name of the state directory within the statistics directory.*/
+    public static final String DEFAULT_STATE_DIR_NAME = "state";
 
     /** The configuration Alma sru search base url.*/
     public static final String CONF_ALMA_SRU_SEARCH = "alma_sru_search";
 
+    /** The configuration alma element.*/
+    public static final String CONF_ALMA_ROOT = "alma";
+    /** The number of ISBNs to look up in each SRU request.*/
+    public static final String CONF_ALMA_BATCH_SIZE = "batch_size";
+    /** The number of workers retrieving metadata from Alma concurrently.*/
+    public static final String CONF_ALMA_WORKERS = "workers";
+    /** The maximum number of SRU requests per second.*/
+    public static final String CONF_ALMA_REQUESTS_PER_SECOND = "requests_per_second";
+    /** The minimum number of SRU requests per second, when backing off.*/
+    public static final String CONF_ALMA_MIN_REQUESTS_PER_SECOND = "min_requests_per_second";
+    /** The latency of a SRU request, in millis, before backing off.*/
+    public static final String CONF_ALMA_LATENCY_THRESHOLD = "latency_threshold";
+    /** The time-to-live of the cached MODS records, in millis.*/
+    public static final String CONF_ALMA_CACHE_TTL = "cache_ttl";
+    /** The initial back-off for ISBNs not found in Alma, in millis.*/
+    public static final String CONF_ALMA_NOT_FOUND_BACKOFF = "not_found_backoff";
+    /** The initial back-off for ISBNs with several records in Alma, in millis.*/
+    public static final String CONF_ALMA_AMBIGUOUS_BACKOFF = "ambiguous_backoff";
+    /** The maximum back-off for the ISBN lookups, in millis.*/
+    public static final String CONF_ALMA_MAX_BACKOFF = "max_backoff";
+    /** The fraction of the existing MODS records to refresh in each run.*/
+    public static final String CONF_ALMA_REFRESH_FRACTION = "refresh_fraction";
+
+    /** The configuration characterization element.*/
+    public static final String CONF_CHARACTERIZATION_ROOT = "characterization";
+    /** The number of threads for a re-characterization campaign.*/
+    public static final String CONF_CHARACTERIZATION_CAMPAIGN_THREADS = "campaign_threads";
+    /** The maximum number of files per minute for a re-characterization campaign.*/
+    public static final String CONF_CHARACTERIZATION_CAMPAIGN_FILES_PER_MINUTE = "campaign_files_per_minute";
+    /** The duration of a characterization, in millis, before the file is quarantined.*/
+    public static final String CONF_CHARACTERIZATION_QUARANTINE_DURATION = "quarantine_duration";
+    /** The number of failed characterizations in a row, before the file is quarantined.*/
+    public static final String CONF_CHARACTERIZATION_QUARANTINE_FAILURES = "quarantine_failures";
+    /** The initial back-off interval, in millis, for the quarantined files.*/
+    public static final String CONF_CHARACTERIZATION_QUARANTINE_BACKOFF = "quarantine_backoff";
+    /** The maximum back-off interval, in millis, for the quarantined files.*/
+    public static final String CONF_CHARACTERIZATION_QUARANTINE_MAX_BACKOFF = "quarantine_max_backoff";
+
     /** The configuration transfer element.*/
     public static final String CONF_TRANSFER_ROOT = "transfer";
     /** The base path for the ingest dir for ebooks.*/
@@ -110,6 +191,38 @@ public class Configuration {
     public static final String CONF_TRANSFER_RETAIN_PUBLICATION_DATE = "retain_pub_date";
     /** The list of required formats for initiating the transfer.*/
     public static final String CONF_TRANSFER_REQUIRED_FORMATS = "required_formats";
+    /** The number of books transferred concurrently.*/
+    public static final String CONF_TRANSFER_WORKERS = "workers";
+    /** The number of concurrent writes to each destination file system.*/
+    public static final String CONF_TRANSFER_LANE_CONCURRENCY = "lane_concurrency";
+    /** Whether the ingest packages should also have a SHA-256 manifest.*/
+    public static final String CONF_TRANSFER_MANIFEST_SHA256 = "manifest_sha256";
+    /** The size in bytes from which the files are copied in parallel ranges.*/
+    public static final String CONF_TRANSFER_PARALLEL_COPY_THRESHOLD = "parallel_copy_threshold";
+    /** The number of ranges copied concurrently, when copying a large file.*/
+    public static final String CONF_TRANSFER_PARALLEL_COPY_STREAMS = "parallel_copy_streams";
+    /** The maximum number of bytes copied per second by the transfer.*/
+    public static final String CONF_TRANSFER_BYTES_PER_SECOND = "bytes_per_second";
+    /** The maximum number of bytes transferred in a run.*/
+    public static final String CONF_TRANSFER_RUN_BYTE_BUDGET = "run_byte_budget";
+    /** The maximum number of books transferred in a run.*/
+    public static final String CONF_TRANSFER_RUN_BOOK_BUDGET = "run_book_budget";
+    /** The order of the books in the transfer.*/
+    public static final String CONF_TRANSFER_ORDER = "order";
+    /** Whether the I/O priority of the transfer should be lowered.*/
+    public static final String CONF_TRANSFER_LOW_PRIORITY_IO = "low_priority_io";
+    /** Whether the time, when the books become eligible for ingest, should be kept in a persistent queue.*/
+    public static final String CONF_TRANSFER_ELIGIBILITY_QUEUE = "eligibility_queue";
+    /** Whether the ingested books, which have not changed since their latest update, should be skipped.*/
+    public static final String CONF_TRANSFER_SKIP_UNCHANGED_BOOKS = "skip_unchanged_books";
+    /** The format of the packages for the ingests and updates.*/
+    public static final String CONF_TRANSFER_PACKAGE_FORMAT = "package_format";
+    /** The maximum number of files in a batch of updates.*/
+    public static final String CONF_TRANSFER_UPDATE_BATCH_FILES = "update_batch_files";
+    /** The maximum number of bytes in a batch of updates.*/
+    public static final String CONF_TRANSFER_UPDATE_BATCH_BYTES = "update_batch_bytes";
+    /** Whether the transfer registries should also be kept in the central registry store.*/
+    public static final String CONF_TRANSFER_REGISTRY_STORE = "registry_store";
     
     /** The output directory for the ebooks.*/
     protected final File ebookOutputDir;
@@ -125,6 +238,8 @@ public class Configuration {
     protected File scriptFile;
     /** The directory for the output statistics files.*/
     protected final File statisticsDir;
+    /** The directory for the persistent state.*/
+    protected final File stateDir;
 
     /** The list of formats for the ebooks.*/
     protected List<String> ebookFormats;
@@ -134,6 +249,12 @@ public class Configuration {
     /** The configuration for the alma sru search.*/
     protected final String almaSruSearchConfiguration;
 
+    /** The configuration for the Alma retrieval.*/
+    protected AlmaConfiguration almaConfiguration;
+
+    /** The characterization configuration.*/
+    protected CharacterizationConfiguration characterizationConfiguration;
+
     /** The transfer configuration. This may be null.*/
     protected TransferConfiguration transferConfiguration;
     
@@ -165,12 +286,30 @@ public class Configuration {
             scriptFile = new File((String) confMap.get(CONF_CHARACTERIZATION_SCRIPT));
         }
         statisticsDir = FileUtils.createDirectory((String) confMap.get(CONF_STATISTIC_DIR));
+        if(confMap.containsKey(CONF_STATE_DIR)) {
+            stateDir = new File((String) confMap.get(CONF_STATE_DIR));
+        } else {
+            stateDir = new File(statisticsDir, DEFAULT_STATE_DIR_NAME);
+        }
 
         ebookFormats = (List<String>) confMap.get(CONF_EBOOK_FORMATS);
         audioFormats = (List<String>) confMap.get(CONF_AUDIO_FORMATS);
         
         this.almaSruSearchConfiguration = (String) confMap.get(CONF_ALMA_SRU_SEARCH);
 
+        if(confMap.containsKey(CONF_ALMA_ROOT)) {
+            this.almaConfiguration = getAlmaConfiguration((Map<String, Object>) confMap.get(CONF_ALMA_ROOT));
+        } else {
+            this.almaConfiguration = new AlmaConfiguration();
+        }
+
+        if(confMap.containsKey(CONF_CHARACTERIZATION_ROOT)) {
+            this.characterizationConfiguration = getCharacterizationConfiguration((Map<String, Object>) 
+                    confMap.get(CONF_CHARACTERIZATION_ROOT));
+        } else {
+            this.characterizationConfiguration = new CharacterizationConfiguration();
+        }
+
         if(confMap.containsKey(CONF_TRANSFER_ROOT)) {
             this.transferConfiguration = getTransferConfiguration((Map<String, Object>) 
                     confMap.get(CONF_TRANSFER_ROOT));
@@ -179,6 +318,112 @@ public class Configuration {
         }
     }
 
+    /**
+     * Instantiates the AlmaConfiguration from the given map.
+     * All the elements are optional, and the default values are used for the missing ones.
+     * @param almaMap The map with the Alma elements.
+     * @return The Alma configuration.
+     */
+    protected AlmaConfiguration getAlmaConfiguration(Map<String, Object> almaMap) {
+        int batchSize = AlmaConfiguration.DEFAULT_BATCH_SIZE;
+        if(almaMap.containsKey(CONF_ALMA_BATCH_SIZE)) {
+            batchSize = LongUtils.getLong(almaMap.get(CONF_ALMA_BATCH_SIZE)).intValue();
+        }
+        int workers = AlmaConfiguration.DEFAULT_WORKERS;
+        if(almaMap.containsKey(CONF_ALMA_WORKERS)) {
+            workers = LongUtils.getLong(almaMap.get(CONF_ALMA_WORKERS)).intValue();
+        }
+        double requestsPerSecond = AlmaConfiguration.DEFAULT_REQUESTS_PER_SECOND;
+        if(almaMap.containsKey(CONF_ALMA_REQUESTS_PER_SECOND)) {
+            requestsPerSecond = getDouble(almaMap.get(CONF_ALMA_REQUESTS_PER_SECOND));
+        }
+        double minRequestsPerSecond = Math.min(AlmaConfiguration.DEFAULT_MIN_REQUESTS_PER_SECOND, 
+                requestsPerSecond);
+        if(almaMap.containsKey(CONF_ALMA_MIN_REQUESTS_PER_SECOND)) {
+            minRequestsPerSecond = getDouble(almaMap.get(CONF_ALMA_MIN_REQUESTS_PER_SECOND));
+        }
+        long latencyThreshold = AlmaConfiguration.DEFAULT_LATENCY_THRESHOLD;
+        if(almaMap.containsKey(CONF_ALMA_LATENCY_THRESHOLD)) {
+            latencyThreshold = LongUtils.getLong(almaMap.get(CONF_ALMA_LATENCY_THRESHOLD));
+        }
+        long cacheTtl = AlmaConfiguration.DEFAULT_CACHE_TTL;
+        if(almaMap.containsKey(CONF_ALMA_CACHE_TTL)) {
+            cacheTtl = LongUtils.getLong(almaMap.get(CONF_ALMA_CACHE_TTL));
+        }
+        long notFoundBackoff = AlmaConfiguration.DEFAULT_NOT_FOUND_BACKOFF;
+        if(almaMap.containsKey(CONF_ALMA_NOT_FOUND_BACKOFF)) {
+            notFoundBackoff = LongUtils.getLong(almaMap.get(CONF_ALMA_NOT_FOUND_BACKOFF));
+        }
+        long ambiguousBackoff = AlmaConfiguration.DEFAULT_AMBIGUOUS_BACKOFF;
+        if(almaMap.containsKey(CONF_ALMA_AMBIGUOUS_BACKOFF)) {
+            ambiguousBackoff = LongUtils.getLong(almaMap.get(CONF_ALMA_AMBIGUOUS_BACKOFF));
+        }
+        long maxBackoff = AlmaConfiguration.DEFAULT_MAX_BACKOFF;
+        if(almaMap.containsKey(CONF_ALMA_MAX_BACKOFF)) {
+            maxBackoff = LongUtils.getLong(almaMap.get(CONF_ALMA_MAX_BACKOFF));
+        }
+        double refreshFraction = AlmaConfiguration.DEFAULT_REFRESH_FRACTION;
+        if(almaMap.containsKey(CONF_ALMA_REFRESH_FRACTION)) {
+            refreshFraction = getDouble(almaMap.get(CONF_ALMA_REFRESH_FRACTION));
+        }
+        return new AlmaConfiguration(batchSize, workers, requestsPerSecond, minRequestsPerSecond, 
+                latencyThreshold, cacheTtl, notFoundBackoff, ambiguousBackoff, maxBackoff, refreshFraction);
+    }
+
+    /**
+     * Retrieves the double value of a configuration element, which may be either a number or a string.
+     * @param o The configuration element.
+     * @return The double value.
+     */
+    protected static double getDouble(Object o) {
+        if(o instanceof Number) {
+            return ((Number) o).doubleValue();
+        }
+        return Double.parseDouble(o.toString());
+    }
+
+    /**
+     * Instantiates the CharacterizationConfiguration from the given map.
+     * All the elements are optional, and the default values are used for the missing ones.
+     * @param characterizationMap The map with the characterization elements.
+     * @return The characterization configuration.
+     */
+    protected CharacterizationConfiguration getCharacterizationConfiguration(
+            Map<String, Object> characterizationMap) {
+        int campaignThreads = CharacterizationConfiguration.DEFAULT_CAMPAIGN_THREADS;
+        if(characterizationMap.containsKey(CONF_CHARACTERIZATION_CAMPAIGN_THREADS)) {
+            campaignThreads = LongUtils.getLong(characterizationMap.get(
+                    CONF_CHARACTERIZATION_CAMPAIGN_THREADS)).intValue();
+        }
+        long campaignFilesPerMinute = CharacterizationConfiguration.DEFAULT_CAMPAIGN_FILES_PER_MINUTE;
+        if(characterizationMap.containsKey(CONF_CHARACTERIZATION_CAMPAIGN_FILES_PER_MINUTE)) {
+            campaignFilesPerMinute = LongUtils.getLong(characterizationMap.get(
+                    CONF_CHARACTERIZATION_CAMPAIGN_FILES_PER_MINUTE));
+        }
+        long quarantineDuration = CharacterizationConfiguration.DEFAULT_QUARANTINE_DURATION;
+        if(characterizationMap.containsKey(CONF_CHARACTERIZATION_QUARANTINE_DURATION)) {
+            quarantineDuration = LongUtils.getLong(characterizationMap.get(
+                    CONF_CHARACTERIZATION_QUARANTINE_DURATION));
+        }
+        int quarantineFailures = CharacterizationConfiguration.DEFAULT_QUARANTINE_FAILURES;
+        if(characterizationMap.containsKey(CONF_CHARACTERIZATION_QUARANTINE_FAILURES)) {
+            quarantineFailures = LongUtils.getLong(characterizationMap.get(
+                    CONF_CHARACTERIZATION_QUARANTINE_FAILURES)).intValue();
+        }
+        long quarantineBackoff = CharacterizationConfiguration.DEFAULT_QUARANTINE_BACKOFF;
+        if(characterizationMap.containsKey(CONF_CHARACTERIZATION_QUARANTINE_BACKOFF)) {
+            quarantineBackoff = LongUtils.getLong(characterizationMap.get(
+                    CONF_CHARACTERIZATION_QUARANTINE_BACKOFF));
+        }
+        long quarantineMaxBackoff = CharacterizationConfiguration.DEFAULT_QUARANTINE_MAX_BACKOFF;
+        if(characterizationMap.containsKey(CONF_CHARACTERIZATION_QUARANTINE_MAX_BACKOFF)) {
+            quarantineMaxBackoff = LongUtils.getLong(characterizationMap.get(
+                    CONF_CHARACTERIZATION_QUARANTINE_MAX_BACKOFF));
+        }
+        return new CharacterizationConfiguration(campaignThreads, campaignFilesPerMinute, quarantineDuration, 
+                quarantineFailures, quarantineBackoff, quarantineMaxBackoff);
+    }
+
     /**
      * Instantiates the TransferConfiguration from the given map.
      * @param transferMap The map with the Transfer elements.
@@ -220,9 +465,88 @@ public class Configuration {
         Long retainModifyDate = LongUtils.getLong(transferMap.get(CONF_TRANSFER_RETAIN_MODIFY_DATE));
         Long retainPublicationDate = LongUtils.getLong(transferMap.get(CONF_TRANSFER_RETAIN_PUBLICATION_DATE));
         List<String> requiredFormats = (List<String>) transferMap.get(CONF_TRANSFER_REQUIRED_FORMATS);
-        return new TransferConfiguration(baseIngestEbookDir, baseContentEbookDir, baseMetadataEbookDir, 
-                baseIngestAudioDir, baseContentAudioDir, baseMetadataAudioDir, retainCreateDate, 
-                retainModifyDate, retainPublicationDate, requiredFormats);
+        return new TransferConfiguration(baseIngestEbookDir, baseContentEbookDir, baseMetadataEbookDir,
+                baseIngestAudioDir, baseContentAudioDir, baseMetadataAudioDir, retainCreateDate, retainModifyDate,
+                retainPublicationDate, requiredFormats, getTransferOptions(transferMap));
+    }
+
+    /**
+     * Instantiates the optional settings of the transfer from the given map.
+     * All the elements are optional, and the default values are used for the missing ones.
+     * @param transferMap The map with the Transfer elements.
+     * @return The optional settings of the transfer.
+     */
+    protected TransferOptions getTransferOptions(Map<String, Object> transferMap) {
+        TransferOptions defaults = new TransferOptions();
+        return new TransferOptions(
+                getInt(transferMap, CONF_TRANSFER_WORKERS, defaults.workers),
+                getInt(transferMap, CONF_TRANSFER_LANE_CONCURRENCY, defaults.laneConcurrency),
+                getBoolean(transferMap, CONF_TRANSFER_MANIFEST_SHA256, defaults.manifestSha256),
+                getLong(transferMap, CONF_TRANSFER_PARALLEL_COPY_THRESHOLD, defaults.parallelCopyThreshold),
+                getInt(transferMap, CONF_TRANSFER_PARALLEL_COPY_STREAMS, defaults.parallelCopyStreams),
+                getLong(transferMap, CONF_TRANSFER_BYTES_PER_SECOND, defaults.bytesPerSecond),
+                getLong(transferMap, CONF_TRANSFER_RUN_BYTE_BUDGET, defaults.runByteBudget),
+                getInt(transferMap, CONF_TRANSFER_RUN_BOOK_BUDGET, defaults.runBookBudget),
+                getString(transferMap, CONF_TRANSFER_ORDER, defaults.order),
+                getBoolean(transferMap, CONF_TRANSFER_LOW_PRIORITY_IO, defaults.lowPriorityIo),
+                getBoolean(transferMap, CONF_TRANSFER_ELIGIBILITY_QUEUE, defaults.eligibilityQueue),
+                getBoolean(transferMap, CONF_TRANSFER_SKIP_UNCHANGED_BOOKS, defaults.skipUnchangedBooks),
+                getString(transferMap, CONF_TRANSFER_PACKAGE_FORMAT, defaults.packageFormat),
+                getInt(transferMap, CONF_TRANSFER_UPDATE_BATCH_FILES, defaults.updateBatchFiles),
+                getLong(transferMap, CONF_TRANSFER_UPDATE_BATCH_BYTES, defaults.updateBatchBytes),
+                getBoolean(transferMap, CONF_TRANSFER_REGISTRY_STORE, defaults.registryStore));
+    }
+
+    /**
+     * @param map The map with the elements.
+     * @param key The key of the optional element.
+     * @param defaultValue The value, if the map does not contain the element.
+     * @return The value of the element as a long, or the default value.
+     */
+    protected long getLong(Map<String, Object> map, String key, long defaultValue) {
+        if(!map.containsKey(key)) {
+            return defaultValue;
+        }
+        return LongUtils.getLong(map.get(key));
+    }
+
+    /**
+     * @param map The map with the elements.
+     * @param key The key of the optional element.
+     * @param defaultValue The value, if the map does not contain the element.
+     * @return The value of the element as an int, or the default value.
+     */
+    protected int getInt(Map<String, Object> map, String key, int defaultValue) {
+        if(!map.containsKey(key)) {
+            return defaultValue;
+        }
+        return LongUtils.getLong(map.get(key)).intValue();
+    }
+
+    /**
+     * @param map The map with the elements.
+     * @param key The key of the optional element.
+     * @param defaultValue The value, if the map does not contain the element.
+     * @return The value of the element as a boolean, or the default value.
+     */
+    protected boolean getBoolean(Map<String, Object> map, String key, boolean defaultValue) {
+        if(!map.containsKey(key)) {
+            return defaultValue;
+        }
+        return Boolean.parseBoolean(String.valueOf(map.get(key)));
+    }
+
+    /**
+     * @param map The map with the elements.
+     * @param key The key of the optional element.
+     * @param defaultValue The value, if the map does not contain the element.
+     * @return The value of the element as a string, or the default value.
+     */
+    protected String getString(Map<String, Object> map, String key, String defaultValue) {
+        if(!map.containsKey(key)) {
+            return defaultValue;
+        }
+        return (String) map.get(key);
     }
 
     /** @return The alma sru search base.*/
@@ -230,6 +554,16 @@ public class Configuration {
         return almaSruSearchConfiguration;
     }
 
+    /** @return The configuration for the Alma retrieval. */
+    public AlmaConfiguration getAlmaConfiguration() {
+        return almaConfiguration;
+    }
+
+    /** @return The characterization configuration. */
+    public CharacterizationConfiguration getCharacterizationConfiguration() {
+        return characterizationConfiguration;
+    }
+
     /** @return The transfer configuration. */
     public TransferConfiguration getTransferConfiguration() {
         return transferConfiguration;
@@ -270,6 +604,14 @@ public class Configuration {
         return statisticsDir;
     }
     
+    /** 
+     * @return The directory for the persistent state. It is not guaranteed to exist, 
+     * so it must be created before use.
+     */
+    public File getStateDir() {
+        return stateDir;
+    }
+    
     /** @return The list of formats for the ebooks.*/
     public List<String> getEbookFormats() {
         return new ArrayList<String>(ebookFormats);
@@ -2,7 +2,9 @@ package dk.kb.elivagar.config;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 
 import dk.kb.elivagar.exception.ArgumentCheck;
@@ -11,6 +13,31 @@ import dk.kb.elivagar.exception.ArgumentCheck;
  * Configuration for the transfer of data from Elivagar to Preservica pre-ingest area.
  */
 public class TransferConfiguration {
+    /** The default number of books transferred concurrently. 1 means that the books are transferred sequentially.*/
+    public static final int DEFAULT_WORKERS = 1;
+    /** The default number of concurrent writes to each destination file system.*/
+    public static final int DEFAULT_LANE_CONCURRENCY = 2;
+    /** The default size from which the files are copied in parallel ranges; 1 GB.*/
+    public static final long DEFAULT_PARALLEL_COPY_THRESHOLD = 1024L * 1024L * 1024L;
+    /** The default number of ranges copied concurrently, when copying a large file.*/
+    public static final int DEFAULT_PARALLEL_COPY_STREAMS = 4;
+    /** The order of the books in their directory.*/
+    public static final String ORDER_DIRECTORY = "directory";
+    /** The order with the oldest books first.*/
+    public static final String ORDER_OLDEST_FIRST = "oldest_first";
+    /** The order with the smallest books first.*/
+    public static final String ORDER_SMALLEST_FIRST = "smallest_first";
+    /** The possible orders of the books.*/
+    public static final List<String> ORDERS = Collections.unmodifiableList(Arrays.asList(ORDER_DIRECTORY,
+            ORDER_OLDEST_FIRST, ORDER_SMALLEST_FIRST));
+    /** The package format with a directory for each ingest and update.*/
+    public static final String PACKAGE_FORMAT_DIRECTORY = "directory";
+    /** The package format with a tar file for each ingest and update.*/
+    public static final String PACKAGE_FORMAT_TAR = "tar";
+    /** The possible package formats.*/
+    public static final List<String> PACKAGE_FORMATS = Collections.unmodifiableList(Arrays.asList(
+            PACKAGE_FORMAT_DIRECTORY, PACKAGE_FORMAT_TAR));
+
     /** The base directory for the ingest for the ebooks.*/
     protected final File ingestEbookDir;
     /** The base directory for the content files and the technical metadata for the ebooks.*/
@@ -31,9 +58,11 @@ public class TransferConfiguration {
     protected final Long retainPublicationDate;
     /** The list of required formats for initiating the transfer.*/
     protected final List<String> requiredFormats;
+    /** The optional settings of the transfer.*/
+    protected final TransferOptions options;
     
     /**
-     * Constructor.
+     * Constructor with the default values for the optional settings.
      * @param ingestEbookDir The directory for the ingest of ebooks.
      * @param updateEbookContentDir The base directory for the content files and the technical metadata of ebooks.
      * @param updateEbookMetadataDir The base directory for the metadata (except technical metadata) of ebooks.
@@ -48,6 +77,29 @@ public class TransferConfiguration {
     public TransferConfiguration(File ingestEbookDir, File updateEbookContentDir, File updateEbookMetadataDir, 
             File ingestAudioDir,  File updateAudioContentDir, File updateAudioMetadataDir, Long retainCreateDate, 
             Long retainModifyDate, Long retainPublicationDate, Collection<String> requiredFormats) {
+        this(ingestEbookDir, updateEbookContentDir, updateEbookMetadataDir, ingestAudioDir, updateAudioContentDir,
+                updateAudioMetadataDir, retainCreateDate, retainModifyDate, retainPublicationDate, requiredFormats,
+                new TransferOptions());
+    }
+    
+    /**
+     * Constructor.
+     * @param ingestEbookDir The directory for the ingest of ebooks.
+     * @param updateEbookContentDir The base directory for the content files and the technical metadata of ebooks.
+     * @param updateEbookMetadataDir The base directory for the metadata (except technical metadata) of ebooks.
+     * @param ingestAudioDir The directory for the ingest of audio books.
+     * @param updateAudioContentDir The base directory for the content files and the technical metadata of audio books.
+     * @param updateAudioMetadataDir The base directory for the metadata (except technical metadata) of audio books.
+     * @param retainCreateDate The retain interval for the create date, in millis.
+     * @param retainModifyDate The retain interval for the modify data, in millis.
+     * @param retainPublicationDate The retain interval for the publication date, in millis.
+     * @param requiredFormats The list of required formats for initiating the transfer.
+     * @param options The optional settings of the transfer.
+     */
+    public TransferConfiguration(File ingestEbookDir, File updateEbookContentDir, File updateEbookMetadataDir, 
+            File ingestAudioDir,  File updateAudioContentDir, File updateAudioMetadataDir, Long retainCreateDate, 
+            Long retainModifyDate, Long retainPublicationDate, Collection<String> requiredFormats,
+            TransferOptions options) {
         ArgumentCheck.checkExistsDirectory(ingestEbookDir, "File ingestEbookDir");
         ArgumentCheck.checkExistsDirectory(updateEbookContentDir, "File baseEbookContentDir");
         ArgumentCheck.checkExistsDirectory(updateEbookMetadataDir, "File baseEbookMetadataDir");
@@ -58,6 +110,7 @@ public class TransferConfiguration {
         ArgumentCheck.checkNotNull(retainModifyDate, "Long retainModifyDate");
         ArgumentCheck.checkNotNull(retainPublicationDate, "Long retainPublicationDate");
         ArgumentCheck.checkNotNullOrEmpty(requiredFormats, "Collection<String> requiredFormats");
+        ArgumentCheck.checkNotNull(options, "TransferOptions options");
         
         this.ingestEbookDir = ingestEbookDir;
         this.updateEbookContentDir = updateEbookContentDir;
@@ -69,6 +122,7 @@ public class TransferConfiguration {
         this.retainModifyDate = retainModifyDate;
         this.retainPublicationDate = retainPublicationDate;
         this.requiredFormats = new ArrayList<String>(requiredFormats);
+        this.options = options;
     }
     
     /** @return The base directory for the ingest for the ebooks.*/
@@ -120,4 +174,93 @@ public class TransferConfiguration {
     public List<String> getRequiredFormats() {
         return new ArrayList<String>(requiredFormats);
     }
+    
+    /** @return The number of books transferred concurrently.*/
+    public int getWorkers() {
+        return options.workers;
+    }
+    
+    /** @return The number of concurrent writes to each destination file system.*/
+    public int getLaneConcurrency() {
+        return options.laneConcurrency;
+    }
+    
+    /** @return Whether the ingest packages should also have a SHA-256 manifest, besides the MD5 manifest.*/
+    public boolean isManifestSha256() {
+        return options.manifestSha256;
+    }
+    
+    /** @return The size from which the files are copied in parallel ranges.*/
+    public long getParallelCopyThreshold() {
+        return options.parallelCopyThreshold;
+    }
+    
+    /** @return The number of ranges copied concurrently, when copying a large file.*/
+    public int getParallelCopyStreams() {
+        return options.parallelCopyStreams;
+    }
+    
+    /** @return The maximum number of bytes copied per second. 0 for no limit.*/
+    public long getBytesPerSecond() {
+        return options.bytesPerSecond;
+    }
+    
+    /** @return The maximum number of bytes transferred in a run. 0 for no limit.*/
+    public long getRunByteBudget() {
+        return options.runByteBudget;
+    }
+    
+    /** @return The maximum number of books transferred in a run. 0 for no limit.*/
+    public int getRunBookBudget() {
+        return options.runBookBudget;
+    }
+    
+    /** @return The order of the books.*/
+    public String getOrder() {
+        return options.order;
+    }
+    
+    /** @return Whether the I/O priority of the transfer should be lowered.*/
+    public boolean isLowPriorityIo() {
+        return options.lowPriorityIo;
+    }
+    
+    /** @return Whether the time, when the books become eligible for ingest, should be kept in a persistent queue.*/
+    public boolean isEligibilityQueue() {
+        return options.eligibilityQueue;
+    }
+    
+    /** @return Whether the ingested books, which have not changed since their latest update, should be skipped.*/
+    public boolean isSkipUnchangedBooks() {
+        return options.skipUnchangedBooks;
+    }
+    
+    /** @return The format of the packages for the ingests and updates.*/
+    public String getPackageFormat() {
+        return options.packageFormat;
+    }
+    
+    /** @return The maximum number of files in an update batch. 0 for no limit.*/
+    public int getUpdateBatchFiles() {
+        return options.updateBatchFiles;
+    }
+    
+    /** @return The maximum number of bytes in an update batch. 0 for no limit.*/
+    public long getUpdateBatchBytes() {
+        return options.updateBatchBytes;
+    }
+    
+    /** @return Whether the transfer registries should also be kept in the central registry store.*/
+    public boolean isRegistryStore() {
+        return options.registryStore;
+    }
+    
+    /**
+     * @return Whether the transfer needs to be scheduled; whether it has a rate, a budget, an order other than
+     * the directory order, or a lowered I/O priority.
+     */
+    public boolean isScheduled() {
+        return options.bytesPerSecond > 0L || options.runByteBudget > 0L || options.runBookBudget > 0
+                || !options.order.equals(ORDER_DIRECTORY) || options.lowPriorityIo;
+    }
 }
@@ -0,0 +1,108 @@
+package dk.kb.elivagar.config;
+
+import dk.kb.elivagar.exception.ArgumentCheck;
+
+/**
+ * The optional settings for the transfer of data from Elivagar to Preservica pre-ingest area; the concurrency,
+ * the copying, the scheduling and the packaging of the transfer.
+ */
+public class TransferOptions {
+    /** The number of books transferred concurrently.*/
+    protected final int workers;
+    /** The number of concurrent writes to each destination file system.*/
+    protected final int laneConcurrency;
+    /** Whether the ingest packages should also have a SHA-256 manifest, besides the MD5 manifest.*/
+    protected final boolean manifestSha256;
+    /** The size from which the files are copied in parallel ranges.*/
+    protected final long parallelCopyThreshold;
+    /** The number of ranges copied concurrently, when copying a large file. 1 means no parallel copy.*/
+    protected final int parallelCopyStreams;
+    /** The maximum number of bytes copied per second. 0 for no limit.*/
+    protected final long bytesPerSecond;
+    /** The maximum number of bytes transferred in a run. 0 for no limit.*/
+    protected final long runByteBudget;
+    /** The maximum number of books transferred in a run. 0 for no limit.*/
+    protected final int runBookBudget;
+    /** The order of the books.*/
+    protected final String order;
+    /** Whether the I/O priority of the transfer should be lowered.*/
+    protected final boolean lowPriorityIo;
+    /** Whether the time, when the books become eligible for ingest, should be kept in a persistent queue.*/
+    protected final boolean eligibilityQueue;
+    /** Whether the ingested books, which have not changed since their latest update, should be skipped.*/
+    protected final boolean skipUnchangedBooks;
+    /** The format of the packages for the ingests and updates.*/
+    protected final String packageFormat;
+    /** The maximum number of files in an update batch. 0 for no limit.*/
+    protected final int updateBatchFiles;
+    /** The maximum number of bytes in an update batch. 0 for no limit.*/
+    protected final long updateBatchBytes;
+    /** Whether the transfer registries should also be kept in the central registry store.*/
+    protected final boolean registryStore;
+
+    /**
+     * Constructor with the default values.
+     */
+    public TransferOptions() {
+        this(TransferConfiguration.DEFAULT_WORKERS, TransferConfiguration.DEFAULT_LANE_CONCURRENCY, false,
+                TransferConfiguration.DEFAULT_PARALLEL_COPY_THRESHOLD,
+                TransferConfiguration.DEFAULT_PARALLEL_COPY_STREAMS, 0L, 0L, 0, TransferConfiguration.ORDER_DIRECTORY,
+                false, false, false, TransferConfiguration.PACKAGE_FORMAT_DIRECTORY, 0, 0L, false);
+    }
+
+    /**
+     * Constructor.
+     * @param workers The number of books transferred concurrently. 1 for sequential transfer.
+     * @param laneConcurrency The number of concurrent writes to each destination file system.
+     * @param manifestSha256 Whether the ingest packages should also have a SHA-256 manifest.
+     * @param parallelCopyThreshold The size in bytes, from which the files are copied in parallel ranges.
+     * @param parallelCopyStreams The number of ranges copied concurrently. 1 for no parallel copy.
+     * @param bytesPerSecond The maximum number of bytes copied per second. 0 for no limit.
+     * @param runByteBudget The maximum number of bytes transferred in a run. 0 for no limit.
+     * @param runBookBudget The maximum number of books transferred in a run. 0 for no limit.
+     * @param order The order; 'directory', 'oldest_first' or 'smallest_first'.
+     * @param lowPriorityIo Whether the I/O priority of the transfer should be lowered.
+     * @param eligibilityQueue Whether to use the persistent queue for the eligibility of the books.
+     * @param skipUnchangedBooks Whether to skip the unchanged books.
+     * @param packageFormat The package format; 'directory' or 'tar'.
+     * @param updateBatchFiles The maximum number of files in an update batch. 0 for no limit.
+     * @param updateBatchBytes The maximum number of bytes in an update batch. 0 for no limit.
+     * The updates are only batched, when either limit is above 0.
+     * @param registryStore Whether to keep the transfer registries in the central registry store.
+     */
+    public TransferOptions(int workers, int laneConcurrency, boolean manifestSha256, long parallelCopyThreshold,
+            int parallelCopyStreams, long bytesPerSecond, long runByteBudget, int runBookBudget, String order,
+            boolean lowPriorityIo, boolean eligibilityQueue, boolean skipUnchangedBooks, String packageFormat,
+            int updateBatchFiles, long updateBatchBytes, boolean registryStore) {
+        ArgumentCheck.checkPositiveInt(workers, "int workers");
+        ArgumentCheck.checkPositiveInt(laneConcurrency, "int laneConcurrency");
+        ArgumentCheck.checkPositiveLong(parallelCopyThreshold, "long parallelCopyThreshold");
+        ArgumentCheck.checkPositiveInt(parallelCopyStreams, "int parallelCopyStreams");
+        ArgumentCheck.checkNotNegativeLong(bytesPerSecond, "long bytesPerSecond");
+        ArgumentCheck.checkNotNegativeLong(runByteBudget, "long runByteBudget");
+        ArgumentCheck.checkNotNegativeInt(runBookBudget, "int runBookBudget");
+        ArgumentCheck.checkTrue(TransferConfiguration.ORDERS.contains(order), "The order must be one of "
+                + TransferConfiguration.ORDERS + ", was: " + order);
+        ArgumentCheck.checkTrue(TransferConfiguration.PACKAGE_FORMATS.contains(packageFormat),
+                "The package format must be one of " + TransferConfiguration.PACKAGE_FORMATS + ", was: "
+                + packageFormat);
+        ArgumentCheck.checkNotNegativeInt(updateBatchFiles, "int updateBatchFiles");
+        ArgumentCheck.checkNotNegativeLong(updateBatchBytes, "long updateBatchBytes");
+        this.workers = workers;
+        this.laneConcurrency = laneConcurrency;
+        this.manifestSha256 = manifestSha256;
+        this.parallelCopyThreshold = parallelCopyThreshold;
+        this.parallelCopyStreams = parallelCopyStreams;
+        this.bytesPerSecond = bytesPerSecond;
+        this.runByteBudget = runByteBudget;
+        this.runBookBudget = runBookBudget;
+        this.order = order;
+        this.lowPriorityIo = lowPriorityIo;
+        this.eligibilityQueue = eligibilityQueue;
+        this.skipUnchangedBooks = skipUnchangedBooks;
+        this.packageFormat = packageFormat;
+        this.updateBatchFiles = updateBatchFiles;
+        this.updateBatchBytes = updateBatchBytes;
+        this.registryStore = registryStore;
+    }
+}
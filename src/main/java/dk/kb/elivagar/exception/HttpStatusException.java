@@ -0,0 +1,26 @@
+package dk.kb.elivagar.exception;
+
+/**
+ * Exception for HTTP responses with an erroneous status code.
+ * It carries the status code, so the caller can react upon it, e.g. slow down when the server is overloaded.
+ */
+@SuppressWarnings("serial")
+public class HttpStatusException extends IllegalStateException {
+    /** The HTTP status code of the response.*/
+    protected final int statusCode;
+
+    /**
+     * Constructor.
+     * @param message The detail message.
+     * @param statusCode The HTTP status code of the response.
+     */
+    public HttpStatusException(String message, int statusCode) {
+        super(message);
+        this.statusCode = statusCode;
+    }
+
+    /** @return The HTTP status code of the response.*/
+    public int getStatusCode() {
+        return statusCode;
+    }
+}
@@ -0,0 +1,26 @@
+package dk.kb.elivagar.exception;
+
+/**
+ * Exception for a search, which did not give exactly the expected number of results,
+ * e.g. when a lookup of an ISBN in Alma gives no result, or several results.
+ */
+@SuppressWarnings("serial")
+public class NumberOfResultsException extends IllegalStateException {
+    /** The number of results. Negative if unknown.*/
+    protected final int numberOfResults;
+
+    /**
+     * Constructor.
+     * @param message The detail message.
+     * @param numberOfResults The number of results. Negative if unknown.
+     */
+    public NumberOfResultsException(String message, int numberOfResults) {
+        super(message);
+        this.numberOfResults = numberOfResults;
+    }
+
+    /** @return The number of results. Negative if unknown.*/
+    public int getNumberOfResults() {
+        return numberOfResults;
+    }
+}
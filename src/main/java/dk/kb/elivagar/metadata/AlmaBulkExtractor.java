@@ -0,0 +1,503 @@
+package dk.kb.elivagar.metadata;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import dk.kb.elivagar.exception.ArgumentCheck;
+import dk.kb.elivagar.exception.NumberOfResultsException;
+import dk.kb.elivagar.utils.FileUtils;
+
+/**
+ * Bulk extraction of the MODS records from Alma for a list of ISBNs.
+ *
+ * The ISBNs are looked up concurrently by the workers through the shared Alma metadata retriever, so the rate
+ * limiting of the retriever applies to all the workers together.
+ * The MODS records are written either as individual files in an output directory, or into a single compressed
+ * ZIP archive.
+ *
+ * The outcome for each ISBN is appended to a CSV manifest, with the columns
+ * isbn,status,entry,bytes,millis
+ * When the extraction is started again with the same output, then the ISBNs which were extracted, not found or
+ * ambiguous in a previous run are skipped, and only the failed or missing ISBNs are retrieved again.
+ */
+public class AlmaBulkExtractor {
+    /** The logger.*/
+    private static final Logger log = LoggerFactory.getLogger(AlmaBulkExtractor.class);
+
+    /** The suffix for the MODS record files.*/
+    public static final String MODS_SUFFIX = ".mods.xml";
+    /** The header line of the manifest.*/
+    protected static final String MANIFEST_HEADER = "isbn,status,entry,bytes,millis";
+    /** The separator between the columns of the manifest.*/
+    protected static final String MANIFEST_SEPARATOR = ",";
+    /** The number of ISBNs between the throughput reports.*/
+    protected static final int PROGRESS_INTERVAL = 100;
+
+    /** The status of the extraction of an ISBN.*/
+    public enum Status {
+        /** The MODS record was extracted.*/
+        OK,
+        /** No record was found in Alma.*/
+        NOT_FOUND,
+        /** Several records were found in Alma.*/
+        AMBIGUOUS,
+        /** The extraction failed, and it should be retried.*/
+        ERROR
+    }
+
+    /** The retriever of the Alma metadata.*/
+    protected final AlmaMetadataRetriever retriever;
+    /** The number of workers.*/
+    protected final int workers;
+    /** The output for the MODS records.*/
+    protected final ExtractOutput output;
+    /** The number of ISBNs for each status in this run.*/
+    protected final Map<Status, AtomicInteger> counts = new EnumMap<Status, AtomicInteger>(Status.class);
+    /** The writer for the manifest.*/
+    protected Writer manifestWriter;
+    /** The time when the extraction started, in millis.*/
+    protected long startTime;
+
+    /**
+     * Constructor.
+     * @param retriever The retriever of the Alma metadata.
+     * @param workers The number of workers retrieving the MODS records concurrently.
+     * @param output The output for the MODS records.
+     */
+    public AlmaBulkExtractor(AlmaMetadataRetriever retriever, int workers, ExtractOutput output) {
+        ArgumentCheck.checkNotNull(retriever, "AlmaMetadataRetriever retriever");
+        ArgumentCheck.checkPositiveInt(workers, "int workers");
+        ArgumentCheck.checkNotNull(output, "ExtractOutput output");
+        this.retriever = retriever;
+        this.workers = workers;
+        this.output = output;
+        for(Status status : Status.values()) {
+            counts.put(status, new AtomicInteger());
+        }
+    }
+
+    /**
+     * Reads the ISBNs, one per line. Empty lines and lines starting with '#' are ignored, as are duplicates.
+     * @param in The reader with the ISBNs, e.g. a file or stdin.
+     * @return The ISBNs, in the order they are read.
+     * @throws IOException If it fails to read the ISBNs.
+     */
+    public static List<String> readIsbns(Reader in) throws IOException {
+        Set<String> res = new LinkedHashSet<String>();
+        BufferedReader reader = new BufferedReader(in);
+        String line;
+        while((line = reader.readLine()) != null) {
+            String isbn = line.trim();
+            if(!isbn.isEmpty() && !isbn.startsWith("#")) {
+                res.add(isbn);
+            }
+        }
+        return new ArrayList<String>(res);
+    }
+
+    /**
+     * Extracts the MODS records for the ISBNs, which have not already been handled in a previous run.
+     * @param isbns The ISBNs.
+     * @throws IOException If it fails to open or close the output or the manifest.
+     * @throws InterruptedException If it is interrupted while waiting for the workers.
+     */
+    public void extract(List<String> isbns) throws IOException, InterruptedException {
+        ArgumentCheck.checkNotNull(isbns, "List<String> isbns");
+        Map<String, Status> previous = readManifest(output.getManifestFile());
+        Set<String> existingEntries = output.open();
+        List<String> remaining = new ArrayList<String>();
+        for(String isbn : isbns) {
+            if(!isDone(isbn, previous.get(isbn), existingEntries)) {
+                remaining.add(isbn);
+            }
+        }
+        log.info("Extracting the MODS records for " + remaining.size() + " ISBNs. Skipping "
+                + (isbns.size() - remaining.size()) + " ISBNs handled in a previous run.");
+
+        boolean newManifest = !output.getManifestFile().isFile();
+        manifestWriter = new OutputStreamWriter(new FileOutputStream(output.getManifestFile(), true),
+                StandardCharsets.UTF_8);
+        startTime = System.currentTimeMillis();
+        ExecutorService executor = Executors.newFixedThreadPool(workers);
+        try {
+            if(newManifest) {
+                writeManifestLine(MANIFEST_HEADER);
+            }
+            for(final String isbn : remaining) {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        extractIsbn(isbn);
+                    }
+                });
+            }
+            executor.shutdown();
+            while(!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                log.debug("Waiting for the extraction workers to finish.");
+            }
+        } finally {
+            executor.shutdownNow();
+            manifestWriter.close();
+            output.close();
+        }
+        log.info("Finished the extraction of " + remaining.size() + " ISBNs: " + counts + ". " + getThroughput());
+    }
+
+    /**
+     * Checks whether the ISBN was handled in a previous run.
+     * @param isbn The ISBN.
+     * @param status The status in the manifest from the previous run, or null if it was not handled.
+     * @param existingEntries The names of the MODS records already in the output.
+     * @return Whether the ISBN should be skipped.
+     */
+    protected boolean isDone(String isbn, Status status, Set<String> existingEntries) {
+        if(status == null || status == Status.ERROR) {
+            return false;
+        }
+        return status != Status.OK || existingEntries.contains(getEntryName(isbn));
+    }
+
+    /**
+     * Extracts the MODS record for a single ISBN, and records the outcome in the manifest.
+     * @param isbn The ISBN.
+     */
+    protected void extractIsbn(String isbn) {
+        long start = System.currentTimeMillis();
+        Status status;
+        String entry = "";
+        int size = 0;
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            retriever.retrieveMetadataForISBN(isbn, out);
+            byte[] mods = out.toByteArray();
+            entry = getEntryName(isbn);
+            output.write(entry, mods);
+            size = mods.length;
+            status = Status.OK;
+        } catch (NumberOfResultsException e) {
+            if(e.getNumberOfResults() == 0) {
+                status = Status.NOT_FOUND;
+            } else if(e.getNumberOfResults() > 1) {
+                status = Status.AMBIGUOUS;
+            } else {
+                status = Status.ERROR;
+            }
+            log.debug("Could not extract the MODS record for the ISBN '" + isbn + "'", e);
+        } catch (Exception e) {
+            status = Status.ERROR;
+            entry = "";
+            log.warn("Issue occured when retrieving the metadata for ISBN: '" + isbn + "'", e);
+        }
+        try {
+            writeManifestLine(isbn + MANIFEST_SEPARATOR + status + MANIFEST_SEPARATOR + entry + MANIFEST_SEPARATOR
+                    + size + MANIFEST_SEPARATOR + (System.currentTimeMillis() - start));
+        } catch (IOException e) {
+            log.warn("Could not write the manifest line for the ISBN '" + isbn + "'", e);
+        }
+        int handled = 0;
+        counts.get(status).incrementAndGet();
+        for(AtomicInteger count : counts.values()) {
+            handled += count.get();
+        }
+        if(handled % PROGRESS_INTERVAL == 0) {
+            log.info("Handled " + handled + " ISBNs. " + getThroughput());
+        }
+    }
+
+    /**
+     * Writes a line to the manifest, and flushes it, so the manifest is usable for resuming after a crash.
+     * @param line The line.
+     * @throws IOException If it fails to write the line.
+     */
+    protected synchronized void writeManifestLine(String line) throws IOException {
+        manifestWriter.write(line + "\n");
+        manifestWriter.flush();
+    }
+
+    /**
+     * @return The description of the throughput since the extraction started.
+     */
+    protected String getThroughput() {
+        int handled = 0;
+        for(AtomicInteger count : counts.values()) {
+            handled += count.get();
+        }
+        long millis = Math.max(1L, System.currentTimeMillis() - startTime);
+        return "Throughput: " + String.format("%.2f", handled * 1000.0 / millis) + " ISBNs per second.";
+    }
+
+    /**
+     * @param status The status.
+     * @return The number of ISBNs with the status in this run.
+     */
+    public int getCount(Status status) {
+        return counts.get(status).get();
+    }
+
+    /**
+     * @param isbn The ISBN.
+     * @return The name of the MODS record for the ISBN in the output.
+     */
+    protected static String getEntryName(String isbn) {
+        return isbn.replaceAll("[^0-9A-Za-z_\\-]", "_") + MODS_SUFFIX;
+    }
+
+    /**
+     * Reads the latest status of each ISBN from the manifest of the previous runs.
+     * @param manifestFile The manifest file.
+     * @return The map between the ISBNs and their latest status.
+     * @throws IOException If it fails to read the manifest.
+     */
+    protected static Map<String, Status> readManifest(File manifestFile) throws IOException {
+        Map<String, Status> res = new HashMap<String, Status>();
+        if(!manifestFile.isFile()) {
+            return res;
+        }
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(manifestFile), StandardCharsets.UTF_8))) {
+            String line;
+            while((line = reader.readLine()) != null) {
+                String[] split = line.split(MANIFEST_SEPARATOR);
+                if(split.length < 2 || line.equals(MANIFEST_HEADER)) {
+                    continue;
+                }
+                try {
+                    res.put(split[0], Status.valueOf(split[1]));
+                } catch (IllegalArgumentException e) {
+                    log.warn("Ignoring invalid manifest line: " + line, e);
+                }
+            }
+        }
+        return res;
+    }
+
+    /**
+     * The output for the extracted MODS records.
+     */
+    public interface ExtractOutput extends Closeable {
+        /**
+         * @return The CSV manifest file for the output.
+         */
+        File getManifestFile();
+
+        /**
+         * Opens the output, keeping the MODS records from the previous runs.
+         * @return The names of the MODS records from the previous runs.
+         * @throws IOException If it fails to open the output.
+         */
+        Set<String> open() throws IOException;
+
+        /**
+         * Writes a MODS record to the output. Must be thread-safe.
+         * @param name The name of the MODS record.
+         * @param content The MODS record.
+         * @throws IOException If it fails to write the MODS record.
+         */
+        void write(String name, byte[] content) throws IOException;
+    }
+
+    /**
+     * Output of the MODS records as individual files in a directory.
+     * Each file is written to a temporary file first, so only complete MODS records are found after a crash.
+     */
+    public static class DirectoryOutput implements ExtractOutput {
+        /** The name of the manifest file in the output directory.*/
+        protected static final String MANIFEST_NAME = "alma_extract.csv";
+
+        /** The output directory.*/
+        protected final File dir;
+
+        /**
+         * Constructor.
+         * @param dir The output directory.
+         */
+        public DirectoryOutput(File dir) {
+            ArgumentCheck.checkNotNull(dir, "File dir");
+            this.dir = dir;
+        }
+
+        @Override
+        public File getManifestFile() {
+            return new File(dir, MANIFEST_NAME);
+        }
+
+        @Override
+        public Set<String> open() throws IOException {
+            FileUtils.createDirectory(dir.getAbsolutePath());
+            Set<String> res = new HashSet<String>();
+            for(File f : FileUtils.getFilesInDirectory(dir)) {
+                if(f.getName().endsWith(MODS_SUFFIX)) {
+                    res.add(f.getName());
+                }
+            }
+            return res;
+        }
+
+        @Override
+        public void write(String name, byte[] content) throws IOException {
+            File tmpFile = new File(dir, name + ".tmp");
+            try (OutputStream out = new FileOutputStream(tmpFile)) {
+                out.write(content);
+            }
+            FileUtils.moveFile(tmpFile, new File(dir, name));
+        }
+
+        @Override
+        public void close() {
+            // Nothing to close, since each file is closed when written.
+        }
+    }
+
+    /**
+     * Output of the MODS records into a single compressed ZIP archive, along with a manifest next to it.
+     *
+     * The archive is written to a temporary file, which replaces the archive when the output is closed.
+     * The MODS records from the previous runs are copied into the new archive; both from the archive and from the
+     * temporary file of a crashed run, where the complete entries are recovered.
+     */
+    public static class ZipOutput implements ExtractOutput {
+        /** The suffix for the temporary archive being written.*/
+        protected static final String TMP_SUFFIX = ".tmp";
+        /** The suffix for the temporary archive left by a crashed run.*/
+        protected static final String PARTIAL_SUFFIX = ".partial";
+        /** The suffix for the manifest file.*/
+        protected static final String MANIFEST_SUFFIX = ".csv";
+        /** The size of the buffer for reading the entries of a previous archive.*/
+        protected static final int BUFFER_SIZE = 8192;
+
+        /** The archive file.*/
+        protected final File zipFile;
+        /** The temporary archive file being written.*/
+        protected final File tmpFile;
+        /** The temporary archive file left by a crashed run.*/
+        protected final File partialFile;
+        /** The names of the entries in the archive.*/
+        protected final Set<String> names = new HashSet<String>();
+        /** The stream for the archive being written.*/
+        protected ZipOutputStream out;
+
+        /**
+         * Constructor.
+         * @param zipFile The archive file.
+         */
+        public ZipOutput(File zipFile) {
+            ArgumentCheck.checkNotNull(zipFile, "File zipFile");
+            this.zipFile = zipFile.getAbsoluteFile();
+            this.tmpFile = new File(this.zipFile.getParentFile(), this.zipFile.getName() + TMP_SUFFIX);
+            this.partialFile = new File(this.zipFile.getParentFile(), this.zipFile.getName() + PARTIAL_SUFFIX);
+        }
+
+        @Override
+        public File getManifestFile() {
+            return new File(zipFile.getParentFile(), zipFile.getName() + MANIFEST_SUFFIX);
+        }
+
+        @Override
+        public Set<String> open() throws IOException {
+            FileUtils.createDirectory(zipFile.getParentFile().getAbsolutePath());
+            if(tmpFile.isFile()) {
+                if(partialFile.isFile()) {
+                    log.info("Discarding the incomplete archive '" + tmpFile.getAbsolutePath() + "'.");
+                    FileUtils.deleteFile(tmpFile);
+                } else {
+                    FileUtils.moveFile(tmpFile, partialFile);
+                }
+            }
+            out = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+            copyEntries(zipFile);
+            copyEntries(partialFile);
+            return new HashSet<String>(names);
+        }
+
+        /**
+         * Copies the complete entries from an archive of a previous run into the new archive.
+         * The copying stops at the first incomplete or corrupt entry, e.g. at the end of a crashed archive.
+         * @param source The archive from the previous run.
+         * @throws IOException If it fails to write the entries to the new archive.
+         */
+        protected void copyEntries(File source) throws IOException {
+            if(!source.isFile()) {
+                return;
+            }
+            try (InputStream in = new FileInputStream(source)) {
+                ZipInputStream zipIn = new ZipInputStream(in);
+                while(true) {
+                    byte[] content;
+                    ZipEntry entry;
+                    try {
+                        entry = zipIn.getNextEntry();
+                        if(entry == null) {
+                            break;
+                        }
+                        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+                        byte[] buf = new byte[BUFFER_SIZE];
+                        int bytesRead;
+                        while((bytesRead = zipIn.read(buf)) != -1) {
+                            buffer.write(buf, 0, bytesRead);
+                        }
+                        content = buffer.toByteArray();
+                    } catch (IOException e) {
+                        log.info("Stopped reading the entries from '" + source.getAbsolutePath() + "' at an "
+                                + "incomplete entry.", e);
+                        break;
+                    }
+                    if(!names.contains(entry.getName())) {
+                        write(entry.getName(), content);
+                    }
+                }
+            }
+        }
+
+        @Override
+        public synchronized void write(String name, byte[] content) throws IOException {
+            out.putNextEntry(new ZipEntry(name));
+            out.write(content);
+            out.closeEntry();
+            names.add(name);
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            if(out == null) {
+                return;
+            }
+            out.close();
+            out = null;
+            FileUtils.moveFile(tmpFile, zipFile);
+            if(partialFile.isFile()) {
+                FileUtils.deleteFile(partialFile);
+            }
+        }
+    }
+}
@@ -0,0 +1,289 @@
+package dk.kb.elivagar.metadata;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import dk.kb.elivagar.config.AlmaConfiguration;
+import dk.kb.elivagar.exception.ArgumentCheck;
+import dk.kb.elivagar.utils.FileUtils;
+import dk.kb.elivagar.utils.IsbnUtils;
+
+/**
+ * Persistent cache of the outcome of the lookups in Alma, keyed by the normalized ISBN.
+ *
+ * The MODS records found in Alma are cached for the configured time-to-live.
+ * The ISBNs which were not found, which had several records, or whose record was invalid according to the MODS
+ * schema, are remembered, so they are not looked up again until their back-off interval has passed.
+ * The back-off is doubled for each lookup in a row with the same outcome, until it reaches the maximum back-off.
+ *
+ * The cache is persisted in the state directory; an index file with a line for each outcome in the format
+ * isbn##outcome##time##attempts
+ * and a directory with the cached MODS records.
+ * New outcomes are appended to the index, and the later lines override the earlier ones.
+ * The index is compacted when the cache is loaded.
+ */
+public class AlmaCache {
+    /** The logger.*/
+    private static final Logger log = LoggerFactory.getLogger(AlmaCache.class);
+
+    /** The name of the index file.*/
+    protected static final String INDEX_FILE_NAME = "alma_cache.txt";
+    /** The name of the directory with the cached MODS records.*/
+    protected static final String RECORD_DIR_NAME = "alma_cache";
+    /** The suffix for the cached MODS record files.*/
+    protected static final String RECORD_SUFFIX = ".xml";
+    /** The separator between the elements of an index line.*/
+    protected static final String SEPARATOR = "##";
+    /** The maximum exponent for the back-off, to avoid overflow.*/
+    protected static final int MAX_BACKOFF_EXPONENT = 30;
+
+    /** The outcomes of a lookup in Alma.*/
+    public enum Outcome {
+        /** Exactly one record was found.*/
+        FOUND,
+        /** No record was found.*/
+        NOT_FOUND,
+        /** Several records were found.*/
+        AMBIGUOUS,
+        /** Exactly one record was found, but it was invalid.*/
+        INVALID
+    }
+
+    /** The configuration with the time-to-live and the back-off.*/
+    protected final AlmaConfiguration conf;
+    /** The index file.*/
+    protected final File indexFile;
+    /** The directory with the cached MODS records.*/
+    protected final File recordDir;
+    /** The entries, mapped by the normalized ISBN.*/
+    protected final Map<String, Entry> entries = new HashMap<String, Entry>();
+
+    /**
+     * Constructor.
+     * @param stateDir The directory for the persistent state.
+     * @param conf The configuration with the time-to-live and the back-off.
+     * @throws IOException If the cache directory cannot be created, or the index cannot be loaded.
+     */
+    public AlmaCache(File stateDir, AlmaConfiguration conf) throws IOException {
+        ArgumentCheck.checkNotNull(stateDir, "File stateDir");
+        ArgumentCheck.checkNotNull(conf, "AlmaConfiguration conf");
+        this.conf = conf;
+        this.recordDir = FileUtils.createDirectory(new File(stateDir, RECORD_DIR_NAME).getAbsolutePath());
+        this.indexFile = new File(stateDir, INDEX_FILE_NAME);
+        load();
+    }
+
+    /**
+     * Retrieves the cached MODS record for the ISBN, if it has not expired.
+     * @param isbn The ISBN.
+     * @return The cached MODS record, or null if no record is cached for the ISBN, or if it has expired.
+     */
+    public synchronized byte[] getRecord(String isbn) {
+        String key = IsbnUtils.normalize(isbn);
+        Entry entry = entries.get(key);
+        if(entry == null || entry.outcome != Outcome.FOUND
+                || System.currentTimeMillis() >= entry.time + conf.getCacheTtl()) {
+            return null;
+        }
+        File recordFile = getRecordFile(key);
+        if(!recordFile.isFile()) {
+            return null;
+        }
+        try {
+            return Files.readAllBytes(recordFile.toPath());
+        } catch (IOException e) {
+            log.warn("Could not read the cached MODS record for '" + isbn + "'", e);
+            return null;
+        }
+    }
+
+    /**
+     * Checks whether the ISBN was not found, was ambiguous or had an invalid record in the latest lookup, and the
+     * back-off interval has not yet passed.
+     * @param isbn The ISBN.
+     * @return Whether the lookup of the ISBN should wait.
+     */
+    public synchronized boolean isBackingOff(String isbn) {
+        Entry entry = entries.get(IsbnUtils.normalize(isbn));
+        if(entry == null || entry.outcome == Outcome.FOUND) {
+            return false;
+        }
+        return System.currentTimeMillis() < entry.time + getBackoff(entry);
+    }
+
+    /**
+     * Records that the ISBN was found in Alma, and caches the MODS record.
+     * @param isbn The ISBN.
+     * @param mods The MODS record.
+     */
+    public synchronized void recordFound(String isbn, byte[] mods) {
+        String key = IsbnUtils.normalize(isbn);
+        if(conf.getCacheTtl() > 0L) {
+            File tmpFile = new File(recordDir, UUID.randomUUID().toString());
+            try {
+                try (OutputStream out = new FileOutputStream(tmpFile)) {
+                    out.write(mods);
+                }
+                FileUtils.moveFile(tmpFile, getRecordFile(key));
+            } catch (IOException e) {
+                log.warn("Could not cache the MODS record for '" + isbn + "'", e);
+                tmpFile.delete();
+            }
+        }
+        record(key, Outcome.FOUND);
+    }
+
+    /**
+     * Records that the ISBN was not found in Alma.
+     * @param isbn The ISBN.
+     */
+    public synchronized void recordNotFound(String isbn) {
+        record(IsbnUtils.normalize(isbn), Outcome.NOT_FOUND);
+    }
+
+    /**
+     * Records that the ISBN had several records in Alma.
+     * @param isbn The ISBN.
+     */
+    public synchronized void recordAmbiguous(String isbn) {
+        record(IsbnUtils.normalize(isbn), Outcome.AMBIGUOUS);
+    }
+
+    /**
+     * Records that the record of the ISBN in Alma was invalid.
+     * It is backed off like an ISBN which was not found, since the record will not be valid until it is corrected
+     * in Alma.
+     * @param isbn The ISBN.
+     */
+    public synchronized void recordInvalid(String isbn) {
+        record(IsbnUtils.normalize(isbn), Outcome.INVALID);
+    }
+
+    /**
+     * Records the outcome of a lookup, and appends it to the index file.
+     * @param key The normalized ISBN.
+     * @param outcome The outcome of the lookup.
+     */
+    protected void record(String key, Outcome outcome) {
+        Entry previous = entries.get(key);
+        int attempts = (previous != null && previous.outcome == outcome) ? previous.attempts + 1 : 1;
+        Entry entry = new Entry(outcome, System.currentTimeMillis(), attempts);
+        entries.put(key, entry);
+        if(outcome != Outcome.FOUND) {
+            getRecordFile(key).delete();
+        }
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(indexFile, true),
+                StandardCharsets.UTF_8)) {
+            writer.write(toLine(key, entry));
+        } catch (IOException e) {
+            log.warn("Could not write the Alma cache entry for '" + key + "'", e);
+        }
+    }
+
+    /**
+     * Calculates the back-off interval for an entry, which was not found, was ambiguous or was invalid.
+     * The invalid entries have the same back-off as the entries which were not found.
+     * @param entry The entry.
+     * @return The back-off interval in millis.
+     */
+    protected long getBackoff(Entry entry) {
+        long base = entry.outcome == Outcome.AMBIGUOUS ? conf.getAmbiguousBackoff() : conf.getNotFoundBackoff();
+        int exponent = Math.min(Math.max(entry.attempts - 1, 0), MAX_BACKOFF_EXPONENT);
+        long backoff = base * (1L << exponent);
+        if(backoff < 0L || backoff > conf.getMaxBackoff()) {
+            return conf.getMaxBackoff();
+        }
+        return backoff;
+    }
+
+    /**
+     * @param key The normalized ISBN.
+     * @return The file for the cached MODS record.
+     */
+    protected File getRecordFile(String key) {
+        return new File(recordDir, key + RECORD_SUFFIX);
+    }
+
+    /**
+     * Loads the index, and then compacts it, so it only contains the latest outcome for each ISBN.
+     * @throws IOException If it fails to read or compact the index.
+     */
+    protected void load() throws IOException {
+        if(!indexFile.isFile()) {
+            return;
+        }
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(indexFile), StandardCharsets.UTF_8))) {
+            String line;
+            while((line = reader.readLine()) != null) {
+                String[] split = line.split(SEPARATOR);
+                if(split.length != 4) {
+                    log.warn("Ignoring invalid Alma cache entry: " + line);
+                    continue;
+                }
+                try {
+                    entries.put(split[0], new Entry(Outcome.valueOf(split[1]), Long.parseLong(split[2]),
+                            Integer.parseInt(split[3])));
+                } catch (IllegalArgumentException e) {
+                    log.warn("Ignoring invalid Alma cache entry: " + line, e);
+                }
+            }
+        }
+
+        File tmpFile = new File(indexFile.getParentFile(), indexFile.getName() + ".tmp");
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(tmpFile), StandardCharsets.UTF_8)) {
+            for(Map.Entry<String, Entry> e : entries.entrySet()) {
+                writer.write(toLine(e.getKey(), e.getValue()));
+            }
+        }
+        FileUtils.moveFile(tmpFile, indexFile);
+    }
+
+    /**
+     * @param key The normalized ISBN.
+     * @param entry The entry.
+     * @return The line for the index file.
+     */
+    protected String toLine(String key, Entry entry) {
+        return key + SEPARATOR + entry.outcome + SEPARATOR + entry.time + SEPARATOR + entry.attempts + "\n";
+    }
+
+    /**
+     * An entry in the cache.
+     */
+    protected static class Entry {
+        /** The outcome of the latest lookup.*/
+        protected final Outcome outcome;
+        /** The time of the latest lookup, in millis since epoch.*/
+        protected final long time;
+        /** The number of lookups in a row with the same outcome.*/
+        protected final int attempts;
+
+        /**
+         * Constructor.
+         * @param outcome The outcome of the latest lookup.
+         * @param time The time of the latest lookup.
+         * @param attempts The number of lookups in a row with the same outcome.
+         */
+        protected Entry(Outcome outcome, long time, int attempts) {
+            this.outcome = outcome;
+            this.time = time;
+            this.attempts = attempts;
+        }
+    }
+}
@@ -1,8 +1,11 @@
 package dk.kb.elivagar.metadata;
 
 import dk.kb.elivagar.HttpClient;
+import dk.kb.elivagar.config.AlmaConfiguration;
 import dk.kb.elivagar.config.Configuration;
 import dk.kb.elivagar.exception.ArgumentCheck;
+import dk.kb.elivagar.exception.NumberOfResultsException;
+import dk.kb.elivagar.utils.IsbnUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.w3c.dom.Document;
@@ -11,9 +14,16 @@ import org.w3c.dom.NodeList;
 import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
 
+import javax.xml.namespace.NamespaceContext;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
 import javax.xml.transform.OutputKeys;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerFactory;
@@ -24,7 +34,6 @@ import javax.xml.xpath.XPathConstants;
 import javax.xml.xpath.XPathExpression;
 import javax.xml.xpath.XPathExpressionException;
 import javax.xml.xpath.XPathFactory;
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
@@ -33,6 +42,12 @@ import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.StringWriter;
 import java.io.Writer;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
  * Alma Metadata Retriever.
@@ -41,6 +56,12 @@ import java.io.Writer;
  *
  * It should create MODS retrieval URLs like the following:
  * https://kbdk-kgl.alma.exlibrisgroup.com/view/sru/45KBDK_KGL?version=1.2&operation=searchRetrieve&startRecord=1&maximumRecords=2&recordSchema=mods&query=isbn=$ISBN
+ *
+ * It can also look up several ISBNs in a single request, with a CQL query like 'isbn=$ISBN1 or isbn=$ISBN2',
+ * where the MODS records are matched back to the ISBNs through their ISBN identifiers.
+ *
+ * The requests are rate limited by an adaptive rate controller, which backs off when Alma is overloaded,
+ * so the retriever can safely be used by several concurrent workers.
  */
 public class AlmaMetadataRetriever {
     /** The logger.*/
@@ -52,6 +73,12 @@ public class AlmaMetadataRetriever {
     protected static final String ALMA_SCHEMA_MODS = "recordSchema=mods&";
     /** The base query for performing ISBN search in Alma.*/
     protected static final String ALMA_QUERY_ISBN = "query=isbn=";
+    /** The query parameter.*/
+    protected static final String ALMA_QUERY = "query=";
+    /** The CQL index for ISBN search.*/
+    protected static final String CQL_ISBN_INDEX = "isbn=";
+    /** The CQL boolean operator for combining the ISBN searches.*/
+    protected static final String CQL_OR = " or ";
 
 
     /** The XPATH for the number of records.
@@ -60,16 +87,32 @@ public class AlmaMetadataRetriever {
     /** The XPATH for the MODS record.
      * Using '*' as wildcard for the namespace.*/
     protected static final String XPATH_MODS_RECORD = "/*:searchRetrieveResponse/*:records/*:record/*:recordData/*:mods";
+    /** The name of the element with the number of records in the SRU response.*/
+    protected static final String ELEMENT_NUMBER_OF_RECORDS = "numberOfRecords";
+    /** The name of the element with the data of a record in the SRU response.*/
+    protected static final String ELEMENT_RECORD_DATA = "recordData";
+    /** The name of the MODS element.*/
+    protected static final String ELEMENT_MODS = "mods";
+    /** The XPATH for the ISBN identifiers within a MODS record.*/
+    protected static final String XPATH_MODS_ISBN = "*[local-name()='identifier'][@type='isbn']/text()";
 
     /** The configuration.*/
     protected final Configuration conf;
     /** The HTTP client for making the HTTP Get operations towards the Alma server.*/
     protected final HttpClient httpClient;
+    /** The controller for the rate of the requests towards the Alma server.*/
+    protected final AlmaRateController rateController;
 
     /** The document builder factory.*/
     protected final DocumentBuilderFactory documentBuilderFactory;
     /** The XPath factory.*/
     protected final XPathFactory xPathFactory;
+    /** The transformer factory.*/
+    protected final TransformerFactory transformerFactory;
+    /** The factory for the streaming XML readers.*/
+    protected final XMLInputFactory xmlInputFactory;
+    /** The factory for the streaming XML writers.*/
+    protected final XMLOutputFactory xmlOutputFactory;
 
     /**
      * Constructor.
@@ -81,76 +124,379 @@ public class AlmaMetadataRetriever {
         ArgumentCheck.checkNotNull(httpClient, "HttpClient httpClient");
         this.conf= configuration;
         this.httpClient = httpClient;
+        AlmaConfiguration almaConf = configuration.getAlmaConfiguration();
+        this.rateController = new AlmaRateController(almaConf == null ? new AlmaConfiguration() : almaConf);
         documentBuilderFactory = DocumentBuilderFactory.newInstance();
+        documentBuilderFactory.setNamespaceAware(true);
         xPathFactory = XPathFactory.newInstance();
+        transformerFactory = TransformerFactory.newInstance();
+        xmlInputFactory = XMLInputFactory.newInstance();
+        xmlInputFactory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+        xmlInputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        xmlOutputFactory = XMLOutputFactory.newInstance();
     }
 
     /**
      * Retrieves the MODS metadata for a given ISBN from Alma.
+     * The MODS record is extracted directly from the HTTP response stream, and written to the output stream.
      * @param isbn The ID to retrieve the Alma metadata for.
      * @param out The output stream, where the MODS metadata from Alma will be written.
      */
-    public void retrieveMetadataForISBN(String isbn, OutputStream out) {
+    public void retrieveMetadataForISBN(String isbn, final OutputStream out) {
         ArgumentCheck.checkNotNullOrEmpty(isbn, "String isbn");
         ArgumentCheck.checkNotNull(out, "OutputStream out");
 
-        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-        retrieveAlmaMetadata(isbn, byteArrayOutputStream);
-
-        ByteArrayInputStream byteArrayInputStream = new ByteArrayInputStream(byteArrayOutputStream.toByteArray());
-        extractModsFromAlma(byteArrayInputStream, out);
+        retrieveAlmaMetadata(isbn, new HttpClient.ContentHandler() {
+            @Override
+            public void handleContent(InputStream content) throws IOException {
+                extractModsFromAlma(content, out);
+            }
+        });
     }
 
     /**
-     * Retrieves the Alma metadata for the given ISBN and writes it to the output stream.
+     * Retrieves the Alma metadata for the given ISBN and delivers it to the content handler.
      * @param isbn The ISBN number for the record to retrieve metadata for.
-     * @param out Output stream where the retrieved metadata is written.
+     * @param handler The handler of the retrieved metadata.
      */
-    protected void retrieveAlmaMetadata(String isbn, OutputStream out) {
+    protected void retrieveAlmaMetadata(String isbn, HttpClient.ContentHandler handler) {
         log.debug("Retrieving Alma metadata for ISBN: " + isbn);
 
         try {
             String requestUrl = conf.getAlmaSruSearch() + ALMA_SEARCH_RANGE + ALMA_SCHEMA_MODS + ALMA_QUERY_ISBN + isbn;
-            httpClient.retrieveUrlContent(requestUrl, out);
+            retrieveUrlContent(requestUrl, handler);
         } catch (IOException e) {
             throw new IllegalStateException("Could not download the metadata for set '" + isbn + "'", e);
         }
     }
 
     /**
-     * Extracts the MODS record from the Alma record.
+     * Retrieves the content of the URL through the HTTP client, when the rate controller allows it.
+     * The latency or failure of the request is reported back to the rate controller.
+     * @param url The URL to retrieve.
+     * @param handler The handler of the content.
+     * @throws IOException If it fails to retrieve the content.
+     */
+    protected void retrieveUrlContent(String url, HttpClient.ContentHandler handler) throws IOException {
+        long request;
+        try {
+            request = rateController.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting to make the request to Alma.", e);
+        }
+        long startTime = System.currentTimeMillis();
+        try {
+            httpClient.retrieveUrlContent(url, handler);
+        } catch (IOException | RuntimeException e) {
+            rateController.onFailure(request, e);
+            throw e;
+        }
+        rateController.onSuccess(request, System.currentTimeMillis() - startTime);
+    }
+
+    /**
+     * Retrieves the MODS metadata for several ISBNs from Alma in a single request.
+     * Only the ISBNs which match exactly one of the retrieved MODS records are in the resulting map,
+     * so the ISBNs without a match, or with an ambiguous match, must be looked up individually.
+     * @param isbns The ISBNs to retrieve the Alma metadata for.
+     * @return The map between the ISBNs and their MODS record.
+     */
+    public Map<String, byte[]> retrieveMetadataForISBNs(final Collection<String> isbns) {
+        ArgumentCheck.checkNotNullOrEmpty(isbns, "Collection<String> isbns");
+        
+        final Map<String, byte[]> res = new LinkedHashMap<String, byte[]>();
+        retrieveAlmaMetadata(isbns, new HttpClient.ContentHandler() {
+            @Override
+            public void handleContent(InputStream content) throws IOException {
+                res.putAll(extractModsRecordsForIsbns(content, isbns));
+            }
+        });
+        return res;
+    }
+
+    /**
+     * Retrieves the Alma metadata for the given ISBNs in a single request, and delivers it to the content handler.
+     * The maximum number of records is twice the number of ISBNs, so ambiguous results can be detected.
+     * @param isbns The ISBN numbers for the records to retrieve metadata for.
+     * @param handler The handler of the retrieved metadata.
+     */
+    protected void retrieveAlmaMetadata(Collection<String> isbns, HttpClient.ContentHandler handler) {
+        log.debug("Retrieving Alma metadata for the ISBNs: " + isbns);
+
+        StringBuilder query = new StringBuilder();
+        for(String isbn : isbns) {
+            if(query.length() > 0) {
+                query.append(CQL_OR);
+            }
+            query.append(CQL_ISBN_INDEX + isbn);
+        }
+        try {
+            String requestUrl = conf.getAlmaSruSearch() + "startRecord=1&maximumRecords=" + (isbns.size() * 2) 
+                    + "&" + ALMA_SCHEMA_MODS + ALMA_QUERY 
+                    + URLEncoder.encode(query.toString(), StandardCharsets.UTF_8.name()).replace("+", "%20");
+            retrieveUrlContent(requestUrl, handler);
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not download the metadata for the ISBNs '" + isbns + "'", e);
+        }
+    }
+
+    /**
+     * Extracts the MODS records from an Alma response with several records, and matches them with the ISBNs.
+     * If the response does not contain all the found records, then no records are matched, since it
+     * cannot be determined whether the matches are ambiguous.
      * @param almaInput The input stream with the Alma metadata.
-     * @param modsOutput The output stream with the MODS metadata.
+     * @param isbns The ISBNs which were looked up.
+     * @return The map between the ISBNs and their MODS record, for the ISBNs with exactly one matching record.
      */
-    protected void extractModsFromAlma(InputStream almaInput, OutputStream modsOutput) {
+    protected Map<String, byte[]> extractModsRecordsForIsbns(InputStream almaInput, Collection<String> isbns) {
+        Map<String, String> normalizedIsbns = new HashMap<String, String>();
+        for(String isbn : isbns) {
+            normalizedIsbns.put(IsbnUtils.normalize(isbn), isbn);
+        }
+        Map<String, byte[]> res = new LinkedHashMap<String, byte[]>();
         try {
-            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-            factory.setNamespaceAware(true);
-            DocumentBuilder builder = factory.newDocumentBuilder();
-            Document doc = builder.parse(almaInput);
-            XPath xpath = xPathFactory.newXPath();
-
-            // assert numResults == 1 - else fail
-            // TODO: should we also fail, when it has more than 1 number of results?
+            Document doc = newDocumentBuilder().parse(almaInput);
+            XPath xpath = newXPath();
+
             String numResults = (String) xpath.evaluate(XPATH_NUM_RESULTS, doc, XPathConstants.STRING);
-            if(!numResults.equals("1")) {
-                throw new IllegalStateException("Did not receive exactly 1 result from Alma. Received: " + numResults);
+            NodeList modsResults = (NodeList) xpath.evaluate(XPATH_MODS_RECORD, doc, XPathConstants.NODESET);
+            if(numResults.isEmpty() || Integer.parseInt(numResults.trim()) > modsResults.getLength()) {
+                log.info("Did not receive all the " + numResults + " records from Alma. Cannot match any of them.");
+                return res;
+            }
+
+            Map<String, Integer> matches = new HashMap<String, Integer>();
+            Map<String, Node> matchedMods = new HashMap<String, Node>();
+            XPathExpression isbnXpath = xpath.compile(XPATH_MODS_ISBN);
+            for(int i = 0; i < modsResults.getLength(); i++) {
+                Node mods = modsResults.item(i);
+                NodeList identifiers = (NodeList) isbnXpath.evaluate(mods, XPathConstants.NODESET);
+                Map<String, Node> recordIsbns = new HashMap<String, Node>();
+                for(int j = 0; j < identifiers.getLength(); j++) {
+                    String isbn = normalizedIsbns.get(IsbnUtils.normalize(identifiers.item(j).getNodeValue()));
+                    if(isbn != null) {
+                        recordIsbns.put(isbn, mods);
+                    }
+                }
+                for(String isbn : recordIsbns.keySet()) {
+                    Integer count = matches.get(isbn);
+                    matches.put(isbn, count == null ? 1 : count + 1);
+                    matchedMods.put(isbn, mods);
+                }
             }
 
-            XPathExpression modsResultsXpath = xpath.compile(XPATH_MODS_RECORD);
-            NodeList modsResults = (NodeList) modsResultsXpath.evaluate(doc, XPathConstants.NODESET);
+            Transformer transformer = createModsTransformer();
+            for(String isbn : isbns) {
+                Integer count = matches.get(isbn);
+                if(count == null || count != 1) {
+                    log.debug("Found " + count + " MODS records for the ISBN '" + isbn + "'.");
+                    continue;
+                }
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                transformer.transform(new DOMSource(matchedMods.get(isbn)), new StreamResult(out));
+                res.put(isbn, out.toByteArray());
+            }
+        } catch (Exception e) {
+            throw new IllegalStateException("Could not extract the MODS records", e);
+        }
+        return res;
+    }
 
-            Node mods = modsResults.item(0);
+    /**
+     * Creates a new XPath. The XPath factory is not thread-safe, so the creation is synchronized.
+     * @return The new XPath.
+     */
+    protected synchronized XPath newXPath() {
+        return xPathFactory.newXPath();
+    }
 
-            Transformer transformer = TransformerFactory.newInstance().newTransformer();
-            transformer.setOutputProperty(OutputKeys.ENCODING, "UTF-8");
-            transformer.setOutputProperty(OutputKeys.INDENT, "yes");
-            transformer.setOutputProperty("{http://xml.apache.org/xslt}indent-amount", "4");
+    /**
+     * Creates a new document builder. The document builder factory is not thread-safe, so the creation is 
+     * synchronized.
+     * @return The new document builder.
+     * @throws ParserConfigurationException If it fails to create the document builder.
+     */
+    protected synchronized DocumentBuilder newDocumentBuilder() throws ParserConfigurationException {
+        return documentBuilderFactory.newDocumentBuilder();
+    }
 
-            // Turn the node into a string
-            transformer.transform(new DOMSource(mods), new StreamResult(modsOutput));
+    /**
+     * @return A transformer for serializing the MODS records.
+     * @throws Exception If it fails to create the transformer.
+     */
+    protected synchronized Transformer createModsTransformer() throws Exception {
+        Transformer transformer = transformerFactory.newTransformer();
+        transformer.setOutputProperty(OutputKeys.ENCODING, "UTF-8");
+        transformer.setOutputProperty(OutputKeys.INDENT, "yes");
+        transformer.setOutputProperty("{http://xml.apache.org/xslt}indent-amount", "4");
+        return transformer;
+    }
+
+    /**
+     * Extracts the MODS record from the Alma record.
+     * The Alma record is read as a stream, and the MODS element is copied to the output as it is read, 
+     * so the document is never held in memory.
+     * It requires that the Alma record contains exactly one result, and that the number of records is stated
+     * before the records, as in the SRU response.
+     * @param almaInput The input stream with the Alma metadata.
+     * @param modsOutput The output stream with the MODS metadata.
+     */
+    protected void extractModsFromAlma(InputStream almaInput, OutputStream modsOutput) {
+        try {
+            XMLStreamReader reader = xmlInputFactory.createXMLStreamReader(almaInput);
+            try {
+                String numResults = null;
+                boolean inRecordData = false;
+                while(reader.hasNext()) {
+                    if(reader.next() != XMLStreamConstants.START_ELEMENT) {
+                        continue;
+                    }
+                    String name = reader.getLocalName();
+                    if(name.equals(ELEMENT_NUMBER_OF_RECORDS) && numResults == null) {
+                        numResults = reader.getElementText().trim();
+                        // TODO: should we also fail, when it has more than 1 number of results?
+                        if(!numResults.equals("1")) {
+                            throw new NumberOfResultsException("Did not receive exactly 1 result from Alma. "
+                                    + "Received: " + numResults, parseNumberOfResults(numResults));
+                        }
+                    } else if(name.equals(ELEMENT_RECORD_DATA)) {
+                        inRecordData = true;
+                    } else if(name.equals(ELEMENT_MODS) && inRecordData) {
+                        if(numResults == null) {
+                            throw new IllegalStateException("Did not receive the number of results from Alma.");
+                        }
+                        copyElement(reader, modsOutput);
+                        return;
+                    }
+                }
+                throw new IllegalStateException("Did not receive any MODS record from Alma. Received: " 
+                        + numResults);
+            } finally {
+                reader.close();
+            }
+        } catch (NumberOfResultsException e) {
+            throw e;
         } catch (Exception e) {
             throw new IllegalStateException("Could not extract the MODS record", e);
         }
     }
+
+    /**
+     * @param numResults The number of results from the SRU response.
+     * @return The number of results as an integer, or -1 if it is not a number.
+     */
+    protected static int parseNumberOfResults(String numResults) {
+        try {
+            return Integer.parseInt(numResults);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Copies the current element of the reader, including its subtree, to the output stream as a XML document.
+     * The namespaces, which are used in the subtree but declared outside the element, are also declared in the 
+     * output.
+     * @param reader The reader, which must be at the start of the element.
+     * @param out The output stream, where the element will be written.
+     * @throws XMLStreamException If it fails to read or write the XML.
+     */
+    protected void copyElement(XMLStreamReader reader, OutputStream out) throws XMLStreamException {
+        XMLStreamWriter writer = xmlOutputFactory.createXMLStreamWriter(out, StandardCharsets.UTF_8.name());
+        writer.writeStartDocument(StandardCharsets.UTF_8.name(), "1.0");
+        int depth = 0;
+        do {
+            switch(reader.getEventType()) {
+            case XMLStreamConstants.START_ELEMENT:
+                depth++;
+                copyStartElement(reader, writer);
+                break;
+            case XMLStreamConstants.END_ELEMENT:
+                depth--;
+                writer.writeEndElement();
+                break;
+            case XMLStreamConstants.CHARACTERS:
+            case XMLStreamConstants.SPACE:
+                writer.writeCharacters(reader.getText());
+                break;
+            case XMLStreamConstants.CDATA:
+                writer.writeCData(reader.getText());
+                break;
+            case XMLStreamConstants.COMMENT:
+                writer.writeComment(reader.getText());
+                break;
+            default:
+                break;
+            }
+            if(depth > 0) {
+                reader.next();
+            }
+        } while(depth > 0);
+        writer.writeEndDocument();
+        writer.flush();
+        writer.close();
+    }
+
+    /**
+     * Copies the start element of the reader, with its namespace declarations and attributes, to the writer.
+     * Declares the namespaces of the element and its attributes, if they are not already in scope in the writer.
+     * @param reader The reader, which must be at a start element.
+     * @param writer The writer.
+     * @throws XMLStreamException If it fails to write the element.
+     */
+    protected void copyStartElement(XMLStreamReader reader, XMLStreamWriter writer) throws XMLStreamException {
+        String prefix = nullToEmpty(reader.getPrefix());
+        String namespace = nullToEmpty(reader.getNamespaceURI());
+        NamespaceContext namespaceContext = writer.getNamespaceContext();
+        boolean declareNamespace = !namespace.equals(nullToEmpty(namespaceContext.getNamespaceURI(prefix)));
+        writer.writeStartElement(prefix, reader.getLocalName(), namespace);
+        for(int i = 0; i < reader.getNamespaceCount(); i++) {
+            String declaredPrefix = nullToEmpty(reader.getNamespacePrefix(i));
+            if(declaredPrefix.equals(prefix)) {
+                declareNamespace = false;
+            }
+            writeNamespace(writer, declaredPrefix, nullToEmpty(reader.getNamespaceURI(i)));
+        }
+        if(declareNamespace) {
+            writeNamespace(writer, prefix, namespace);
+        }
+        for(int i = 0; i < reader.getAttributeCount(); i++) {
+            String attributePrefix = nullToEmpty(reader.getAttributePrefix(i));
+            String attributeNamespace = nullToEmpty(reader.getAttributeNamespace(i));
+            if(attributeNamespace.isEmpty()) {
+                writer.writeAttribute(reader.getAttributeLocalName(i), reader.getAttributeValue(i));
+                continue;
+            }
+            if(!attributeNamespace.equals(writer.getNamespaceContext().getNamespaceURI(attributePrefix))) {
+                writeNamespace(writer, attributePrefix, attributeNamespace);
+            }
+            writer.writeAttribute(attributePrefix, attributeNamespace, reader.getAttributeLocalName(i), 
+                    reader.getAttributeValue(i));
+        }
+    }
+
+    /**
+     * Writes a namespace declaration.
+     * @param writer The writer.
+     * @param prefix The prefix of the namespace. The empty string for the default namespace.
+     * @param namespace The namespace URI.
+     * @throws XMLStreamException If it fails to write the namespace declaration.
+     */
+    protected void writeNamespace(XMLStreamWriter writer, String prefix, String namespace) 
+            throws XMLStreamException {
+        if(prefix.isEmpty()) {
+            writer.writeDefaultNamespace(namespace);
+        } else {
+            writer.writeNamespace(prefix, namespace);
+        }
+    }
+
+    /**
+     * @param s The string.
+     * @return The string, or the empty string if it is null.
+     */
+    protected static String nullToEmpty(String s) {
+        return s == null ? "" : s;
+    }
 }
@@ -1,23 +1,34 @@
 package dk.kb.elivagar.metadata;
 
 import dk.kb.elivagar.Constants;
+import dk.kb.elivagar.config.AlmaConfiguration;
 import dk.kb.elivagar.config.Configuration;
 import dk.kb.elivagar.exception.ArgumentCheck;
+import dk.kb.elivagar.exception.NumberOfResultsException;
+import dk.kb.elivagar.pubhub.PubhubMetadataIndex;
 import dk.kb.elivagar.utils.FileUtils;
+import dk.kb.elivagar.utils.IsbnUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.w3c.dom.Document;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.xpath.XPath;
-import javax.xml.xpath.XPathConstants;
-import javax.xml.xpath.XPathExpression;
-import javax.xml.xpath.XPathFactory;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 /**
  * The Alma packer.
@@ -26,57 +37,98 @@ import java.io.OutputStream;
  * This is done by extracting the ISBN number from the Publizon metadata file, then use this ISBN to retrieve the 
  * MODS from Alma.
  * This MODS metadata file is then placed in the book's package directory.
+ * 
+ * The ISBNs are normalized, and the books with the same ISBN (e.g. e-book and audio book editions) share
+ * a single lookup in Alma.
+ * 
+ * If a batch size above 1 is configured, then the ISBNs are looked up in batches, and the ISBNs which are not
+ * matched in the batch lookup, are then looked up individually.
+ * 
+ * If more than one worker is configured, then the lookups in Alma are performed concurrently by the workers,
+ * whereas the books are traversed and the ISBNs are extracted by the calling thread.
+ * The rate of the lookups is limited by the AlmaMetadataRetriever.
+ * 
+ * If an Alma cache is given, then the cached MODS records are used instead of looking them up in Alma, and 
+ * the ISBNs which were not found in Alma, or which were ambiguous, are not looked up again until their back-off 
+ * has passed.
+ * 
+ * If a refresh fraction is configured, then that fraction of the existing MODS records is retrieved again from 
+ * Alma in each run, as scheduled by the AlmaRefreshScheduler. A refreshed MODS file is only replaced, if the 
+ * normalized content differs, so unchanged records are not transferred again.
+ * 
+ * All the MODS records retrieved from Alma are validated against the MODS schema. The invalid records are placed in
+ * an error file next to the MODS file, and they are neither cached nor used to replace an existing MODS file.
  */
 public class AlmaPacker {
     /** The logger.*/
     private static final Logger log = LoggerFactory.getLogger(AlmaPacker.class);
 
-    /** The XPATH for extracting the Identifier from the pubhub Book xml file.*/
-    protected static final String XPATH_FIND_IDENTIFIER = "/*:Book/*:Identifier/text()";
-    /** The XPATH for extracting the IdentifierType from the pubhub Book xml file.*/
-    protected static final String XPATH_FIND_IDENTIFIER_TYPE = "/*:Book/*:IdentifierType/text()";
-    
     /** The configuration.*/
     protected final Configuration conf;
     /** The metadata retriever for the Alma metadata.*/
     protected final AlmaMetadataRetriever almaMetadataRetriever;
     /** The metadata validator.*/
     protected final MetadataValidator validator;
-
-    /** The document builder factory.*/
-    protected final DocumentBuilderFactory factory;
-    /** The XPath factory.*/
-    protected final XPathFactory xPathfactory;
+    /** The cache of the Alma lookups. May be null, if no cache is used.*/
+    protected final AlmaCache almaCache;
+    /** The index of the pubhub metadata. May be null, if the pubhub metadata files should be parsed directly.*/
+    protected final PubhubMetadataIndex pubhubIndex;
     
     /**
-     * Constructor.
+     * Constructor, without any cache of the Alma lookups.
      * @param conf The configuration.
      * @param almaMetadataRetriever The retriever of Alma metadata.
      */
     public AlmaPacker(Configuration conf, AlmaMetadataRetriever almaMetadataRetriever) {
+        this(conf, almaMetadataRetriever, null);
+    }
+    
+    /**
+     * Constructor, without any index of the pubhub metadata.
+     * @param conf The configuration.
+     * @param almaMetadataRetriever The retriever of Alma metadata.
+     * @param almaCache The cache of the Alma lookups. May be null, if no cache should be used.
+     */
+    public AlmaPacker(Configuration conf, AlmaMetadataRetriever almaMetadataRetriever, AlmaCache almaCache) {
+        this(conf, almaMetadataRetriever, almaCache, null);
+    }
+    
+    /**
+     * Constructor.
+     * @param conf The configuration.
+     * @param almaMetadataRetriever The retriever of Alma metadata.
+     * @param almaCache The cache of the Alma lookups. May be null, if no cache should be used.
+     * @param pubhubIndex The index of the pubhub metadata. May be null, if the pubhub metadata files should be 
+     * parsed directly.
+     */
+    public AlmaPacker(Configuration conf, AlmaMetadataRetriever almaMetadataRetriever, AlmaCache almaCache,
+            PubhubMetadataIndex pubhubIndex) {
         ArgumentCheck.checkNotNull(conf, "Configuration conf");
         ArgumentCheck.checkNotNull(almaMetadataRetriever, "AlmaMetadataRetriever almaMetadataRetriever");
         this.conf = conf;
         this.almaMetadataRetriever = almaMetadataRetriever;
-        this.factory = DocumentBuilderFactory.newInstance();
-        this.xPathfactory = XPathFactory.newInstance();
+        this.almaCache = almaCache;
+        this.pubhubIndex = pubhubIndex;
         this.validator = new MetadataValidator();
     }
     
     /**
      * Pack Alma metadata for all books; both E-books and Audio books.
      * Will not retrieve the metadata, if it has already been retrieved.
+     * The books of both types are handled together, so the books with the same ISBN are only looked up once.
      * 
      * If the e-book package base directory and the audio book package base directory are the same, then they
      * are only traversed once.
      */
     public void packAlmaMetadataForBooks() {
-        traverseBooksInFolder(conf.getEbookOutputDir());
+        List<File> dirs = new ArrayList<File>();
+        addBookDirs(conf.getEbookOutputDir(), dirs);
         if(conf.getEbookOutputDir().getAbsolutePath().equals(conf.getAudioOutputDir().getAbsolutePath())) {
             log.debug("Ebooks and Audio books have same base-dir.");
         } else {
-            traverseBooksInFolder(conf.getAudioOutputDir());            
+            addBookDirs(conf.getAudioOutputDir(), dirs);
         }
+        packageMetadataForBookDirs(dirs);
     }
     
     /**
@@ -84,61 +136,387 @@ public class AlmaPacker {
      * @param baseBookDir The base directory for the books (either E-books or Audio books).
      */
     protected void traverseBooksInFolder(File baseBookDir) {
+        List<File> dirs = new ArrayList<File>();
+        addBookDirs(baseBookDir, dirs);
+        packageMetadataForBookDirs(dirs);
+    }
+    
+    /**
+     * Adds the book directories within the base directory to the list.
+     * @param baseBookDir The base directory for the books (either E-books or Audio books).
+     * @param dirs The list of book directories.
+     */
+    protected void addBookDirs(File baseBookDir, List<File> dirs) {
         File[] files = baseBookDir.listFiles();
         if(files == null) {
             log.warn("No books to retrieve and transform Alma metadata for within the directory: "
                     + baseBookDir.getAbsolutePath());
         } else {
-            for(File dir : files) {
-                packageMetadataForBook(dir);
+            dirs.addAll(Arrays.asList(files));
+        }
+    }
+    
+    /**
+     * Retrieves and packages the Alma metadata for the book directories.
+     * Uses the configured number of workers for the lookups in Alma.
+     * @param dirs The book directories.
+     */
+    protected void packageMetadataForBookDirs(List<File> dirs) {
+        if(dirs.isEmpty()) {
+            log.debug("No books to retrieve Alma metadata for.");
+            return;
+        }
+        AlmaConfiguration almaConf = getAlmaConfiguration();
+        AlmaRefreshScheduler refreshScheduler = getRefreshScheduler(almaConf);
+        List<File> refreshDirs = Collections.emptyList();
+        if(refreshScheduler != null) {
+            refreshDirs = refreshScheduler.selectBooksForRefresh(dirs);
+        }
+        if(almaConf.getWorkers() > 1) {
+            ExecutorService executor = Executors.newFixedThreadPool(almaConf.getWorkers());
+            try {
+                packageMetadataForBooks(dirs, almaConf.getBatchSize(), executor);
+                refreshMetadataForBooks(refreshDirs, refreshScheduler, executor);
+                executor.shutdown();
+                while(!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                    log.debug("Waiting for the Alma workers to finish.");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                log.warn("Interrupted while retrieving the Alma metadata.", e);
+            } finally {
+                executor.shutdownNow();
+            }
+        } else {
+            Executor executor = new CallerExecutor();
+            packageMetadataForBooks(dirs, almaConf.getBatchSize(), executor);
+            refreshMetadataForBooks(refreshDirs, refreshScheduler, executor);
+        }
+        if(refreshScheduler != null) {
+            try {
+                refreshScheduler.save();
+            } catch (IOException e) {
+                log.warn("Could not save the refresh state of the MODS records.", e);
             }
         }
     }
     
     /**
-     * Packages the metadata for a given book.
-     * It will not do anything, if a MODS record already exists, or if it fails to extract the ISBN.
-     * Otherwise it retrieves the Alma metadata in MODS.
-     * @param dir The book package directory, where the Publizon metadata already is placed.
+     * Creates the scheduler for refreshing the existing MODS records, if refresh is configured.
+     * @param almaConf The configuration for the Alma retrieval.
+     * @return The refresh scheduler, or null if no MODS records should be refreshed.
      */
-    protected void packageMetadataForBook(File dir) {
+    protected AlmaRefreshScheduler getRefreshScheduler(AlmaConfiguration almaConf) {
+        if(almaConf.getRefreshFraction() <= 0.0) {
+            return null;
+        }
         try {
+            return new AlmaRefreshScheduler(conf.getStateDir(), almaConf);
+        } catch (IOException e) {
+            log.warn("Could not load the refresh state. No MODS records will be refreshed.", e);
+            return null;
+        }
+    }
+    
+    /**
+     * @return The configuration for the Alma retrieval, or the default configuration if none is configured.
+     */
+    protected AlmaConfiguration getAlmaConfiguration() {
+        AlmaConfiguration almaConf = conf.getAlmaConfiguration();
+        if(almaConf == null) {
+            return new AlmaConfiguration();
+        }
+        return almaConf;
+    }
+    
+    /**
+     * Packages the metadata for the books, where the books with the same normalized ISBN share a single lookup.
+     * The ISBNs are either looked up individually, or in batches.
+     * @param dirs The book package directories.
+     * @param batchSize The number of ISBNs in each batch.
+     * @param executor The executor for the lookups in Alma.
+     */
+    protected void packageMetadataForBooks(List<File> dirs, int batchSize, Executor executor) {
+        Map<String, List<File>> books = groupBooksByIsbn(dirs);
+        log.debug("Retrieving Alma metadata for " + books.size() + " distinct ISBNs.");
+        Map<String, List<File>> batch = new LinkedHashMap<String, List<File>>();
+        for(Map.Entry<String, List<File>> entry : books.entrySet()) {
+            if(batchSize > 1 && !isCached(entry.getKey())) {
+                batch.put(entry.getKey(), entry.getValue());
+                if(batch.size() >= batchSize) {
+                    executor.execute(new BatchTask(batch));
+                    batch = new LinkedHashMap<String, List<File>>();
+                }
+            } else {
+                executor.execute(new IsbnTask(entry.getKey(), entry.getValue()));
+            }
+        }
+        if(!batch.isEmpty()) {
+            executor.execute(new BatchTask(batch));
+        }
+    }
+    
+    /**
+     * Groups the book directories by their normalized ISBN.
+     * The books which already have a MODS record, or where no ISBN can be extracted, are skipped.
+     * @param dirs The book package directories.
+     * @return The map between the normalized ISBNs and the book directories with the given ISBN.
+     */
+    protected Map<String, List<File>> groupBooksByIsbn(List<File> dirs) {
+        Map<String, List<File>> res = new LinkedHashMap<String, List<File>>();
+        for(File dir : dirs) {
             File modsMetadata = new File(dir, dir.getName() + Constants.MODS_METADATA_SUFFIX);
             if(modsMetadata.exists()) {
                 log.trace("Already retrieved MODS file.");
-                return;
+                continue;
             }
             String isbn = getIsbn(dir);
             if(isbn == null) {
                 log.debug("Could not retrieve a ISBN or GTIN from '" + dir.getAbsolutePath() + "'.");
-                return;
+                continue;
             }
-
+            String key = IsbnUtils.normalize(isbn);
+            if(!res.containsKey(key)) {
+                res.put(key, new ArrayList<File>());
+            }
+            res.get(key).add(dir);
+        }
+        return res;
+    }
+    
+    /**
+     * @param isbn The ISBN.
+     * @return Whether the lookup of the ISBN can be handled by the Alma cache.
+     */
+    protected boolean isCached(String isbn) {
+        return almaCache != null && (almaCache.getRecord(isbn) != null || almaCache.isBackingOff(isbn));
+    }
+    
+    /**
+     * Retrieves the Alma metadata for a batch of ISBNs, and writes the MODS records for the matched ISBNs.
+     * The ISBNs which are not matched (or if the batch lookup fails) are looked up individually.
+     * @param batch The map between the ISBNs and the book directories with the given ISBN.
+     */
+    protected void packageMetadataForBatch(Map<String, List<File>> batch) {
+        Map<String, byte[]> records = new LinkedHashMap<String, byte[]>();
+        try {
+            records = almaMetadataRetriever.retrieveMetadataForISBNs(batch.keySet());
+        } catch (Exception e) {
+            log.info("Non-critical failure while trying to retrieve the Alma metadata for the batch of ISBNs '"
+                    + batch.keySet() + "'. Retrieving them individually.", e);
+        }
+        for(Map.Entry<String, List<File>> entry : batch.entrySet()) {
+            byte[] mods = records.get(entry.getKey());
+            if(mods == null) {
+                packageMetadataForIsbn(entry.getKey(), entry.getValue());
+                continue;
+            }
+            if(!validator.isValid(mods)) {
+                log.warn("Invalid MODS for '" + entry.getKey() + "'! Writing it to error.");
+                writeModsFiles(mods, entry.getValue(), Constants.MODS_METADATA_SUFFIX + Constants.ERROR_SUFFIX);
+                if(almaCache != null) {
+                    almaCache.recordInvalid(entry.getKey());
+                }
+                continue;
+            }
+            if(almaCache != null) {
+                almaCache.recordFound(entry.getKey(), mods);
+            }
+            writeModsFiles(mods, entry.getValue());
+        }
+    }
+    
+    /**
+     * Retrieves the Alma metadata for a single ISBN, and writes the MODS record for all the books with the ISBN.
+     * @param isbn The ISBN.
+     * @param dirs The book directories with the given ISBN.
+     */
+    protected void packageMetadataForIsbn(String isbn, List<File> dirs) {
+        File firstDir = dirs.get(0);
+        File modsMetadata = new File(firstDir, firstDir.getName() + Constants.MODS_METADATA_SUFFIX);
+        try {
             getAlmaMetadata(isbn, modsMetadata);
+            if(dirs.size() > 1 && modsMetadata.isFile()) {
+                writeModsFiles(Files.readAllBytes(modsMetadata.toPath()), dirs.subList(1, dirs.size()));
+            }
         } catch (Exception e) {
-            log.info("Non-critical failure while trying to retrieve the Alma metadata for the book directory '"
-                    + dir.getAbsolutePath() + "'", e);
+            log.info("Non-critical failure while trying to retrieve the Alma metadata for the ISBN '" + isbn 
+                    + "' for the book directories '" + dirs + "'", e);
+        }
+    }
+    
+    /**
+     * Refreshes the existing MODS records of the books selected for refresh.
+     * The books with the same normalized ISBN share a single lookup.
+     * @param dirs The book directories selected for refresh.
+     * @param refreshScheduler The refresh scheduler.
+     * @param executor The executor for the lookups in Alma.
+     */
+    protected void refreshMetadataForBooks(List<File> dirs, AlmaRefreshScheduler refreshScheduler, 
+            Executor executor) {
+        Map<String, List<File>> books = new LinkedHashMap<String, List<File>>();
+        for(File dir : dirs) {
+            String isbn = getIsbn(dir);
+            if(isbn == null) {
+                log.debug("Could not retrieve a ISBN or GTIN from '" + dir.getAbsolutePath() + "'.");
+                continue;
+            }
+            String key = IsbnUtils.normalize(isbn);
+            if(!books.containsKey(key)) {
+                books.put(key, new ArrayList<File>());
+            }
+            books.get(key).add(dir);
+        }
+        if(!books.isEmpty()) {
+            log.debug("Refreshing the Alma metadata for " + books.size() + " distinct ISBNs.");
+        }
+        for(Map.Entry<String, List<File>> entry : books.entrySet()) {
+            executor.execute(new RefreshTask(entry.getKey(), entry.getValue(), refreshScheduler));
+        }
+    }
+    
+    /**
+     * Retrieves the Alma metadata for an ISBN again, and replaces the MODS files of the books with the ISBN,
+     * if the normalized content has changed.
+     * The cache is bypassed for the lookup, but it is updated with the retrieved record.
+     * If the lookup fails, then the existing MODS files are kept.
+     * @param isbn The ISBN.
+     * @param dirs The book directories with the given ISBN.
+     * @param refreshScheduler The refresh scheduler.
+     */
+    protected void refreshMetadataForIsbn(String isbn, List<File> dirs, AlmaRefreshScheduler refreshScheduler) {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            try {
+                almaMetadataRetriever.retrieveMetadataForISBN(isbn, out);
+            } catch (NumberOfResultsException e) {
+                log.info("Keeping the existing MODS records for '" + isbn + "', since Alma returned " 
+                        + e.getNumberOfResults() + " records.");
+                for(File dir : dirs) {
+                    refreshScheduler.recordRefreshed(dir);
+                }
+                return;
+            }
+            byte[] mods = out.toByteArray();
+            if(!validator.isValid(mods)) {
+                log.warn("Keeping the existing MODS records for '" + isbn + "', since the refreshed record is "
+                        + "invalid.");
+                for(File dir : dirs) {
+                    refreshScheduler.recordRefreshed(dir);
+                }
+                return;
+            }
+            if(almaCache != null) {
+                almaCache.recordFound(isbn, mods);
+            }
+            for(File dir : dirs) {
+                File modsMetadata = new File(dir, dir.getName() + Constants.MODS_METADATA_SUFFIX);
+                replaceModsFileIfChanged(mods, modsMetadata);
+                refreshScheduler.recordRefreshed(dir);
+            }
+        } catch (Exception e) {
+            log.info("Non-critical failure while trying to refresh the Alma metadata for the ISBN '" + isbn 
+                    + "' for the book directories '" + dirs + "'", e);
+        }
+    }
+    
+    /**
+     * Replaces the MODS file with the refreshed MODS record, if the normalized content differs.
+     * The record is written to a temporary file in the book directory, which is then moved to the MODS file.
+     * @param mods The refreshed MODS record.
+     * @param modsFile The existing MODS file.
+     * @return Whether the MODS file was replaced.
+     * @throws IOException If it fails to read or replace the MODS file.
+     */
+    protected boolean replaceModsFileIfChanged(byte[] mods, File modsFile) throws IOException {
+        if(modsFile.isFile() && normalizeMods(Files.readAllBytes(modsFile.toPath())).equals(normalizeMods(mods))) {
+            log.trace("The MODS record in '" + modsFile.getAbsolutePath() + "' is unchanged.");
+            return false;
+        }
+        File tmpFile = new File(modsFile.getParentFile(), UUID.randomUUID().toString());
+        try {
+            writeModsFile(mods, tmpFile);
+            FileUtils.moveFile(tmpFile, modsFile);
+        } finally {
+            if(tmpFile.exists()) {
+                tmpFile.delete();
+            }
+        }
+        log.debug("Updated the MODS record in '" + modsFile.getAbsolutePath() + "'.");
+        return true;
+    }
+    
+    /**
+     * Normalizes a MODS record for comparison, by removing the whitespace between the elements and around
+     * the record.
+     * @param mods The MODS record.
+     * @return The normalized MODS record.
+     */
+    protected String normalizeMods(byte[] mods) {
+        return new String(mods, StandardCharsets.UTF_8).replaceAll(">\\s+<", "><").trim();
+    }
+    
+    /**
+     * Writes an already retrieved MODS record to the MODS files of the book directories.
+     * @param mods The MODS record.
+     * @param dirs The book directories.
+     */
+    protected void writeModsFiles(byte[] mods, List<File> dirs) {
+        writeModsFiles(mods, dirs, Constants.MODS_METADATA_SUFFIX);
+    }
+    
+    /**
+     * Writes an already retrieved MODS record to the files with the given suffix in the book directories.
+     * @param mods The MODS record.
+     * @param dirs The book directories.
+     * @param suffix The suffix of the files, after the book id.
+     */
+    protected void writeModsFiles(byte[] mods, List<File> dirs, String suffix) {
+        for(File dir : dirs) {
+            File modsMetadata = new File(dir, dir.getName() + suffix);
+            try {
+                writeModsFile(mods, modsMetadata);
+            } catch (Exception e) {
+                log.info("Non-critical failure while trying to write the Alma metadata for the book "
+                        + "directory '" + dir.getAbsolutePath() + "'", e);
+            }
+        }
+    }
+    
+    /**
+     * Writes an already retrieved MODS record to the MODS file.
+     * @param mods The MODS record.
+     * @param modsFile The output file where the MODS will be placed.
+     * @throws IOException If it fails to write the file.
+     */
+    protected void writeModsFile(byte[] mods, File modsFile) throws IOException {
+        try (OutputStream out = new FileOutputStream(modsFile)) {
+            out.write(mods);
+            out.flush();
         }
     }
     
     /**
      * Checks whether an XML file is valid, and if it is not, then move it to 'XXX.error'.
      * @param xmlFile The XML file to validate.
+     * @return Whether the XML file is valid.
+     * @throws IOException If it fails to move an invalid file.
      */
-    protected void handleXmlValidity(File xmlFile) throws IOException {
+    protected boolean handleXmlValidity(File xmlFile) throws IOException {
         if(validator.isValid(xmlFile)) {
             log.debug("Valid MODS!");
-        } else {
-            log.warn("Invalid MODS! Moving it to error");
-            File errorFile = new File(xmlFile.getAbsolutePath() + Constants.ERROR_SUFFIX);
-            FileUtils.moveFile(xmlFile, errorFile);
+            return true;
         }
+        log.warn("Invalid MODS! Moving it to error");
+        File errorFile = new File(xmlFile.getAbsolutePath() + Constants.ERROR_SUFFIX);
+        FileUtils.moveFile(xmlFile, errorFile);
+        return false;
     }
     
     /**
      * Retrieves the ISBN number for a book.
      * Uses the directory for the packaged book to locate the already retrieved Publizon metadata file,
-     * and then extracts the ISBN number from that file.
+     * and then extracts the ISBN number from that file, or from the index of the pubhub metadata.
      * Will return null if it fails to get the Publizon metadata file, if it fails to extract the ISBN, 
      * or if the identifier is not of the type ISBN.
      * @param dir The directory for a packaged book, which should contain the publizon metadata.
@@ -152,17 +530,18 @@ public class AlmaPacker {
             return null;            
         }
         try {
-            DocumentBuilder builder = factory.newDocumentBuilder();
-            Document doc = builder.parse(pubhubMetadataFile);
-            XPath xpath = xPathfactory.newXPath();
-            XPathExpression identifierXpath = xpath.compile(XPATH_FIND_IDENTIFIER);
-            XPathExpression identifierTypeXpath = xpath.compile(XPATH_FIND_IDENTIFIER_TYPE);
-            String idType = (String) identifierTypeXpath.evaluate(doc, XPathConstants.STRING);
+            PubhubMetadataIndex.Entry entry;
+            if(pubhubIndex != null) {
+                entry = pubhubIndex.get(pubhubMetadataFile);
+            } else {
+                entry = PubhubMetadataIndex.parse(pubhubMetadataFile);
+            }
+            String idType = entry.getIdentifierType();
             if(!idType.startsWith("ISBN") && !idType.startsWith("GTIN13")) {
                 log.info("Not an ISBN or GTIN13 type of identifier. Found: '" + idType + "'. Returning a null.");
                 return null;
             }
-            return (String) identifierXpath.evaluate(doc, XPathConstants.STRING);
+            return entry.getIdentifier();
         } catch (Exception e) {
             log.warn("Could not extract the ISBN number from the file '" + pubhubMetadataFile + "'. Returning a null", 
                     e);
@@ -177,13 +556,153 @@ public class AlmaPacker {
      * @throws IOException If it somehow fails to retrieve or write the output file.
      */
     protected void getAlmaMetadata(String isbn, File modsFile) throws IOException {
+        if(packageMetadataFromCache(isbn, modsFile)) {
+            return;
+        }
         try (OutputStream out = new FileOutputStream(modsFile)) {
             almaMetadataRetriever.retrieveMetadataForISBN(isbn, out);
             out.flush();
+        } catch (NumberOfResultsException e) {
+            modsFile.delete();
+            if(almaCache != null) {
+                if(e.getNumberOfResults() > 1) {
+                    almaCache.recordAmbiguous(isbn);
+                } else if(e.getNumberOfResults() == 0) {
+                    almaCache.recordNotFound(isbn);
+                }
+            }
+            throw e;
+        } catch (IOException | RuntimeException e) {
+            // The MODS is streamed directly to the file, so remove any partially written MODS.
+            modsFile.delete();
+            throw e;
         } finally {
             if(modsFile.exists() && modsFile.length() == 0) {
                 modsFile.delete();
             }
         }
+        if(!modsFile.isFile()) {
+            return;
+        }
+        boolean valid = handleXmlValidity(modsFile);
+        if(almaCache != null) {
+            if(valid) {
+                almaCache.recordFound(isbn, Files.readAllBytes(modsFile.toPath()));
+            } else {
+                almaCache.recordInvalid(isbn);
+            }
+        }
+    }
+    
+    /**
+     * Uses the Alma cache for the ISBN, if possible. 
+     * Either by writing the cached MODS record to the MODS file, or by skipping the ISBN, if it was not found,
+     * was ambiguous or had an invalid record in a recent lookup.
+     * @param isbn The ISBN.
+     * @param modsFile The output file where the MODS will be placed.
+     * @return Whether the cache was used, and the ISBN should not be looked up in Alma.
+     * @throws IOException If it fails to write the cached MODS record.
+     */
+    protected boolean packageMetadataFromCache(String isbn, File modsFile) throws IOException {
+        if(almaCache == null) {
+            return false;
+        }
+        byte[] mods = almaCache.getRecord(isbn);
+        if(mods != null) {
+            log.debug("Using the cached MODS record for '" + isbn + "'.");
+            writeModsFile(mods, modsFile);
+            return true;
+        }
+        if(almaCache.isBackingOff(isbn)) {
+            log.debug("Not looking up '" + isbn + "' in Alma, since it was not found, was ambiguous or was invalid "
+                    + "recently.");
+            return true;
+        }
+        return false;
+    }
+    
+    /**
+     * Task for looking up a batch of ISBNs in Alma.
+     */
+    protected class BatchTask implements Runnable {
+        /** The map between the ISBNs and the book directories with the given ISBN.*/
+        protected final Map<String, List<File>> batch;
+        
+        /**
+         * Constructor.
+         * @param batch The map between the ISBNs and the book directories with the given ISBN.
+         */
+        protected BatchTask(Map<String, List<File>> batch) {
+            this.batch = batch;
+        }
+        
+        @Override
+        public void run() {
+            packageMetadataForBatch(batch);
+        }
+    }
+    
+    /**
+     * Task for looking up a single ISBN in Alma, for all the books with the ISBN.
+     */
+    protected class IsbnTask implements Runnable {
+        /** The ISBN.*/
+        protected final String isbn;
+        /** The book directories with the ISBN.*/
+        protected final List<File> dirs;
+        
+        /**
+         * Constructor.
+         * @param isbn The ISBN.
+         * @param dirs The book directories with the ISBN.
+         */
+        protected IsbnTask(String isbn, List<File> dirs) {
+            this.isbn = isbn;
+            this.dirs = dirs;
+        }
+        
+        @Override
+        public void run() {
+            packageMetadataForIsbn(isbn, dirs);
+        }
+    }
+    
+    /**
+     * Task for refreshing the MODS records of the books with an ISBN.
+     */
+    protected class RefreshTask implements Runnable {
+        /** The ISBN.*/
+        protected final String isbn;
+        /** The book directories with the ISBN.*/
+        protected final List<File> dirs;
+        /** The refresh scheduler.*/
+        protected final AlmaRefreshScheduler refreshScheduler;
+        
+        /**
+         * Constructor.
+         * @param isbn The ISBN.
+         * @param dirs The book directories with the ISBN.
+         * @param refreshScheduler The refresh scheduler.
+         */
+        protected RefreshTask(String isbn, List<File> dirs, AlmaRefreshScheduler refreshScheduler) {
+            this.isbn = isbn;
+            this.dirs = dirs;
+            this.refreshScheduler = refreshScheduler;
+        }
+        
+        @Override
+        public void run() {
+            refreshMetadataForIsbn(isbn, dirs, refreshScheduler);
+        }
+    }
+    
+    /**
+     * Executor which runs the tasks directly in the calling thread, for the sequential retrieval.
+     */
+    protected static class CallerExecutor implements Executor {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
     }
 }
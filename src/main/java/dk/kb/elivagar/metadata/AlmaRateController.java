@@ -0,0 +1,141 @@
+package dk.kb.elivagar.metadata;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import dk.kb.elivagar.config.AlmaConfiguration;
+import dk.kb.elivagar.exception.ArgumentCheck;
+import dk.kb.elivagar.exception.HttpStatusException;
+import dk.kb.elivagar.utils.RateLimiter;
+
+/**
+ * Adaptive rate limiting of the requests to Alma.
+ *
+ * The requests are limited by a token bucket, whose rate is adjusted with additive increase and multiplicative
+ * decrease (AIMD): the rate is halved, when Alma responds with 429 (Too Many Requests), a 5xx server error or
+ * with a latency above the threshold, and it is increased by a hundredth of the maximum rate for each healthy
+ * response, until it reaches the maximum rate again.
+ * The rate is never decreased below the configured minimum rate.
+ *
+ * Each request gets a sequence number, when it is allowed. The rate is only decreased for a request issued after
+ * the last decrease, so a burst of concurrent requests, which were all issued at the old rate and all fail, only
+ * halves the rate once.
+ *
+ * If the configured maximum rate is non-positive, then the requests are not limited at all.
+ */
+public class AlmaRateController {
+    /** The logger.*/
+    private static final Logger log = LoggerFactory.getLogger(AlmaRateController.class);
+
+    /** The HTTP status code for too many requests.*/
+    protected static final int STATUS_TOO_MANY_REQUESTS = 429;
+    /** The lowest HTTP status code for server errors.*/
+    protected static final int STATUS_SERVER_ERROR = 500;
+    /** The factor for decreasing the rate.*/
+    protected static final double DECREASE_FACTOR = 0.5;
+    /** The number of increments from the minimum rate to the maximum rate.*/
+    protected static final double INCREASE_STEPS = 100.0;
+
+    /** The token bucket limiting the requests.*/
+    protected final RateLimiter rateLimiter;
+    /** The maximum rate, in requests per second.*/
+    protected final double maxRate;
+    /** The minimum rate, in requests per second.*/
+    protected final double minRate;
+    /** The latency threshold, in millis.*/
+    protected final long latencyThreshold;
+    /** The sequence number of the latest allowed request.*/
+    protected long requestCount = 0L;
+    /** The sequence number of the latest allowed request, when the rate was last decreased.*/
+    protected long lastDecreaseRequest = 0L;
+
+    /**
+     * Constructor.
+     * @param almaConf The configuration for the Alma retrieval.
+     */
+    public AlmaRateController(AlmaConfiguration almaConf) {
+        ArgumentCheck.checkNotNull(almaConf, "AlmaConfiguration almaConf");
+        this.maxRate = almaConf.getRequestsPerSecond();
+        this.minRate = almaConf.getMinRequestsPerSecond();
+        this.latencyThreshold = almaConf.getLatencyThreshold();
+        this.rateLimiter = new RateLimiter(maxRate);
+    }
+
+    /**
+     * Waits until the next request to Alma is allowed.
+     * @return The sequence number of the request, which must be given when reporting its outcome.
+     * @throws InterruptedException If it is interrupted while waiting.
+     */
+    public long acquire() throws InterruptedException {
+        rateLimiter.acquire();
+        synchronized(this) {
+            return ++requestCount;
+        }
+    }
+
+    /**
+     * Adjusts the rate after a successful response from Alma.
+     * The rate is decreased if the latency is above the threshold, otherwise it is increased.
+     * @param request The sequence number of the request.
+     * @param latency The latency of the request, in millis.
+     */
+    public void onSuccess(long request, long latency) {
+        if(latencyThreshold > 0L && latency > latencyThreshold) {
+            log.debug("Alma responded with latency " + latency + " ms.");
+            decrease(request);
+        } else {
+            increase();
+        }
+    }
+
+    /**
+     * Adjusts the rate after a failed request to Alma.
+     * The rate is decreased if the failure is due to overload, e.g. the HTTP status code 429 or 5xx.
+     * @param request The sequence number of the request.
+     * @param e The failure.
+     */
+    public void onFailure(long request, Exception e) {
+        if(e instanceof HttpStatusException) {
+            int statusCode = ((HttpStatusException) e).getStatusCode();
+            if(statusCode == STATUS_TOO_MANY_REQUESTS || statusCode >= STATUS_SERVER_ERROR) {
+                log.debug("Alma responded with status code " + statusCode + ".");
+                decrease(request);
+            }
+        }
+    }
+
+    /**
+     * Multiplicative decrease of the rate, though not below the minimum rate.
+     * The rate is not decreased for a request, which was issued before the last decrease, since the rate has
+     * already been decreased for the overload it experienced.
+     * @param request The sequence number of the request.
+     */
+    protected synchronized void decrease(long request) {
+        if(maxRate <= 0.0 || request <= lastDecreaseRequest) {
+            return;
+        }
+        lastDecreaseRequest = requestCount;
+        double rate = Math.max(minRate, rateLimiter.getRate() * DECREASE_FACTOR);
+        if(rate < rateLimiter.getRate()) {
+            log.info("Decreasing the rate of Alma requests to " + rate + " per second.");
+            rateLimiter.setRate(rate);
+        }
+    }
+
+    /**
+     * Additive increase of the rate, though not above the maximum rate.
+     */
+    protected synchronized void increase() {
+        if(maxRate <= 0.0 || rateLimiter.getRate() >= maxRate) {
+            return;
+        }
+        double rate = Math.min(maxRate, rateLimiter.getRate() + maxRate / INCREASE_STEPS);
+        log.debug("Increasing the rate of Alma requests to " + rate + " per second.");
+        rateLimiter.setRate(rate);
+    }
+
+    /** @return The current rate, in requests per second.*/
+    public double getRate() {
+        return rateLimiter.getRate();
+    }
+}
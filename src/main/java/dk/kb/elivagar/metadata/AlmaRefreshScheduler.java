@@ -0,0 +1,155 @@
+package dk.kb.elivagar.metadata;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import dk.kb.elivagar.Constants;
+import dk.kb.elivagar.config.AlmaConfiguration;
+import dk.kb.elivagar.exception.ArgumentCheck;
+import dk.kb.elivagar.utils.FileUtils;
+
+/**
+ * Schedules the refresh of the existing MODS records from Alma, so the re-harvest is spread across the runs.
+ *
+ * In each run only the configured fraction of the books with a MODS record is selected for refresh.
+ * The books whose Pubhub metadata has changed since their latest refresh are selected first, and then the books
+ * which have not been refreshed for the longest time.
+ * If a book has never been refreshed, then the last modified date of its MODS file is used as its latest refresh.
+ *
+ * The time of the latest refresh of each book is persisted in the state directory, in a file with a line for
+ * each book in the format
+ * book directory##time
+ */
+public class AlmaRefreshScheduler {
+    /** The logger.*/
+    private static final Logger log = LoggerFactory.getLogger(AlmaRefreshScheduler.class);
+
+    /** The name of the file with the latest refresh of the books.*/
+    protected static final String REFRESH_FILE_NAME = "alma_refresh.txt";
+    /** The separator between the book directory and the time.*/
+    protected static final String SEPARATOR = "##";
+
+    /** The fraction of the books with a MODS record to refresh in each run.*/
+    protected final double fraction;
+    /** The file with the latest refresh of the books.*/
+    protected final File refreshFile;
+    /** The time of the latest refresh, mapped by the absolute path of the book directory.*/
+    protected final Map<String, Long> refreshed = new HashMap<String, Long>();
+
+    /**
+     * Constructor.
+     * @param stateDir The directory for the persistent state.
+     * @param conf The configuration with the fraction of the MODS records to refresh in each run.
+     * @throws IOException If the state directory cannot be created, or the refresh file cannot be loaded.
+     */
+    public AlmaRefreshScheduler(File stateDir, AlmaConfiguration conf) throws IOException {
+        ArgumentCheck.checkNotNull(stateDir, "File stateDir");
+        ArgumentCheck.checkNotNull(conf, "AlmaConfiguration conf");
+        this.fraction = conf.getRefreshFraction();
+        this.refreshFile = new File(FileUtils.createDirectory(stateDir.getAbsolutePath()), REFRESH_FILE_NAME);
+        load();
+    }
+
+    /**
+     * Selects the books whose MODS record should be refreshed in this run.
+     * @param dirs The book directories.
+     * @return The book directories to refresh, with the highest priority first.
+     */
+    public synchronized List<File> selectBooksForRefresh(List<File> dirs) {
+        final Map<File, Long> latestRefresh = new HashMap<File, Long>();
+        final Map<File, Boolean> changed = new HashMap<File, Boolean>();
+        for(File dir : dirs) {
+            File modsFile = new File(dir, dir.getName() + Constants.MODS_METADATA_SUFFIX);
+            if(!modsFile.isFile()) {
+                continue;
+            }
+            Long time = refreshed.get(dir.getAbsolutePath());
+            if(time == null) {
+                time = modsFile.lastModified();
+            }
+            File pubhubFile = new File(dir, dir.getName() + Constants.PUBHUB_METADATA_SUFFIX);
+            latestRefresh.put(dir, time);
+            changed.put(dir, pubhubFile.lastModified() > time);
+        }
+
+        List<File> res = new ArrayList<File>(latestRefresh.keySet());
+        Collections.sort(res, new Comparator<File>() {
+            @Override
+            public int compare(File f1, File f2) {
+                int order = Boolean.compare(changed.get(f2), changed.get(f1));
+                if(order != 0) {
+                    return order;
+                }
+                return Long.compare(latestRefresh.get(f1), latestRefresh.get(f2));
+            }
+        });
+        int count = Math.min(res.size(), (int) Math.ceil(res.size() * fraction));
+        log.debug("Selected " + count + " of " + res.size() + " MODS records for refresh.");
+        return new ArrayList<File>(res.subList(0, count));
+    }
+
+    /**
+     * Records that the MODS record of the book has been refreshed.
+     * @param dir The book directory.
+     */
+    public synchronized void recordRefreshed(File dir) {
+        refreshed.put(dir.getAbsolutePath(), System.currentTimeMillis());
+    }
+
+    /**
+     * Saves the latest refresh of the books to the refresh file.
+     * @throws IOException If it fails to write the refresh file.
+     */
+    public synchronized void save() throws IOException {
+        File tmpFile = new File(refreshFile.getParentFile(), refreshFile.getName() + ".tmp");
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(tmpFile), StandardCharsets.UTF_8)) {
+            for(Map.Entry<String, Long> entry : refreshed.entrySet()) {
+                writer.write(entry.getKey() + SEPARATOR + entry.getValue() + "\n");
+            }
+        }
+        FileUtils.moveFile(tmpFile, refreshFile);
+    }
+
+    /**
+     * Loads the latest refresh of the books from the refresh file.
+     * @throws IOException If it fails to read the refresh file.
+     */
+    protected void load() throws IOException {
+        if(!refreshFile.isFile()) {
+            return;
+        }
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(refreshFile), StandardCharsets.UTF_8))) {
+            String line;
+            while((line = reader.readLine()) != null) {
+                int index = line.lastIndexOf(SEPARATOR);
+                if(index < 0) {
+                    log.warn("Ignoring invalid refresh entry: " + line);
+                    continue;
+                }
+                try {
+                    refreshed.put(line.substring(0, index),
+                            Long.parseLong(line.substring(index + SEPARATOR.length())));
+                } catch (NumberFormatException e) {
+                    log.warn("Ignoring invalid refresh entry: " + line, e);
+                }
+            }
+        }
+    }
+}
@@ -1,60 +1,98 @@
 package dk.kb.elivagar.metadata;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.Reader;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.XMLConstants;
+import javax.xml.transform.stream.StreamSource;
+import javax.xml.validation.Schema;
+import javax.xml.validation.SchemaFactory;
+import javax.xml.validation.Validator;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.xml.sax.EntityResolver;
+import org.w3c.dom.ls.LSInput;
+import org.w3c.dom.ls.LSResourceResolver;
+import org.xml.sax.SAXException;
 
 import dk.kb.elivagar.exception.ArgumentCheck;
 import dk.kb.elivagar.metadata.xsl.XmlErrorHandler;
 
 /**
- * Class for validating the XML file, primarily against its schema definition. 
+ * Class for validating the MODS records against the MODS schema definition.
+ *
+ * The schema is loaded from the bundled local copy of the MODS 3.5 schema and compiled once. The schemas it
+ * imports (XLink and the XML namespace) are resolved from the bundled local copies on the classpath by their
+ * namespace, so no schemas are fetched over the network.
+ * The documents are validated in streaming mode, without building a DOM.
+ * The validators are pooled, so the validator can be used concurrently.
  */
 public class MetadataValidator {
     /** The logger.*/
     private static final Logger log = LoggerFactory.getLogger(MetadataValidator.class);
 
-    /** Schema validation enabler name. */
-    public static final String JAXP_SCHEMA_LANGUAGE = "http://java.sun.com/xml/jaxp/properties/schemaLanguage";
-
-    /** Schema validation enabler value. */
-    public static final String W3C_XML_SCHEMA = "http://www.w3.org/2001/XMLSchema";
+    /** The classpath location of the bundled MODS schema.*/
+    public static final String MODS_SCHEMA_RESOURCE = "/xsd/mods-3-5.xsd";
+    /** The classpath locations of the bundled schemas imported by the MODS schema, mapped by their namespace.*/
+    protected static final Map<String, String> IMPORTED_SCHEMA_RESOURCES = new HashMap<String, String>();
+    static {
+        IMPORTED_SCHEMA_RESOURCES.put("http://www.w3.org/1999/xlink", "/xsd/xlink.xsd");
+        IMPORTED_SCHEMA_RESOURCES.put(XMLConstants.XML_NS_URI, "/xsd/xml.xsd");
+    }
+    /** The maximum number of idle validators kept in the pool.*/
+    protected static final int MAX_POOLED_VALIDATORS = 16;
 
-    /** Cached document builder with DTD/Schema validation. */
-    protected DocumentBuilder validationBuilder;
+    /** The compiled schema.*/
+    protected final Schema schema;
+    /** The pool of idle validators.*/
+    protected final BlockingQueue<Validator> validators =
+            new LinkedBlockingQueue<Validator>(MAX_POOLED_VALIDATORS);
 
     /**
-     * Construct an <code>XmlValidator</code> instance.
+     * Constructor, for the bundled MODS schema.
      */
     public MetadataValidator() {
-        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-        factory.setNamespaceAware(true);
-        factory.setValidating(true);
-        factory.setAttribute(JAXP_SCHEMA_LANGUAGE, W3C_XML_SCHEMA);
+        this(MetadataValidator.class.getResource(MODS_SCHEMA_RESOURCE));
+    }
+
+    /**
+     * Constructor.
+     * @param schemaUrl The URL for the local schema to validate against.
+     */
+    public MetadataValidator(URL schemaUrl) {
+        ArgumentCheck.checkNotNull(schemaUrl, "URL schemaUrl");
+        SchemaFactory factory = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI);
+        try {
+            factory.setProperty(XMLConstants.ACCESS_EXTERNAL_DTD, "");
+            factory.setProperty(XMLConstants.ACCESS_EXTERNAL_SCHEMA, "file,jar");
+        } catch (SAXException e) {
+            log.debug("The schema factory does not support restricting the external access.", e);
+        }
+        factory.setResourceResolver(new ClasspathSchemaResolver());
         try {
-            validationBuilder = factory.newDocumentBuilder();
-        } catch (ParserConfigurationException e) {
-            throw new IllegalStateException("Could not create a new 'DocumentBuilder'!");
+            schema = factory.newSchema(schemaUrl);
+        } catch (SAXException e) {
+            throw new IllegalStateException("Could not compile the schema '" + schemaUrl + "'", e);
         }
     }
-    
+
     /**
-     * Checks whether or not a given XML file is valid, according to XSD og DDT.
+     * Checks whether or not a given XML file is valid according to the schema.
      * @param xmlFile The XML file to validate.
      * @return Whether or not the XML file is valid.
      */
     public boolean isValid(File xmlFile) {
         try (InputStream in = new FileInputStream(xmlFile)) {
-            return validate(in, null, null);
+            return validate(in, null);
         } catch (IOException e) {
             log.warn("Issue occured while trying to validate XML file. Returning not valid.", e);
             return false;
@@ -62,29 +100,215 @@ public class MetadataValidator {
     }
 
     /**
-     * Validate XML document for well-formed-ness and also against any DTD/XSD found.
+     * Checks whether or not a given XML document is valid according to the schema.
+     * @param xml The XML document to validate.
+     * @return Whether or not the XML document is valid.
+     */
+    public boolean isValid(byte[] xml) {
+        try {
+            return validate(new ByteArrayInputStream(xml), null);
+        } catch (IOException e) {
+            log.warn("Issue occured while trying to validate XML. Returning not valid.", e);
+            return false;
+        }
+    }
+
+    /**
+     * Validate XML document for well-formed-ness and against the schema.
      * @param in The XML input stream.
-     * @param entityResolver XML entity resolver or null.
      * @param errorHandler error handler or null.
      * @return XML validation result.
      * @throws IOException If the validation fails.
      */
-    public boolean validate(InputStream in, EntityResolver entityResolver, 
-            XmlErrorHandler errorHandler) throws IOException {
+    public boolean validate(InputStream in, XmlErrorHandler errorHandler) throws IOException {
         ArgumentCheck.checkNotNull(in, "InputStream in");
         if (errorHandler == null) {
             errorHandler = new XmlErrorHandler();
         }
         errorHandler.reset();
+        Validator validator = borrowValidator();
         try {
-            validationBuilder.reset();
-            validationBuilder.setErrorHandler(errorHandler);
-            validationBuilder.setEntityResolver(entityResolver);
-            validationBuilder.parse(in);
+            validator.setErrorHandler(errorHandler);
+            validator.validate(new StreamSource(in));
             return !errorHandler.hasErrors();
-        } catch (Throwable t) {
-            log.error("Exception validating XML stream!", t);
+        } catch (SAXException e) {
+            log.debug("The XML stream is not valid.", e);
             return false;
+        } finally {
+            returnValidator(validator);
+        }
+    }
+
+    /**
+     * @return An idle validator from the pool, or a new validator if the pool is empty.
+     */
+    protected Validator borrowValidator() {
+        Validator res = validators.poll();
+        if(res != null) {
+            return res;
+        }
+        res = schema.newValidator();
+        restrictExternalAccess(res);
+        return res;
+    }
+
+    /**
+     * Returns the validator to the pool, unless the pool is full.
+     * The validator is not reset, since that would also remove the restriction of the external access.
+     * @param validator The validator.
+     */
+    protected void returnValidator(Validator validator) {
+        validator.setErrorHandler(null);
+        validators.offer(validator);
+    }
+
+    /**
+     * Prevents the validator from loading any external DTDs or schemas, e.g. from the xsi:schemaLocation.
+     * @param validator The validator.
+     */
+    protected void restrictExternalAccess(Validator validator) {
+        try {
+            validator.setProperty(XMLConstants.ACCESS_EXTERNAL_DTD, "");
+            validator.setProperty(XMLConstants.ACCESS_EXTERNAL_SCHEMA, "");
+        } catch (SAXException e) {
+            log.debug("The validator does not support restricting the external access.", e);
+        }
+    }
+
+    /**
+     * Resolves the schemas imported by the MODS schema to the bundled local copies on the classpath.
+     * Other schemas are not resolved, and since the schema factory is only allowed to access local files, they
+     * cannot be fetched over the network either.
+     */
+    protected static class ClasspathSchemaResolver implements LSResourceResolver {
+        @Override
+        public LSInput resolveResource(String type, String namespaceURI, String publicId, String systemId,
+                String baseURI) {
+            String resource = IMPORTED_SCHEMA_RESOURCES.get(namespaceURI);
+            if(resource == null) {
+                log.debug("No bundled schema for the namespace '" + namespaceURI + "' at '" + systemId + "'.");
+                return null;
+            }
+            URL url = MetadataValidator.class.getResource(resource);
+            if(url == null) {
+                throw new IllegalStateException("Could not find the bundled schema '" + resource + "'");
+            }
+            return new SchemaInput(publicId, url.toExternalForm(), baseURI);
+        }
+    }
+
+    /**
+     * Input for a schema. The resolver only sets the system id, which is the location of the schema, so the
+     * schema factory reads the schema from there.
+     */
+    protected static class SchemaInput implements LSInput {
+        /** The character stream, or null.*/
+        protected Reader characterStream;
+        /** The byte stream, or null.*/
+        protected InputStream byteStream;
+        /** The string data, or null.*/
+        protected String stringData;
+        /** The public id.*/
+        protected String publicId;
+        /** The system id, which is the location of the schema.*/
+        protected String systemId;
+        /** The base URI.*/
+        protected String baseURI;
+        /** The encoding, or null.*/
+        protected String encoding;
+        /** Whether the input is certified text.*/
+        protected boolean certifiedText;
+
+        /**
+         * Constructor.
+         * @param publicId The public id.
+         * @param systemId The system id, which is the location of the schema.
+         * @param baseURI The base URI.
+         */
+        protected SchemaInput(String publicId, String systemId, String baseURI) {
+            this.publicId = publicId;
+            this.systemId = systemId;
+            this.baseURI = baseURI;
+        }
+
+        @Override
+        public Reader getCharacterStream() {
+            return characterStream;
+        }
+
+        @Override
+        public void setCharacterStream(Reader characterStream) {
+            this.characterStream = characterStream;
+        }
+
+        @Override
+        public InputStream getByteStream() {
+            return byteStream;
+        }
+
+        @Override
+        public void setByteStream(InputStream byteStream) {
+            this.byteStream = byteStream;
+        }
+
+        @Override
+        public String getStringData() {
+            return stringData;
+        }
+
+        @Override
+        public void setStringData(String stringData) {
+            this.stringData = stringData;
+        }
+
+        @Override
+        public String getSystemId() {
+            return systemId;
+        }
+
+        @Override
+        public void setSystemId(String systemId) {
+            this.systemId = systemId;
+        }
+
+        @Override
+        public String getPublicId() {
+            return publicId;
+        }
+
+        @Override
+        public void setPublicId(String publicId) {
+            this.publicId = publicId;
+        }
+
+        @Override
+        public String getBaseURI() {
+            return baseURI;
+        }
+
+        @Override
+        public void setBaseURI(String baseURI) {
+            this.baseURI = baseURI;
+        }
+
+        @Override
+        public String getEncoding() {
+            return encoding;
+        }
+
+        @Override
+        public void setEncoding(String encoding) {
+            this.encoding = encoding;
+        }
+
+        @Override
+        public boolean getCertifiedText() {
+            return certifiedText;
+        }
+
+        @Override
+        public void setCertifiedText(boolean certifiedText) {
+            this.certifiedText = certifiedText;
         }
     }
 }
@@ -0,0 +1,322 @@
+package dk.kb.elivagar.pubhub;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import dk.kb.elivagar.exception.ArgumentCheck;
+import dk.kb.elivagar.utils.FileUtils;
+import dk.pubhub.service.Book;
+
+/**
+ * Index of the fields from the pubhub metadata files, which are needed by the later stages of the workflow;
+ * the identifier, the identifier type, the publication date and the book type.
+ *
+ * The fields are indexed by the PubhubPacker, when it writes the pubhub metadata file, so the later stages do not
+ * have to parse the pubhub metadata file again.
+ * Each entry contains the last modified date of the pubhub metadata file, and an entry is only used if the file
+ * has not been modified since. Otherwise, or if the file is not in the index, then the fields are extracted with
+ * a streaming parse of the pubhub metadata file, which stops as soon as all the fields are found.
+ *
+ * The index is persisted in the state directory, in a file with a line for each pubhub metadata file in the format
+ * path##identifier##identifier type##publication date##book type##last modified
+ * New entries are appended to the index, and the later lines override the earlier ones.
+ * The index is compacted when it is loaded.
+ */
+public class PubhubMetadataIndex {
+    /** The logger.*/
+    private static final Logger log = LoggerFactory.getLogger(PubhubMetadataIndex.class);
+
+    /** The name of the index file.*/
+    protected static final String INDEX_FILE_NAME = "pubhub_index.txt";
+    /** The separator between the elements of an index line.*/
+    protected static final String SEPARATOR = "##";
+    /** The number of elements in an index line.*/
+    protected static final int NUMBER_OF_ELEMENTS = 6;
+    /** The number of indexed fields from the pubhub metadata file.*/
+    protected static final int NUMBER_OF_FIELDS = 4;
+
+    /** The name of the element with the identifier.*/
+    protected static final String ELEMENT_IDENTIFIER = "Identifier";
+    /** The name of the element with the identifier type.*/
+    protected static final String ELEMENT_IDENTIFIER_TYPE = "IdentifierType";
+    /** The name of the element with the publication date.*/
+    protected static final String ELEMENT_PUBLICATION_DATE = "PublicationDate";
+    /** The name of the element with the book type.*/
+    protected static final String ELEMENT_BOOK_TYPE = "BookType";
+
+    /** The factory for the streaming parser.*/
+    protected static final XMLInputFactory XML_INPUT_FACTORY = createXmlInputFactory();
+
+    /** The index file.*/
+    protected final File indexFile;
+    /** The entries, mapped by the absolute path of the pubhub metadata file.*/
+    protected final Map<String, Entry> entries = new HashMap<String, Entry>();
+
+    /**
+     * Constructor.
+     * @param stateDir The directory for the persistent state.
+     * @throws IOException If the state directory cannot be created, or the index cannot be loaded.
+     */
+    public PubhubMetadataIndex(File stateDir) throws IOException {
+        ArgumentCheck.checkNotNull(stateDir, "File stateDir");
+        this.indexFile = new File(FileUtils.createDirectory(stateDir.getAbsolutePath()), INDEX_FILE_NAME);
+        load();
+    }
+
+    /**
+     * Indexes the fields of a book, which has just been written to the pubhub metadata file.
+     * @param pubhubMetadataFile The pubhub metadata file.
+     * @param book The book.
+     */
+    public synchronized void put(File pubhubMetadataFile, Book book) {
+        ArgumentCheck.checkNotNull(book, "Book book");
+        String bookType = book.getBookType() == null ? "" : book.getBookType().value();
+        put(pubhubMetadataFile, new Entry(nullToEmpty(book.getIdentifier()), nullToEmpty(book.getIdentifierType()),
+                nullToEmpty(book.getPublicationDate()), bookType, pubhubMetadataFile.lastModified()));
+    }
+
+    /**
+     * Retrieves the indexed fields for the pubhub metadata file, or extracts them from the file and indexes them,
+     * if the file is not in the index, or if it has been modified since it was indexed.
+     * @param pubhubMetadataFile The pubhub metadata file.
+     * @return The fields from the pubhub metadata file.
+     * @throws IOException If it fails to extract the fields from the file.
+     */
+    public synchronized Entry get(File pubhubMetadataFile) throws IOException {
+        ArgumentCheck.checkExistsNormalFile(pubhubMetadataFile, "File pubhubMetadataFile");
+        Entry entry = entries.get(pubhubMetadataFile.getAbsolutePath());
+        if(entry != null && entry.getModified() == pubhubMetadataFile.lastModified()) {
+            return entry;
+        }
+        log.debug("Extracting the indexed fields from '" + pubhubMetadataFile.getAbsolutePath() + "'.");
+        entry = parse(pubhubMetadataFile);
+        put(pubhubMetadataFile, entry);
+        return entry;
+    }
+
+    /**
+     * Adds the entry to the index, and appends it to the index file, unless the same entry is already indexed.
+     * @param pubhubMetadataFile The pubhub metadata file.
+     * @param entry The entry.
+     */
+    protected void put(File pubhubMetadataFile, Entry entry) {
+        String key = pubhubMetadataFile.getAbsolutePath();
+        if(entry.equals(entries.get(key))) {
+            return;
+        }
+        entries.put(key, entry);
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(indexFile, true),
+                StandardCharsets.UTF_8)) {
+            writer.write(toLine(key, entry));
+        } catch (IOException e) {
+            log.warn("Could not write the pubhub index entry for '" + key + "'", e);
+        }
+    }
+
+    /**
+     * Extracts the fields from the pubhub metadata file with a streaming parse, which stops as soon as all the
+     * fields are found.
+     * @param pubhubMetadataFile The pubhub metadata file.
+     * @return The fields from the pubhub metadata file. Missing fields are empty.
+     * @throws IOException If it fails to read or parse the file.
+     */
+    public static Entry parse(File pubhubMetadataFile) throws IOException {
+        long modified = pubhubMetadataFile.lastModified();
+        Map<String, String> fields = new HashMap<String, String>();
+        try (InputStream in = new FileInputStream(pubhubMetadataFile)) {
+            XMLStreamReader reader = XML_INPUT_FACTORY.createXMLStreamReader(in);
+            try {
+                int depth = 0;
+                while(reader.hasNext() && fields.size() < NUMBER_OF_FIELDS) {
+                    int event = reader.next();
+                    if(event == XMLStreamConstants.START_ELEMENT) {
+                        depth++;
+                        String name = reader.getLocalName();
+                        if(depth == 2 && isIndexedElement(name) && !fields.containsKey(name)) {
+                            fields.put(name, reader.getElementText().trim());
+                            depth--;
+                        }
+                    } else if(event == XMLStreamConstants.END_ELEMENT) {
+                        depth--;
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (XMLStreamException e) {
+            throw new IOException("Could not parse the pubhub metadata file '"
+                    + pubhubMetadataFile.getAbsolutePath() + "'", e);
+        }
+        return new Entry(nullToEmpty(fields.get(ELEMENT_IDENTIFIER)),
+                nullToEmpty(fields.get(ELEMENT_IDENTIFIER_TYPE)), nullToEmpty(fields.get(ELEMENT_PUBLICATION_DATE)),
+                nullToEmpty(fields.get(ELEMENT_BOOK_TYPE)), modified);
+    }
+
+    /**
+     * @param name The local name of an element.
+     * @return Whether the element is one of the indexed fields.
+     */
+    protected static boolean isIndexedElement(String name) {
+        return name.equals(ELEMENT_IDENTIFIER) || name.equals(ELEMENT_IDENTIFIER_TYPE)
+                || name.equals(ELEMENT_PUBLICATION_DATE) || name.equals(ELEMENT_BOOK_TYPE);
+    }
+
+    /**
+     * Loads the index, and then compacts it, so it only contains the latest entry for each pubhub metadata file.
+     * @throws IOException If it fails to read or compact the index.
+     */
+    protected void load() throws IOException {
+        if(!indexFile.isFile()) {
+            return;
+        }
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(indexFile), StandardCharsets.UTF_8))) {
+            String line;
+            while((line = reader.readLine()) != null) {
+                String[] split = line.split(SEPARATOR, -1);
+                if(split.length != NUMBER_OF_ELEMENTS) {
+                    log.warn("Ignoring invalid pubhub index entry: " + line);
+                    continue;
+                }
+                try {
+                    entries.put(split[0], new Entry(split[1], split[2], split[3], split[4],
+                            Long.parseLong(split[5])));
+                } catch (NumberFormatException e) {
+                    log.warn("Ignoring invalid pubhub index entry: " + line, e);
+                }
+            }
+        }
+
+        File tmpFile = new File(indexFile.getParentFile(), indexFile.getName() + ".tmp");
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(tmpFile), StandardCharsets.UTF_8)) {
+            for(Map.Entry<String, Entry> e : entries.entrySet()) {
+                writer.write(toLine(e.getKey(), e.getValue()));
+            }
+        }
+        FileUtils.moveFile(tmpFile, indexFile);
+    }
+
+    /**
+     * @param key The absolute path of the pubhub metadata file.
+     * @param entry The entry.
+     * @return The line for the index file.
+     */
+    protected String toLine(String key, Entry entry) {
+        return key + SEPARATOR + entry.getIdentifier() + SEPARATOR + entry.getIdentifierType() + SEPARATOR
+                + entry.getPublicationDate() + SEPARATOR + entry.getBookType() + SEPARATOR + entry.getModified()
+                + "\n";
+    }
+
+    /**
+     * @param value The value.
+     * @return The value without line breaks and separators, or the empty string, if the value is null.
+     */
+    protected static String nullToEmpty(String value) {
+        if(value == null) {
+            return "";
+        }
+        return value.replace(SEPARATOR, " ").replace('\n', ' ').replace('\r', ' ');
+    }
+
+    /**
+     * @return The factory for the streaming parser, without support for DTDs.
+     */
+    protected static XMLInputFactory createXmlInputFactory() {
+        XMLInputFactory res = XMLInputFactory.newInstance();
+        res.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+        res.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        return res;
+    }
+
+    /**
+     * The indexed fields from a pubhub metadata file.
+     */
+    public static class Entry {
+        /** The identifier.*/
+        protected final String identifier;
+        /** The identifier type.*/
+        protected final String identifierType;
+        /** The publication date.*/
+        protected final String publicationDate;
+        /** The book type.*/
+        protected final String bookType;
+        /** The last modified date of the pubhub metadata file, when it was indexed.*/
+        protected final long modified;
+
+        /**
+         * Constructor.
+         * @param identifier The identifier.
+         * @param identifierType The identifier type.
+         * @param publicationDate The publication date.
+         * @param bookType The book type.
+         * @param modified The last modified date of the pubhub metadata file.
+         */
+        public Entry(String identifier, String identifierType, String publicationDate, String bookType,
+                long modified) {
+            this.identifier = identifier;
+            this.identifierType = identifierType;
+            this.publicationDate = publicationDate;
+            this.bookType = bookType;
+            this.modified = modified;
+        }
+
+        /** @return The identifier.*/
+        public String getIdentifier() {
+            return identifier;
+        }
+
+        /** @return The identifier type.*/
+        public String getIdentifierType() {
+            return identifierType;
+        }
+
+        /** @return The publication date.*/
+        public String getPublicationDate() {
+            return publicationDate;
+        }
+
+        /** @return The book type.*/
+        public String getBookType() {
+            return bookType;
+        }
+
+        /** @return The last modified date of the pubhub metadata file, when it was indexed.*/
+        public long getModified() {
+            return modified;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if(!(o instanceof Entry)) {
+                return false;
+            }
+            Entry other = (Entry) o;
+            return identifier.equals(other.identifier) && identifierType.equals(other.identifierType)
+                    && publicationDate.equals(other.publicationDate) && bookType.equals(other.bookType)
+                    && modified == other.modified;
+        }
+
+        @Override
+        public int hashCode() {
+            return (identifier + SEPARATOR + publicationDate).hashCode() + (int) modified;
+        }
+    }
+}
@@ -56,9 +56,11 @@ public class PubhubPacker {
     protected final AudioSuffixValidator audioSuffixValidator;
     /** The suffix validator for ebook files..*/
     protected final EbookSuffixValidator ebookSuffixValidator;
+    /** The index of the pubhub metadata. May be null, if no index is maintained.*/
+    protected final PubhubMetadataIndex pubhubIndex;
     
     /**
-     * Constructor.
+     * Constructor, without any index of the pubhub metadata.
      * @param conf The Configuration with the base directories for the files to be packed.
      * @param serviceNamespace The namespace for the service.
      * @param characterizer The characterizer for characterizing the files.
@@ -66,6 +68,20 @@ public class PubhubPacker {
      */
     public PubhubPacker(Configuration conf, String serviceNamespace, CharacterizationHandler characterizer, 
             HttpClient httpClient) {
+        this(conf, serviceNamespace, characterizer, httpClient, null);
+    }
+    
+    /**
+     * Constructor.
+     * @param conf The Configuration with the base directories for the files to be packed.
+     * @param serviceNamespace The namespace for the service.
+     * @param characterizer The characterizer for characterizing the files.
+     * @param httpClient The http client.
+     * @param pubhubIndex The index of the pubhub metadata, which is updated when a book is packed. 
+     * May be null, if no index should be maintained.
+     */
+    public PubhubPacker(Configuration conf, String serviceNamespace, CharacterizationHandler characterizer, 
+            HttpClient httpClient, PubhubMetadataIndex pubhubIndex) {
         ArgumentCheck.checkNotNull(conf, "Configuration conf");
         ArgumentCheck.checkNotNull(characterizer, "Characterizer characterizer");
         ArgumentCheck.checkNotNullOrEmpty(serviceNamespace, "String serviceNamespace");
@@ -77,6 +93,7 @@ public class PubhubPacker {
         this.characterizationHandler = characterizer;
         this.audioSuffixValidator = new AudioSuffixValidator(conf);
         this.ebookSuffixValidator = new EbookSuffixValidator(conf);
+        this.pubhubIndex = pubhubIndex;
     }
 
     /**
@@ -123,6 +140,7 @@ public class PubhubPacker {
             if(FileUtils.areFilesIdentical(bookFile, tempBookFile)) {
                 FileUtils.deleteFile(tempBookFile);
                 log.debug("Do not pack book '" + book.getBookId() + "'. Identical to latest retrieved version.");
+                indexBook(bookFile, book);
                 return;
             } else {
                 FileUtils.moveFile(tempBookFile, bookFile);
@@ -131,6 +149,7 @@ public class PubhubPacker {
         } else {
             marshaller.marshal(rootElement, bookFile);
         }
+        indexBook(bookFile, book);
 
         for(Image image : book.getImages().getImage()) {
             try {
@@ -148,6 +167,17 @@ public class PubhubPacker {
         }
     }
 
+    /**
+     * Indexes the fields of the book needed by the later stages, if an index of the pubhub metadata is used.
+     * @param bookFile The pubhub metadata file for the book.
+     * @param book The book.
+     */
+    protected void indexBook(File bookFile, Book book) {
+        if(pubhubIndex != null) {
+            pubhubIndex.put(bookFile, book);
+        }
+    }
+
     /**
      * Packs a file for the ebook. This is expected to be the content file in an ebook format 
      * - according to the configured formats (e.g. pdf or epub).
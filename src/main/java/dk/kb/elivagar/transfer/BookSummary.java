@@ -0,0 +1,135 @@
+package dk.kb.elivagar.transfer;
+
+import dk.kb.elivagar.exception.ArgumentCheck;
+import dk.kb.elivagar.utils.Base16Utils;
+import dk.kb.elivagar.utils.ChecksumUtils;
+import dk.kb.elivagar.utils.FileUtils;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * Summary of the files in a book directory, for skipping the books which have not changed since the latest transfer.
+ *
+ * The summary has two tiers, which are kept together in the registry of the book:
+ * <ul>
+ *   <li>The directory tier; the last modified date of the book directory and its number of entries.</li>
+ *   <li>The file tier; a hash over the sorted name, size, last modified date and registered content checksum
+ *   of each file in the book directory.</li>
+ * </ul>
+ * The directory tier only requires the directory itself, but it only changes when files are added, removed or
+ * renamed, and not when a file is rewritten or a symbolic link gets a new target.
+ * So when the directory tier differs, the book has changed. Otherwise the file tier is calculated from the dates
+ * and sizes of the files (without reading them) and compared.
+ *
+ * The dates and sizes of the files are only retrieved once, so the summary registered after an update or an ingest
+ * reflects the files as they were before it. A file changed during the transfer is thus detected in the next run.
+ * The transfer registry itself is not part of the summary.
+ */
+public class BookSummary {
+    /** The separator between the tiers of the summary, and between the fields of the file entries.*/
+    protected static final String SEPARATOR = "##";
+
+    /** The directory of the book.*/
+    protected final File bookDir;
+    /** The directory tier of the summary.*/
+    protected String directoryTier;
+    /** The name, size and last modified date of the files. Retrieved when first needed.*/
+    protected List<String[]> fileEntries;
+
+    /**
+     * Constructor.
+     * @param bookDir The directory of the book.
+     */
+    public BookSummary(File bookDir) {
+        ArgumentCheck.checkExistsDirectory(bookDir, "File bookDir");
+        this.bookDir = bookDir;
+        this.directoryTier = calculateDirectoryTier();
+    }
+
+    /**
+     * Retrieves the dates and sizes of the files now, e.g. before the book is ingested, so a file changed during
+     * the ingest is detected in the next run.
+     */
+    public void retrieveFiles() {
+        getFileEntries();
+    }
+
+    /**
+     * Calculates the directory tier again, while keeping the files as they were retrieved.
+     * Used after the ingest, since the creation of the registry file changes the date of the book directory.
+     */
+    public void refreshDirectoryTier() {
+        directoryTier = calculateDirectoryTier();
+    }
+
+    /**
+     * @return The directory tier; the last modified date of the book directory and its number of entries, 
+     * except the registry.
+     */
+    protected String calculateDirectoryTier() {
+        String[] names = bookDir.list();
+        int count = 0;
+        if(names != null) {
+            for(String name : names) {
+                if(!name.equals(TransferRegistry.REGISTRY_NAME)) {
+                    count++;
+                }
+            }
+        }
+        return bookDir.lastModified() + SEPARATOR + count;
+    }
+
+    /**
+     * Checks whether the registered summary of the book matches the current files of the book.
+     * @param register The registry of the book.
+     * @return Whether the book is unchanged since the summary was registered. False, if it has no summary.
+     */
+    public boolean matches(TransferRegistry register) {
+        String registered = register.getSummary();
+        if(registered == null || !registered.startsWith(directoryTier + SEPARATOR)) {
+            return false;
+        }
+        return registered.equals(getSummary(register));
+    }
+
+    /**
+     * Calculates the summary with both tiers, using the checksums in the registry as the content digests.
+     * @param register The registry of the book.
+     * @return The summary.
+     */
+    public String getSummary(TransferRegistry register) {
+        MessageDigest digester = ChecksumUtils.createDigesters(Arrays.asList(ChecksumUtils.MD5_ALGORITHM))
+                .get(ChecksumUtils.MD5_ALGORITHM);
+        for(String[] entry : getFileEntries()) {
+            String checksum = register.getChecksum(entry[0]);
+            String line = entry[0] + SEPARATOR + entry[1] + SEPARATOR + entry[2] + SEPARATOR
+                    + (checksum == null ? "" : checksum) + "\n";
+            digester.update(line.getBytes(StandardCharsets.UTF_8));
+        }
+        return directoryTier + SEPARATOR + Base16Utils.decodeBase16(digester.digest());
+    }
+
+    /**
+     * @return The name, size and last modified date (of the target, for symbolic links) of the files in the book
+     * directory, sorted by name.
+     */
+    protected List<String[]> getFileEntries() {
+        if(fileEntries == null) {
+            fileEntries = new ArrayList<String[]>();
+            for(File f : new TreeSet<File>(FileUtils.getFilesInDirectory(bookDir))) {
+                if(f.getName().equals(TransferRegistry.REGISTRY_NAME)) {
+                    continue;
+                }
+                fileEntries.add(new String[]{f.getName(), String.valueOf(f.length()),
+                        String.valueOf(f.lastModified())});
+            }
+        }
+        return fileEntries;
+    }
+}
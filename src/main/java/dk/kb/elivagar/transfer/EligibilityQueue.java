@@ -0,0 +1,264 @@
+package dk.kb.elivagar.transfer;
+
+import dk.kb.elivagar.config.TransferConfiguration;
+import dk.kb.elivagar.exception.ArgumentCheck;
+import dk.kb.elivagar.utils.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Persistent priority queue with the time, when the books not yet ingested become eligible for ingest.
+ *
+ * A book, which is not ready for ingest (e.g. due to the retain dates of its content files), is queued with the
+ * earliest time it can become ready, and with a fingerprint of the files in its directory.
+ * Until that time, the book is not checked again, unless its files change (the fingerprint changes), e.g. when a
+ * required file is added or the content file is replaced. A book, which cannot become ready without its files
+ * changing (e.g. it misses a required file), is queued as never eligible.
+ *
+ * The queue is kept in a file in the state directory, ordered by the eligible time, with a tab separated line for
+ * each book; the eligible time, the fingerprint and the path to the book directory.
+ * The first line of the file has a hash of the transfer configuration, which determines the eligibility of the
+ * books (the required formats and the retain intervals). If the configuration has changed since the queue was saved,
+ * then the eligible times are no longer valid, and the queue is dropped, so all the books are checked again.
+ */
+public class EligibilityQueue {
+    /** The logger.*/
+    private static final Logger log = LoggerFactory.getLogger(EligibilityQueue.class);
+
+    /** The name of the file with the queue.*/
+    protected static final String QUEUE_FILE_NAME = "eligibility_queue.txt";
+    /** The eligible time of the books, which cannot become eligible without changing.*/
+    public static final long NEVER = Long.MAX_VALUE;
+    /** The separator between the fields of a line.*/
+    protected static final String FIELD_SEPARATOR = "\t";
+    /** The prefix of the line with the hash of the configuration.*/
+    protected static final String CONFIGURATION_PREFIX = "configuration";
+
+    /** The file with the queue.*/
+    protected final File queueFile;
+    /** The hash of the configuration, which determines the eligibility of the books.*/
+    protected final long configurationHash;
+    /** The queued books in the order of their eligible time.*/
+    protected final TreeSet<Entry> queue = new TreeSet<Entry>();
+    /** The queued books, mapped by the path to their directory.*/
+    protected final Map<String, Entry> entries = new HashMap<String, Entry>();
+
+    /**
+     * Constructor.
+     * @param stateDir The directory for the persistent state.
+     * @param configurationHash The hash of the configuration, which determines the eligibility of the books.
+     * The saved queue is only loaded, if it was saved with the same hash.
+     * @throws IOException If the state directory cannot be created, or the queue cannot be loaded.
+     */
+    public EligibilityQueue(File stateDir, long configurationHash) throws IOException {
+        ArgumentCheck.checkNotNull(stateDir, "File stateDir");
+        this.queueFile = new File(FileUtils.createDirectory(stateDir.getAbsolutePath()), QUEUE_FILE_NAME);
+        this.configurationHash = configurationHash;
+        load();
+    }
+
+    /**
+     * Checks whether a book is due for being checked for ingest; whether it is not queued, its eligible time has
+     * passed, or its files have changed since it was queued.
+     * @param bookDir The directory of the book.
+     * @param fingerprint The current fingerprint of the files of the book.
+     * @param now The current time.
+     * @return Whether the book should be checked for ingest.
+     */
+    public synchronized boolean isDue(File bookDir, long fingerprint, long now) {
+        Entry entry = entries.get(bookDir.getAbsolutePath());
+        if(entry == null) {
+            return true;
+        }
+        if(entry.fingerprint != fingerprint) {
+            log.debug("The files of the book '" + bookDir.getName() + "' have changed since it was queued.");
+            return true;
+        }
+        return entry.eligibleTime <= now;
+    }
+
+    /**
+     * Queues a book, which is not yet eligible for ingest.
+     * @param bookDir The directory of the book.
+     * @param fingerprint The fingerprint of the files of the book.
+     * @param eligibleTime The earliest time the book can become eligible, or NEVER.
+     */
+    public synchronized void defer(File bookDir, long fingerprint, long eligibleTime) {
+        remove(bookDir);
+        Entry entry = new Entry(bookDir.getAbsolutePath(), fingerprint, eligibleTime);
+        entries.put(entry.path, entry);
+        queue.add(entry);
+        log.debug("The book '" + bookDir.getName() + "' is not eligible for ingest until "
+                + (eligibleTime == NEVER ? "its files change" : new Date(eligibleTime).toString()));
+    }
+
+    /**
+     * Removes a book from the queue, e.g. when it is ready for ingest.
+     * @param bookDir The directory of the book.
+     */
+    public synchronized void remove(File bookDir) {
+        Entry entry = entries.remove(bookDir.getAbsolutePath());
+        if(entry != null) {
+            queue.remove(entry);
+        }
+    }
+
+    /**
+     * @return The earliest eligible time of the queued books, or NEVER if no book can become eligible.
+     */
+    public synchronized long getNextEligibleTime() {
+        if(queue.isEmpty()) {
+            return NEVER;
+        }
+        return queue.first().eligibleTime;
+    }
+
+    /**
+     * @return The number of queued books.
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Saves the queue to its file. The books, whose directories no longer exist, are removed from the queue.
+     * @throws IOException If it fails to write the queue.
+     */
+    public synchronized void save() throws IOException {
+        Iterator<Entry> iterator = queue.iterator();
+        while(iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if(!new File(entry.path).isDirectory()) {
+                iterator.remove();
+                entries.remove(entry.path);
+            }
+        }
+        File tmpFile = new File(queueFile.getParentFile(), queueFile.getName() + ".tmp");
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(tmpFile), StandardCharsets.UTF_8)) {
+            writer.write(CONFIGURATION_PREFIX + FIELD_SEPARATOR + configurationHash + "\n");
+            for(Entry entry : queue) {
+                writer.write(entry.eligibleTime + FIELD_SEPARATOR + entry.fingerprint + FIELD_SEPARATOR + entry.path
+                        + "\n");
+            }
+        }
+        FileUtils.moveFile(tmpFile, queueFile);
+        long next = getNextEligibleTime();
+        log.info("Saved " + queue.size() + " books, which are not yet eligible for ingest. The next book becomes "
+                + "eligible " + (next == NEVER ? "when its files change." : "at " + new Date(next)));
+    }
+
+    /**
+     * Loads the queue from its file, if it exists and it was saved with the same configuration hash.
+     * Invalid lines are ignored.
+     * @throws IOException If it fails to read the queue.
+     */
+    protected void load() throws IOException {
+        if(!queueFile.isFile()) {
+            return;
+        }
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(queueFile),
+                StandardCharsets.UTF_8))) {
+            String line = reader.readLine();
+            if(line == null || !line.equals(CONFIGURATION_PREFIX + FIELD_SEPARATOR + configurationHash)) {
+                log.info("The eligibility queue was saved with another transfer configuration. It is dropped, and "
+                        + "all the books not yet ingested are checked again.");
+                return;
+            }
+            while((line = reader.readLine()) != null) {
+                String[] fields = line.split(FIELD_SEPARATOR, 3);
+                if(fields.length < 3) {
+                    continue;
+                }
+                try {
+                    Entry entry = new Entry(fields[2], Long.parseLong(fields[1]), Long.parseLong(fields[0]));
+                    entries.put(entry.path, entry);
+                    queue.add(entry);
+                } catch (NumberFormatException e) {
+                    log.debug("Ignoring the invalid line in the eligibility queue: " + line, e);
+                }
+            }
+        }
+        log.info("Loaded " + entries.size() + " books, which are not yet eligible for ingest.");
+    }
+
+    /**
+     * Calculates the hash of the transfer configuration, which determines the eligibility of the books;
+     * the required formats and the retain intervals for the create, modify and publication dates.
+     * @param transferConf The transfer configuration.
+     * @return The hash of the configuration.
+     */
+    public static long getConfigurationHash(TransferConfiguration transferConf) {
+        long res = 17L;
+        res = 31L * res + String.valueOf(transferConf.getRequiredFormats()).hashCode();
+        res = 31L * res + String.valueOf(transferConf.getRetainCreateDate()).hashCode();
+        res = 31L * res + String.valueOf(transferConf.getRetainModifyDate()).hashCode();
+        res = 31L * res + String.valueOf(transferConf.getRetainPublicationDate()).hashCode();
+        return res;
+    }
+
+    /**
+     * Calculates the fingerprint of the files in a book directory; their names, sizes and last modified dates
+     * (of the target, for symbolic links). The transfer registry of the book is not included.
+     * @param bookDir The directory of the book.
+     * @return The fingerprint.
+     */
+    public static long fingerprint(File bookDir) {
+        long res = 17L;
+        for(File f : new TreeSet<File>(FileUtils.getFilesInDirectory(bookDir))) {
+            if(f.getName().equals(TransferRegistry.REGISTRY_NAME)) {
+                continue;
+            }
+            res = 31L * res + f.getName().hashCode();
+            res = 31L * res + f.length();
+            res = 31L * res + f.lastModified();
+        }
+        return res;
+    }
+
+    /**
+     * A queued book.
+     */
+    protected static class Entry implements Comparable<Entry> {
+        /** The path to the book directory.*/
+        protected final String path;
+        /** The fingerprint of the files of the book.*/
+        protected final long fingerprint;
+        /** The earliest time the book can become eligible.*/
+        protected final long eligibleTime;
+
+        /**
+         * Constructor.
+         * @param path The path to the book directory.
+         * @param fingerprint The fingerprint of the files of the book.
+         * @param eligibleTime The earliest time the book can become eligible.
+         */
+        protected Entry(String path, long fingerprint, long eligibleTime) {
+            this.path = path;
+            this.fingerprint = fingerprint;
+            this.eligibleTime = eligibleTime;
+        }
+
+        @Override
+        public int compareTo(Entry o) {
+            if(eligibleTime != o.eligibleTime) {
+                return eligibleTime < o.eligibleTime ? -1 : 1;
+            }
+            return path.compareTo(o.path);
+        }
+    }
+}
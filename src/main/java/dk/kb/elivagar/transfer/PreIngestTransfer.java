@@ -2,24 +2,30 @@ package dk.kb.elivagar.transfer;
 
 import dk.kb.elivagar.Constants;
 import dk.kb.elivagar.config.Configuration;
+import dk.kb.elivagar.config.TransferConfiguration;
+import dk.kb.elivagar.exception.ArgumentCheck;
+import dk.kb.elivagar.pubhub.PubhubMetadataIndex;
 import dk.kb.elivagar.utils.CalendarUtils;
+import dk.kb.elivagar.utils.ChecksumService;
+import dk.kb.elivagar.utils.ChecksumUtils;
 import dk.kb.elivagar.utils.FileUtils;
+import dk.kb.elivagar.utils.ParallelFileCopier;
+import dk.kb.elivagar.utils.RateLimiter;
+import dk.kb.elivagar.utils.TarWriter;
 import dk.pubhub.service.BookTypeEnum;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.w3c.dom.Document;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.xpath.XPath;
-import javax.xml.xpath.XPathExpression;
-import javax.xml.xpath.XPathFactory;
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.*;
+import java.util.concurrent.Semaphore;
 
 /**
  * Class for dealing with the transfer of the packaged data to the pre-ingest area of the preservation repository.
@@ -31,19 +37,64 @@ import java.util.*;
  * 
  * When updating, the content files and technical metadata files will be copied to the designated update content 
  * directory, whereas the other types of metadata will be copied to the designated update metadata directory.
- * And update will only occur, if the last modified timestamp is newer than the latest update timestamp.
+ * And update will only occur, if the last modified timestamp is newer than the latest update timestamp, and the 
+ * checksum of the file differs from the checksum in the registry (from the ingest or the latest update), so 
+ * touching or restoring the files from a backup does not cause updates.
+ * 
+ * If a transfer engine is given, then the books are transferred in parallel, and the writes to the destinations
+ * go through the lanes of the engine. Each book is still copied to a '_transfer' directory, and then moved
+ * to its destination, so the pre-ingest area never contains a partially transferred book.
+ * 
+ * The content files, which are hard links to the delivered files, are hard linked to the destination, when it is 
+ * on the same file system, since they are never changed in place. All other files, and files for destinations 
+ * on other file systems, are copied. If a parallel copier is given, then the files above its threshold are copied 
+ * as several ranges concurrently.
+ * 
+ * Each transfer directory has a journal (see TransferJournal), so a transfer interrupted by a crash is resumed 
+ * in the same transfer directory, where the files already transferred and verified are not transferred again.
+ * The registry is only updated, when the transfer directory has been moved to its destination.
+ * Orphaned transfer directories in the destination base directories are recovered at the start of each run.
+ * 
+ * If an eligibility queue is given, then the books, which are not ready for ingest, are queued with the earliest 
+ * time they can become ready, and they are not checked again before that time, unless their files change.
+ * 
+ * If tar packages are used, then each ingest or update is instead written as a single tar file (see TarWriter) 
+ * to a '_transfer' file, and then renamed to its destination; '[book id].tar' in the ingest directory and 
+ * '[book id]_[time].tar' in the update directory. The files of the book are in a directory with the book id within 
+ * the tar file, and an ingest package also contains the manifests. Tar packages are not journaled; an interrupted 
+ * tar file is removed at the start of the next run, and the book is written again.
+ * 
+ * If updates are batched (see UpdateBatcher), then the updated files of the books are grouped into bounded batch 
+ * directories in each update directory, instead of a directory for each book, and the registry of a book is only 
+ * flushed, when the batches with its updates have been delivered. Batched updates are always directories, also 
+ * when tar packages are used for the ingests.
+ * 
+ * If unchanged books are skipped, then the summary of each ingested book directory (see BookSummary) is registered 
+ * after the update, and a book, whose directory still matches its registered summary, is not checked for updates.
+ * 
+ * If a scheduler is given, then it orders the books, caps the rate of the copies, and limits the number of bytes 
+ * and books transferred in a run. The books not visited, when the budget is spent, are carried into the next run.
+ * 
+ * The checksums of the files are calculated while they are copied (or while the content files are read, when they 
+ * are hard linked), so each file is only read once. The ingest package gets a BagIt-style manifest for each 
+ * manifest algorithm (MD5 by default, e.g. 'manifest-md5.txt'), and the MD5 checksums of the content files are 
+ * registered in the transfer registry.
  */
 public class PreIngestTransfer {
     /** The logger.*/
     private static final Logger log = LoggerFactory.getLogger(PreIngestTransfer.class);
 
-    /** The XPATH for finding the publication date in the pubhub metadata file.*/
-    protected static final String XPATH_PUBLICATION_DATE = "/*:Book/*:PublicationDate/text()";
     /** The date format for the publication date in the pubhub metadata file.*/
     protected static final String DATE_FORMAT_PUBLICATION_DATE = "dd-MM-yyyy";
     
     /** The suffix for the transferring dir name.*/
     protected static final String TRANSFERRING_DIR_SUFFIX = "_transfer";
+    /** The prefix for the name of the manifest files, which is followed by the algorithm, e.g. 'manifest-md5.txt'.*/
+    protected static final String MANIFEST_FILE_PREFIX = "manifest-";
+    /** The suffix for the name of the manifest files.*/
+    protected static final String MANIFEST_FILE_SUFFIX = ".txt";
+    /** The suffix for the name of the tar packages.*/
+    protected static final String TAR_PACKAGE_SUFFIX = ".tar";
     
     /** 
      * The list of suffixes of the metadata files, which should be updated at the metadata destination.
@@ -61,20 +112,175 @@ public class PreIngestTransfer {
     /** The configuration.*/
     protected final Configuration conf;
 
-    /** The document builder factory.*/
-    protected final DocumentBuilderFactory documentBuilderFactory;
-    /** The XPath factory.*/
-    protected final XPathFactory xPathFactory;
+    /** The index of the pubhub metadata. May be null, if the pubhub metadata files should be parsed directly.*/
+    protected final PubhubMetadataIndex pubhubIndex;
+    /** The central store of the transfer registries. May be null, if only the registry files should be used.*/
+    protected final RegistryStore registryStore;
+    /** The engine for the parallel transfer. May be null, if the books should be transferred sequentially.*/
+    protected final TransferEngine transferEngine;
+    /** The checksum algorithms for the manifests of the ingest packages. Always contains MD5.*/
+    protected final List<String> manifestAlgorithms = new ArrayList<String>(Arrays.asList(
+            ChecksumUtils.MD5_ALGORITHM));
+    /** The service for calculating the checksums of several files concurrently, e.g. when rebuilding a registry.*/
+    protected ChecksumService checksumService = new ChecksumService();
+    /** The copier for the large files. May be null, if all files should be copied sequentially.*/
+    protected ParallelFileCopier parallelCopier;
+    /** The scheduler with the rate, budgets and order of the transfer. May be null, if it is not scheduled.*/
+    protected TransferScheduler scheduler;
+    /** The queue with the time the books become eligible for ingest. May be null, if they are checked every run.*/
+    protected EligibilityQueue eligibilityQueue;
+    /** Whether each ingest or update should be written as a single tar package instead of a directory.*/
+    protected boolean tarPackages = false;
+    /** The batcher of the updates. May be null, if each update should be delivered as its own package.*/
+    protected UpdateBatcher updateBatcher;
+    /** Whether the ingested books, which match their registered summary, should be skipped.*/
+    protected boolean skipUnchangedBooks = false;
+    /** The base directories of the destinations, where orphaned transfer directories are recovered.*/
+    protected final List<File> destinationBaseDirs = new ArrayList<File>();
 
     /**
-     * Constructor.
+     * Constructor, without any index of the pubhub metadata.
      * @param conf The configuration.
      */
     public PreIngestTransfer(Configuration conf) {
+        this(conf, null);
+    }
+
+    /**
+     * Constructor.
+     * @param conf The configuration.
+     * @param pubhubIndex The index of the pubhub metadata. May be null, if the pubhub metadata files should be 
+     * parsed directly.
+     */
+    public PreIngestTransfer(Configuration conf, PubhubMetadataIndex pubhubIndex) {
+        this(conf, pubhubIndex, null);
+    }
+
+    /**
+     * Constructor.
+     * @param conf The configuration.
+     * @param pubhubIndex The index of the pubhub metadata. May be null, if the pubhub metadata files should be 
+     * parsed directly.
+     * @param registryStore The central store of the transfer registries. May be null, if only the registry files
+     * should be used.
+     */
+    public PreIngestTransfer(Configuration conf, PubhubMetadataIndex pubhubIndex, RegistryStore registryStore) {
+        this(conf, pubhubIndex, registryStore, null);
+    }
+
+    /**
+     * Constructor.
+     * @param conf The configuration.
+     * @param pubhubIndex The index of the pubhub metadata. May be null, if the pubhub metadata files should be 
+     * parsed directly.
+     * @param registryStore The central store of the transfer registries. May be null, if only the registry files
+     * should be used.
+     * @param transferEngine The engine for the parallel transfer. May be null, if the books should be transferred
+     * sequentially.
+     */
+    public PreIngestTransfer(Configuration conf, PubhubMetadataIndex pubhubIndex, RegistryStore registryStore,
+            TransferEngine transferEngine) {
         this.conf = conf;
+        this.pubhubIndex = pubhubIndex;
+        this.registryStore = registryStore;
+        this.transferEngine = transferEngine;
+    }
 
-        documentBuilderFactory = DocumentBuilderFactory.newInstance();
-        xPathFactory = XPathFactory.newInstance();
+    /**
+     * Adds a checksum algorithm for the manifests of the ingest packages, e.g. SHA-256.
+     * Must be called before the transfer is started.
+     * @param algorithm The checksum algorithm.
+     */
+    public void addManifestAlgorithm(String algorithm) {
+        ArgumentCheck.checkNotNullOrEmpty(algorithm, "String algorithm");
+        ChecksumUtils.createDigesters(Arrays.asList(algorithm));
+        if(!manifestAlgorithms.contains(algorithm)) {
+            manifestAlgorithms.add(algorithm);
+        }
+    }
+
+    /**
+     * Sets the copier for the files above its threshold, which copies the files as several ranges concurrently.
+     * Must be called before the transfer is started.
+     * @param parallelCopier The copier for the large files. May be null, if all files should be copied 
+     * sequentially.
+     */
+    public void setParallelCopier(ParallelFileCopier parallelCopier) {
+        this.parallelCopier = parallelCopier;
+    }
+
+    /**
+     * Sets the service for calculating the checksums of several files concurrently, e.g. one whose threads have
+     * a lowered I/O priority. Must be called before the transfer is started.
+     * @param checksumService The service for calculating the checksums.
+     */
+    public void setChecksumService(ChecksumService checksumService) {
+        ArgumentCheck.checkNotNull(checksumService, "ChecksumService checksumService");
+        this.checksumService = checksumService;
+    }
+
+    /**
+     * Sets the scheduler, which caps the rate, limits the number of bytes and books in a run, and orders the books.
+     * Must be called before the transfer is started.
+     * @param scheduler The scheduler. May be null, if the transfer should not be scheduled.
+     */
+    public void setScheduler(TransferScheduler scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Sets the queue with the time, when the books become eligible for ingest.
+     * Must be called before the transfer is started.
+     * @param eligibilityQueue The eligibility queue. May be null, if all the books not yet ingested should be 
+     * checked in every run.
+     */
+    public void setEligibilityQueue(EligibilityQueue eligibilityQueue) {
+        this.eligibilityQueue = eligibilityQueue;
+    }
+
+    /**
+     * Sets whether each ingest or update should be written as a single tar package, instead of a directory with 
+     * a file for each file of the book.
+     * @param tarPackages Whether to use tar packages.
+     */
+    public void setTarPackages(boolean tarPackages) {
+        this.tarPackages = tarPackages;
+    }
+
+    /**
+     * Sets the update batches, where the updated files of the books are grouped into bounded batches for each 
+     * update directory. Must be called after the manifest algorithms have been added.
+     * The batches are used, when either limit is above 0.
+     * @param maxFiles The maximum number of files in a batch. 0 for no limit.
+     * @param maxBytes The maximum number of bytes in a batch. 0 for no limit.
+     */
+    public void setUpdateBatches(int maxFiles, long maxBytes) {
+        if(maxFiles > 0 || maxBytes > 0L) {
+            this.updateBatcher = new UpdateBatcher(maxFiles, maxBytes, manifestAlgorithms);
+        } else {
+            this.updateBatcher = null;
+        }
+    }
+
+    /**
+     * Sets whether the ingested books, whose directories match the summary registered after their latest update,
+     * should be skipped instead of being checked for updates.
+     * @param skipUnchangedBooks Whether to skip the unchanged books.
+     */
+    public void setSkipUnchangedBooks(boolean skipUnchangedBooks) {
+        this.skipUnchangedBooks = skipUnchangedBooks;
+    }
+
+    /**
+     * Adds a base directory of the destinations (e.g. the ingest directory for e-books), where orphaned transfer
+     * directories are recovered at the start of each run.
+     * @param baseDir The base directory of some destinations.
+     */
+    public void addDestinationBaseDir(File baseDir) {
+        ArgumentCheck.checkNotNull(baseDir, "File baseDir");
+        if(!destinationBaseDirs.contains(baseDir)) {
+            destinationBaseDirs.add(baseDir);
+        }
     }
 
     /**
@@ -82,25 +288,101 @@ public class PreIngestTransfer {
      * This include both transfer to ingest and transfer to update.
      */
     public void transferReadyBooks() {
-        File ebookDir = conf.getEbookOutputDir();
-        transferBook(ebookDir, BookTypeEnum.EBOG);
+        recoverTransferDirs();
+        if(scheduler != null) {
+            scheduler.start();
+        }
+        if(transferEngine != null) {
+            transferEngine.start();
+        }
+        try {
+            File ebookDir = conf.getEbookOutputDir();
+            transferBook(ebookDir, BookTypeEnum.EBOG);
 
-        File audioDir = conf.getAudioOutputDir();
-        if(audioDir == ebookDir) {
-            log.info("Ebook and Audio books have the same directory.");
-        } else {
-            transferBook(audioDir, BookTypeEnum.LYDBOG);
+            File audioDir = conf.getAudioOutputDir();
+            if(audioDir == ebookDir) {
+                log.info("Ebook and Audio books have the same directory.");
+            } else {
+                transferBook(audioDir, BookTypeEnum.LYDBOG);
+            }
+        } finally {
+            if(transferEngine != null) {
+                try {
+                    transferEngine.finish();
+                } catch (InterruptedException e) {
+                    log.error("Interrupted while waiting for the book transfers to finish.", e);
+                    Thread.currentThread().interrupt();
+                }
+            }
+            if(updateBatcher != null) {
+                try {
+                    updateBatcher.deliverAll();
+                } catch (IOException e) {
+                    log.error("Could not deliver the update batches.", e);
+                }
+            }
+            if(scheduler != null) {
+                try {
+                    scheduler.finish();
+                } catch (IOException e) {
+                    log.error("Could not carry the remaining books into the next run.", e);
+                }
+            }
+            if(eligibilityQueue != null) {
+                try {
+                    eligibilityQueue.save();
+                } catch (IOException e) {
+                    log.error("Could not save the eligibility queue.", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Recovers the orphaned transfer directories from an interrupted run in the destination base directories.
+     * The transfer directories of existing books are kept, so they are completed when the books are transferred, 
+     * and the rest are deleted.
+     */
+    protected void recoverTransferDirs() {
+        for(File baseDir : destinationBaseDirs) {
+            try {
+                TransferJournal.recoverTransferDirs(baseDir, TRANSFERRING_DIR_SUFFIX);
+                removeTransferTarFiles(baseDir);
+            } catch (IOException e) {
+                log.error("Failure while recovering the transfer directories in '" + baseDir + "'", e);
+            }
+        }
+    }
+
+    /**
+     * Removes the interrupted tar packages in a base directory of the destinations.
+     * @param baseDir The base directory of some destinations.
+     */
+    protected void removeTransferTarFiles(File baseDir) {
+        if(!baseDir.isDirectory()) {
+            return;
+        }
+        for(File f : FileUtils.getFilesInDirectory(baseDir)) {
+            if(f.isFile() && f.getName().endsWith(TAR_PACKAGE_SUFFIX + TRANSFERRING_DIR_SUFFIX)) {
+                log.warn("Removing the interrupted tar package '" + f.getAbsolutePath() + "'");
+                FileUtils.deleteFile(f);
+            }
         }
     }
 
     /**
      * Transfer the books, who need to be transfered.
+     * If a transfer engine is used, then the books are submitted to the engine.
      * @param dir The root directory which contains the book directories.
      * @param bookType The type of book.
      */
     protected void transferBook(File dir, BookTypeEnum bookType) {
         try {
-            for(File bookDir : FileUtils.getFilesInDirectory(dir)) {
+            Collection<File> bookDirs = FileUtils.getFilesInDirectory(dir);
+            if(scheduler != null) {
+                bookDirs = scheduler.orderBooks(bookDirs);
+            }
+            for(File bookDir : bookDirs) {
                 String id = bookDir.getName();
                 if(!bookDir.isDirectory()) {
                     log.warn("Dir for book '" + id + "' is not a directory ('" + bookDir.getAbsolutePath() + "'). "
@@ -108,17 +390,67 @@ public class PreIngestTransfer {
                     continue;
                 }
 
-                TransferRegistry register = new TransferRegistry(bookDir);
-
-                if(register.getIngestDate() != null) {
-                    validateRegistry(bookDir, register);
-                    updateBook(bookDir, register, bookType);
+                if(transferEngine != null) {
+                    transferEngine.submit(new BookTransferTask(bookDir, bookType));
                 } else {
-                    ingestBook(bookDir, register, bookType);
+                    transferBookDir(bookDir, bookType);
                 }
             }
         } catch (IOException e) {
             log.error("Failure while transfering books from '" + dir + "'", e);
+        } catch (InterruptedException e) {
+            log.error("Interrupted while transfering books from '" + dir + "'", e);
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Transfers a single book, either to ingest or to update.
+     * @param bookDir The directory of the book.
+     * @param bookType The type of book.
+     * @throws IOException If it fails to transfer the book.
+     */
+    protected void transferBookDir(File bookDir, BookTypeEnum bookType) throws IOException {
+        if(scheduler != null && !scheduler.allowBook(bookDir)) {
+            log.debug("The budget of the run is spent. Carrying the book '" + bookDir.getName() 
+                    + "' into the next run.");
+            return;
+        }
+        TransferRegistry register = new TransferRegistry(bookDir, registryStore);
+        try {
+            if(register.getIngestDate() != null) {
+                BookSummary summary = null;
+                if(skipUnchangedBooks) {
+                    summary = new BookSummary(bookDir);
+                    if(summary.matches(register)) {
+                        log.debug("The book '" + bookDir.getName() + "' is unchanged since its latest update.");
+                        return;
+                    }
+                }
+                validateRegistry(bookDir, register);
+                updateBook(bookDir, register, bookType);
+                if(summary != null) {
+                    register.setSummary(summary.getSummary(register));
+                }
+            } else {
+                BookSummary summary = null;
+                if(skipUnchangedBooks) {
+                    summary = new BookSummary(bookDir);
+                    summary.retrieveFiles();
+                }
+                ingestBook(bookDir, register, bookType);
+                if(summary != null && register.hasBeenIngested()) {
+                    register.flush();
+                    summary.refreshDirectoryTier();
+                    register.setSummary(summary.getSummary(register));
+                }
+            }
+        } finally {
+            if(updateBatcher != null) {
+                updateBatcher.bookFinished(register);
+            } else {
+                register.flush();
+            }
         }
     }
 
@@ -137,8 +469,12 @@ public class PreIngestTransfer {
         log.debug("Had any content-files in registry: " + hasAny);
         if(!hasAny) {
             log.warn("Registry for book '" + bookDir.getName() + "' needs to be rebuild.");
+            List<File> files = new ArrayList<File>();
             for(Path p : contentFiles) {
-                register.setChecksumAndDate(p.toFile());
+                files.add(p.toFile());
+            }
+            for(Map.Entry<File, String> checksum : checksumService.calculateMD5Checksums(files).entrySet()) {
+                register.setChecksumAndDate(checksum.getKey(), checksum.getValue());
             }
         }
     }
@@ -164,20 +500,26 @@ public class PreIngestTransfer {
         boolean updated = false;
 
         // Check for any metadata to update
-        List<File> metadataFiles = getNewFilesWithSuffix(bookDir, UPDATE_METADATA_SUFFIXES, updateDate);
+        List<File> metadataFiles = getChangedFiles(getNewFilesWithSuffix(bookDir, UPDATE_METADATA_SUFFIXES, 
+                updateDate), register);
         if(!metadataFiles.isEmpty()) {
             log.info("Found " + metadataFiles.size() + " new metadata files for update.");
             String updateDirPath = getUpdateMetadataDir(bookDir, bookType);
-            copyUpdatedFiles(metadataFiles, updateDirPath);
+            Map<String, Map<String, String>> checksums = transferUpdatedFiles(metadataFiles, updateDirPath, 
+                    false, register);
+            registerChecksums(register, metadataFiles, checksums);
             updated = true;
         }
         
         // Check for any technical metadata to update
-        List<File> techMetadataFiles = getNewFilesWithSuffix(bookDir, UPDATE_TECH_METADATA_SUFFIXES, updateDate);
+        List<File> techMetadataFiles = getChangedFiles(getNewFilesWithSuffix(bookDir, UPDATE_TECH_METADATA_SUFFIXES, 
+                updateDate), register);
         if(!techMetadataFiles.isEmpty()) {
             log.info("Found " + techMetadataFiles.size() + " new technical metadata files for update.");
             String updateDirPath = getUpdateContentDir(bookDir, bookType);
-            copyUpdatedFiles(techMetadataFiles, updateDirPath);
+            Map<String, Map<String, String>> checksums = transferUpdatedFiles(techMetadataFiles, updateDirPath, 
+                    false, register);
+            registerChecksums(register, techMetadataFiles, checksums);
             updated = true;
         }
 
@@ -186,31 +528,115 @@ public class PreIngestTransfer {
         if(!contentFiles.isEmpty()) {
             log.info("Found " + contentFiles.size() + " new content files for update.");
             String updateDirPath = getUpdateContentDir(bookDir, bookType);
-            copyUpdatedFiles(contentFiles, updateDirPath);
-            register.updateFileEntries(contentFiles);
+            Map<String, Map<String, String>> checksums = transferUpdatedFiles(contentFiles, updateDirPath, 
+                    true, register);
+            registerChecksums(register, contentFiles, checksums);
             updated = true;
         }
         
         if(updated) {
             log.debug("Setting the new update date in the register for book '" + bookDir.getName() + "'");
             register.setUpdateDate(new Date());
+            if(scheduler != null) {
+                scheduler.bookTransferred();
+            }
         }
     }
     
+    /**
+     * Transfers the updated files of a book; either to the open batch of the update directory, if updates are 
+     * batched, or to the destination directory.
+     * @param files The updated files.
+     * @param destDirPath The destination directory of the book.
+     * @param contentFiles Whether the updated files are content files of the book.
+     * @param register The register of the book, which is held by the batch, until it has been delivered.
+     * @return The checksums of the files, mapped by the name of the file and then by algorithm.
+     * @throws IOException If it fails to transfer the files.
+     */
+    protected Map<String, Map<String, String>> transferUpdatedFiles(List<File> files, String destDirPath, 
+            boolean contentFiles, TransferRegistry register) throws IOException {
+        if(updateBatcher == null) {
+            return copyUpdatedFiles(files, destDirPath, contentFiles);
+        }
+        return batchUpdatedFiles(files, destDirPath, contentFiles, register);
+    }
+
+    /**
+     * Copies the updated files of a book to its directory in the open batch of the update directory.
+     * The place in the batch is reserved first, and the files are then copied through the lane of the destination,
+     * concurrently with the other books. The files, which have been copied, are removed again, and the reservation
+     * is cancelled, if the copy fails.
+     * @param files The updated files.
+     * @param destDirPath The destination directory of the book, whose parent is the update directory.
+     * @param contentFiles Whether the updated files are content files of the book.
+     * @param register The register of the book.
+     * @return The checksums of the files, mapped by the name of the file and then by algorithm.
+     * @throws IOException If it fails to copy the files, or to deliver the previous batch.
+     */
+    protected Map<String, Map<String, String>> batchUpdatedFiles(List<File> files, String destDirPath, 
+            boolean contentFiles, TransferRegistry register) throws IOException {
+        Map<String, Map<String, String>> res = new TreeMap<String, Map<String, String>>();
+        File destDir = new File(destDirPath);
+        File updateDir = destDir.getParentFile();
+        String bookId = destDir.getName();
+        UpdateBatcher.Reservation reservation = updateBatcher.reserve(updateDir, bookId, files);
+        List<File> copiedFiles = new ArrayList<File>();
+        try {
+            Semaphore lane = enterLane(destDirPath);
+            try {
+                for(File fromFile : files) {
+                    File toFile = new File(reservation.getBookDir(), fromFile.getName());
+                    copiedFiles.add(toFile);
+                    res.put(fromFile.getName(), transferFile(fromFile, toFile, contentFiles));
+                }
+            } finally {
+                leaveLane(lane);
+            }
+        } catch (IOException | RuntimeException e) {
+            log.warn("Removing the partially copied files of the book '" + bookId + "' from the batch.");
+            for(File f : copiedFiles) {
+                FileUtils.deleteFile(f);
+            }
+            updateBatcher.cancel(reservation);
+            throw e;
+        }
+        updateBatcher.filesAdded(reservation, res, register);
+        return res;
+    }
+
     /**
      * Move updated files to the destination directory, though through a transfer directory.
      * @param files The files to copy to the destination directory.
      * @param destDirPath The destination directory.
+     * @param contentFiles Whether the files are content files of the book.
+     * @return The checksums of the files, mapped by the name of the file and then by algorithm.
      * @throws IOException If it fails to create directory or copy files.
      */
-    protected void copyUpdatedFiles(List<File> files, String destDirPath) throws IOException {
-        File transferDir = getTransferDir(destDirPath);
-        for(File fromFile : files) {
-            File toFile = new File(transferDir, fromFile.getName());
-            FileUtils.copyFileFollowSymbolicLinks(fromFile, toFile);
+    protected Map<String, Map<String, String>> copyUpdatedFiles(List<File> files, String destDirPath, 
+            boolean contentFiles) throws IOException {
+        Map<String, Map<String, String>> res = new TreeMap<String, Map<String, String>>();
+        Semaphore lane = enterLane(destDirPath);
+        try {
+            if(tarPackages) {
+                File tarFile = new File(destDirPath + "_" + System.currentTimeMillis() + TAR_PACKAGE_SUFFIX);
+                res.putAll(writeTarPackage(tarFile, new File(destDirPath).getName(), files, false));
+                return res;
+            }
+            File transferDir = getTransferDir(destDirPath);
+            try (TransferJournal journal = new TransferJournal(transferDir, files.get(0).getParentFile(), files, 
+                    manifestAlgorithms)) {
+                for(File fromFile : files) {
+                    File toFile = new File(transferDir, fromFile.getName());
+                    res.put(fromFile.getName(), transferFile(fromFile, toFile, contentFiles, journal));
+                }
+                journal.commit();
+            }
+            File destDir = FileUtils.createDirectory(destDirPath);
+            FileUtils.moveDirectory(transferDir, destDir);
+        } finally {
+            leaveLane(lane);
         }
-        File destDir = FileUtils.createDirectory(destDirPath);
-        FileUtils.moveDirectory(transferDir, destDir);
+        return res;
     }
 
     /**
@@ -223,20 +649,116 @@ public class PreIngestTransfer {
      */
     protected void ingestBook(File bookDir, TransferRegistry register, BookTypeEnum bookType) throws IOException {
         log.info("Ingesting the book: " + bookDir.getName());
-        if(readyForIngest(bookDir)) {
+        if(isEligibleForIngest(bookDir)) {
             String outputDirPath = getIngestDir(bookDir, bookType);
-            File transferDir = getTransferDir(outputDirPath);
-            FileUtils.copyDirectory(bookDir, transferDir);
-            
-            File outputDir = FileUtils.createDirectory(outputDirPath);
-            FileUtils.moveDirectory(transferDir, outputDir);
+            Map<String, Map<String, String>> checksums = new TreeMap<String, Map<String, String>>();
+            List<Path> contentFiles = getContentFiles(bookDir);
+            Semaphore lane = enterLane(outputDirPath);
+            try {
+                Collection<File> files = FileUtils.getFilesInDirectory(bookDir);
+                if(tarPackages) {
+                    checksums.putAll(writeTarPackage(new File(outputDirPath + TAR_PACKAGE_SUFFIX), bookDir.getName(),
+                            files, true));
+                } else {
+                    File transferDir = getTransferDir(outputDirPath);
+                    try (TransferJournal journal = new TransferJournal(transferDir, bookDir, files, 
+                            manifestAlgorithms)) {
+                        for(File f : files) {
+                            checksums.put(f.getName(), transferFile(f, new File(transferDir, f.getName()), 
+                                    isContentFile(f, contentFiles), journal));
+                        }
+                        writeManifests(transferDir, checksums);
+                        journal.commit();
+                    }
+
+                    File outputDir = FileUtils.createDirectory(outputDirPath);
+                    FileUtils.moveDirectory(transferDir, outputDir);
+                }
+            } finally {
+                leaveLane(lane);
+            }
             register.setIngestDate(new Date());
-            for(Path path : getContentFiles(bookDir)) {
-                register.setChecksumAndDate(path.toFile());
+            if(scheduler != null) {
+                scheduler.bookTransferred();
             }
+            List<File> registeredFiles = new ArrayList<File>();
+            for(Path path : contentFiles) {
+                registeredFiles.add(path.toFile());
+            }
+            registeredFiles.addAll(getNewFilesWithSuffix(bookDir, UPDATE_METADATA_SUFFIXES, new Date(0L)));
+            registeredFiles.addAll(getNewFilesWithSuffix(bookDir, UPDATE_TECH_METADATA_SUFFIXES, new Date(0L)));
+            registerChecksums(register, registeredFiles, checksums);
         }
     }
 
+    /**
+     * Checks whether a book is ready for ingest, though through the eligibility queue, if it is used.
+     * A book queued with an eligible time in the future, and with unchanged files, is not checked.
+     * A book, which is checked and not ready, is queued with the earliest time it can become ready.
+     * @param bookDir The directory of the book.
+     * @return Whether the book is ready for ingest.
+     * @throws IOException If it fails to read the files, especially symlinks.
+     */
+    protected boolean isEligibleForIngest(File bookDir) throws IOException {
+        if(eligibilityQueue == null) {
+            return readyForIngest(bookDir);
+        }
+        long fingerprint = EligibilityQueue.fingerprint(bookDir);
+        if(!eligibilityQueue.isDue(bookDir, fingerprint, System.currentTimeMillis())) {
+            log.debug("The book '" + bookDir.getName() + "' is not yet eligible for ingest.");
+            return false;
+        }
+        if(readyForIngest(bookDir)) {
+            eligibilityQueue.remove(bookDir);
+            return true;
+        }
+        eligibilityQueue.defer(bookDir, fingerprint, getEligibleTime(bookDir));
+        return false;
+    }
+
+    /**
+     * Calculates the earliest time a book can become ready for ingest, without its files changing.
+     * It is the latest of the times, when the retain intervals of the create and modify dates of the content files
+     * have passed. It is never, if the book misses a required file or the pubhub metadata file, or if the 
+     * publication date fails the check, since that check cannot pass later than now.
+     * @param bookDir The directory of the book.
+     * @return The earliest time the book can become ready, or EligibilityQueue.NEVER.
+     * @throws IOException If it fails to read the files, especially symlinks.
+     */
+    protected long getEligibleTime(File bookDir) throws IOException {
+        TransferConfiguration transferConf = conf.getTransferConfiguration();
+        for(String suffix : transferConf.getRequiredFormats()) {
+            if(!hasRequiredFile(bookDir, suffix)) {
+                return EligibilityQueue.NEVER;
+            }
+        }
+
+        long now = System.currentTimeMillis();
+        long res = now;
+        for(Path f : getContentFiles(bookDir)) {
+            BasicFileAttributes attributes = Files.readAttributes(f, BasicFileAttributes.class);
+            if(transferConf.getRetainCreateDate() >= 0) {
+                res = Math.max(res, attributes.creationTime().toMillis() + transferConf.getRetainCreateDate());
+            }
+            if(transferConf.getRetainModifyDate() >= 0) {
+                res = Math.max(res, attributes.lastModifiedTime().toMillis() + transferConf.getRetainModifyDate());
+            }
+        }
+
+        if(transferConf.getRetainPublicationDate() >= 0) {
+            File pubhubMetadataFile = new File(bookDir, bookDir.getName() + Constants.PUBHUB_METADATA_SUFFIX);
+            if(!pubhubMetadataFile.isFile()) {
+                return EligibilityQueue.NEVER;
+            }
+            Date publicationDate = findPublicationDate(pubhubMetadataFile);
+            if(publicationDate != null 
+                    && publicationDate.getTime() < now - transferConf.getRetainPublicationDate()) {
+                return EligibilityQueue.NEVER;
+            }
+        }
+        return res;
+    }
+
     /**
      * Checks whether a given book directory meets the requirements for the ingest transfer.
      * It must comply to the requirements:
@@ -380,18 +902,20 @@ public class PreIngestTransfer {
 
     /**
      * Retrieves the date for the publication date from the pubhub metadata file.
+     * Uses the index of the pubhub metadata, if possible.
      * @param pubhubMetadata The pubhub metadata file.
      * @return The publication date from the pubhub metadata file. Will return null if it cannot find the 
      * publication date in the xml-file.
      */
     protected Date findPublicationDate(File pubhubMetadata) {
         try {
-            DocumentBuilder builder = documentBuilderFactory.newDocumentBuilder();
-            Document doc = builder.parse(pubhubMetadata);
-            XPath xpath = xPathFactory.newXPath();
-            XPathExpression publicationDatePath = xpath.compile(XPATH_PUBLICATION_DATE);
-
-            String date = publicationDatePath.evaluate(doc);
+            PubhubMetadataIndex.Entry entry;
+            if(pubhubIndex != null) {
+                entry = pubhubIndex.get(pubhubMetadata);
+            } else {
+                entry = PubhubMetadataIndex.parse(pubhubMetadata);
+            }
+            String date = entry.getPublicationDate();
             if(date.isEmpty()) {
                 log.warn("Could not extract the publication date from file '" 
                         + pubhubMetadata.getAbsolutePath() + "'. Returning a null.");
@@ -454,6 +978,25 @@ public class PreIngestTransfer {
         return res;
     }
     
+    /**
+     * Retrieves the files, whose content has changed since they were registered (at the ingest or latest update).
+     * Files without an entry in the registry are considered changed.
+     * @param files The files with a new last modified date.
+     * @param register The register with the checksums of the files.
+     * @return The files with changed content.
+     */
+    protected List<File> getChangedFiles(List<File> files, TransferRegistry register) {
+        List<File> res = new ArrayList<File>();
+        for(File f : files) {
+            if(register.hasChangedContent(f)) {
+                res.add(f);
+            } else {
+                log.debug("The file '" + f.getAbsolutePath() + "' has a new date, but unchanged content.");
+            }
+        }
+        return res;
+    }
+
     /**
      * Retrieves the new content files from the given book directory.
      * If no entries in the registry, then it is not doomed.
@@ -476,6 +1019,185 @@ public class PreIngestTransfer {
         return res;
     }
     
+    /**
+     * @param f A file of a book.
+     * @param contentFiles The content files of the book, as returned by getContentFiles.
+     * @return Whether the file is one of the content files, or a symbolic link to one of them.
+     * @throws IOException If it fails to follow the symbolic link.
+     */
+    protected boolean isContentFile(File f, List<Path> contentFiles) throws IOException {
+        return contentFiles.contains(FileUtils.getFileOrSymlinkPath(f));
+    }
+
+    /**
+     * Transfers a single file to the transfer directory, and calculates its checksums.
+     * A content file is hard linked to the destination, if possible, and then read for the checksums, since the 
+     * content files are never changed in place. All other files, or a content file which cannot be hard linked
+     * (e.g. the destination is on another file system), are copied, and the checksums are calculated while the
+     * file is copied. Files above the threshold of the parallel copier are copied as several ranges concurrently.
+     * The read of a hard linked file is limited and counted by the scheduler like a copy.
+     * @param fromFile The file to transfer.
+     * @param toFile The destination in the transfer directory.
+     * @param contentFile Whether the file is a content file of the book.
+     * @return The checksums of the file for the manifest algorithms, mapped by algorithm.
+     * @throws IOException If it fails to transfer the file.
+     */
+    protected Map<String, String> transferFile(File fromFile, File toFile, boolean contentFile) throws IOException {
+        RateLimiter rateLimiter = null;
+        if(scheduler != null) {
+            rateLimiter = scheduler.getRateLimiter();
+            scheduler.bytesTransferred(Files.size(FileUtils.getFileOrSymlinkPath(fromFile)));
+        }
+        if(contentFile && FileUtils.createHardLink(fromFile, toFile)) {
+            log.trace("Hard linked '" + fromFile.getAbsolutePath() + "' to '" + toFile.getAbsolutePath() + "'");
+            return ChecksumUtils.calculateChecksums(toFile, manifestAlgorithms, rateLimiter);
+        }
+        if(parallelCopier != null && parallelCopier.isAboveThreshold(fromFile)) {
+            return parallelCopier.copyFile(fromFile, toFile, manifestAlgorithms, rateLimiter);
+        }
+        return FileUtils.copyFileWithChecksums(fromFile, toFile, manifestAlgorithms, rateLimiter);
+    }
+
+    /**
+     * Transfers a single file to the transfer directory, unless the journal shows that it has already been 
+     * transferred, and records the transfer in the journal.
+     * @param fromFile The file to transfer.
+     * @param toFile The destination in the transfer directory.
+     * @param contentFile Whether the file is a content file of the book.
+     * @param journal The journal of the transfer directory.
+     * @return The checksums of the file for the manifest algorithms, mapped by algorithm.
+     * @throws IOException If it fails to transfer the file or write the journal.
+     */
+    protected Map<String, String> transferFile(File fromFile, File toFile, boolean contentFile, 
+            TransferJournal journal) throws IOException {
+        Map<String, String> res = journal.getVerifiedChecksums(fromFile, toFile);
+        if(res != null) {
+            log.debug("Skipping the already transferred file '" + toFile.getAbsolutePath() + "'");
+            return res;
+        }
+        res = transferFile(fromFile, toFile, contentFile);
+        journal.fileTransferred(fromFile, toFile, res);
+        return res;
+    }
+
+    /**
+     * Writes a BagIt-style manifest for each of the manifest algorithms to the directory.
+     * Each line contains the checksum and the name of the file, separated by two spaces.
+     * @param dir The directory.
+     * @param checksums The checksums of the files, mapped by the name of the file and then by algorithm.
+     * @throws IOException If it fails to write the manifests.
+     */
+    protected void writeManifests(File dir, Map<String, Map<String, String>> checksums) throws IOException {
+        for(String algorithm : manifestAlgorithms) {
+            File manifest = new File(dir, getManifestName(algorithm));
+            try (Writer writer = new OutputStreamWriter(Files.newOutputStream(manifest.toPath()), 
+                    StandardCharsets.UTF_8)) {
+                writer.write(getManifest(algorithm, checksums));
+            }
+        }
+    }
+
+    /**
+     * Creates the content of the BagIt-style manifest for a checksum algorithm.
+     * @param algorithm The checksum algorithm.
+     * @param checksums The checksums of the files, mapped by the name of the file and then by algorithm.
+     * @return The content of the manifest.
+     */
+    protected static String getManifest(String algorithm, Map<String, Map<String, String>> checksums) {
+        StringBuilder res = new StringBuilder();
+        for(Map.Entry<String, Map<String, String>> entry : checksums.entrySet()) {
+            res.append(entry.getValue().get(algorithm) + "  " + entry.getKey() + "\n");
+        }
+        return res.toString();
+    }
+
+    /**
+     * Writes the files as a tar package to a '_transfer' file, which is renamed to the tar file, when it is 
+     * complete. The files are written in a single stream, through the rate limiter of the scheduler, if any.
+     * @param tarFile The destination of the tar package.
+     * @param dirName The name of the directory for the files within the tar package, e.g. the book id.
+     * @param files The files to write.
+     * @param withManifests Whether the tar package should also contain the manifests.
+     * @return The checksums of the files, mapped by the name of the file and then by algorithm.
+     * @throws IOException If it fails to read the files, or to write or rename the tar package.
+     */
+    protected Map<String, Map<String, String>> writeTarPackage(File tarFile, String dirName, Collection<File> files,
+            boolean withManifests) throws IOException {
+        Map<String, Map<String, String>> res = new TreeMap<String, Map<String, String>>();
+        RateLimiter rateLimiter = null;
+        if(scheduler != null) {
+            rateLimiter = scheduler.getRateLimiter();
+        }
+        File transferFile = new File(tarFile.getAbsolutePath() + TRANSFERRING_DIR_SUFFIX);
+        try (TarWriter tar = new TarWriter(transferFile)) {
+            for(File f : files) {
+                if(scheduler != null) {
+                    scheduler.bytesTransferred(Files.size(FileUtils.getFileOrSymlinkPath(f)));
+                }
+                res.put(f.getName(), tar.addFile(dirName + "/" + f.getName(), f, manifestAlgorithms, rateLimiter));
+            }
+            if(withManifests) {
+                for(String algorithm : manifestAlgorithms) {
+                    tar.addEntry(dirName + "/" + getManifestName(algorithm), 
+                            getManifest(algorithm, res).getBytes(StandardCharsets.UTF_8), System.currentTimeMillis());
+                }
+            }
+        }
+        FileUtils.moveFile(transferFile, tarFile);
+        log.debug("Wrote the tar package '" + tarFile.getAbsolutePath() + "' with " + files.size() + " files.");
+        return res;
+    }
+
+    /**
+     * @param algorithm The checksum algorithm.
+     * @return The name of the manifest file for the algorithm, e.g. 'manifest-md5.txt' or 'manifest-sha256.txt'.
+     */
+    protected static String getManifestName(String algorithm) {
+        return MANIFEST_FILE_PREFIX + algorithm.toLowerCase(Locale.ROOT).replace("-", "") + MANIFEST_FILE_SUFFIX;
+    }
+
+    /**
+     * Registers the MD5 checksums and the dates of the files in the registry.
+     * The checksum calculated during the transfer is used, and otherwise the file is read for the checksum.
+     * @param register The register.
+     * @param files The files.
+     * @param checksums The checksums from the transfer, mapped by the name of the file and then by algorithm.
+     */
+    protected void registerChecksums(TransferRegistry register, Collection<File> files, 
+            Map<String, Map<String, String>> checksums) {
+        for(File f : files) {
+            Map<String, String> fileChecksums = checksums.get(f.getName());
+            if(fileChecksums != null && fileChecksums.containsKey(ChecksumUtils.MD5_ALGORITHM)) {
+                register.setChecksumAndDate(f, fileChecksums.get(ChecksumUtils.MD5_ALGORITHM));
+            } else {
+                register.setChecksumAndDate(f);
+            }
+        }
+    }
+
+    /**
+     * Enters the lane of the transfer engine for the destination, if a transfer engine is used.
+     * @param destPath The path to the destination.
+     * @return The lane, or null if no transfer engine is used.
+     * @throws IOException If it fails to enter the lane.
+     */
+    protected Semaphore enterLane(String destPath) throws IOException {
+        if(transferEngine == null) {
+            return null;
+        }
+        return transferEngine.enterLane(new File(destPath));
+    }
+
+    /**
+     * Leaves the lane of the transfer engine again.
+     * @param lane The lane. Nothing is done, if it is null.
+     */
+    protected void leaveLane(Semaphore lane) {
+        if(lane != null) {
+            transferEngine.leaveLane(lane);
+        }
+    }
+
     /**
      * Retrieves the active transferring directory 
      * @param dirPath The path to the destination directory, when the data transfer is done.
@@ -485,4 +1207,33 @@ public class PreIngestTransfer {
     protected File getTransferDir(String dirPath) throws IOException {
         return FileUtils.createDirectory(dirPath + TRANSFERRING_DIR_SUFFIX);
     }
+
+    /**
+     * The task for transferring a single book with the transfer engine.
+     */
+    protected class BookTransferTask implements Runnable {
+        /** The directory of the book.*/
+        protected final File bookDir;
+        /** The type of book.*/
+        protected final BookTypeEnum bookType;
+
+        /**
+         * Constructor.
+         * @param bookDir The directory of the book.
+         * @param bookType The type of book.
+         */
+        protected BookTransferTask(File bookDir, BookTypeEnum bookType) {
+            this.bookDir = bookDir;
+            this.bookType = bookType;
+        }
+
+        @Override
+        public void run() {
+            try {
+                transferBookDir(bookDir, bookType);
+            } catch (IOException e) {
+                log.error("Failure while transfering the book '" + bookDir.getAbsolutePath() + "'", e);
+            }
+        }
+    }
 }
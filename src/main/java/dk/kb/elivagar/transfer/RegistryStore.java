@@ -0,0 +1,500 @@
+package dk.kb.elivagar.transfer;
+
+import dk.kb.elivagar.exception.ArgumentCheck;
+import dk.kb.elivagar.utils.FileUtils;
+import dk.kb.elivagar.utils.StreamUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Central store for the transfer registries of all the books.
+ *
+ * The store contains the lines of the transfer registry of each book, along with the size and last modified date
+ * of the registry file when the lines were stored. The transfer registry of a book only uses the lines from the
+ * store, when the registry file has not changed since, otherwise it reads the registry file and stores the lines
+ * again. Thus the registry files of the books are still authoritative, and the store can always be rebuild
+ * from them.
+ *
+ * The books are indexed on book id, ingest date, latest update date and the checksums of their files,
+ * so queries across the books do not have to read the registry file of every book.
+ *
+ * The store is persisted in the state directory in a single file, where each book has a header line in the format
+ * book: id##book directory##registry file size##registry file last modified##number of lines
+ * followed by the lines of its registry. New records are appended, and the later records override the earlier ones.
+ * Since the registry files are only appended to, a registry which only has new lines at the end is stored as a
+ * record with the header line
+ * lines: id##book directory##registry file size##registry file last modified##number of new lines
+ * followed by only the new lines, which are appended to the previous record of the book.
+ *
+ * The file is read sequentially when the store is loaded, and it is compacted, when more than half of its records
+ * are superseded or appended lines.
+ */
+public class RegistryStore {
+    /** The logger.*/
+    private static final Logger log = LoggerFactory.getLogger(RegistryStore.class);
+
+    /** The name of the store file.*/
+    protected static final String STORE_FILE_NAME = "transfer_registry_store.txt";
+    /** The prefix of the header line of a record.*/
+    protected static final String RECORD_PREFIX = "book: ";
+    /** The prefix of the header line of a record with the lines appended to the previous record of the book.*/
+    protected static final String APPENDED_LINES_PREFIX = "lines: ";
+    /** The separator between the elements of the header line.*/
+    protected static final String SEPARATOR = "##";
+    /** The number of elements in the header line.*/
+    protected static final int NUMBER_OF_HEADER_ELEMENTS = 5;
+
+    /** The store file.*/
+    protected final File storeFile;
+    /** The records, mapped by book id.*/
+    protected final Map<String, Record> records = new HashMap<String, Record>();
+    /** The ids of the books, indexed by their ingest date.*/
+    protected final NavigableMap<Long, Set<String>> ingestIndex = new TreeMap<Long, Set<String>>();
+    /** The ids of the books, indexed by their latest update date.*/
+    protected final NavigableMap<Long, Set<String>> updateIndex = new TreeMap<Long, Set<String>>();
+    /** The ids of the books, indexed by the checksums of their files.*/
+    protected final Map<String, Set<String>> checksumIndex = new HashMap<String, Set<String>>();
+
+    /**
+     * Constructor.
+     * @param stateDir The directory for the persistent state.
+     * @throws IOException If the state directory cannot be created, or the store cannot be loaded.
+     */
+    public RegistryStore(File stateDir) throws IOException {
+        ArgumentCheck.checkNotNull(stateDir, "File stateDir");
+        this.storeFile = new File(FileUtils.createDirectory(stateDir.getAbsolutePath()), STORE_FILE_NAME);
+        load();
+    }
+
+    /**
+     * Retrieves the stored lines of the registry of the book, if the registry file has not changed since
+     * they were stored.
+     * @param bookDir The directory of the book.
+     * @return The lines of the registry, or null if the book is not in the store, or the registry file has changed.
+     */
+    public synchronized List<String> getLines(File bookDir) {
+        Record record = records.get(bookDir.getName());
+        File registryFile = new File(bookDir, TransferRegistry.REGISTRY_NAME);
+        if(record == null || !record.path.equals(bookDir.getAbsolutePath())
+                || record.registrySize != registryFile.length()
+                || record.registryModified != registryFile.lastModified()) {
+            return null;
+        }
+        return Collections.unmodifiableList(record.lines);
+    }
+
+    /**
+     * Stores the lines of the registry of the book, along with the current size and last modified date of
+     * the registry file.
+     * If the lines only extend the previously stored lines of the book, then only the new lines are appended to
+     * the store file.
+     * @param bookDir The directory of the book.
+     * @param lines The lines of the registry of the book.
+     */
+    public synchronized void put(File bookDir, List<String> lines) {
+        ArgumentCheck.checkNotNull(bookDir, "File bookDir");
+        ArgumentCheck.checkNotNull(lines, "List<String> lines");
+        File registryFile = new File(bookDir, TransferRegistry.REGISTRY_NAME);
+        Record record = new Record(bookDir.getName(), bookDir.getAbsolutePath(), registryFile.length(),
+                registryFile.lastModified(), new ArrayList<String>(lines));
+        Record previous = records.get(record.bookId);
+        addRecord(record);
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(storeFile, true), StandardCharsets.UTF_8)) {
+            if(isExtendedBy(previous, record)) {
+                writeRecord(writer, APPENDED_LINES_PREFIX, record, previous.lines.size());
+            } else {
+                writeRecord(writer, RECORD_PREFIX, record, 0);
+            }
+        } catch (IOException e) {
+            log.warn("Could not write the registry of book '" + record.bookId + "' to the registry store.", e);
+        }
+    }
+
+    /**
+     * @param previous The previous record of the book. May be null.
+     * @param record The new record of the book.
+     * @return Whether the lines of the new record start with all the lines of the previous record.
+     */
+    protected boolean isExtendedBy(Record previous, Record record) {
+        return previous != null && previous.path.equals(record.path)
+                && previous.lines.size() <= record.lines.size()
+                && previous.lines.equals(record.lines.subList(0, previous.lines.size()));
+    }
+
+    /**
+     * Imports the registry files of the books in the given directory into the store.
+     * @param baseDir The directory with the book directories.
+     * @return The number of imported registries.
+     * @throws IOException If it fails to read a registry file.
+     */
+    public int importRegistries(File baseDir) throws IOException {
+        ArgumentCheck.checkExistsDirectory(baseDir, "File baseDir");
+        int count = 0;
+        for(File bookDir : FileUtils.getFilesInDirectory(baseDir)) {
+            File registryFile = new File(bookDir, TransferRegistry.REGISTRY_NAME);
+            if(!bookDir.isDirectory() || !registryFile.isFile() || getLines(bookDir) != null) {
+                continue;
+            }
+            try (InputStream in = new FileInputStream(registryFile)) {
+                put(bookDir, StreamUtils.extractInputStreamAsLines(in));
+            }
+            count++;
+        }
+        log.info("Imported " + count + " registries from '" + baseDir.getAbsolutePath() + "'.");
+        return count;
+    }
+
+    /**
+     * Exports the registries of all the books in the store in the format of the registry files.
+     * The registry of each book is written to 'book id/transfer_registry.txt' in the output directory.
+     * @param outputDir The directory to export the registries to.
+     * @return The number of exported registries.
+     * @throws IOException If it fails to write a registry file.
+     */
+    public synchronized int exportRegistries(File outputDir) throws IOException {
+        ArgumentCheck.checkNotNull(outputDir, "File outputDir");
+        for(Record record : records.values()) {
+            File bookDir = FileUtils.createDirectory(new File(outputDir, record.bookId).getAbsolutePath());
+            try (Writer writer = new OutputStreamWriter(new FileOutputStream(
+                    new File(bookDir, TransferRegistry.REGISTRY_NAME)), StandardCharsets.UTF_8)) {
+                for(String line : record.lines) {
+                    writer.write(line + "\n");
+                }
+            }
+        }
+        return records.size();
+    }
+
+    /**
+     * @param bookId The id of the book.
+     * @return The ingest date of the book, or null if the book is not in the store or has not been ingested.
+     */
+    public synchronized Date getIngestDate(String bookId) {
+        Record record = records.get(bookId);
+        if(record == null || record.ingestDate == null) {
+            return null;
+        }
+        return new Date(record.ingestDate);
+    }
+
+    /**
+     * @param bookId The id of the book.
+     * @return The latest update date of the book, or null if the book is not in the store or has not been updated.
+     */
+    public synchronized Date getLatestUpdateDate(String bookId) {
+        Record record = records.get(bookId);
+        if(record == null || record.updateDate == null) {
+            return null;
+        }
+        return new Date(record.updateDate);
+    }
+
+    /**
+     * @param from The earliest date (inclusive).
+     * @param to The latest date (exclusive).
+     * @return The ids of the books ingested within the interval.
+     */
+    public synchronized Set<String> getBooksIngestedBetween(Date from, Date to) {
+        return collect(ingestIndex.subMap(from.getTime(), true, to.getTime(), false).values());
+    }
+
+    /**
+     * @param from The earliest date (inclusive).
+     * @param to The latest date (exclusive).
+     * @return The ids of the books whose latest update is within the interval.
+     */
+    public synchronized Set<String> getBooksUpdatedBetween(Date from, Date to) {
+        return collect(updateIndex.subMap(from.getTime(), true, to.getTime(), false).values());
+    }
+
+    /**
+     * @param date The date.
+     * @return The ids of the books which have been ingested or updated at or after the date.
+     */
+    public synchronized Set<String> getBooksChangedSince(Date date) {
+        Set<String> res = collect(ingestIndex.tailMap(date.getTime(), true).values());
+        res.addAll(collect(updateIndex.tailMap(date.getTime(), true).values()));
+        return res;
+    }
+
+    /**
+     * @return The ids of the books which have been ingested, but never updated.
+     */
+    public synchronized Set<String> getBooksNeverUpdated() {
+        Set<String> res = new TreeSet<String>();
+        for(Record record : records.values()) {
+            if(record.ingestDate != null && record.updateDate == null) {
+                res.add(record.bookId);
+            }
+        }
+        return res;
+    }
+
+    /**
+     * @param checksum The checksum.
+     * @return The ids of the books with a file with the given checksum.
+     */
+    public synchronized Set<String> getBooksWithChecksum(String checksum) {
+        Set<String> res = checksumIndex.get(checksum);
+        if(res == null) {
+            return new TreeSet<String>();
+        }
+        return new TreeSet<String>(res);
+    }
+
+    /**
+     * @return The number of books in the store.
+     */
+    public synchronized int size() {
+        return records.size();
+    }
+
+    /**
+     * @param values The sets of book ids.
+     * @return The union of the sets of book ids.
+     */
+    protected Set<String> collect(Collection<Set<String>> values) {
+        Set<String> res = new TreeSet<String>();
+        for(Set<String> ids : values) {
+            res.addAll(ids);
+        }
+        return res;
+    }
+
+    /**
+     * Adds the record to the records and the indexes, and removes any previous record for the book.
+     * @param record The record.
+     */
+    protected void addRecord(Record record) {
+        Record old = records.put(record.bookId, record);
+        if(old != null) {
+            removeFromIndex(ingestIndex, old.ingestDate, old.bookId);
+            removeFromIndex(updateIndex, old.updateDate, old.bookId);
+            for(String checksum : old.checksums.values()) {
+                removeFromIndex(checksumIndex, checksum, old.bookId);
+            }
+        }
+        addToIndex(ingestIndex, record.ingestDate, record.bookId);
+        addToIndex(updateIndex, record.updateDate, record.bookId);
+        for(String checksum : record.checksums.values()) {
+            addToIndex(checksumIndex, checksum, record.bookId);
+        }
+    }
+
+    /**
+     * Adds the book id to the index.
+     * @param index The index.
+     * @param key The key. Nothing is added, if it is null.
+     * @param bookId The book id.
+     */
+    protected <T> void addToIndex(Map<T, Set<String>> index, T key, String bookId) {
+        if(key == null) {
+            return;
+        }
+        Set<String> ids = index.get(key);
+        if(ids == null) {
+            ids = new TreeSet<String>();
+            index.put(key, ids);
+        }
+        ids.add(bookId);
+    }
+
+    /**
+     * Removes the book id from the index.
+     * @param index The index.
+     * @param key The key. Nothing is removed, if it is null.
+     * @param bookId The book id.
+     */
+    protected <T> void removeFromIndex(Map<T, Set<String>> index, T key, String bookId) {
+        if(key == null) {
+            return;
+        }
+        Set<String> ids = index.get(key);
+        if(ids != null) {
+            ids.remove(bookId);
+            if(ids.isEmpty()) {
+                index.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Writes the record to the writer; the header line and the lines of the record from the given index.
+     * @param writer The writer.
+     * @param prefix The prefix of the header line; either for a record or for appended lines.
+     * @param record The record.
+     * @param fromLine The index of the first line to write.
+     * @throws IOException If it fails to write.
+     */
+    protected void writeRecord(Writer writer, String prefix, Record record, int fromLine) throws IOException {
+        List<String> lines = record.lines.subList(fromLine, record.lines.size());
+        writer.write(prefix + record.bookId + SEPARATOR + record.path + SEPARATOR + record.registrySize
+                + SEPARATOR + record.registryModified + SEPARATOR + lines.size() + "\n");
+        for(String line : lines) {
+            writer.write(line + "\n");
+        }
+    }
+
+    /**
+     * Loads the store file, and then compacts it, so it only contains a single record for each book, if more than
+     * half of its records have been superseded or are appended lines.
+     * @throws IOException If it fails to read or compact the store file.
+     */
+    protected void load() throws IOException {
+        if(!storeFile.isFile()) {
+            return;
+        }
+        int numberOfRecords = 0;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(storeFile),
+                StandardCharsets.UTF_8))) {
+            String line;
+            while((line = reader.readLine()) != null) {
+                Record record = readRecord(line, reader);
+                if(record != null) {
+                    addRecord(record);
+                    numberOfRecords++;
+                }
+            }
+        }
+        log.debug("Loaded " + records.size() + " books from " + numberOfRecords + " records in the registry store.");
+
+        if(numberOfRecords > 2 * records.size()) {
+            log.info("Compacting the registry store from " + numberOfRecords + " records to " + records.size()
+                    + " records.");
+            File tmpFile = new File(storeFile.getParentFile(), storeFile.getName() + ".tmp");
+            try (Writer writer = new OutputStreamWriter(new FileOutputStream(tmpFile), StandardCharsets.UTF_8)) {
+                for(Record record : records.values()) {
+                    writeRecord(writer, RECORD_PREFIX, record, 0);
+                }
+            }
+            FileUtils.moveFile(tmpFile, storeFile);
+        }
+    }
+
+    /**
+     * Reads the record with the given header line.
+     * For appended lines, the record is the previous record of the book with the appended lines.
+     * @param header The header line.
+     * @param reader The reader, positioned at the lines of the record.
+     * @return The record, or null if the header line is invalid, the record is truncated, or if the appended lines
+     * do not have a previous record.
+     * @throws IOException If it fails to read the lines.
+     */
+    protected Record readRecord(String header, BufferedReader reader) throws IOException {
+        String prefix = header.startsWith(RECORD_PREFIX) ? RECORD_PREFIX
+                : header.startsWith(APPENDED_LINES_PREFIX) ? APPENDED_LINES_PREFIX : null;
+        String[] split = prefix != null ? header.substring(prefix.length()).split(SEPARATOR, -1) : new String[0];
+        if(split.length != NUMBER_OF_HEADER_ELEMENTS) {
+            log.warn("Ignoring invalid line in the registry store: " + header);
+            return null;
+        }
+        try {
+            int numberOfLines = Integer.parseInt(split[4]);
+            List<String> lines = new ArrayList<String>();
+            Record previous = records.get(split[0]);
+            if(prefix.equals(APPENDED_LINES_PREFIX) && previous != null && previous.path.equals(split[1])) {
+                lines.addAll(previous.lines);
+            } else if(prefix.equals(APPENDED_LINES_PREFIX)) {
+                log.warn("Ignoring appended lines without a previous record in the registry store for book '"
+                        + split[0] + "'.");
+                lines = null;
+            }
+            for(int i = 0; i < numberOfLines; i++) {
+                String line = reader.readLine();
+                if(line == null) {
+                    log.warn("Ignoring truncated record in the registry store for book '" + split[0] + "'.");
+                    return null;
+                }
+                if(lines != null) {
+                    lines.add(line);
+                }
+            }
+            if(lines == null) {
+                return null;
+            }
+            return new Record(split[0], split[1], Long.parseLong(split[2]), Long.parseLong(split[3]), lines);
+        } catch (NumberFormatException e) {
+            log.warn("Ignoring invalid record in the registry store: " + header, e);
+            return null;
+        }
+    }
+
+    /**
+     * The record of the registry of a book.
+     */
+    protected static class Record {
+        /** The book id.*/
+        protected final String bookId;
+        /** The absolute path of the book directory.*/
+        protected final String path;
+        /** The size of the registry file, when the record was made.*/
+        protected final long registrySize;
+        /** The last modified date of the registry file, when the record was made.*/
+        protected final long registryModified;
+        /** The lines of the registry.*/
+        protected final List<String> lines;
+        /** The first ingest date, or null if none.*/
+        protected Long ingestDate;
+        /** The latest update date, or null if none.*/
+        protected Long updateDate;
+        /** The latest checksum of each file.*/
+        protected final Map<String, String> checksums = new HashMap<String, String>();
+
+        /**
+         * Constructor.
+         * @param bookId The book id.
+         * @param path The absolute path of the book directory.
+         * @param registrySize The size of the registry file.
+         * @param registryModified The last modified date of the registry file.
+         * @param lines The lines of the registry.
+         */
+        protected Record(String bookId, String path, long registrySize, long registryModified, List<String> lines) {
+            this.bookId = bookId;
+            this.path = path;
+            this.registrySize = registrySize;
+            this.registryModified = registryModified;
+            this.lines = lines;
+            for(String line : lines) {
+                try {
+                    if(line.startsWith(TransferRegistry.LINE_PREFIX_INGEST) && ingestDate == null) {
+                        ingestDate = Long.parseLong(line.substring(TransferRegistry.LINE_PREFIX_INGEST.length()));
+                    } else if(line.startsWith(TransferRegistry.LINE_PREFIX_UPDATE)) {
+                        updateDate = Long.parseLong(line.substring(TransferRegistry.LINE_PREFIX_UPDATE.length()));
+                    } else if(line.startsWith(TransferRegistry.LINE_PREFIX_CHECKSUM)) {
+                        String entry = line.substring(TransferRegistry.LINE_PREFIX_CHECKSUM.length());
+                        int index = entry.lastIndexOf(TransferRegistry.LINE_FILENAME_VALUE_SEPARATOR);
+                        if(index > 0 && index + TransferRegistry.LINE_FILENAME_VALUE_SEPARATOR.length()
+                                < entry.length()) {
+                            checksums.put(entry.substring(0, index),
+                                    entry.substring(index + TransferRegistry.LINE_FILENAME_VALUE_SEPARATOR.length()));
+                        }
+                    }
+                } catch (NumberFormatException e) {
+                    log.debug("Ignoring invalid date in the registry of book '" + bookId + "': " + line);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package dk.kb.elivagar.transfer;
+
+import dk.kb.elivagar.config.TransferConfiguration;
+import dk.kb.elivagar.exception.ArgumentCheck;
+import dk.kb.elivagar.utils.IoPriority;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Engine for transferring the books in parallel.
+ *
+ * The books are transferred by a bounded pool of workers, where only a limited number of books are waiting
+ * for a worker at any time.
+ * The writes to the destinations go through a lane for each destination file system, which limits the number
+ * of concurrent writes to that file system. Thus the ingest, update content and update metadata destinations
+ * can be written concurrently, when they are on different file systems, without overloading any of them.
+ */
+public class TransferEngine {
+    /** The logger.*/
+    private static final Logger log = LoggerFactory.getLogger(TransferEngine.class);
+
+    /** The number of books transferred concurrently.*/
+    protected final int workers;
+    /** The number of concurrent writes to each destination file system.*/
+    protected final int laneConcurrency;
+    /** Whether the workers should lower their I/O priority.*/
+    protected final boolean lowPriorityIo;
+    /** The lanes for the destination file systems.*/
+    protected final Map<FileStore, Semaphore> lanes = new HashMap<FileStore, Semaphore>();
+
+    /** The executor for the book transfers. Is null, when the engine is not started.*/
+    protected ExecutorService executor;
+    /** The semaphore for the books waiting for a worker.*/
+    protected Semaphore pending;
+
+    /**
+     * Constructor.
+     * @param conf The transfer configuration with the number of workers, the lane concurrency and whether the
+     * I/O priority should be lowered.
+     */
+    public TransferEngine(TransferConfiguration conf) {
+        this(conf.getWorkers(), conf.getLaneConcurrency(), conf.isLowPriorityIo());
+    }
+
+    /**
+     * Constructor, where the workers keep their I/O priority.
+     * @param workers The number of books transferred concurrently.
+     * @param laneConcurrency The number of concurrent writes to each destination file system.
+     */
+    public TransferEngine(int workers, int laneConcurrency) {
+        this(workers, laneConcurrency, false);
+    }
+
+    /**
+     * Constructor.
+     * @param workers The number of books transferred concurrently.
+     * @param laneConcurrency The number of concurrent writes to each destination file system.
+     * @param lowPriorityIo Whether the workers should lower their I/O priority, when they start.
+     */
+    public TransferEngine(int workers, int laneConcurrency, boolean lowPriorityIo) {
+        ArgumentCheck.checkPositiveInt(workers, "int workers");
+        ArgumentCheck.checkPositiveInt(laneConcurrency, "int laneConcurrency");
+        this.workers = workers;
+        this.laneConcurrency = laneConcurrency;
+        this.lowPriorityIo = lowPriorityIo;
+    }
+
+    /**
+     * Starts the pool of workers.
+     */
+    public synchronized void start() {
+        if(executor != null) {
+            return;
+        }
+        log.debug("Starting the transfer with " + workers + " workers and " + laneConcurrency
+                + " concurrent writes to each destination file system.");
+        ThreadFactory threadFactory = new TransferThreadFactory();
+        if(lowPriorityIo) {
+            threadFactory = new IoPriority.LowPriorityThreadFactory(threadFactory);
+        }
+        executor = Executors.newFixedThreadPool(workers, threadFactory);
+        pending = new Semaphore(workers * 2);
+    }
+
+    /**
+     * Submits the transfer of a book to the pool of workers.
+     * Blocks while too many books are waiting for a worker.
+     * If the engine is not started, then the transfer is run directly.
+     * @param task The transfer of the book.
+     * @throws InterruptedException If it is interrupted while waiting.
+     */
+    public void submit(final Runnable task) throws InterruptedException {
+        ExecutorService currentExecutor;
+        Semaphore currentPending;
+        synchronized(this) {
+            currentExecutor = executor;
+            currentPending = pending;
+        }
+        if(currentExecutor == null) {
+            task.run();
+            return;
+        }
+        final Semaphore release = currentPending;
+        release.acquire();
+        currentExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    log.error("Failure during the transfer of a book.", e);
+                } finally {
+                    release.release();
+                }
+            }
+        });
+    }
+
+    /**
+     * Waits for all the submitted transfers to finish, and then stops the pool of workers.
+     * @throws InterruptedException If it is interrupted while waiting.
+     */
+    public void finish() throws InterruptedException {
+        ExecutorService currentExecutor;
+        synchronized(this) {
+            currentExecutor = executor;
+            executor = null;
+            pending = null;
+        }
+        if(currentExecutor == null) {
+            return;
+        }
+        currentExecutor.shutdown();
+        try {
+            while(!currentExecutor.awaitTermination(1, TimeUnit.MINUTES)) {
+                log.debug("Waiting for the last book transfers.");
+            }
+        } finally {
+            currentExecutor.shutdownNow();
+        }
+    }
+
+    /**
+     * Enters the lane for the file system of the destination, and waits until a write is allowed.
+     * The lane must be left again with {@link #leaveLane(Semaphore)}, when the write is finished.
+     * @param destination The destination file or directory. It does not have to exist yet.
+     * @return The lane.
+     * @throws IOException If the file system of the destination cannot be found, or if it is interrupted.
+     */
+    public Semaphore enterLane(File destination) throws IOException {
+        Semaphore lane = getLane(destination);
+        try {
+            lane.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the lane for '" + destination.getAbsolutePath()
+                    + "'", e);
+        }
+        return lane;
+    }
+
+    /**
+     * Leaves the lane again.
+     * @param lane The lane to leave.
+     */
+    public void leaveLane(Semaphore lane) {
+        lane.release();
+    }
+
+    /**
+     * Retrieves the lane for the file system of the destination, or creates it if it does not already exist.
+     * @param destination The destination file or directory.
+     * @return The lane.
+     * @throws IOException If the file system of the destination cannot be found.
+     */
+    protected synchronized Semaphore getLane(File destination) throws IOException {
+        File existing = destination.getAbsoluteFile();
+        while(!existing.exists() && existing.getParentFile() != null) {
+            existing = existing.getParentFile();
+        }
+        FileStore fileStore = Files.getFileStore(existing.toPath());
+        Semaphore lane = lanes.get(fileStore);
+        if(lane == null) {
+            log.debug("Creating the transfer lane for the file system '" + fileStore + "'.");
+            lane = new Semaphore(laneConcurrency, true);
+            lanes.put(fileStore, lane);
+        }
+        return lane;
+    }
+
+    /**
+     * Thread factory for the transfer workers.
+     */
+    protected static class TransferThreadFactory implements ThreadFactory {
+        /** The number of threads created by this factory.*/
+        protected final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            return new Thread(r, "transfer-" + count.incrementAndGet());
+        }
+    }
+}
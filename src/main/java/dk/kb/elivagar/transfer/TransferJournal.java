@@ -0,0 +1,315 @@
+package dk.kb.elivagar.transfer;
+
+import dk.kb.elivagar.exception.ArgumentCheck;
+import dk.kb.elivagar.utils.ChecksumUtils;
+import dk.kb.elivagar.utils.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Write-ahead journal for the transfer of a book into a transfer directory (the '_transfer' directory, which is
+ * moved to its destination, when all the files have been transferred).
+ *
+ * The journal is kept inside the transfer directory. It starts with the intent (the book directory being
+ * transferred), followed by a line for each file, when it has been completely transferred, with the size and
+ * last modified date of the original file and the checksums of the transferred file.
+ * The lines are tab separated:
+ * <pre>
+ * BEGIN  /path/to/book/dir  1570625978000
+ * FILE   name  size  last-modified  MD5=checksum  [SHA-256=checksum]
+ * </pre>
+ *
+ * If the transfer is interrupted (e.g. the JVM dies), then the next transfer of the book resumes in the same
+ * transfer directory. A file in the journal is only skipped, when the original file is unchanged and the checksums
+ * of the transferred file still match the journal, so a file lost or truncated by a crash is always transferred
+ * again. All other files in the transfer directory (partially written files and files not part of the transfer)
+ * are deleted, before the transfer is resumed.
+ * Since the transferred files are verified on resume, the journal does not need to be forced to disk.
+ *
+ * The journal is removed by commit, before the transfer directory is moved to its destination.
+ */
+public class TransferJournal implements Closeable {
+    /** The logger.*/
+    private static final Logger log = LoggerFactory.getLogger(TransferJournal.class);
+
+    /** The name of the journal file in the transfer directory.*/
+    protected static final String JOURNAL_FILE_NAME = ".transfer_journal";
+    /** The type of the line with the intent of the transfer.*/
+    protected static final String LINE_BEGIN = "BEGIN";
+    /** The type of the lines with a transferred file.*/
+    protected static final String LINE_FILE = "FILE";
+    /** The separator between the fields of a line.*/
+    protected static final String FIELD_SEPARATOR = "\t";
+    /** The separator between the algorithm and the checksum.*/
+    protected static final String CHECKSUM_SEPARATOR = "=";
+
+    /** The transfer directory.*/
+    protected final File transferDir;
+    /** The journal file.*/
+    protected final File journalFile;
+    /** The checksum algorithms of the transfer.*/
+    protected final Collection<String> algorithms;
+    /** The transferred files from the journal, mapped by their name.*/
+    protected final Map<String, Entry> entries = new HashMap<String, Entry>();
+    /** The writer for appending to the journal.*/
+    protected Writer writer;
+
+    /**
+     * Constructor. Opens the journal of the transfer directory, and resumes it, if it already exists.
+     * Files in the transfer directory, which are not among the files to transfer or not in the journal, are deleted.
+     * @param transferDir The transfer directory.
+     * @param bookDir The directory of the book being transferred.
+     * @param files The files to transfer.
+     * @param algorithms The checksum algorithms of the transfer.
+     * @throws IOException If it fails to read or write the journal.
+     */
+    public TransferJournal(File transferDir, File bookDir, Collection<File> files, Collection<String> algorithms)
+            throws IOException {
+        ArgumentCheck.checkExistsDirectory(transferDir, "File transferDir");
+        ArgumentCheck.checkNotNull(bookDir, "File bookDir");
+        ArgumentCheck.checkNotNull(files, "Collection<File> files");
+        ArgumentCheck.checkNotNullOrEmpty(algorithms, "Collection<String> algorithms");
+        this.transferDir = transferDir;
+        this.journalFile = new File(transferDir, JOURNAL_FILE_NAME);
+        this.algorithms = algorithms;
+
+        if(journalFile.isFile()) {
+            loadEntries();
+            log.info("Resuming the transfer into '" + transferDir.getAbsolutePath() + "', which has "
+                    + entries.size() + " transferred files in the journal.");
+        }
+        removeUnjournaledFiles(files);
+        this.writer = new OutputStreamWriter(new FileOutputStream(journalFile, true), StandardCharsets.UTF_8);
+        append(LINE_BEGIN + FIELD_SEPARATOR + bookDir.getAbsolutePath() + FIELD_SEPARATOR
+                + System.currentTimeMillis());
+    }
+
+    /**
+     * Retrieves the checksums of a file, which has already been transferred according to the journal.
+     * The file is only considered transferred, if the original file has the same size and last modified date as in
+     * the journal, and the transferred file has the same size and checksums as in the journal.
+     * @param fromFile The original file.
+     * @param toFile The transferred file.
+     * @return The checksums of the transferred file, or null if the file must be transferred.
+     * @throws IOException If it fails to read the files.
+     */
+    public Map<String, String> getVerifiedChecksums(File fromFile, File toFile) throws IOException {
+        Entry entry = entries.get(toFile.getName());
+        if(entry == null || !toFile.isFile()) {
+            return null;
+        }
+        Path fromPath = FileUtils.getFileOrSymlinkPath(fromFile);
+        if(Files.size(fromPath) != entry.size || Files.getLastModifiedTime(fromPath).toMillis() != entry.date
+                || toFile.length() != entry.size) {
+            log.debug("The file '" + fromFile.getAbsolutePath() + "' has changed since it was journaled.");
+            return null;
+        }
+        Map<String, String> res = ChecksumUtils.calculateChecksums(toFile, algorithms);
+        for(Map.Entry<String, String> checksum : entry.checksums.entrySet()) {
+            if(res.containsKey(checksum.getKey()) && !res.get(checksum.getKey()).equals(checksum.getValue())) {
+                log.warn("The transferred file '" + toFile.getAbsolutePath() + "' does not match the journal.");
+                return null;
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Records in the journal, that a file has been completely transferred.
+     * @param fromFile The original file.
+     * @param toFile The transferred file.
+     * @param checksums The checksums of the transferred file, mapped by algorithm.
+     * @throws IOException If it fails to write to the journal.
+     */
+    public void fileTransferred(File fromFile, File toFile, Map<String, String> checksums) throws IOException {
+        Path fromPath = FileUtils.getFileOrSymlinkPath(fromFile);
+        Entry entry = new Entry(Files.size(fromPath), Files.getLastModifiedTime(fromPath).toMillis(),
+                new LinkedHashMap<String, String>(checksums));
+        StringBuilder line = new StringBuilder();
+        line.append(LINE_FILE + FIELD_SEPARATOR + toFile.getName() + FIELD_SEPARATOR + entry.size + FIELD_SEPARATOR
+                + entry.date);
+        for(Map.Entry<String, String> checksum : checksums.entrySet()) {
+            line.append(FIELD_SEPARATOR + checksum.getKey() + CHECKSUM_SEPARATOR + checksum.getValue());
+        }
+        append(line.toString());
+        entries.put(toFile.getName(), entry);
+    }
+
+    /**
+     * Commits the transfer; closes and removes the journal, so the transfer directory can be moved to its
+     * destination.
+     * @throws IOException If it fails to close the journal.
+     */
+    public void commit() throws IOException {
+        close();
+        FileUtils.deleteFile(journalFile);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if(writer != null) {
+            writer.close();
+            writer = null;
+        }
+    }
+
+    /**
+     * Appends a line to the journal, and flushes it.
+     * @param line The line.
+     * @throws IOException If it fails to write the line.
+     */
+    protected void append(String line) throws IOException {
+        writer.write(line + "\n");
+        writer.flush();
+    }
+
+    /**
+     * Loads the transferred files from the journal. Incomplete lines (e.g. from a crash) are ignored.
+     * @throws IOException If it fails to read the journal.
+     */
+    protected void loadEntries() throws IOException {
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(journalFile),
+                StandardCharsets.UTF_8))) {
+            String line;
+            while((line = reader.readLine()) != null) {
+                String[] fields = line.split(FIELD_SEPARATOR);
+                if(!fields[0].equals(LINE_FILE) || fields.length < 5) {
+                    continue;
+                }
+                try {
+                    Map<String, String> checksums = new LinkedHashMap<String, String>();
+                    for(int i = 4; i < fields.length; i++) {
+                        int index = fields[i].lastIndexOf(CHECKSUM_SEPARATOR);
+                        checksums.put(fields[i].substring(0, index), fields[i].substring(index + 1));
+                    }
+                    entries.put(fields[1], new Entry(Long.parseLong(fields[2]), Long.parseLong(fields[3]),
+                            checksums));
+                } catch (RuntimeException e) {
+                    log.debug("Ignoring the invalid journal line: " + line, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Deletes the files in the transfer directory, which are either not in the journal or not among the files to
+     * transfer, since they may be partially written.
+     * @param files The files to transfer.
+     */
+    protected void removeUnjournaledFiles(Collection<File> files) {
+        Set<String> names = new HashSet<String>();
+        for(File f : files) {
+            names.add(f.getName());
+        }
+        for(File f : FileUtils.getFilesInDirectory(transferDir)) {
+            if(f.getName().equals(JOURNAL_FILE_NAME)) {
+                continue;
+            }
+            if(!names.contains(f.getName()) || !entries.containsKey(f.getName())) {
+                log.debug("Removing the untransferred file '" + f.getAbsolutePath() + "'");
+                FileUtils.deleteDirectory(f);
+                entries.remove(f.getName());
+            }
+        }
+    }
+
+    /**
+     * Retrieves the book directory from the journal of a transfer directory.
+     * @param transferDir The transfer directory.
+     * @return The book directory being transferred, or null if the transfer directory has no journal.
+     * @throws IOException If it fails to read the journal.
+     */
+    public static File getBookDir(File transferDir) throws IOException {
+        File journalFile = new File(transferDir, JOURNAL_FILE_NAME);
+        if(!journalFile.isFile()) {
+            return null;
+        }
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(journalFile),
+                StandardCharsets.UTF_8))) {
+            String line;
+            while((line = reader.readLine()) != null) {
+                String[] fields = line.split(FIELD_SEPARATOR);
+                if(fields[0].equals(LINE_BEGIN) && fields.length > 1) {
+                    return new File(fields[1]);
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Recovers the orphaned transfer directories in the given base directory.
+     * A transfer directory with a journal for an existing book directory is kept, so it can be completed, when
+     * the book is transferred again. Other transfer directories cannot be completed, and they are deleted.
+     * @param baseDir The base directory of the destinations.
+     * @param transferDirSuffix The suffix of the transfer directories.
+     * @return The transfer directories, which are kept for completion.
+     * @throws IOException If it fails to read a journal.
+     */
+    public static List<File> recoverTransferDirs(File baseDir, String transferDirSuffix) throws IOException {
+        List<File> res = new ArrayList<File>();
+        if(!baseDir.isDirectory()) {
+            return res;
+        }
+        for(File f : FileUtils.getFilesInDirectory(baseDir)) {
+            if(!f.isDirectory() || !f.getName().endsWith(transferDirSuffix)) {
+                continue;
+            }
+            File bookDir = getBookDir(f);
+            if(bookDir != null && bookDir.isDirectory()) {
+                log.info("The transfer directory '" + f.getAbsolutePath() + "' will be completed, when the book '"
+                        + bookDir.getName() + "' is transferred.");
+                res.add(f);
+            } else {
+                log.warn("Removing the orphaned transfer directory '" + f.getAbsolutePath() + "'");
+                FileUtils.deleteDirectory(f);
+            }
+        }
+        return res;
+    }
+
+    /**
+     * The journal entry of a transferred file.
+     */
+    protected static class Entry {
+        /** The size of the original file.*/
+        protected final long size;
+        /** The last modified date of the original file.*/
+        protected final long date;
+        /** The checksums of the transferred file, mapped by algorithm.*/
+        protected final Map<String, String> checksums;
+
+        /**
+         * Constructor.
+         * @param size The size of the original file.
+         * @param date The last modified date of the original file.
+         * @param checksums The checksums of the transferred file, mapped by algorithm.
+         */
+        protected Entry(long size, long date, Map<String, String> checksums) {
+            this.size = size;
+            this.date = date;
+            this.checksums = checksums;
+        }
+    }
+}
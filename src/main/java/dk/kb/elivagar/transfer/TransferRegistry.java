@@ -1,6 +1,5 @@
 package dk.kb.elivagar.transfer;
 
-import com.google.common.collect.Lists;
 import dk.kb.elivagar.exception.ArgumentCheck;
 import dk.kb.elivagar.utils.ChecksumUtils;
 import dk.kb.elivagar.utils.StreamUtils;
@@ -12,11 +11,13 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * The transfer registry for a given book.
@@ -24,7 +25,18 @@ import java.util.List;
  * (either content or metadata).
  *
  * Whenever a book is ingested or updated, it also writes a line for the checksum of the content-file along with
- * the last modified time-stamp.
+ * the last modified time-stamp. The same is written for the metadata and technical metadata files, so they are 
+ * only updated, when their content has changed.
+ * After an update, it writes a line with the summary of the book directory, if it has changed, so an unchanged book
+ * can be skipped in the next run (see {@link BookSummary}).
+ *
+ * The registry file is only read once, into an in-memory model with the ingest date, the latest update date and
+ * the latest checksum and date of each file. 
+ * The new lines are applied to the model and buffered, until they are appended to the registry file with 
+ * the {@link #flush()} method, which should be called once the book has been handled.
+ *
+ * If a registry store is given, then the lines are taken from the store instead of the registry file, unless the
+ * registry file has changed since they were stored, and the store is updated at every flush.
  */
 public class TransferRegistry {
     /** The logger.*/
@@ -44,6 +56,8 @@ public class TransferRegistry {
     protected static final String LINE_PREFIX_CHECKSUM = ChecksumUtils.MD5_ALGORITHM + ": ";
     /** The line prefix for file date lines.*/
     protected static final String LINE_PREFIX_FILE_DATE = "File date: ";
+    /** The line prefix for the summary of the book directory.*/
+    protected static final String LINE_PREFIX_SUMMARY = "summary: ";
     /** The separator between the filename and the value.*/
     protected static final String LINE_FILENAME_VALUE_SEPARATOR = "##";
 
@@ -51,22 +65,51 @@ public class TransferRegistry {
     protected final File bookDir;
     /** The transfer registry file for the book.*/
     protected final File registryFile;
+    /** The central store of the registries. May be null, if only the registry file is used.*/
+    protected final RegistryStore store;
+
+    /** The lines, which have not yet been written to the registry file.*/
+    protected final List<String> pendingLines = new ArrayList<String>();
+    /** Whether the registry file has been loaded into the model.*/
+    protected boolean loaded = false;
+    /** The lines of the registry, including the pending lines.*/
+    protected final List<String> lines = new ArrayList<String>();
+    /** The first ingest date in the registry, or null if none.*/
+    protected String ingestDate;
+    /** The latest update date in the registry, or null if none.*/
+    protected String latestUpdateDate;
+    /** The latest checksum for each file name.*/
+    protected final Map<String, String> checksums = new HashMap<String, String>();
+    /** The latest date for each file name.*/
+    protected final Map<String, String> fileDates = new HashMap<String, String>();
+    /** The latest summary of the book directory.*/
+    protected String latestSummary;
 
     /**
-     * Constructor.
+     * Constructor, without any central store of the registries.
      * @param bookDir The directory for the book.
      */
     public TransferRegistry(File bookDir) {
+        this(bookDir, null);
+    }
+
+    /**
+     * Constructor.
+     * @param bookDir The directory for the book.
+     * @param store The central store of the registries. May be null, if only the registry file should be used.
+     */
+    public TransferRegistry(File bookDir, RegistryStore store) {
         ArgumentCheck.checkExistsDirectory(bookDir, "File bookDir");
         this.bookDir = bookDir;
         this.registryFile = new File(bookDir, REGISTRY_NAME);
+        this.store = store;
     }
 
     /**
      * @return Whether or not the book has been ingested.
      */
     public boolean hasBeenIngested() {
-        return registryFile.exists();
+        return registryFile.exists() || !pendingLines.isEmpty();
     }
 
     /**
@@ -82,27 +125,19 @@ public class TransferRegistry {
 
     /**
      * Retrieves the date for the ingest.
-     * The lines of the registry has to be read in reverse, since every action is added.
+     * This is the first ingest date in the registry.
      * @return The date for the ingest. Or null if no ingest date can be found in the registry.
      */
     public Date getIngestDate() {
-        if(!hasBeenIngested()) {
+        if(!hasBeenIngested() || !loadModel()) {
             return null;
         }
 
-        try(InputStream input = new FileInputStream(registryFile)) {
-            List<String> lines = StreamUtils.extractInputStreamAsLines(input);
-            for(String line : lines) {
-                if(line.startsWith(LINE_PREFIX_INGEST)) {
-                    Long date = Long.parseLong(line.replace(LINE_PREFIX_INGEST, ""));
-                    return new Date(date);
-                }
-            }
+        if(ingestDate == null) {
             log.warn("Could not find a ingest date for book '" + bookDir.getName() + "'. Returning a null.");
-        } catch (IOException e) {
-            log.error("Could not read the registry file for book '" + bookDir.getName() + "'. Returning a null.", e);
+            return null;
         }
-        return null;
+        return new Date(Long.parseLong(ingestDate));
     }
 
     /**
@@ -117,30 +152,20 @@ public class TransferRegistry {
     }
 
     /**
-     * Retrieves the date for the update, or null if it has not yet been updated.
-     * The lines of the registry has to be read in reverse, since every action is appended in chronological order.
+     * Retrieves the date for the update, or the ingest date if it has not yet been updated.
      * @return The date for the latest update. Or null if no update date can be found in the registry.
      */
     public Date getLatestUpdateDate() {
-        if(!hasBeenIngested()) {
+        if(!hasBeenIngested() || !loadModel()) {
             return null;
         }
 
-        try(InputStream input = new FileInputStream(registryFile)) {
-            List<String> lines = StreamUtils.extractInputStreamAsLines(input);
-            for(String line : Lists.reverse(lines)) {
-                if(line.startsWith(LINE_PREFIX_UPDATE)) {
-                    Long date = Long.parseLong(line.replace(LINE_PREFIX_UPDATE, ""));
-                    return new Date(date);
-                }
-            }
+        if(latestUpdateDate == null) {
             log.debug("Could not find a update date for book '" + bookDir.getName() + "'. "
                     + "Has possibly not been updated yet. Trying to find the ingest date.");
             return getIngestDate();
-        } catch (IOException e) {
-            log.error("Could not read the registry file for book '" + bookDir.getName() + "'. Returning a null.", e);
         }
-        return null;
+        return new Date(Long.parseLong(latestUpdateDate));
     }
 
     /**
@@ -150,18 +175,16 @@ public class TransferRegistry {
      * @return Whether or not it has an entry.
      */
     public boolean hasFileEntry(File f) {
-        if(!hasBeenIngested()) {
+        if(!hasBeenIngested() || !loadModel()) {
             return false;
         }
 
-        String datePrefix = LINE_PREFIX_FILE_DATE + f.getName() + LINE_FILENAME_VALUE_SEPARATOR;
-        String date = getLatestEntryWithPrefix(datePrefix);
+        String date = fileDates.get(f.getName());
         if(date == null || date.isEmpty()) {
             return false;
         }
 
-        String checksumPrefix = LINE_PREFIX_CHECKSUM + f.getName() + LINE_FILENAME_VALUE_SEPARATOR;
-        String checksum = getLatestEntryWithPrefix(checksumPrefix);
+        String checksum = checksums.get(f.getName());
         if(checksum == null || checksum.isEmpty()) {
             return false;
         }
@@ -174,14 +197,26 @@ public class TransferRegistry {
      * @param f The file to handle.
      */
     public void setChecksumAndDate(File f) {
-        try (InputStream in = new FileInputStream(f)) {
-            String checksum = ChecksumUtils.generateMD5Checksum(in);
-            String line = LINE_PREFIX_CHECKSUM + f.getName() + LINE_FILENAME_VALUE_SEPARATOR + checksum;
-            writeLine(line);
+        String checksum;
+        try {
+            checksum = ChecksumUtils.calculateMD5Checksum(f);
         } catch (IOException e) {
             throw new IllegalStateException("Could not calculate the chekcum of file '" + f.getAbsolutePath()
                     + "'.", e);
         }
+        setChecksumAndDate(f, checksum);
+    }
+
+    /**
+     * Writes the given checksum and the date for the given file.
+     * Used when the checksum has already been calculated, e.g. while the file was copied.
+     * @param f The file to handle.
+     * @param checksum The MD5 checksum of the file.
+     */
+    public void setChecksumAndDate(File f, String checksum) {
+        ArgumentCheck.checkNotNullOrEmpty(checksum, "String checksum");
+        String line = LINE_PREFIX_CHECKSUM + f.getName() + LINE_FILENAME_VALUE_SEPARATOR + checksum;
+        writeLine(line);
 
         String dateLine = LINE_PREFIX_FILE_DATE + f.getName() + LINE_FILENAME_VALUE_SEPARATOR + f.lastModified();
         writeLine(dateLine);
@@ -207,11 +242,13 @@ public class TransferRegistry {
      * @return Whether or not the file is the latest with its name in the registry.
      */
     public boolean verifyFile(File f) {
-        String datePrefix = LINE_PREFIX_FILE_DATE + f.getName() + LINE_FILENAME_VALUE_SEPARATOR;
-        String checksumPrefix = LINE_PREFIX_CHECKSUM + f.getName() + LINE_FILENAME_VALUE_SEPARATOR;
+        if(!hasBeenIngested() || !loadModel()) {
+            log.debug("No registry for the file.");
+            return false;
+        }
 
         // first check date.
-        String lastModifiedDate = getLatestEntryWithPrefix(datePrefix);
+        String lastModifiedDate = fileDates.get(f.getName());
         if(lastModifiedDate == null || lastModifiedDate.isEmpty()) {
             log.debug("No last modified date for the file.");
             return false;
@@ -227,14 +264,14 @@ public class TransferRegistry {
             return false;
         }
 
-        String latestChecksum = getLatestEntryWithPrefix(checksumPrefix);
+        String latestChecksum = checksums.get(f.getName());
         if(latestChecksum == null || latestChecksum.isEmpty()) {
             log.debug("No last checksum for the file.");
             return false;
         }
         String currentChecksum;
-        try (InputStream in = new FileInputStream(f)) {
-            currentChecksum = ChecksumUtils.generateMD5Checksum(in);
+        try {
+            currentChecksum = ChecksumUtils.calculateMD5Checksum(f);
         } catch (IOException e) {
             log.warn("Could not calculate the checksum. Returns false on verification.", e);
             return false;
@@ -244,42 +281,193 @@ public class TransferRegistry {
     }
 
     /**
-     * Retrieves the content of the latest line with the given prefix.
-     * @param prefix The prefix to look for.
-     * @return The line - after the prefix. Or null if no such line was found.
+     * Checks whether the content of the file has changed since its latest entry in the registry.
+     * The file is unchanged, if it has the same last modified date or the same checksum as the latest entry, since
+     * the date may change without the content changing (e.g. by touching or restoring the file from a backup).
+     * When the content is unchanged, but the date differs, then the new date is registered, so the file does not 
+     * have to be read again.
+     * @param f The file to check.
+     * @return Whether the content of the file has changed, or the file has no entry in the registry.
      */
-    protected String getLatestEntryWithPrefix(String prefix) {
-        if(!hasBeenIngested()) {
+    public boolean hasChangedContent(File f) {
+        if(!hasFileEntry(f)) {
+            return true;
+        }
+        if(String.valueOf(f.lastModified()).equals(fileDates.get(f.getName()))) {
+            return false;
+        }
+        String currentChecksum;
+        try {
+            currentChecksum = ChecksumUtils.calculateMD5Checksum(f);
+        } catch (IOException e) {
+            log.warn("Could not calculate the checksum of '" + f.getAbsolutePath() + "'. Assumes it is changed.", e);
+            return true;
+        }
+        if(!currentChecksum.equals(checksums.get(f.getName()))) {
+            return true;
+        }
+        log.debug("The file '" + f.getName() + "' has a new date, but the same content. Registering the new date.");
+        writeLine(LINE_PREFIX_FILE_DATE + f.getName() + LINE_FILENAME_VALUE_SEPARATOR + f.lastModified());
+        return false;
+    }
+
+    /**
+     * Retrieves the latest registered checksum of the file with the given name.
+     * @param fileName The name of the file.
+     * @return The MD5 checksum, or null if the file has no checksum in the registry.
+     */
+    public String getChecksum(String fileName) {
+        if(!hasBeenIngested() || !loadModel()) {
             return null;
         }
+        return checksums.get(fileName);
+    }
 
-        try(InputStream input = new FileInputStream(registryFile)) {
-            List<String> lines = StreamUtils.extractInputStreamAsLines(input);
-            for(String line : Lists.reverse(lines)) {
-                if(line.startsWith(prefix)) {
-                    return line.replace(prefix, "");
-                }
-            }
-            log.debug("Could not find an entry in the registry with the prefix: " + prefix);
+    /**
+     * @return The latest summary of the book directory, or null if no summary has been registered.
+     * @see BookSummary
+     */
+    public String getSummary() {
+        if(!hasBeenIngested() || !loadModel()) {
             return null;
-        } catch (IOException e) {
-            log.error("Could not read the registry file for book '" + bookDir.getName() + "'. Returning a null.", e);
         }
-        return null;
+        return latestSummary;
     }
 
     /**
-     * Writes the given line to the registry file.
+     * Registers the summary of the book directory, unless it is the same as the latest summary.
+     * @param summary The summary of the book directory.
+     */
+    public void setSummary(String summary) {
+        ArgumentCheck.checkNotNullOrEmpty(summary, "String summary");
+        if(summary.equals(getSummary())) {
+            return;
+        }
+        writeLine(LINE_PREFIX_SUMMARY + summary);
+    }
+
+    /**
+     * Adds the given line to the registry.
+     * The line is applied to the model, and written to the registry file at the next flush.
      * @param line The line to write.
      */
     protected void writeLine(String line) {
-        try(OutputStream out = new FileOutputStream(registryFile, APPENDS_TO_FILE)) {
-            out.write(line.getBytes(StandardCharsets.UTF_8));
-            out.write("\n".getBytes(StandardCharsets.UTF_8));
+        pendingLines.add(line);
+        if(loaded) {
+            applyLine(line);
+        }
+    }
+
+    /**
+     * Appends the pending lines to the registry file, and forces them to the disk.
+     */
+    public void flush() {
+        if(pendingLines.isEmpty()) {
+            return;
+        }
+        boolean updateStore = store != null && loadModel();
+        StringBuilder content = new StringBuilder();
+        for(String line : pendingLines) {
+            content.append(line);
+            content.append("\n");
+        }
+        try(FileOutputStream out = new FileOutputStream(registryFile, APPENDS_TO_FILE)) {
+            out.write(content.toString().getBytes(StandardCharsets.UTF_8));
             out.flush();
+            out.getFD().sync();
         } catch(IOException e) {
-            throw new IllegalStateException("Error when trying to write the line (" + line + ") " + "for the book: "
-                    + bookDir.getName(), e);
+            throw new IllegalStateException("Error when trying to write the lines (" + pendingLines + ") " 
+                    + "for the book: " + bookDir.getName(), e);
         }
+        pendingLines.clear();
+        if(updateStore) {
+            store.put(bookDir, lines);
+        }
+    }
+
+    /**
+     * Loads the registry file into the model, unless it has already been loaded.
+     * The pending lines are applied after the lines of the registry file.
+     * @return Whether the model is loaded.
+     */
+    protected boolean loadModel() {
+        if(loaded) {
+            return true;
+        }
+        clearModel();
+        List<String> storedLines = null;
+        if(store != null && registryFile.exists()) {
+            storedLines = store.getLines(bookDir);
+        }
+        if(storedLines != null) {
+            for(String line : storedLines) {
+                applyLine(line);
+            }
+        } else if(registryFile.exists()) {
+            try(InputStream input = new FileInputStream(registryFile)) {
+                for(String line : StreamUtils.extractInputStreamAsLines(input)) {
+                    applyLine(line);
+                }
+                if(store != null) {
+                    store.put(bookDir, lines);
+                }
+            } catch (IOException e) {
+                log.error("Could not read the registry file for book '" + bookDir.getName() + "'.", e);
+                clearModel();
+                return false;
+            }
+        }
+        for(String line : pendingLines) {
+            applyLine(line);
+        }
+        loaded = true;
+        return true;
+    }
+
+    /**
+     * Applies a line of the registry to the model.
+     * @param line The line.
+     */
+    protected void applyLine(String line) {
+        lines.add(line);
+        if(line.startsWith(LINE_PREFIX_INGEST)) {
+            if(ingestDate == null) {
+                ingestDate = line.substring(LINE_PREFIX_INGEST.length());
+            }
+        } else if(line.startsWith(LINE_PREFIX_UPDATE)) {
+            latestUpdateDate = line.substring(LINE_PREFIX_UPDATE.length());
+        } else if(line.startsWith(LINE_PREFIX_CHECKSUM)) {
+            putFileValue(checksums, line.substring(LINE_PREFIX_CHECKSUM.length()));
+        } else if(line.startsWith(LINE_PREFIX_FILE_DATE)) {
+            putFileValue(fileDates, line.substring(LINE_PREFIX_FILE_DATE.length()));
+        } else if(line.startsWith(LINE_PREFIX_SUMMARY)) {
+            latestSummary = line.substring(LINE_PREFIX_SUMMARY.length());
+        }
+    }
+
+    /**
+     * Puts the value for the file name into the map.
+     * @param map The map.
+     * @param entry The entry, in the format 'filename##value'.
+     */
+    protected void putFileValue(Map<String, String> map, String entry) {
+        int index = entry.lastIndexOf(LINE_FILENAME_VALUE_SEPARATOR);
+        if(index < 0) {
+            log.debug("Ignoring registry entry without a file name: " + entry);
+            return;
+        }
+        map.put(entry.substring(0, index), entry.substring(index + LINE_FILENAME_VALUE_SEPARATOR.length()));
+    }
+
+    /**
+     * Clears the model.
+     */
+    protected void clearModel() {
+        lines.clear();
+        ingestDate = null;
+        latestUpdateDate = null;
+        checksums.clear();
+        fileDates.clear();
+        latestSummary = null;
     }
 }
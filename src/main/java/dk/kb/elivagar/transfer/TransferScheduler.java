@@ -0,0 +1,299 @@
+package dk.kb.elivagar.transfer;
+
+import dk.kb.elivagar.config.TransferConfiguration;
+import dk.kb.elivagar.exception.ArgumentCheck;
+import dk.kb.elivagar.utils.FileUtils;
+import dk.kb.elivagar.utils.IoPriority;
+import dk.kb.elivagar.utils.RateLimiter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Schedules the transfer of the books, so a large backlog does not saturate the storage shared with the receiver
+ * and the other preservation services.
+ *
+ * The scheduler can:
+ * <ul>
+ *   <li>Cap the number of bytes per second copied by the transfer.</li>
+ *   <li>Limit the number of bytes or books transferred in a single run. The books, which have not been visited
+ *   when the budget is spent, are carried into the next run, where they are visited first.</li>
+ *   <li>Order the books; in the order of the directory, with the oldest books first, or with the smallest first.</li>
+ *   <li>Lower the I/O priority of the thread running the transfer with 'ionice' (best effort class, lowest
+ *   priority) during the run, and restore it when the run finishes. The threads of the transfer engine and the 
+ *   copies lower their own I/O priority, when they start.</li>
+ * </ul>
+ *
+ * The books carried into the next run are kept in a file in the state directory, with the path of a book
+ * directory on each line.
+ */
+public class TransferScheduler {
+    /** The logger.*/
+    private static final Logger log = LoggerFactory.getLogger(TransferScheduler.class);
+
+    /** The name of the file with the books carried into the next run.*/
+    protected static final String BACKLOG_FILE_NAME = "transfer_backlog.txt";
+
+    /** The limiter for the bytes per second. Null, if the rate is not capped.*/
+    protected final RateLimiter rateLimiter;
+    /** The maximum number of bytes transferred in a run. 0 for no limit.*/
+    protected final long byteBudget;
+    /** The maximum number of books transferred in a run. 0 for no limit.*/
+    protected final int bookBudget;
+    /** The order of the books.*/
+    protected final String order;
+    /** Whether the I/O priority of the thread running the transfer should be lowered.*/
+    protected final boolean lowPriorityIo;
+    /** The file with the books carried into the next run.*/
+    protected final File backlogFile;
+
+    /** The number of bytes transferred in the current run.*/
+    protected final AtomicLong transferredBytes = new AtomicLong();
+    /** The number of books transferred in the current run.*/
+    protected final AtomicInteger transferredBooks = new AtomicInteger();
+    /** The books carried into the next run, in the order they should be visited.*/
+    protected final Set<String> deferred = Collections.synchronizedSet(new LinkedHashSet<String>());
+    /** The books carried from the previous run, in the order they should be visited.*/
+    protected final Set<String> backlog = new LinkedHashSet<String>();
+    /** The I/O priority of the thread running the transfer, before it was lowered. Null, if it was not lowered.*/
+    protected String previousIoPriority;
+
+    /**
+     * Constructor.
+     * @param transferConf The transfer configuration with the rate, budgets, order and I/O priority.
+     * @param stateDir The directory for the persistent state.
+     * @throws IOException If the state directory cannot be created, or the backlog cannot be loaded.
+     */
+    public TransferScheduler(TransferConfiguration transferConf, File stateDir) throws IOException {
+        this(transferConf.getBytesPerSecond(), transferConf.getRunByteBudget(), transferConf.getRunBookBudget(),
+                transferConf.getOrder(), transferConf.isLowPriorityIo(), stateDir);
+    }
+
+    /**
+     * Constructor.
+     * @param bytesPerSecond The maximum number of bytes per second. 0 for no limit.
+     * @param byteBudget The maximum number of bytes transferred in a run. 0 for no limit.
+     * @param bookBudget The maximum number of books transferred in a run. 0 for no limit.
+     * @param order The order of the books; one of the orders of the TransferConfiguration.
+     * @param lowPriorityIo Whether the I/O priority of the thread running the transfer should be lowered.
+     * @param stateDir The directory for the persistent state.
+     * @throws IOException If the state directory cannot be created, or the backlog cannot be loaded.
+     */
+    public TransferScheduler(long bytesPerSecond, long byteBudget, int bookBudget, String order,
+            boolean lowPriorityIo, File stateDir) throws IOException {
+        ArgumentCheck.checkNotNegativeLong(bytesPerSecond, "long bytesPerSecond");
+        ArgumentCheck.checkNotNegativeLong(byteBudget, "long byteBudget");
+        ArgumentCheck.checkNotNegativeInt(bookBudget, "int bookBudget");
+        ArgumentCheck.checkTrue(TransferConfiguration.ORDERS.contains(order), "Unknown order '" + order + "'");
+        ArgumentCheck.checkNotNull(stateDir, "File stateDir");
+        this.rateLimiter = bytesPerSecond > 0L ? new RateLimiter(bytesPerSecond) : null;
+        this.byteBudget = byteBudget;
+        this.bookBudget = bookBudget;
+        this.order = order;
+        this.lowPriorityIo = lowPriorityIo;
+        this.backlogFile = new File(FileUtils.createDirectory(stateDir.getAbsolutePath()), BACKLOG_FILE_NAME);
+        loadBacklog();
+    }
+
+    /**
+     * Starts a new run; resets the budgets, and lowers the I/O priority of the current thread if required.
+     * The I/O priority is restored, when the run is finished, so the current thread must also finish the run.
+     */
+    public void start() {
+        transferredBytes.set(0L);
+        transferredBooks.set(0);
+        deferred.clear();
+        if(lowPriorityIo) {
+            String priority = IoPriority.getPriorityOfCurrentThread();
+            if(priority != null && IoPriority.lowerPriorityOfCurrentThread()) {
+                previousIoPriority = priority;
+            }
+        }
+    }
+
+    /**
+     * Finishes the run, carries the deferred books into the next run, and restores the I/O priority of the 
+     * current thread, if it was lowered when the run started.
+     * @throws IOException If it fails to write the backlog.
+     */
+    public void finish() throws IOException {
+        try {
+            writeBacklog();
+        } finally {
+            if(previousIoPriority != null) {
+                IoPriority.restorePriorityOfCurrentThread(previousIoPriority);
+                previousIoPriority = null;
+            }
+        }
+    }
+
+    /**
+     * Carries the deferred books into the next run, by writing them to the backlog file.
+     * @throws IOException If it fails to write the backlog.
+     */
+    protected void writeBacklog() throws IOException {
+        log.info("Transferred " + transferredBooks.get() + " books and " + transferredBytes.get() + " bytes. "
+                + deferred.size() + " books are carried into the next run.");
+        backlog.clear();
+        synchronized(deferred) {
+            backlog.addAll(deferred);
+        }
+        if(backlog.isEmpty()) {
+            FileUtils.deleteFile(backlogFile);
+            return;
+        }
+        File tmpFile = new File(backlogFile.getParentFile(), backlogFile.getName() + ".tmp");
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(tmpFile), StandardCharsets.UTF_8)) {
+            for(String path : backlog) {
+                writer.write(path + "\n");
+            }
+        }
+        FileUtils.moveFile(tmpFile, backlogFile);
+    }
+
+    /**
+     * Orders the book directories. The books carried from the previous run come first, and then the rest of the
+     * books in the configured order.
+     * @param bookDirs The book directories.
+     * @return The book directories in the order they should be visited.
+     */
+    public List<File> orderBooks(Collection<File> bookDirs) {
+        Map<String, File> remaining = new HashMap<String, File>();
+        for(File bookDir : bookDirs) {
+            remaining.put(bookDir.getAbsolutePath(), bookDir);
+        }
+        List<File> res = new ArrayList<File>();
+        for(String path : backlog) {
+            File bookDir = remaining.remove(path);
+            if(bookDir != null) {
+                res.add(bookDir);
+            }
+        }
+
+        List<File> rest = new ArrayList<File>();
+        for(File bookDir : bookDirs) {
+            if(remaining.containsKey(bookDir.getAbsolutePath())) {
+                rest.add(bookDir);
+            }
+        }
+        if(order.equals(TransferConfiguration.ORDER_OLDEST_FIRST)) {
+            sortByKey(rest, false);
+        } else if(order.equals(TransferConfiguration.ORDER_SMALLEST_FIRST)) {
+            sortByKey(rest, true);
+        }
+        res.addAll(rest);
+        return res;
+    }
+
+    /**
+     * Sorts the book directories by either their size or their age (the oldest last modified date of the files).
+     * @param bookDirs The book directories to sort.
+     * @param bySize Whether to sort by size, otherwise by age.
+     */
+    protected void sortByKey(List<File> bookDirs, boolean bySize) {
+        final Map<File, Long> keys = new HashMap<File, Long>();
+        for(File bookDir : bookDirs) {
+            long size = 0L;
+            long oldest = bookDir.lastModified();
+            File[] files = bookDir.listFiles();
+            if(files != null) {
+                for(File f : files) {
+                    size += f.length();
+                    oldest = Math.min(oldest, f.lastModified());
+                }
+            }
+            keys.put(bookDir, bySize ? size : oldest);
+        }
+        Collections.sort(bookDirs, new Comparator<File>() {
+            @Override
+            public int compare(File o1, File o2) {
+                return keys.get(o1).compareTo(keys.get(o2));
+            }
+        });
+    }
+
+    /**
+     * Checks whether there is budget left for transferring the book, and otherwise carries it into the next run.
+     * @param bookDir The directory of the book.
+     * @return Whether the book may be transferred in this run.
+     */
+    public boolean allowBook(File bookDir) {
+        if(hasBudget()) {
+            return true;
+        }
+        deferred.add(bookDir.getAbsolutePath());
+        return false;
+    }
+
+    /**
+     * @return Whether any of the budgets for the current run is left.
+     */
+    public boolean hasBudget() {
+        if(byteBudget > 0L && transferredBytes.get() >= byteBudget) {
+            return false;
+        }
+        return bookBudget <= 0 || transferredBooks.get() < bookBudget;
+    }
+
+    /**
+     * Registers that a book has been transferred (ingested or updated).
+     */
+    public void bookTransferred() {
+        transferredBooks.incrementAndGet();
+    }
+
+    /**
+     * Registers the number of bytes copied by the transfer.
+     * @param bytes The number of bytes.
+     */
+    public void bytesTransferred(long bytes) {
+        transferredBytes.addAndGet(bytes);
+    }
+
+    /**
+     * @return The limiter for the bytes per second, or null if the rate is not capped.
+     */
+    public RateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    /**
+     * Loads the books carried from the previous run.
+     * @throws IOException If it fails to read the backlog.
+     */
+    protected void loadBacklog() throws IOException {
+        if(!backlogFile.isFile()) {
+            return;
+        }
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(backlogFile),
+                StandardCharsets.UTF_8))) {
+            String line;
+            while((line = reader.readLine()) != null) {
+                if(!line.trim().isEmpty()) {
+                    backlog.add(line.trim());
+                }
+            }
+        }
+        log.info("Loaded " + backlog.size() + " books carried from the previous transfer run.");
+    }
+}
@@ -1,9 +1,18 @@
 package dk.kb.elivagar.transfer;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import dk.kb.elivagar.config.Configuration;
+import dk.kb.elivagar.config.TransferConfiguration;
+import dk.kb.elivagar.pubhub.PubhubMetadataIndex;
+import dk.kb.elivagar.utils.ChecksumService;
+import dk.kb.elivagar.utils.ChecksumUtils;
+import dk.kb.elivagar.utils.ParallelFileCopier;
 
 /**
  * The workflow for the transfer module.
@@ -17,12 +26,82 @@ public class TransferWorkflow {
     protected PreIngestTransfer transfer;
     
     /**
-     * Constructor.
+     * Constructor, without any index of the pubhub metadata.
      * @param conf The configuration.
      */
     public TransferWorkflow(Configuration conf) {
-        if(conf.getTransferConfiguration() != null) {
-            this.transfer = new PreIngestTransfer(conf);
+        this(conf, null);
+    }
+    
+    /**
+     * Constructor.
+     * @param conf The configuration.
+     * @param pubhubIndex The index of the pubhub metadata. May be null.
+     */
+    public TransferWorkflow(Configuration conf, PubhubMetadataIndex pubhubIndex) {
+        this(conf, pubhubIndex, null);
+    }
+    
+    /**
+     * Constructor.
+     * @param conf The configuration.
+     * @param pubhubIndex The index of the pubhub metadata. May be null.
+     * @param registryStore The central store of the transfer registries. May be null.
+     */
+    public TransferWorkflow(Configuration conf, PubhubMetadataIndex pubhubIndex, RegistryStore registryStore) {
+        try {
+            init(conf, pubhubIndex, registryStore);
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not initialize the transfer.", e);
+        }
+    }
+    
+    /**
+     * Initializes the pre-ingest transfer, if the transfer is configured.
+     * @param conf The configuration.
+     * @param pubhubIndex The index of the pubhub metadata. May be null.
+     * @param registryStore The central store of the transfer registries. May be null.
+     * @throws IOException If the state of the scheduler cannot be loaded.
+     */
+    protected void init(Configuration conf, PubhubMetadataIndex pubhubIndex, RegistryStore registryStore) 
+            throws IOException {
+        TransferConfiguration transferConf = conf.getTransferConfiguration();
+        if(transferConf != null) {
+            TransferEngine engine = null;
+            if(transferConf.getWorkers() > 1) {
+                engine = new TransferEngine(transferConf);
+            }
+            this.transfer = new PreIngestTransfer(conf, pubhubIndex, registryStore, engine);
+            if(transferConf.isManifestSha256()) {
+                this.transfer.addManifestAlgorithm(ChecksumUtils.SHA256_ALGORITHM);
+            }
+            if(transferConf.getParallelCopyStreams() > 1) {
+                this.transfer.setParallelCopier(new ParallelFileCopier(transferConf.getParallelCopyThreshold(), 
+                        transferConf.getParallelCopyStreams(), ParallelFileCopier.DEFAULT_RANGE_SIZE,
+                        transferConf.isLowPriorityIo()));
+            }
+            if(transferConf.isLowPriorityIo()) {
+                this.transfer.setChecksumService(new ChecksumService(Runtime.getRuntime().availableProcessors(),
+                        true));
+            }
+            for(File baseDir : Arrays.asList(transferConf.getEbookIngestDir(), transferConf.getAudioIngestDir(),
+                    transferConf.getUpdateEbookContentDir(), transferConf.getUpdateEbookMetadataDir(),
+                    transferConf.getUpdateAudioContentDir(), transferConf.getUpdateAudioMetadataDir())) {
+                if(baseDir != null) {
+                    this.transfer.addDestinationBaseDir(baseDir);
+                }
+            }
+            this.transfer.setSkipUnchangedBooks(transferConf.isSkipUnchangedBooks());
+            this.transfer.setUpdateBatches(transferConf.getUpdateBatchFiles(), transferConf.getUpdateBatchBytes());
+            this.transfer.setTarPackages(TransferConfiguration.PACKAGE_FORMAT_TAR.equals(
+                    transferConf.getPackageFormat()));
+            if(transferConf.isEligibilityQueue()) {
+                this.transfer.setEligibilityQueue(new EligibilityQueue(conf.getStateDir(),
+                        EligibilityQueue.getConfigurationHash(transferConf)));
+            }
+            if(transferConf.isScheduled()) {
+                this.transfer.setScheduler(new TransferScheduler(transferConf, conf.getStateDir()));
+            }
         } else {
             this.transfer = null;
         }
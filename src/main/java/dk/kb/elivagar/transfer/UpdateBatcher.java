@@ -0,0 +1,327 @@
+package dk.kb.elivagar.transfer;
+
+import dk.kb.elivagar.exception.ArgumentCheck;
+import dk.kb.elivagar.utils.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Groups the updates of the books into bounded batches for each update directory, instead of a directory for
+ * each updated book.
+ *
+ * A batch is a directory named 'batch_[time]_[number]' in the update directory, with a directory for each book id
+ * containing the updated files of the book, and a BagIt-style manifest for each manifest algorithm, where each line
+ * maps a file to its book with the path '[book id]/[file name]'.
+ * The batch is built in a '_transfer' directory, which is moved to its destination, when it is delivered; either
+ * when the next book would exceed the maximum number of files or bytes of the batch, or at the end of the run.
+ *
+ * The registries of the books in a batch are held, until the book has been handled and all the batches with
+ * updates for the book have been delivered, and then they are flushed. So when a batch is not delivered (e.g. due
+ * to a crash), then the registries are not updated, the orphaned '_transfer' directory is removed at the start of
+ * the next run, and the updates are found again.
+ *
+ * A book reserves its place in the open batch before its files are copied, and the files are then copied without
+ * holding the batcher, so the books are copied into the batch concurrently. A batch, which is about to be delivered,
+ * does not accept more reservations, and it waits for the copies still in progress, before it is delivered.
+ */
+public class UpdateBatcher {
+    /** The logger.*/
+    private static final Logger log = LoggerFactory.getLogger(UpdateBatcher.class);
+
+    /** The prefix of the names of the batch directories.*/
+    protected static final String BATCH_NAME_PREFIX = "batch_";
+
+    /** The maximum number of files in a batch. 0 for no limit.*/
+    protected final int maxFiles;
+    /** The maximum number of bytes in a batch. 0 for no limit.*/
+    protected final long maxBytes;
+    /** The checksum algorithms for the manifests.*/
+    protected final List<String> manifestAlgorithms;
+    /** The open batches, mapped by their update directory.*/
+    protected final Map<File, Batch> batches = new HashMap<File, Batch>();
+    /** The batches, which are waiting for the copies in progress before they are delivered.*/
+    protected final Set<Batch> deliveringBatches = new HashSet<Batch>();
+    /** The registries of the books, which have been handled, but are still held by an open batch.*/
+    protected final Set<TransferRegistry> finishedRegistries = new LinkedHashSet<TransferRegistry>();
+    /** The number of batches created, for the names of the batches.*/
+    protected long batchCount = 0L;
+
+    /**
+     * Constructor. At least one of the limits must be above 0.
+     * @param maxFiles The maximum number of files in a batch. 0 for no limit.
+     * @param maxBytes The maximum number of bytes in a batch. 0 for no limit.
+     * @param manifestAlgorithms The checksum algorithms for the manifests.
+     */
+    public UpdateBatcher(int maxFiles, long maxBytes, Collection<String> manifestAlgorithms) {
+        ArgumentCheck.checkNotNegativeInt(maxFiles, "int maxFiles");
+        ArgumentCheck.checkNotNegativeLong(maxBytes, "long maxBytes");
+        ArgumentCheck.checkTrue(maxFiles > 0 || maxBytes > 0L, "A batch must be limited by either the number of files "
+                + "or the number of bytes");
+        ArgumentCheck.checkNotNullOrEmpty(manifestAlgorithms, "Collection<String> manifestAlgorithms");
+        this.maxFiles = maxFiles;
+        this.maxBytes = maxBytes;
+        this.manifestAlgorithms = new ArrayList<String>(manifestAlgorithms);
+    }
+
+    /**
+     * Reserves the place for the updated files of a book in the open batch of an update directory.
+     * If the files would exceed the limits of the open batch, then it is delivered first, and a new batch is opened.
+     * A batch always accepts the files of a book, when it is empty, even if they exceed the limits.
+     * The files must be copied to the directory of the reservation, and then either added or cancelled.
+     * @param updateDir The update directory, e.g. the update metadata directory for e-books.
+     * @param bookId The id of the book.
+     * @param files The updated files of the book.
+     * @return The reservation with the directory for the files of the book in the batch.
+     * @throws IOException If it fails to deliver the open batch, or to create the directory.
+     */
+    public synchronized Reservation reserve(File updateDir, String bookId, Collection<File> files) 
+            throws IOException {
+        long bytes = 0L;
+        for(File f : files) {
+            bytes += f.length();
+        }
+        Batch batch = batches.get(updateDir);
+        if(batch != null && batch.files > 0 && ((maxFiles > 0 && batch.files + files.size() > maxFiles)
+                || (maxBytes > 0L && batch.bytes + bytes > maxBytes))) {
+            deliver(batch);
+            batch = null;
+        }
+        if(batch == null) {
+            batchCount++;
+            String name = BATCH_NAME_PREFIX + System.currentTimeMillis() + "_" + batchCount;
+            batch = new Batch(updateDir, name, FileUtils.createDirectory(new File(updateDir, name
+                    + PreIngestTransfer.TRANSFERRING_DIR_SUFFIX).getAbsolutePath()));
+            batches.put(updateDir, batch);
+        }
+        File bookDir = FileUtils.createDirectory(new File(batch.transferDir, bookId).getAbsolutePath());
+        batch.files += files.size();
+        batch.bytes += bytes;
+        batch.copying++;
+        return new Reservation(batch, bookId, bookDir, files.size(), bytes);
+    }
+
+    /**
+     * Registers the files of a book, which have been copied to the directory of its reservation.
+     * The registry of the book is held, until the batch has been delivered.
+     * @param reservation The reservation of the book.
+     * @param checksums The checksums of the copied files, mapped by the name of the file and then by algorithm.
+     * @param register The registry of the book.
+     */
+    public synchronized void filesAdded(Reservation reservation, Map<String, Map<String, String>> checksums,
+            TransferRegistry register) {
+        ArgumentCheck.checkNotNull(reservation, "Reservation reservation");
+        Batch batch = reservation.batch;
+        for(Map.Entry<String, Map<String, String>> entry : checksums.entrySet()) {
+            batch.checksums.put(reservation.bookId + "/" + entry.getKey(), entry.getValue());
+        }
+        batch.registries.add(register);
+        copyFinished(batch);
+    }
+
+    /**
+     * Cancels the reservation of a book, whose files could not be copied. The partially copied files must have
+     * been removed from the directory of the reservation.
+     * @param reservation The reservation of the book.
+     */
+    public synchronized void cancel(Reservation reservation) {
+        ArgumentCheck.checkNotNull(reservation, "Reservation reservation");
+        Batch batch = reservation.batch;
+        batch.files -= reservation.files;
+        batch.bytes -= reservation.bytes;
+        copyFinished(batch);
+    }
+
+    /**
+     * Registers that a copy into the batch is no longer in progress, and wakes the delivery waiting for it.
+     * @param batch The batch.
+     */
+    protected void copyFinished(Batch batch) {
+        batch.copying--;
+        notifyAll();
+    }
+
+    /**
+     * Flushes the registry of a book, which has been handled, unless it is held by an open batch. A held registry
+     * is flushed, when the last batch holding it has been delivered.
+     * @param register The registry of the book.
+     */
+    public synchronized void bookFinished(TransferRegistry register) {
+        if(holds(register)) {
+            finishedRegistries.add(register);
+        } else {
+            register.flush();
+        }
+    }
+
+    /**
+     * @param register The registry of a book.
+     * @return Whether the registry is held by an open batch, and thus must not be flushed yet.
+     */
+    protected boolean holds(TransferRegistry register) {
+        for(Batch batch : batches.values()) {
+            if(batch.registries.contains(register)) {
+                return true;
+            }
+        }
+        for(Batch batch : deliveringBatches) {
+            if(batch.registries.contains(register)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Delivers all the open batches, e.g. at the end of a run.
+     * @throws IOException If it fails to deliver a batch.
+     */
+    public synchronized void deliverAll() throws IOException {
+        for(Batch batch : new ArrayList<Batch>(batches.values())) {
+            deliver(batch);
+        }
+    }
+
+    /**
+     * Delivers a batch; waits for the copies in progress, writes its manifests, moves it to its destination, and 
+     * flushes the registries of the books, which have been handled and are not held by other open batches. 
+     * An empty batch is removed instead.
+     * @param batch The batch to deliver.
+     * @throws IOException If it fails to write the manifests or move the batch.
+     */
+    protected void deliver(Batch batch) throws IOException {
+        batches.remove(batch.updateDir);
+        deliveringBatches.add(batch);
+        try {
+            waitForCopies(batch);
+        } finally {
+            deliveringBatches.remove(batch);
+        }
+        if(batch.files == 0) {
+            FileUtils.deleteDirectory(batch.transferDir);
+            return;
+        }
+        for(String algorithm : manifestAlgorithms) {
+            File manifest = new File(batch.transferDir, PreIngestTransfer.getManifestName(algorithm));
+            try (Writer writer = new OutputStreamWriter(Files.newOutputStream(manifest.toPath()),
+                    StandardCharsets.UTF_8)) {
+                writer.write(PreIngestTransfer.getManifest(algorithm, batch.checksums));
+            }
+        }
+        File destDir = new File(batch.updateDir, batch.name);
+        FileUtils.moveDirectory(batch.transferDir, destDir);
+        log.info("Delivered the update batch '" + destDir.getAbsolutePath() + "' with " + batch.files
+                + " files for " + batch.registries.size() + " books.");
+        for(TransferRegistry register : batch.registries) {
+            if(!holds(register) && finishedRegistries.remove(register)) {
+                register.flush();
+            }
+        }
+    }
+
+    /**
+     * Waits until no files are being copied into the batch. The monitor of the batcher is released while waiting,
+     * so the copies can finish. An interrupt is kept until the copies have finished, since the batch must not be
+     * delivered with partial files.
+     * @param batch The batch.
+     */
+    protected void waitForCopies(Batch batch) {
+        boolean interrupted = false;
+        while(batch.copying > 0) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if(interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * The reservation of the place for the updated files of a book in a batch.
+     */
+    public static class Reservation {
+        /** The batch.*/
+        protected final Batch batch;
+        /** The id of the book.*/
+        protected final String bookId;
+        /** The directory for the files of the book in the batch.*/
+        protected final File bookDir;
+        /** The number of reserved files.*/
+        protected final int files;
+        /** The number of reserved bytes.*/
+        protected final long bytes;
+
+        /**
+         * Constructor.
+         * @param batch The batch.
+         * @param bookId The id of the book.
+         * @param bookDir The directory for the files of the book in the batch.
+         * @param files The number of reserved files.
+         * @param bytes The number of reserved bytes.
+         */
+        protected Reservation(Batch batch, String bookId, File bookDir, int files, long bytes) {
+            this.batch = batch;
+            this.bookId = bookId;
+            this.bookDir = bookDir;
+            this.files = files;
+            this.bytes = bytes;
+        }
+
+        /** @return The directory for the files of the book in the batch.*/
+        public File getBookDir() {
+            return bookDir;
+        }
+    }
+
+    /**
+     * An open batch.
+     */
+    protected static class Batch {
+        /** The update directory of the batch.*/
+        protected final File updateDir;
+        /** The name of the batch.*/
+        protected final String name;
+        /** The directory, where the batch is built.*/
+        protected final File transferDir;
+        /** The checksums of the files, mapped by the path '[book id]/[file name]' and then by algorithm.*/
+        protected final Map<String, Map<String, String>> checksums = new TreeMap<String, Map<String, String>>();
+        /** The registries of the books in the batch.*/
+        protected final Set<TransferRegistry> registries = new LinkedHashSet<TransferRegistry>();
+        /** The number of files in the batch, including the reserved files.*/
+        protected int files = 0;
+        /** The number of bytes in the batch.*/
+        protected long bytes = 0L;
+        /** The number of books, whose files are being copied into the batch.*/
+        protected int copying = 0;
+
+        /**
+         * Constructor.
+         * @param updateDir The update directory of the batch.
+         * @param name The name of the batch.
+         * @param transferDir The directory, where the batch is built.
+         */
+        protected Batch(File updateDir, String name, File transferDir) {
+            this.updateDir = updateDir;
+            this.name = name;
+            this.transferDir = transferDir;
+        }
+    }
+}
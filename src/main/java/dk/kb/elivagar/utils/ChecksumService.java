@@ -0,0 +1,162 @@
+package dk.kb.elivagar.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import dk.kb.elivagar.exception.ArgumentCheck;
+
+/**
+ * Service for calculating the checksums of many files concurrently.
+ *
+ * Each file is handled by a thread of the pool, which calculates all the checksum algorithms in a single pass over
+ * the file (see ChecksumUtils.calculateChecksums).
+ * The threads of the pool are daemon threads, which are only started when needed, and which stops again, when they
+ * have been idle for a while. Thus the service does not have to be shut down.
+ */
+public class ChecksumService {
+    /** The logger.*/
+    private static final Logger log = LoggerFactory.getLogger(ChecksumService.class);
+
+    /** The number of seconds a thread of the pool may be idle, before it is stopped.*/
+    protected static final long IDLE_SECONDS = 30L;
+
+    /** The pool of threads for calculating the checksums.*/
+    protected final ThreadPoolExecutor executor;
+
+    /**
+     * Constructor, with a thread for each available processor.
+     */
+    public ChecksumService() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Constructor.
+     * @param threads The number of files to calculate checksums for concurrently.
+     */
+    public ChecksumService(int threads) {
+        this(threads, false);
+    }
+
+    /**
+     * Constructor.
+     * @param threads The number of files to calculate checksums for concurrently.
+     * @param lowPriorityIo Whether the threads of the pool should lower their I/O priority.
+     */
+    public ChecksumService(int threads, boolean lowPriorityIo) {
+        ArgumentCheck.checkPositiveInt(threads, "int threads");
+        ThreadFactory threadFactory = new ChecksumThreadFactory();
+        if(lowPriorityIo) {
+            threadFactory = new IoPriority.LowPriorityThreadFactory(threadFactory);
+        }
+        executor = new ThreadPoolExecutor(threads, threads, IDLE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), threadFactory);
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Calculates the checksums of the files concurrently.
+     * A single file is handled by the calling thread.
+     * @param files The files.
+     * @param algorithms The checksum algorithms, which are all calculated in the same pass over each file.
+     * @return The checksums of each file in hexadecimal, mapped by the file and then by the algorithm.
+     * The files are in the same order as given.
+     * @throws IOException If it fails to read any of the files.
+     */
+    public Map<File, Map<String, String>> calculateChecksums(Collection<File> files,
+            final Collection<String> algorithms) throws IOException {
+        ArgumentCheck.checkNotNull(files, "Collection<File> files");
+        ArgumentCheck.checkNotNullOrEmpty(algorithms, "Collection<String> algorithms");
+        Map<File, Map<String, String>> res = new LinkedHashMap<File, Map<String, String>>();
+        if(files.size() == 1) {
+            File f = files.iterator().next();
+            res.put(f, ChecksumUtils.calculateChecksums(f, algorithms));
+            return res;
+        }
+
+        List<Future<Map<String, String>>> futures = new ArrayList<Future<Map<String, String>>>();
+        for(final File f : files) {
+            futures.add(executor.submit(new Callable<Map<String, String>>() {
+                @Override
+                public Map<String, String> call() throws IOException {
+                    return ChecksumUtils.calculateChecksums(f, algorithms);
+                }
+            }));
+        }
+
+        int i = 0;
+        try {
+            for(File f : files) {
+                res.put(f, futures.get(i++).get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while calculating the checksums.", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Could not calculate the checksum of '" + getFile(files, i - 1) + "'.",
+                    e.getCause());
+        } finally {
+            for(Future<Map<String, String>> future : futures) {
+                future.cancel(true);
+            }
+        }
+        log.trace("Calculated the checksums of " + res.size() + " files.");
+        return res;
+    }
+
+    /**
+     * Calculates the MD5 checksums of the files concurrently.
+     * @param files The files.
+     * @return The MD5 checksum of each file in hexadecimal, mapped by the file.
+     * @throws IOException If it fails to read any of the files.
+     */
+    public Map<File, String> calculateMD5Checksums(Collection<File> files) throws IOException {
+        Map<File, String> res = new LinkedHashMap<File, String>();
+        List<String> algorithms = Arrays.asList(ChecksumUtils.MD5_ALGORITHM);
+        for(Map.Entry<File, Map<String, String>> entry : calculateChecksums(files, algorithms).entrySet()) {
+            res.put(entry.getKey(), entry.getValue().get(ChecksumUtils.MD5_ALGORITHM));
+        }
+        return res;
+    }
+
+    /**
+     * @param files The files.
+     * @param index The index.
+     * @return The path of the file at the index.
+     */
+    protected String getFile(Collection<File> files, int index) {
+        return new ArrayList<File>(files).get(index).getAbsolutePath();
+    }
+
+    /**
+     * Thread factory for the daemon threads of the checksum service.
+     */
+    protected static class ChecksumThreadFactory implements ThreadFactory {
+        /** The number of threads created by this factory.*/
+        protected final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread res = new Thread(r, "checksum-" + count.incrementAndGet());
+            res.setDaemon(true);
+            return res;
+        }
+    }
+}
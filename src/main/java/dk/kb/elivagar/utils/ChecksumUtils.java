@@ -1,17 +1,42 @@
 package dk.kb.elivagar.utils;
 
+import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import dk.kb.elivagar.exception.ArgumentCheck;
 
 /**
  * Utility class for dealing with checksums.
+ * 
+ * The checksums of files are calculated through file channels with large buffers, where the large files are memory 
+ * mapped instead of read, and several checksum algorithms can be calculated in the same pass over the file.
+ * For calculating the checksums of many files concurrently, see the ChecksumService.
  */
 public class ChecksumUtils {
     /** Name of the MD5 algorithm.*/
     public static final String MD5_ALGORITHM = "MD5";
+    /** Name of the SHA-256 algorithm.*/
+    public static final String SHA256_ALGORITHM = "SHA-256";
     
     /** The maximal size of the byte array for digest.*/
-    private static final int BYTE_ARRAY_SIZE_FOR_DIGEST = 4096;    
+    private static final int BYTE_ARRAY_SIZE_FOR_DIGEST = 64 * 1024;
+    /** The size of the buffer, when calculating the checksums of a file.*/
+    protected static final int FILE_BUFFER_SIZE = 1024 * 1024;
+    /** The size from which a file is memory mapped instead of read, when calculating its checksums.*/
+    protected static final long MEMORY_MAP_THRESHOLD = 16L * 1024 * 1024;
+    /** The size of the regions of a file, which are memory mapped at a time.*/
+    protected static final long MEMORY_MAP_REGION_SIZE = 64L * 1024 * 1024;
     
     /**
      * Calculates a checksum of a inputstream based on a MD5 checksum-algorithm.
@@ -48,4 +73,107 @@ public class ChecksumUtils {
             throw new IllegalStateException("Cannot calculate the checksum.", e);
         }
     }
+
+    /**
+     * Calculates the MD5 checksum of a file.
+     * @param f The file.
+     * @return The MD5 checksum in hexadecimal.
+     * @throws IOException If it fails to read the file.
+     */
+    public static String calculateMD5Checksum(File f) throws IOException {
+        return calculateChecksums(f, Arrays.asList(MD5_ALGORITHM)).get(MD5_ALGORITHM);
+    }
+    
+    /**
+     * Calculates the checksums of a file for several algorithms, while only reading the file once.
+     * Files of at least the memory map threshold are memory mapped region by region, and smaller files are read
+     * through a large buffer.
+     * @param f The file.
+     * @param algorithms The checksum algorithms.
+     * @return The checksums in hexadecimal, mapped by their algorithm.
+     * @throws IOException If it fails to read the file.
+     */
+    public static Map<String, String> calculateChecksums(File f, Collection<String> algorithms) 
+            throws IOException {
+        return calculateChecksums(f, algorithms, null);
+    }
+    
+    /**
+     * Calculates the checksums of a file for several algorithms, while only reading the file once, and while the 
+     * rate of the read is limited by the rate limiter.
+     * @param f The file.
+     * @param algorithms The checksum algorithms.
+     * @param rateLimiter The limiter for the bytes per second. May be null for no limit.
+     * @return The checksums in hexadecimal, mapped by their algorithm.
+     * @throws IOException If it fails to read the file, or if it is interrupted while waiting for the rate limit.
+     */
+    public static Map<String, String> calculateChecksums(File f, Collection<String> algorithms, 
+            RateLimiter rateLimiter) throws IOException {
+        ArgumentCheck.checkNotNull(f, "File f");
+        Map<String, MessageDigest> digesters = createDigesters(algorithms);
+        try (FileChannel in = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+            long size = in.size();
+            if(size >= MEMORY_MAP_THRESHOLD) {
+                for(long position = 0L; position < size; position += MEMORY_MAP_REGION_SIZE) {
+                    long regionSize = Math.min(MEMORY_MAP_REGION_SIZE, size - position);
+                    FileUtils.acquire(rateLimiter, regionSize);
+                    MappedByteBuffer region = in.map(FileChannel.MapMode.READ_ONLY, position, regionSize);
+                    updateDigesters(digesters, region);
+                }
+            } else {
+                ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(FILE_BUFFER_SIZE, Math.max(size, 1L)));
+                while(in.read(buffer) != -1) {
+                    buffer.flip();
+                    FileUtils.acquire(rateLimiter, buffer.remaining());
+                    updateDigesters(digesters, buffer);
+                    buffer.clear();
+                }
+            }
+        }
+        return getChecksums(digesters);
+    }
+    
+    /**
+     * Creates a message digester for each of the algorithms.
+     * @param algorithms The checksum algorithms.
+     * @return The message digesters, mapped by their algorithm.
+     */
+    public static Map<String, MessageDigest> createDigesters(Collection<String> algorithms) {
+        Map<String, MessageDigest> res = new LinkedHashMap<String, MessageDigest>();
+        for(String algorithm : algorithms) {
+            try {
+                res.put(algorithm, MessageDigest.getInstance(algorithm));
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException("Unknown checksum algorithm '" + algorithm + "'.", e);
+            }
+        }
+        return res;
+    }
+    
+    /**
+     * Updates all the message digesters with the remaining bytes of the buffer.
+     * The position of the buffer is left unchanged.
+     * @param digesters The message digesters.
+     * @param buffer The buffer.
+     */
+    public static void updateDigesters(Map<String, MessageDigest> digesters, ByteBuffer buffer) {
+        for(MessageDigest digester : digesters.values()) {
+            buffer.mark();
+            digester.update(buffer);
+            buffer.reset();
+        }
+    }
+    
+    /**
+     * Finishes the message digesters, and retrieves their checksums.
+     * @param digesters The message digesters.
+     * @return The checksums in hexadecimal, mapped by their algorithm.
+     */
+    public static Map<String, String> getChecksums(Map<String, MessageDigest> digesters) {
+        Map<String, String> res = new LinkedHashMap<String, String>();
+        for(Map.Entry<String, MessageDigest> digester : digesters.entrySet()) {
+            res.put(digester.getKey(), Base16Utils.decodeBase16(digester.getValue().digest()));
+        }
+        return res;
+    }
 }
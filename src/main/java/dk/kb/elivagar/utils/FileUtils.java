@@ -1,15 +1,21 @@
 package dk.kb.elivagar.utils;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import dk.kb.elivagar.exception.ArgumentCheck;
 
@@ -17,6 +23,11 @@ import dk.kb.elivagar.exception.ArgumentCheck;
  * Utility class for dealing with files.
  */
 public class FileUtils {
+    /** The logger.*/
+    private static final Logger log = LoggerFactory.getLogger(FileUtils.class);
+    
+    /** The size of the buffer, when copying a file and calculating its checksums.*/
+    protected static final int COPY_BUFFER_SIZE = 1024 * 1024;
 
     /**
      * Create or reuse directory
@@ -61,6 +72,22 @@ public class FileUtils {
         }
     }
     
+    /**
+     * Deletes a file, or a directory with all its content. Symbolic links are deleted, but not followed.
+     * @param f The file or directory to delete.
+     */
+    public static void deleteDirectory(File f) {
+        if(f == null) {
+            return;
+        }
+        if(f.isDirectory() && !Files.isSymbolicLink(f.toPath())) {
+            for(File child : getFilesInDirectory(f)) {
+                deleteDirectory(child);
+            }
+        }
+        deleteFile(f);
+    }
+    
     /**
      * Copies from one directory to another.
      * @param from The from directory.
@@ -93,6 +120,108 @@ public class FileUtils {
         Files.copy(fromPath, toPath, StandardCopyOption.COPY_ATTRIBUTES, StandardCopyOption.REPLACE_EXISTING);
     }
     
+    /**
+     * Copies a file or the content of its symbolic link to a given destination, and calculates the checksums of 
+     * the bytes as they are copied. Thus the file is only read once.
+     * Since the checksums need the bytes, they are copied through a buffer in the JVM, instead of directly between
+     * the files with FileChannel.transferTo (e.g. sendfile). This costs a copy of the bytes in memory, but saves
+     * reading the whole file again for the checksums, which is far more expensive on network storage.
+     * The number of bytes written to the destination is verified against the size of the file.
+     * The last modified date of the file is also copied.
+     * @param fromFile The from file.
+     * @param toFile The to file. It is replaced, if it already exists.
+     * @param algorithms The checksum algorithms.
+     * @return The checksums in hexadecimal, mapped by their algorithm.
+     * @throws IOException If it fails to handle the copy or symbolic links, or if the copy is incomplete.
+     */
+    public static Map<String, String> copyFileWithChecksums(File fromFile, File toFile, 
+            Collection<String> algorithms) throws IOException {
+        return copyFileWithChecksums(fromFile, toFile, algorithms, null);
+    }
+    
+    /**
+     * Copies a file or the content of its symbolic link to a given destination, and calculates the checksums of 
+     * the bytes as they are copied, while the rate of the copy is limited by the rate limiter.
+     * @param fromFile The from file.
+     * @param toFile The to file. It is replaced, if it already exists.
+     * @param algorithms The checksum algorithms.
+     * @param rateLimiter The limiter for the bytes per second. May be null for no limit.
+     * @return The checksums in hexadecimal, mapped by their algorithm.
+     * @throws IOException If it fails to handle the copy or symbolic links, or if the copy is incomplete.
+     */
+    public static Map<String, String> copyFileWithChecksums(File fromFile, File toFile, 
+            Collection<String> algorithms, RateLimiter rateLimiter) throws IOException {
+        ArgumentCheck.checkExistsNormalFile(fromFile, "File from");
+        ArgumentCheck.checkNotNullOrEmpty(algorithms, "Collection<String> algorithms");
+        Path fromPath = getFileOrSymlinkPath(fromFile);
+        Map<String, MessageDigest> digesters = ChecksumUtils.createDigesters(algorithms);
+        try (FileChannel in = FileChannel.open(fromPath, StandardOpenOption.READ);
+                FileChannel out = FileChannel.open(toFile.toPath(), StandardOpenOption.WRITE, 
+                        StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.allocate(COPY_BUFFER_SIZE);
+            long written = 0L;
+            while(in.read(buffer) != -1) {
+                buffer.flip();
+                acquire(rateLimiter, buffer.remaining());
+                ChecksumUtils.updateDigesters(digesters, buffer);
+                while(buffer.hasRemaining()) {
+                    written += out.write(buffer);
+                }
+                buffer.clear();
+            }
+            if(written != in.size() || out.size() != written) {
+                throw new IOException("Incomplete copy of '" + fromPath + "' to '" + toFile.getAbsolutePath() 
+                        + "'. Wrote " + written + " bytes, expected " + in.size() + " bytes.");
+            }
+        }
+        Files.setLastModifiedTime(toFile.toPath(), Files.getLastModifiedTime(fromPath));
+        return ChecksumUtils.getChecksums(digesters);
+    }
+    
+    /**
+     * Acquires the permits for copying the bytes from the rate limiter, if any.
+     * @param rateLimiter The rate limiter. May be null for no limit.
+     * @param bytes The number of bytes to copy.
+     * @throws IOException If it is interrupted while waiting.
+     */
+    public static void acquire(RateLimiter rateLimiter, long bytes) throws IOException {
+        if(rateLimiter == null) {
+            return;
+        }
+        try {
+            rateLimiter.acquire(bytes);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the rate limit.", e);
+        }
+    }
+    
+    /**
+     * Makes a hard link at the destination to the file or to the target of its symbolic link, if they are on
+     * the same file system.
+     * @param fromFile The from file.
+     * @param toFile The to file. It is replaced, if it already exists and the hard link can be made.
+     * @return Whether the hard link was made. 
+     * @throws IOException If it fails to read the symbolic link or the file systems.
+     */
+    public static boolean createHardLink(File fromFile, File toFile) throws IOException {
+        ArgumentCheck.checkExistsNormalFile(fromFile, "File from");
+        Path fromPath = getFileOrSymlinkPath(fromFile).toAbsolutePath();
+        Path toDirPath = toFile.getAbsoluteFile().getParentFile().toPath();
+        if(!Files.getFileStore(fromPath).equals(Files.getFileStore(toDirPath))) {
+            return false;
+        }
+        try {
+            Files.deleteIfExists(toFile.toPath());
+            Files.createLink(toFile.toPath(), fromPath);
+            return true;
+        } catch (IOException | UnsupportedOperationException e) {
+            log.debug("Could not make a hard link from '" + toFile.getAbsolutePath() + "' to '" + fromPath 
+                    + "'.", e);
+            return false;
+        }
+    }
+    
     /**
      * Retrieves the list of files from a directory, with the notorious null-pointer check.
      * @param dir The directory to retrieve the files from.
@@ -147,12 +276,10 @@ public class FileUtils {
     public static boolean areFilesIdentical(File f1, File f2) throws IOException {
         ArgumentCheck.checkExistsNormalFile(f1, "File f1");
         ArgumentCheck.checkExistsNormalFile(f2, "File f2");
-        try (InputStream in1 = new FileInputStream(f1);
-                InputStream in2 = new FileInputStream(f2);) {
-            String c1 = ChecksumUtils.generateMD5Checksum(in1);
-            String c2 = ChecksumUtils.generateMD5Checksum(in2);
-            return c1.equals(c2);
+        if(f1.length() != f2.length()) {
+            return false;
         }
+        return ChecksumUtils.calculateMD5Checksum(f1).equals(ChecksumUtils.calculateMD5Checksum(f2));
     }
     
     /**
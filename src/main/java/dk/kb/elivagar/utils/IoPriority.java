@@ -0,0 +1,214 @@
+package dk.kb.elivagar.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import dk.kb.elivagar.exception.ArgumentCheck;
+
+/**
+ * Utility class for lowering the I/O priority of threads with 'ionice' (best effort class, lowest priority).
+ *
+ * On Linux the I/O priority belongs to each thread, so 'ionice -p' with the id of the process only changes the
+ * main thread of the process. Thus each thread must lower its own I/O priority through its thread id, which is read
+ * from the '/proc/thread-self' link. Failures are only logged, since this is only available on Linux.
+ */
+public final class IoPriority {
+    /** The logger.*/
+    private static final Logger log = LoggerFactory.getLogger(IoPriority.class);
+
+    /** The link to the directory of the current thread, in the format '[process id]/task/[thread id]'.*/
+    protected static final String THREAD_SELF_LINK = "/proc/thread-self";
+    /** The command for lowering the I/O priority of a thread, without the thread id.*/
+    protected static final String[] IONICE_LOWER_COMMAND = {"ionice", "-c", "2", "-n", "7", "-p"};
+    /** The command for retrieving the I/O priority of a thread, without the thread id.*/
+    protected static final String[] IONICE_GET_COMMAND = {"ionice", "-p"};
+    /** The number of seconds to wait for the ionice command.*/
+    protected static final long IONICE_TIMEOUT_SECONDS = 10L;
+    /** The pattern for the I/O priority printed by 'ionice', e.g. 'best-effort: prio 4' or 'idle'.*/
+    protected static final Pattern PRIORITY_PATTERN = Pattern.compile("^([a-z-]+)(?:: prio (\\d+))?$");
+    /** The numbers of the I/O scheduling classes, mapped by the names printed by 'ionice'.*/
+    protected static final Map<String, String> PRIORITY_CLASSES = new HashMap<String, String>();
+    static {
+        PRIORITY_CLASSES.put("none", "0");
+        PRIORITY_CLASSES.put("realtime", "1");
+        PRIORITY_CLASSES.put("best-effort", "2");
+        PRIORITY_CLASSES.put("idle", "3");
+    }
+
+    /** Private constructor for this utility class.*/
+    private IoPriority() {}
+
+    /**
+     * @return The id of the current thread in the operating system, or null if it is not available.
+     */
+    public static String getThreadId() {
+        Path link = Paths.get(THREAD_SELF_LINK);
+        if(!Files.isSymbolicLink(link)) {
+            return null;
+        }
+        try {
+            return Files.readSymbolicLink(link).getFileName().toString();
+        } catch (IOException e) {
+            log.debug("Could not read the thread id from '" + THREAD_SELF_LINK + "'", e);
+            return null;
+        }
+    }
+
+    /**
+     * Lowers the I/O priority of the current thread.
+     * @return Whether the I/O priority was lowered.
+     */
+    public static boolean lowerPriorityOfCurrentThread() {
+        String threadId = getThreadId();
+        if(threadId == null) {
+            log.warn("Could not lower the I/O priority of the thread '" + Thread.currentThread().getName()
+                    + "', since its thread id is not available.");
+            return false;
+        }
+        if(runIonice(IONICE_LOWER_COMMAND, threadId) == null) {
+            return false;
+        }
+        log.debug("Lowered the I/O priority of the thread '" + Thread.currentThread().getName() + "' (" + threadId
+                + ")");
+        return true;
+    }
+
+    /**
+     * Restores the I/O priority of the current thread, e.g. after it has been lowered.
+     * The priority level of the 'none' class is derived from the CPU nice value, so only the class is restored.
+     * @param priority The I/O priority as printed by 'ionice', e.g. 'none: prio 4'.
+     * @return Whether the I/O priority was restored.
+     */
+    public static boolean restorePriorityOfCurrentThread(String priority) {
+        ArgumentCheck.checkNotNullOrEmpty(priority, "String priority");
+        Matcher matcher = PRIORITY_PATTERN.matcher(priority);
+        if(!matcher.matches() || !PRIORITY_CLASSES.containsKey(matcher.group(1))) {
+            log.warn("Could not restore the unknown I/O priority '" + priority + "'");
+            return false;
+        }
+        String threadId = getThreadId();
+        if(threadId == null) {
+            log.warn("Could not restore the I/O priority of the thread '" + Thread.currentThread().getName()
+                    + "', since its thread id is not available.");
+            return false;
+        }
+        List<String> command = new ArrayList<String>(Arrays.asList("ionice", "-c",
+                PRIORITY_CLASSES.get(matcher.group(1))));
+        if(matcher.group(2) != null && !matcher.group(1).equals("none")) {
+            command.add("-n");
+            command.add(matcher.group(2));
+        }
+        command.add("-p");
+        if(runIonice(command.toArray(new String[command.size()]), threadId) == null) {
+            return false;
+        }
+        log.debug("Restored the I/O priority of the thread '" + Thread.currentThread().getName() + "' to '"
+                + priority + "'");
+        return true;
+    }
+
+    /**
+     * @return The I/O priority of the current thread as printed by 'ionice', e.g. 'best-effort: prio 7',
+     * or null if it is not available.
+     */
+    public static String getPriorityOfCurrentThread() {
+        String threadId = getThreadId();
+        if(threadId == null) {
+            return null;
+        }
+        return runIonice(IONICE_GET_COMMAND, threadId);
+    }
+
+    /**
+     * Runs the ionice command for a thread.
+     * @param command The command without the thread id.
+     * @param threadId The thread id.
+     * @return The trimmed output of the command, or null if it failed.
+     */
+    protected static String runIonice(String[] command, String threadId) {
+        List<String> fullCommand = new ArrayList<String>();
+        Collections.addAll(fullCommand, command);
+        fullCommand.add(threadId);
+        try {
+            Process process = new ProcessBuilder(fullCommand).redirectErrorStream(true).start();
+            if(!waitFor(process) || process.exitValue() != 0) {
+                log.warn("Could not run: " + fullCommand);
+                return null;
+            }
+            try (InputStream in = process.getInputStream()) {
+                return StreamUtils.extractInputStreamAsString(in).trim();
+            }
+        } catch (IOException e) {
+            log.warn("Could not run: " + fullCommand, e);
+            return null;
+        }
+    }
+
+    /**
+     * Waits for the process to finish, though at most the timeout.
+     * @param process The process.
+     * @return Whether the process finished.
+     */
+    protected static boolean waitFor(Process process) {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(IONICE_TIMEOUT_SECONDS);
+        while(System.nanoTime() < deadline) {
+            try {
+                process.exitValue();
+                return true;
+            } catch (IllegalThreadStateException e) {
+                try {
+                    Thread.sleep(50L);
+                } catch (InterruptedException e1) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+        process.destroy();
+        return false;
+    }
+
+    /**
+     * Thread factory, where the threads of another thread factory lower their own I/O priority, when they start.
+     */
+    public static class LowPriorityThreadFactory implements ThreadFactory {
+        /** The thread factory for creating the threads.*/
+        protected final ThreadFactory threadFactory;
+
+        /**
+         * Constructor.
+         * @param threadFactory The thread factory for creating the threads.
+         */
+        public LowPriorityThreadFactory(ThreadFactory threadFactory) {
+            ArgumentCheck.checkNotNull(threadFactory, "ThreadFactory threadFactory");
+            this.threadFactory = threadFactory;
+        }
+
+        @Override
+        public Thread newThread(final Runnable r) {
+            return threadFactory.newThread(new Runnable() {
+                @Override
+                public void run() {
+                    lowerPriorityOfCurrentThread();
+                    r.run();
+                }
+            });
+        }
+    }
+}
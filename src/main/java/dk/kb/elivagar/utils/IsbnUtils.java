@@ -0,0 +1,56 @@
+package dk.kb.elivagar.utils;
+
+import dk.kb.elivagar.exception.ArgumentCheck;
+
+/**
+ * Utility class for ISBN operations.
+ */
+public class IsbnUtils {
+    /** The length of an ISBN-10.*/
+    protected static final int ISBN_10_LENGTH = 10;
+    /** The length of an ISBN-13 or GTIN13.*/
+    protected static final int ISBN_13_LENGTH = 13;
+    /** The EAN prefix for converting an ISBN-10 into an ISBN-13.*/
+    protected static final String ISBN_13_PREFIX = "978";
+
+    /**
+     * Normalizes an ISBN, so the different forms of the same ISBN are identical.
+     * Removes the qualifiers like '(hft.)' and everything except the digits and the check-character X, 
+     * e.g. the hyphens and spaces, and converts an ISBN-10 into the corresponding ISBN-13.
+     * A GTIN13 for a book is the same as its ISBN-13, so it is kept as it is.
+     * @param isbn The ISBN, ISBN-10, ISBN-13 or GTIN13, in any form.
+     * @return The normalized ISBN.
+     */
+    public static String normalize(String isbn) {
+        ArgumentCheck.checkNotNull(isbn, "String isbn");
+        String res = isbn.replaceAll("\\(.*\\)", "").replaceAll("[^0-9Xx]", "").toUpperCase();
+        if(res.length() == ISBN_10_LENGTH && res.substring(0, ISBN_10_LENGTH - 1).matches("[0-9]*")) {
+            return toIsbn13(res);
+        }
+        return res;
+    }
+
+    /**
+     * Converts an ISBN-10 into an ISBN-13, by adding the 978 prefix and recalculating the check digit.
+     * @param isbn10 The ISBN-10 without hyphens.
+     * @return The ISBN-13.
+     */
+    protected static String toIsbn13(String isbn10) {
+        String withoutCheckDigit = ISBN_13_PREFIX + isbn10.substring(0, ISBN_10_LENGTH - 1);
+        return withoutCheckDigit + calculateIsbn13CheckDigit(withoutCheckDigit);
+    }
+
+    /**
+     * Calculates the check digit for an ISBN-13, with the weights 1 and 3 alternating.
+     * @param digits The first 12 digits of the ISBN-13.
+     * @return The check digit.
+     */
+    protected static int calculateIsbn13CheckDigit(String digits) {
+        int sum = 0;
+        for(int i = 0; i < ISBN_13_LENGTH - 1; i++) {
+            int digit = digits.charAt(i) - '0';
+            sum += (i % 2 == 0) ? digit : digit * 3;
+        }
+        return (10 - (sum % 10)) % 10;
+    }
+}
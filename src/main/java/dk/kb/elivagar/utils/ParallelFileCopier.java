@@ -0,0 +1,256 @@
+package dk.kb.elivagar.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import dk.kb.elivagar.exception.ArgumentCheck;
+
+/**
+ * Copies large files as several ranges concurrently, so storage which needs several outstanding requests to reach
+ * its full bandwidth (e.g. network storage) is used efficiently.
+ *
+ * The destination is preallocated to the size of the file, and each range is read and written with positional
+ * reads and writes on the file channels. The ranges are digested in order as they are finished, so the checksums of
+ * the whole file are calculated incrementally from the copied bytes, without reading the file again.
+ * Only a limited number of ranges are in progress at any time, which bounds the memory used for the buffers.
+ *
+ * Files smaller than the threshold should just be copied with FileUtils.copyFileWithChecksums.
+ */
+public class ParallelFileCopier {
+    /** The logger.*/
+    private static final Logger log = LoggerFactory.getLogger(ParallelFileCopier.class);
+
+    /** The default size of the ranges.*/
+    public static final int DEFAULT_RANGE_SIZE = 8 * 1024 * 1024;
+    /** The number of seconds a thread of the pool may be idle, before it is stopped.*/
+    protected static final long IDLE_SECONDS = 30L;
+
+    /** The size from which the files should be copied in parallel ranges.*/
+    protected final long threshold;
+    /** The number of ranges copied concurrently.*/
+    protected final int streams;
+    /** The size of the ranges.*/
+    protected final int rangeSize;
+    /** The pool of threads for copying the ranges.*/
+    protected final ThreadPoolExecutor executor;
+
+    /**
+     * Constructor, with the default range size.
+     * @param threshold The size from which the files should be copied in parallel ranges.
+     * @param streams The number of ranges copied concurrently.
+     */
+    public ParallelFileCopier(long threshold, int streams) {
+        this(threshold, streams, DEFAULT_RANGE_SIZE);
+    }
+
+    /**
+     * Constructor.
+     * @param threshold The size from which the files should be copied in parallel ranges.
+     * @param streams The number of ranges copied concurrently.
+     * @param rangeSize The size of the ranges.
+     */
+    public ParallelFileCopier(long threshold, int streams, int rangeSize) {
+        this(threshold, streams, rangeSize, false);
+    }
+
+    /**
+     * Constructor.
+     * @param threshold The size from which the files should be copied in parallel ranges.
+     * @param streams The number of ranges copied concurrently.
+     * @param rangeSize The size of the ranges.
+     * @param lowPriorityIo Whether the threads copying the ranges should lower their I/O priority.
+     */
+    public ParallelFileCopier(long threshold, int streams, int rangeSize, boolean lowPriorityIo) {
+        ArgumentCheck.checkPositiveLong(threshold, "long threshold");
+        ArgumentCheck.checkPositiveInt(streams, "int streams");
+        ArgumentCheck.checkPositiveInt(rangeSize, "int rangeSize");
+        this.threshold = threshold;
+        this.streams = streams;
+        this.rangeSize = rangeSize;
+        ThreadFactory threadFactory = new RangeThreadFactory();
+        if(lowPriorityIo) {
+            threadFactory = new IoPriority.LowPriorityThreadFactory(threadFactory);
+        }
+        this.executor = new ThreadPoolExecutor(streams, streams, IDLE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), threadFactory);
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * @param f The file.
+     * @return Whether the file is large enough to be copied in parallel ranges.
+     * @throws IOException If it fails to read the symbolic link.
+     */
+    public boolean isAboveThreshold(File f) throws IOException {
+        return Files.size(FileUtils.getFileOrSymlinkPath(f)) >= threshold;
+    }
+
+    /**
+     * Copies a file or the content of its symbolic link to a given destination as parallel ranges, and calculates
+     * the checksums of the copied bytes.
+     * The number of bytes written is verified for each range, and the size of the destination is verified against
+     * the size of the file. The last modified date of the file is also copied.
+     * @param fromFile The from file.
+     * @param toFile The to file. It is replaced, if it already exists.
+     * @param algorithms The checksum algorithms.
+     * @return The checksums in hexadecimal, mapped by their algorithm.
+     * @throws IOException If it fails to copy any range, or if the copy is incomplete.
+     */
+    public Map<String, String> copyFile(File fromFile, File toFile, Collection<String> algorithms)
+            throws IOException {
+        return copyFile(fromFile, toFile, algorithms, null);
+    }
+
+    /**
+     * Copies a file as parallel ranges, and calculates the checksums of the copied bytes, while the rate of the
+     * copy is limited by the rate limiter.
+     * @param fromFile The from file.
+     * @param toFile The to file. It is replaced, if it already exists.
+     * @param algorithms The checksum algorithms.
+     * @param rateLimiter The limiter for the bytes per second. May be null for no limit.
+     * @return The checksums in hexadecimal, mapped by their algorithm.
+     * @throws IOException If it fails to copy any range, or if the copy is incomplete.
+     */
+    public Map<String, String> copyFile(File fromFile, File toFile, Collection<String> algorithms,
+            RateLimiter rateLimiter) throws IOException {
+        ArgumentCheck.checkExistsNormalFile(fromFile, "File fromFile");
+        ArgumentCheck.checkNotNullOrEmpty(algorithms, "Collection<String> algorithms");
+        Path fromPath = FileUtils.getFileOrSymlinkPath(fromFile);
+        Map<String, MessageDigest> digesters = ChecksumUtils.createDigesters(algorithms);
+        try (FileChannel in = FileChannel.open(fromPath, StandardOpenOption.READ);
+                FileChannel out = FileChannel.open(toFile.toPath(), StandardOpenOption.READ,
+                        StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                        StandardOpenOption.TRUNCATE_EXISTING)) {
+            long size = in.size();
+            log.debug("Copying '" + fromPath + "' (" + size + " bytes) in ranges of " + rangeSize + " bytes with "
+                    + streams + " concurrent streams.");
+            if(size > 0) {
+                out.write(ByteBuffer.allocate(1), size - 1);
+            }
+            copyRanges(in, out, size, digesters, rateLimiter);
+            if(out.size() != size) {
+                throw new IOException("Incomplete copy of '" + fromPath + "' to '" + toFile.getAbsolutePath()
+                        + "'. The copy has " + out.size() + " bytes, expected " + size + " bytes.");
+            }
+        }
+        Files.setLastModifiedTime(toFile.toPath(), Files.getLastModifiedTime(fromPath));
+        return ChecksumUtils.getChecksums(digesters);
+    }
+
+    /**
+     * Copies the ranges concurrently, and updates the digesters with each range in order.
+     * At most one range more than the number of streams is in progress at any time.
+     * @param in The channel to read from.
+     * @param out The channel to write to.
+     * @param size The size of the file.
+     * @param digesters The message digesters.
+     * @param rateLimiter The limiter for the bytes per second. May be null for no limit.
+     * @throws IOException If it fails to copy any range.
+     */
+    protected void copyRanges(FileChannel in, FileChannel out, long size, Map<String, MessageDigest> digesters,
+            RateLimiter rateLimiter) throws IOException {
+        Deque<Future<ByteBuffer>> ranges = new ArrayDeque<Future<ByteBuffer>>();
+        long position = 0L;
+        try {
+            while(position < size || !ranges.isEmpty()) {
+                while(position < size && ranges.size() <= streams) {
+                    int length = (int) Math.min(rangeSize, size - position);
+                    FileUtils.acquire(rateLimiter, length);
+                    ranges.add(executor.submit(new RangeCopy(in, out, position, length)));
+                    position += length;
+                }
+                ChecksumUtils.updateDigesters(digesters, ranges.poll().get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while copying the ranges.", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Could not copy a range.", e.getCause());
+        } finally {
+            for(Future<ByteBuffer> range : ranges) {
+                range.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * The copy of a single range, which returns the copied bytes for the checksums.
+     */
+    protected static class RangeCopy implements Callable<ByteBuffer> {
+        /** The channel to read from.*/
+        protected final FileChannel in;
+        /** The channel to write to.*/
+        protected final FileChannel out;
+        /** The position of the range.*/
+        protected final long position;
+        /** The length of the range.*/
+        protected final int length;
+
+        /**
+         * Constructor.
+         * @param in The channel to read from.
+         * @param out The channel to write to.
+         * @param position The position of the range.
+         * @param length The length of the range.
+         */
+        public RangeCopy(FileChannel in, FileChannel out, long position, int length) {
+            this.in = in;
+            this.out = out;
+            this.position = position;
+            this.length = length;
+        }
+
+        @Override
+        public ByteBuffer call() throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(length);
+            while(buffer.hasRemaining()) {
+                if(in.read(buffer, position + buffer.position()) == -1) {
+                    throw new IOException("The file was truncated during the copy, at position "
+                            + (position + buffer.position()));
+                }
+            }
+            buffer.flip();
+            while(buffer.hasRemaining()) {
+                out.write(buffer, position + buffer.position());
+            }
+            buffer.flip();
+            return buffer;
+        }
+    }
+
+    /**
+     * Thread factory for the daemon threads of the range copies.
+     */
+    protected static class RangeThreadFactory implements ThreadFactory {
+        /** The number of threads created by this factory.*/
+        protected final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread res = new Thread(r, "range-copy-" + count.incrementAndGet());
+            res.setDaemon(true);
+            return res;
+        }
+    }
+}
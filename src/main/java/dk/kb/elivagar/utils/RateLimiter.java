@@ -0,0 +1,111 @@
+package dk.kb.elivagar.utils;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Simple thread-safe token bucket for limiting the rate of some operation.
+ *
+ * The bucket is filled with the given number of permits per second, and can hold at most the burst size.
+ * A caller may acquire more permits than is currently available (or more than the burst size), in which case the
+ * bucket goes into debt, and the caller is blocked until the debt has been paid off.
+ * Thus concurrent callers are queued in the order they acquired their permits.
+ *
+ * A non-positive rate means no limit.
+ */
+public class RateLimiter {
+    /** The number of nanoseconds in a second.*/
+    protected static final double NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1L);
+
+    /** The number of permits per second.*/
+    protected double permitsPerSecond;
+    /** The maximum number of permits, which can be stored in the bucket.*/
+    protected final double maxBurst;
+    /** The current number of permits in the bucket. Negative, if the bucket is in debt.*/
+    protected double storedPermits;
+    /** The time, in nanos, when the bucket was last refilled.*/
+    protected long lastRefill;
+
+    /**
+     * Constructor, where the burst size is one second worth of permits (though at least 1 permit).
+     * @param permitsPerSecond The number of permits per second. Non-positive for no limit.
+     */
+    public RateLimiter(double permitsPerSecond) {
+        this(permitsPerSecond, Math.max(1.0, permitsPerSecond));
+    }
+
+    /**
+     * Constructor.
+     * @param permitsPerSecond The number of permits per second. Non-positive for no limit.
+     * @param maxBurst The maximum number of permits which can be stored in the bucket.
+     */
+    public RateLimiter(double permitsPerSecond, double maxBurst) {
+        this.permitsPerSecond = permitsPerSecond;
+        this.maxBurst = maxBurst;
+        this.storedPermits = maxBurst;
+        this.lastRefill = System.nanoTime();
+    }
+
+    /**
+     * Acquires a single permit. Blocks until it is available.
+     * @throws InterruptedException If it is interrupted while waiting.
+     */
+    public void acquire() throws InterruptedException {
+        acquire(1L);
+    }
+
+    /**
+     * Acquires the given number of permits. Blocks until they are available.
+     * @param permits The number of permits to acquire.
+     * @throws InterruptedException If it is interrupted while waiting.
+     */
+    public void acquire(long permits) throws InterruptedException {
+        long waitNanos = reserve(permits);
+        if(waitNanos > 0L) {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+    }
+
+    /**
+     * Reserves the given number of permits, and calculates how long the caller must wait before using them.
+     * @param permits The number of permits to reserve.
+     * @return The number of nanoseconds to wait before the permits can be used.
+     */
+    protected synchronized long reserve(long permits) {
+        if(permitsPerSecond <= 0.0) {
+            return 0L;
+        }
+        refill();
+        storedPermits -= permits;
+        if(storedPermits >= 0.0) {
+            return 0L;
+        }
+        return (long) (-storedPermits / permitsPerSecond * NANOS_PER_SECOND);
+    }
+
+    /**
+     * Refills the bucket with the permits which has accumulated since the last refill.
+     */
+    protected void refill() {
+        long now = System.nanoTime();
+        storedPermits = Math.min(maxBurst, storedPermits + (now - lastRefill) * permitsPerSecond / NANOS_PER_SECOND);
+        lastRefill = now;
+    }
+
+    /**
+     * Changes the rate.
+     * @param permitsPerSecond The new number of permits per second. Non-positive for no limit.
+     */
+    public synchronized void setRate(double permitsPerSecond) {
+        if(this.permitsPerSecond > 0.0) {
+            refill();
+        } else {
+            lastRefill = System.nanoTime();
+        }
+        this.permitsPerSecond = permitsPerSecond;
+    }
+
+    /** @return The current number of permits per second.*/
+    public synchronized double getRate() {
+        return permitsPerSecond;
+    }
+}
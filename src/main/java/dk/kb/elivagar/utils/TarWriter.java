@@ -0,0 +1,253 @@
+package dk.kb.elivagar.utils;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Collection;
+import java.util.Map;
+
+import dk.kb.elivagar.exception.ArgumentCheck;
+
+/**
+ * Writer of a tar archive (POSIX ustar format) as a single stream to a file.
+ *
+ * Each entry has a 512 byte header, followed by the content padded to a multiple of 512 bytes, and the archive
+ * ends with two empty blocks. Names longer than the 100 bytes of the header, and files larger than the 8 GiB of
+ * the header, get a PAX extended header with the path and the size.
+ * The file is forced to the disk, when the writer is closed.
+ */
+public class TarWriter implements Closeable {
+    /** The size of the blocks of the archive.*/
+    protected static final int BLOCK_SIZE = 512;
+    /** The maximum length of a name in the header.*/
+    protected static final int MAX_NAME_LENGTH = 100;
+    /** The maximum size of an entry in the header; 11 octal digits.*/
+    protected static final long MAX_SIZE = 077777777777L;
+    /** The type flag of a regular file.*/
+    protected static final byte TYPE_FILE = '0';
+    /** The type flag of a PAX extended header for the next entry.*/
+    protected static final byte TYPE_PAX_HEADER = 'x';
+
+    /** The channel to the archive file.*/
+    protected final FileChannel channel;
+    /** The buffer for the content of the files.*/
+    protected final ByteBuffer buffer = ByteBuffer.allocate(FileUtils.COPY_BUFFER_SIZE);
+
+    /**
+     * Constructor.
+     * @param tarFile The archive file. It is replaced, if it already exists.
+     * @throws IOException If it fails to open the archive file.
+     */
+    public TarWriter(File tarFile) throws IOException {
+        ArgumentCheck.checkNotNull(tarFile, "File tarFile");
+        this.channel = FileChannel.open(tarFile.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    /**
+     * Adds a file or the content of its symbolic link to the archive, and calculates the checksums of the bytes
+     * as they are written, while the rate of the writes is limited by the rate limiter.
+     * @param name The name of the entry in the archive.
+     * @param f The file.
+     * @param algorithms The checksum algorithms.
+     * @param rateLimiter The limiter for the bytes per second. May be null for no limit.
+     * @return The checksums in hexadecimal, mapped by their algorithm.
+     * @throws IOException If it fails to read the file or write the archive, or if the file changes size.
+     */
+    public Map<String, String> addFile(String name, File f, Collection<String> algorithms, RateLimiter rateLimiter)
+            throws IOException {
+        ArgumentCheck.checkExistsNormalFile(f, "File f");
+        ArgumentCheck.checkNotNullOrEmpty(algorithms, "Collection<String> algorithms");
+        Path path = FileUtils.getFileOrSymlinkPath(f);
+        Map<String, MessageDigest> digesters = ChecksumUtils.createDigesters(algorithms);
+        try (FileChannel in = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = in.size();
+            writeHeader(name, size, path.toFile().lastModified());
+            long written = 0L;
+            buffer.clear();
+            while(written < size && in.read(buffer) != -1) {
+                buffer.flip();
+                if(buffer.remaining() > size - written) {
+                    buffer.limit(buffer.position() + (int) (size - written));
+                }
+                FileUtils.acquire(rateLimiter, buffer.remaining());
+                ChecksumUtils.updateDigesters(digesters, buffer);
+                written += write(buffer);
+                buffer.clear();
+            }
+            if(written != size) {
+                throw new IOException("Incomplete archiving of '" + path + "'. Wrote " + written
+                        + " bytes, expected " + size + " bytes.");
+            }
+            writePadding(size);
+        }
+        return ChecksumUtils.getChecksums(digesters);
+    }
+
+    /**
+     * Adds an entry with the given content to the archive, e.g. a manifest.
+     * @param name The name of the entry in the archive.
+     * @param content The content of the entry.
+     * @param lastModified The last modified date of the entry, in milliseconds.
+     * @throws IOException If it fails to write the archive.
+     */
+    public void addEntry(String name, byte[] content, long lastModified) throws IOException {
+        ArgumentCheck.checkNotNull(content, "byte[] content");
+        writeHeader(name, content.length, lastModified);
+        write(ByteBuffer.wrap(content));
+        writePadding(content.length);
+    }
+
+    /**
+     * Ends the archive with two empty blocks, forces it to the disk and closes it.
+     * @throws IOException If it fails to write or close the archive.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            write(ByteBuffer.allocate(2 * BLOCK_SIZE));
+            channel.force(true);
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Writes the header of an entry of a regular file, preceded by a PAX extended header, if the name or the size
+     * does not fit into the header.
+     * @param name The name of the entry.
+     * @param size The size of the entry.
+     * @param lastModified The last modified date of the entry, in milliseconds.
+     * @throws IOException If it fails to write the header.
+     */
+    protected void writeHeader(String name, long size, long lastModified) throws IOException {
+        ArgumentCheck.checkNotNullOrEmpty(name, "String name");
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        StringBuilder paxRecords = new StringBuilder();
+        if(nameBytes.length > MAX_NAME_LENGTH) {
+            paxRecords.append(getPaxRecord("path", name));
+        }
+        if(size > MAX_SIZE) {
+            paxRecords.append(getPaxRecord("size", String.valueOf(size)));
+        }
+        if(paxRecords.length() > 0) {
+            byte[] pax = paxRecords.toString().getBytes(StandardCharsets.UTF_8);
+            write(ByteBuffer.wrap(createHeader(getTruncatedName("PaxHeaders/" + name), pax.length, lastModified,
+                    TYPE_PAX_HEADER)));
+            write(ByteBuffer.wrap(pax));
+            writePadding(pax.length);
+        }
+        write(ByteBuffer.wrap(createHeader(getTruncatedName(name), Math.min(size, MAX_SIZE), lastModified,
+                TYPE_FILE)));
+    }
+
+    /**
+     * Creates a ustar header block.
+     * @param name The name of the entry, at most 100 bytes.
+     * @param size The size of the entry, at most 11 octal digits.
+     * @param lastModified The last modified date of the entry, in milliseconds.
+     * @param type The type flag of the entry.
+     * @return The header block.
+     */
+    protected static byte[] createHeader(byte[] name, long size, long lastModified, byte type) {
+        byte[] header = new byte[BLOCK_SIZE];
+        System.arraycopy(name, 0, header, 0, name.length);
+        putOctal(header, 100, 8, 0644L);
+        putOctal(header, 108, 8, 0L);
+        putOctal(header, 116, 8, 0L);
+        putOctal(header, 124, 12, size);
+        putOctal(header, 136, 12, Math.max(lastModified, 0L) / 1000L);
+        header[156] = type;
+        byte[] magic = "ustar\u000000".getBytes(StandardCharsets.US_ASCII);
+        System.arraycopy(magic, 0, header, 257, magic.length);
+        // The checksum is calculated with the checksum field as spaces.
+        for(int i = 148; i < 156; i++) {
+            header[i] = ' ';
+        }
+        long checksum = 0L;
+        for(byte b : header) {
+            checksum += b & 0xff;
+        }
+        putOctal(header, 148, 7, checksum);
+        return header;
+    }
+
+    /**
+     * Puts a number as zero padded octal digits followed by a NUL into a field of the header.
+     * @param header The header.
+     * @param offset The offset of the field.
+     * @param length The length of the field, including the NUL.
+     * @param value The value.
+     */
+    protected static void putOctal(byte[] header, int offset, int length, long value) {
+        String octal = Long.toOctalString(value);
+        int digits = length - 1;
+        for(int i = 0; i < digits; i++) {
+            int index = octal.length() - digits + i;
+            header[offset + i] = index < 0 ? (byte) '0' : (byte) octal.charAt(index);
+        }
+        header[offset + digits] = 0;
+    }
+
+    /**
+     * @param name The name of an entry.
+     * @return The name in UTF-8, truncated to the length of the name field.
+     */
+    protected static byte[] getTruncatedName(String name) {
+        byte[] res = name.getBytes(StandardCharsets.UTF_8);
+        if(res.length <= MAX_NAME_LENGTH) {
+            return res;
+        }
+        byte[] truncated = new byte[MAX_NAME_LENGTH];
+        System.arraycopy(res, 0, truncated, 0, MAX_NAME_LENGTH);
+        return truncated;
+    }
+
+    /**
+     * Creates a PAX record; the length of the record, the key and the value, e.g. '30 path=some/long/name\n'.
+     * The length is in bytes, and it includes the digits of the length itself.
+     * @param key The key.
+     * @param value The value.
+     * @return The record.
+     */
+    protected static String getPaxRecord(String key, String value) {
+        int length = (" " + key + "=" + value + "\n").getBytes(StandardCharsets.UTF_8).length;
+        int total = length + String.valueOf(length).length();
+        if(String.valueOf(total).length() != String.valueOf(length).length()) {
+            total++;
+        }
+        return total + " " + key + "=" + value + "\n";
+    }
+
+    /**
+     * Pads the content of an entry with zeros to a multiple of the block size.
+     * @param size The size of the content.
+     * @throws IOException If it fails to write the padding.
+     */
+    protected void writePadding(long size) throws IOException {
+        int remainder = (int) (size % BLOCK_SIZE);
+        if(remainder > 0) {
+            write(ByteBuffer.allocate(BLOCK_SIZE - remainder));
+        }
+    }
+
+    /**
+     * Writes all the remaining bytes of the buffer to the archive.
+     * @param data The buffer.
+     * @return The number of bytes written.
+     * @throws IOException If it fails to write.
+     */
+    protected int write(ByteBuffer data) throws IOException {
+        int res = 0;
+        while(data.hasRemaining()) {
+            res += channel.write(data);
+        }
+        return res;
+    }
+}
@@ -83,4 +83,15 @@ public class AlmaExtractTest extends ExtendedTestCase {
         verify(retriever).retrieveMetadataForISBN(eq(isbn), any(OutputStream.class));
         verifyNoMoreInteractions(retriever);
     }
+
+    @Test(expectedExceptions = PreventSystemExit.ExitTrappedException.class)
+    public void testBulkExtractionUnknownArgument() {
+        addDescription("Test the bulk mode, when an unknown argument is given.");
+        try {
+            PreventSystemExit.forbidSystemExitCall();
+            AlmaExtract.main(new String[]{testConfFile.getAbsolutePath(), "-x", "value"});
+        } finally {
+            PreventSystemExit.enableSystemExitCall();
+        }
+    }
 }
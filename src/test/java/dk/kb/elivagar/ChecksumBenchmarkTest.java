@@ -0,0 +1,57 @@
+package dk.kb.elivagar;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.UUID;
+
+import org.jaccept.structure.ExtendedTestCase;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import dk.kb.elivagar.testutils.PreventSystemExit;
+import dk.kb.elivagar.testutils.TestFileUtils;
+import dk.kb.elivagar.utils.ChecksumService;
+
+public class ChecksumBenchmarkTest extends ExtendedTestCase {
+
+    @BeforeClass
+    public void setup() {
+        TestFileUtils.setup();
+    }
+    
+    @AfterClass
+    public void tearDown() {
+        TestFileUtils.tearDown();
+    }
+    
+    @Test(expectedExceptions = PreventSystemExit.ExitTrappedException.class)
+    public void testNotEnoughArguments() {
+        addDescription("Test the case, when not enough argument are given.");
+        try {
+            PreventSystemExit.forbidSystemExitCall();
+            ChecksumBenchmark.main(new String[]{"1"});
+        } finally {
+            PreventSystemExit.enableSystemExitCall();
+        }
+    }
+    
+    @Test
+    public void testRunBenchmark() throws Exception {
+        addDescription("Test running the benchmark on two files.");
+        File f1 = TestFileUtils.createTempFile(UUID.randomUUID().toString());
+        File f2 = TestFileUtils.createTempFile(UUID.randomUUID().toString());
+        
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ChecksumBenchmark.runBenchmark(Arrays.asList(f1, f2), 2, new ChecksumService(2), new PrintStream(out));
+        
+        String result = out.toString();
+        Assert.assertTrue(result.contains("Stream MD5 (4 KB buffer): "), result);
+        Assert.assertTrue(result.contains("Channel MD5: "), result);
+        Assert.assertTrue(result.contains("Channel MD5 + SHA-256: "), result);
+        Assert.assertTrue(result.contains("Concurrent MD5 + SHA-256: "), result);
+    }
+}
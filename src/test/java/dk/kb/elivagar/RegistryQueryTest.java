@@ -0,0 +1,68 @@
+package dk.kb.elivagar;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.util.Date;
+import java.util.UUID;
+
+import org.jaccept.structure.ExtendedTestCase;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import dk.kb.elivagar.testutils.PreventSystemExit;
+import dk.kb.elivagar.testutils.TestFileUtils;
+import dk.kb.elivagar.transfer.RegistryStore;
+import dk.kb.elivagar.transfer.TransferRegistry;
+import dk.kb.elivagar.utils.FileUtils;
+
+public class RegistryQueryTest extends ExtendedTestCase {
+
+    @BeforeClass
+    public void setup() {
+        TestFileUtils.setup();
+    }
+    
+    @AfterClass
+    public void tearDown() {
+        TestFileUtils.tearDown();
+    }
+    
+    @Test(expectedExceptions = PreventSystemExit.ExitTrappedException.class)
+    public void testNotEnoughArguments() {
+        addDescription("Test the case, when not enough argument are given.");
+        try {
+            PreventSystemExit.forbidSystemExitCall();
+            RegistryQuery.main(new String[]{"ARG1"});
+        } finally {
+            PreventSystemExit.enableSystemExitCall();
+        }
+    }
+    
+    @Test
+    public void testRunQuery() throws Exception {
+        addDescription("Test running the queries against the registry store.");
+        File bookDir = FileUtils.createDirectory(TestFileUtils.getTempDir().getAbsolutePath() + "/" 
+                + UUID.randomUUID().toString());
+        RegistryStore store = new RegistryStore(new File(TestFileUtils.getTempDir(), UUID.randomUUID().toString()));
+        TransferRegistry registry = new TransferRegistry(bookDir, store);
+        registry.setIngestDate(new Date(1000L));
+        registry.flush();
+        
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Assert.assertTrue(RegistryQuery.runQuery(store, new String[]{"conf", "ingested", "0", "2000"}, 
+                new PrintStream(out)));
+        Assert.assertEquals(out.toString().trim(), bookDir.getName());
+        
+        out.reset();
+        Assert.assertTrue(RegistryQuery.runQuery(store, new String[]{"conf", "changed-since", "1970-01-02"}, 
+                new PrintStream(out)));
+        Assert.assertEquals(out.toString().trim(), "");
+        
+        addStep("Run unknown command or command with missing arguments", "Returns false");
+        Assert.assertFalse(RegistryQuery.runQuery(store, new String[]{"conf", "unknown"}, new PrintStream(out)));
+        Assert.assertFalse(RegistryQuery.runQuery(store, new String[]{"conf", "ingested", "0"}, new PrintStream(out)));
+    }
+}
@@ -0,0 +1,58 @@
+package dk.kb.elivagar;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.util.UUID;
+
+import org.jaccept.structure.ExtendedTestCase;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import dk.kb.elivagar.testutils.PreventSystemExit;
+import dk.kb.elivagar.testutils.TestFileUtils;
+import dk.kb.elivagar.utils.FileUtils;
+
+public class TransferBenchmarkTest extends ExtendedTestCase {
+
+    @BeforeClass
+    public void setup() {
+        TestFileUtils.setup();
+    }
+    
+    @AfterClass
+    public void tearDown() {
+        TestFileUtils.tearDown();
+    }
+    
+    @Test(expectedExceptions = PreventSystemExit.ExitTrappedException.class)
+    public void testNotEnoughArguments() {
+        addDescription("Test the case, when not enough argument are given.");
+        try {
+            PreventSystemExit.forbidSystemExitCall();
+            TransferBenchmark.main(new String[]{"ARG1"});
+        } finally {
+            PreventSystemExit.enableSystemExitCall();
+        }
+    }
+    
+    @Test
+    public void testRunBenchmark() throws Exception {
+        addDescription("Test running the benchmark on a file.");
+        File file = TestFileUtils.createTempFile(UUID.randomUUID().toString());
+        File destDir = FileUtils.createDirectory(TestFileUtils.getTempDir().getAbsolutePath() + "/" 
+                + UUID.randomUUID().toString());
+        
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        TransferBenchmark.runBenchmark(file, destDir, 2, new PrintStream(out));
+        
+        String result = out.toString();
+        Assert.assertTrue(result.contains("Stream copy: "), result);
+        Assert.assertTrue(result.contains("Checksum copy: "), result);
+        Assert.assertTrue(result.contains("Parallel copy ("), result);
+        Assert.assertTrue(result.contains("Hard link: "), result);
+        Assert.assertEquals(destDir.list().length, 0);
+    }
+}
@@ -0,0 +1,127 @@
+package dk.kb.elivagar.characterization;
+
+import static org.mockito.Mockito.*;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+import org.jaccept.structure.ExtendedTestCase;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import dk.kb.elivagar.config.CharacterizationConfiguration;
+import dk.kb.elivagar.config.Configuration;
+import dk.kb.elivagar.testutils.TestFileUtils;
+import dk.kb.elivagar.utils.FileUtils;
+
+public class CharacterizationCampaignTest extends ExtendedTestCase {
+
+    @BeforeClass
+    public void setup() {
+        TestFileUtils.setup();
+    }
+    
+    @AfterClass
+    public void tearDown() {
+        TestFileUtils.tearDown();
+    }
+    
+    protected Configuration createConfiguration(File outputDir, File stateDir) {
+        Configuration conf = mock(Configuration.class);
+        when(conf.getEbookOutputDir()).thenReturn(outputDir);
+        when(conf.getAudioOutputDir()).thenReturn(outputDir);
+        when(conf.getEbookFormats()).thenReturn(Arrays.asList("pdf", "epub"));
+        when(conf.getAudioFormats()).thenReturn(Arrays.asList("mp3"));
+        when(conf.getStateDir()).thenReturn(stateDir);
+        when(conf.getCharacterizationConfiguration()).thenReturn(new CharacterizationConfiguration());
+        return conf;
+    }
+    
+    protected File createBookDir(File outputDir, String suffix) throws Exception {
+        File bookDir = FileUtils.createDirectory(outputDir.getAbsolutePath() + "/" + UUID.randomUUID().toString());
+        File bookFile = new File(bookDir, bookDir.getName() + suffix);
+        TestFileUtils.createFile(bookFile, UUID.randomUUID().toString());
+        return bookFile;
+    }
+    
+    @Test
+    public void testFindContentFiles() throws Exception {
+        addDescription("Test that only the content files of the book directories are found.");
+        File outputDir = FileUtils.createDirectory(TestFileUtils.getTempDir().getAbsolutePath() + "/" + UUID.randomUUID().toString());
+        File stateDir = new File(TestFileUtils.getTempDir(), UUID.randomUUID().toString());
+        Configuration conf = createConfiguration(outputDir, stateDir);
+        CharacterizationHandler handler = mock(CharacterizationHandler.class);
+        
+        File pdfFile = createBookDir(outputDir, ".pdf");
+        File mp3File = createBookDir(outputDir, ".mp3");
+        createBookDir(outputDir, ".suffix");
+        TestFileUtils.createFile(new File(outputDir, UUID.randomUUID().toString() + ".pdf"), UUID.randomUUID().toString());
+        
+        CharacterizationCampaign campaign = new CharacterizationCampaign(conf, handler, "test", true, true);
+        List<File> files = campaign.findContentFiles();
+        Assert.assertEquals(files.size(), 2);
+        Assert.assertTrue(files.contains(pdfFile));
+        Assert.assertTrue(files.contains(mp3File));
+        verifyZeroInteractions(handler);
+    }
+    
+    @Test
+    public void testRunAndResume() throws Exception {
+        addDescription("Test running a campaign, and running it again after more books have arrived.");
+        File outputDir = FileUtils.createDirectory(TestFileUtils.getTempDir().getAbsolutePath() + "/" + UUID.randomUUID().toString());
+        File stateDir = new File(TestFileUtils.getTempDir(), UUID.randomUUID().toString());
+        Configuration conf = createConfiguration(outputDir, stateDir);
+        CharacterizationHandler handler = mock(CharacterizationHandler.class);
+        
+        File pdfFile = createBookDir(outputDir, ".pdf");
+        File epubFile = createBookDir(outputDir, ".epub");
+        when(handler.recharacterize(any(File.class), any(File.class), anyBoolean(), anyBoolean())).thenReturn(true);
+        
+        addStep("Run the campaign", "Both files are re-characterized");
+        CharacterizationCampaign campaign = new CharacterizationCampaign(conf, handler, "test", true, false);
+        campaign.run();
+        Assert.assertEquals(campaign.getNumberOfSucceeded(), 2L);
+        Assert.assertEquals(campaign.getNumberOfFailed(), 0L);
+        Assert.assertEquals(campaign.getNumberOfSkipped(), 0L);
+        verify(handler).recharacterize(eq(pdfFile), eq(pdfFile.getParentFile()), eq(true), eq(false));
+        verify(handler).recharacterize(eq(epubFile), eq(epubFile.getParentFile()), eq(true), eq(false));
+        verifyNoMoreInteractions(handler);
+        
+        addStep("Add another book and run the campaign again", "Only the new file is re-characterized");
+        File mp3File = createBookDir(outputDir, ".mp3");
+        campaign = new CharacterizationCampaign(conf, handler, "test", true, false);
+        campaign.run();
+        Assert.assertEquals(campaign.getNumberOfSucceeded(), 1L);
+        Assert.assertEquals(campaign.getNumberOfSkipped(), 2L);
+        verify(handler).recharacterize(eq(mp3File), eq(mp3File.getParentFile()), eq(true), eq(false));
+        verifyNoMoreInteractions(handler);
+    }
+    
+    @Test
+    public void testFailuresAreNotCheckpointed() throws Exception {
+        addDescription("Test that a failed file is retried, when the campaign is resumed.");
+        File outputDir = FileUtils.createDirectory(TestFileUtils.getTempDir().getAbsolutePath() + "/" + UUID.randomUUID().toString());
+        File stateDir = new File(TestFileUtils.getTempDir(), UUID.randomUUID().toString());
+        Configuration conf = createConfiguration(outputDir, stateDir);
+        CharacterizationHandler handler = mock(CharacterizationHandler.class);
+        
+        File pdfFile = createBookDir(outputDir, ".pdf");
+        when(handler.recharacterize(any(File.class), any(File.class), anyBoolean(), anyBoolean())).thenReturn(false);
+        
+        CharacterizationCampaign campaign = new CharacterizationCampaign(conf, handler, "test", true, true);
+        campaign.run();
+        Assert.assertEquals(campaign.getNumberOfSucceeded(), 0L);
+        Assert.assertEquals(campaign.getNumberOfFailed(), 1L);
+        Assert.assertTrue(campaign.loadCheckpoint().isEmpty());
+        
+        campaign = new CharacterizationCampaign(conf, handler, "test", true, true);
+        campaign.run();
+        Assert.assertEquals(campaign.getNumberOfFailed(), 1L);
+        verify(handler, times(2)).recharacterize(eq(pdfFile), eq(pdfFile.getParentFile()), eq(true), eq(true));
+        verifyNoMoreInteractions(handler);
+    }
+}
@@ -15,6 +15,7 @@ import org.testng.annotations.BeforeClass;
 import org.testng.annotations.Test;
 
 import dk.kb.elivagar.Constants;
+import dk.kb.elivagar.config.CharacterizationConfiguration;
 import dk.kb.elivagar.config.Configuration;
 import dk.kb.elivagar.testutils.TestConfigurations;
 import dk.kb.elivagar.testutils.TestFileUtils;
@@ -280,4 +281,115 @@ public class CharacterizationHandlerTest extends ExtendedTestCase {
         verifyNoMoreInteractions(epubCharacterizer);
         verifyZeroInteractions(fitsCharacterizer);
     }
+
+    @Test
+    public void testRecharacterizeReplacesOutput() throws Exception {
+        addDescription("Test the recharacterize method, when the output files are newer than the input file.");
+        FitsCharacterizer fitsCharacterizer = mock(FitsCharacterizer.class);
+        EpubCheckerCharacterizer epubCharacterizer = mock(EpubCheckerCharacterizer.class);
+        CharacterizationHandler characterizer = new CharacterizationHandler(fitsCharacterizer, epubCharacterizer);
+
+        File dir = FileUtils.createDirectory(new File(TestFileUtils.getTempDir(), UUID.randomUUID().toString()).getAbsolutePath());
+        File inputFile = new File(dir, UUID.randomUUID().toString() + Constants.EPUB_FILE_SUFFIX);
+        File fitsFile = new File(dir, inputFile.getName() + Constants.FITS_METADATA_SUFFIX);
+        File epubcheckFile = new File(dir, inputFile.getName() + Constants.EPUBCHECK_METADATA_SUFFIX);
+        TestFileUtils.createFile(inputFile, UUID.randomUUID().toString());
+        TestFileUtils.createFile(fitsFile, "OLD FITS");
+        TestFileUtils.createFile(epubcheckFile, "OLD EPUBCHECK");
+        inputFile.setLastModified(0);
+
+        when(epubCharacterizer.hasRequiredExtension(eq(inputFile))).thenReturn(true);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                TestFileUtils.createFile((File) invocation.getArguments()[1], "NEW FITS");
+                return null;
+            }
+        }).when(fitsCharacterizer).performCharacterization(eq(inputFile), any(File.class));
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                throw new IOException("TEST EXCEPTION");
+            }
+        }).when(epubCharacterizer).characterize(eq(inputFile), any(File.class));
+
+        Assert.assertFalse(characterizer.recharacterize(inputFile, dir, true, true));
+
+        Assert.assertEquals(TestFileUtils.readFile(fitsFile), "NEW FITS");
+        Assert.assertEquals(TestFileUtils.readFile(epubcheckFile), "OLD EPUBCHECK");
+        Assert.assertEquals(dir.list().length, 3);
+        verify(fitsCharacterizer).performCharacterization(eq(inputFile), any(File.class));
+        verifyNoMoreInteractions(fitsCharacterizer);
+        verify(epubCharacterizer).hasRequiredExtension(eq(inputFile));
+        verify(epubCharacterizer).characterize(eq(inputFile), any(File.class));
+        verifyNoMoreInteractions(epubCharacterizer);
+    }
+
+    @Test
+    public void testRecharacterizeOnlyEpubCheck() throws Exception {
+        addDescription("Test the recharacterize method, when only the epubcheck should be run.");
+        FitsCharacterizer fitsCharacterizer = mock(FitsCharacterizer.class);
+        EpubCheckerCharacterizer epubCharacterizer = mock(EpubCheckerCharacterizer.class);
+        CharacterizationHandler characterizer = new CharacterizationHandler(fitsCharacterizer, epubCharacterizer);
+
+        File dir = FileUtils.createDirectory(new File(TestFileUtils.getTempDir(), UUID.randomUUID().toString()).getAbsolutePath());
+        File inputFile = new File(dir, UUID.randomUUID().toString() + ".pdf");
+        TestFileUtils.createFile(inputFile, UUID.randomUUID().toString());
+
+        when(epubCharacterizer.hasRequiredExtension(eq(inputFile))).thenReturn(false);
+
+        Assert.assertTrue(characterizer.recharacterize(inputFile, dir, false, true));
+
+        Assert.assertEquals(dir.list().length, 1);
+        verifyZeroInteractions(fitsCharacterizer);
+        verify(epubCharacterizer).hasRequiredExtension(eq(inputFile));
+        verifyNoMoreInteractions(epubCharacterizer);
+    }
+
+    @Test
+    public void testQuarantinedCharacterization() throws Exception {
+        addDescription("Test that a quarantined characterization is performed in the quarantine lane, "
+                + "and not again until the back-off interval has passed.");
+        FitsCharacterizer fitsCharacterizer = mock(FitsCharacterizer.class);
+        EpubCheckerCharacterizer epubCharacterizer = mock(EpubCheckerCharacterizer.class);
+        File stateDir = new File(TestFileUtils.getTempDir(), UUID.randomUUID().toString());
+        CharacterizationHistory history = new CharacterizationHistory(stateDir, 
+                new CharacterizationConfiguration(1, 0L, 0L, 1, 3600000L, 3600000L));
+        CharacterizationHandler characterizer = new CharacterizationHandler(fitsCharacterizer, epubCharacterizer, history);
+
+        File dir = FileUtils.createDirectory(new File(TestFileUtils.getTempDir(), UUID.randomUUID().toString()).getAbsolutePath());
+        File inputFile = new File(dir, UUID.randomUUID().toString());
+        File outputFile = new File(dir, inputFile.getName() + Constants.FITS_METADATA_SUFFIX);
+        TestFileUtils.createFile(inputFile, UUID.randomUUID().toString());
+
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                throw new IllegalStateException("TEST EXCEPTION");
+            }
+        }).when(fitsCharacterizer).performCharacterization(eq(inputFile), eq(outputFile));
+
+        addStep("Run the characterization, which fails", "The file is quarantined");
+        characterizer.runFitsIfNeeded(inputFile, dir);
+        Assert.assertFalse(outputFile.exists());
+        Assert.assertTrue(history.isQuarantined(outputFile));
+        Assert.assertFalse(history.isDue(outputFile));
+        verify(fitsCharacterizer).performCharacterization(eq(inputFile), eq(outputFile));
+
+        addStep("Run the characterization again", "Skipped, since the back-off interval has not passed");
+        characterizer.runFitsIfNeeded(inputFile, dir);
+        characterizer.finishQuarantineLane();
+        verify(fitsCharacterizer).performCharacterization(eq(inputFile), eq(outputFile));
+
+        addStep("Run with a history without back-off", "Performed in the quarantine lane");
+        history = new CharacterizationHistory(stateDir, 
+                new CharacterizationConfiguration(1, 0L, 0L, 1, 0L, 0L));
+        characterizer = new CharacterizationHandler(fitsCharacterizer, epubCharacterizer, history);
+        characterizer.runFitsIfNeeded(inputFile, dir);
+        Assert.assertNotNull(characterizer.quarantineLane);
+        characterizer.finishQuarantineLane();
+        verify(fitsCharacterizer, times(2)).performCharacterization(eq(inputFile), eq(outputFile));
+        verifyNoMoreInteractions(fitsCharacterizer);
+        verifyZeroInteractions(epubCharacterizer);
+    }
 }
@@ -0,0 +1,89 @@
+package dk.kb.elivagar.characterization;
+
+import java.io.File;
+import java.util.UUID;
+
+import org.jaccept.structure.ExtendedTestCase;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import dk.kb.elivagar.config.CharacterizationConfiguration;
+import dk.kb.elivagar.testutils.TestFileUtils;
+
+public class CharacterizationHistoryTest extends ExtendedTestCase {
+
+    @BeforeClass
+    public void setup() {
+        TestFileUtils.setup();
+    }
+    
+    @AfterClass
+    public void tearDown() {
+        TestFileUtils.tearDown();
+    }
+    
+    @Test
+    public void testQuarantineByFailures() throws Exception {
+        addDescription("Test that a file is quarantined after the given number of failures, and that it is persisted.");
+        File stateDir = new File(TestFileUtils.getTempDir(), UUID.randomUUID().toString());
+        CharacterizationConfiguration conf = new CharacterizationConfiguration(1, 0L, 1000L, 2, 60000L, 600000L);
+        File outputFile = new File(TestFileUtils.getTempDir(), UUID.randomUUID().toString());
+        
+        CharacterizationHistory history = new CharacterizationHistory(stateDir, conf);
+        Assert.assertFalse(history.isQuarantined(outputFile));
+        Assert.assertTrue(history.isDue(outputFile));
+        
+        addStep("Record a single failure", "Not quarantined yet");
+        history.recordFailure(outputFile, 10L);
+        Assert.assertFalse(history.isQuarantined(outputFile));
+        
+        addStep("Record another failure", "Quarantined and not due");
+        history.recordFailure(outputFile, 10L);
+        Assert.assertTrue(history.isQuarantined(outputFile));
+        Assert.assertFalse(history.isDue(outputFile));
+        
+        addStep("Load the history again", "Still quarantined");
+        history = new CharacterizationHistory(stateDir, conf);
+        Assert.assertTrue(history.isQuarantined(outputFile));
+        
+        addStep("Record a success", "No longer quarantined");
+        history.recordSuccess(outputFile, 10L);
+        Assert.assertFalse(history.isQuarantined(outputFile));
+        history = new CharacterizationHistory(stateDir, conf);
+        Assert.assertFalse(history.isQuarantined(outputFile));
+    }
+    
+    @Test
+    public void testQuarantineByDuration() throws Exception {
+        addDescription("Test that a file is quarantined, when the characterization takes too long.");
+        File stateDir = new File(TestFileUtils.getTempDir(), UUID.randomUUID().toString());
+        CharacterizationConfiguration conf = new CharacterizationConfiguration(1, 0L, 1000L, 0, 0L, 0L);
+        File outputFile = new File(TestFileUtils.getTempDir(), UUID.randomUUID().toString());
+        
+        CharacterizationHistory history = new CharacterizationHistory(stateDir, conf);
+        history.recordFailure(outputFile, 10L);
+        history.recordFailure(outputFile, 10L);
+        Assert.assertFalse(history.isQuarantined(outputFile));
+        
+        history.recordSuccess(outputFile, 1000L);
+        Assert.assertTrue(history.isQuarantined(outputFile));
+        Assert.assertTrue(history.isDue(outputFile));
+    }
+    
+    @Test
+    public void testBackoff() throws Exception {
+        addDescription("Test that the back-off is doubled for each failure until the maximum.");
+        File stateDir = new File(TestFileUtils.getTempDir(), UUID.randomUUID().toString());
+        CharacterizationConfiguration conf = new CharacterizationConfiguration(1, 0L, 0L, 1, 1000L, 5000L);
+        CharacterizationHistory history = new CharacterizationHistory(stateDir, conf);
+        
+        Assert.assertEquals(history.getBackoff(0), 1000L);
+        Assert.assertEquals(history.getBackoff(1), 1000L);
+        Assert.assertEquals(history.getBackoff(2), 2000L);
+        Assert.assertEquals(history.getBackoff(3), 4000L);
+        Assert.assertEquals(history.getBackoff(4), 5000L);
+        Assert.assertEquals(history.getBackoff(100), 5000L);
+    }
+}
@@ -2,6 +2,9 @@ package dk.kb.elivagar.config;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
 
 import org.jaccept.structure.ExtendedTestCase;
 import org.testng.Assert;
@@ -10,6 +13,7 @@ import org.testng.annotations.BeforeClass;
 import org.testng.annotations.Test;
 
 import dk.kb.elivagar.config.Configuration;
+import dk.kb.elivagar.exception.ArgumentCheck;
 import dk.kb.elivagar.testutils.TestConfigurations;
 import dk.kb.elivagar.testutils.TestFileUtils;
 import dk.kb.elivagar.utils.FileUtils;
@@ -54,6 +58,20 @@ public class ConfigurationTest extends ExtendedTestCase {
         Assert.assertTrue(conf.getStatisticsDir().isDirectory());
 
         Assert.assertNotNull(conf.getAlmaSruSearch());
+        Assert.assertNotNull(conf.getStateDir());
+        Assert.assertEquals(conf.getStateDir().getParentFile(), conf.getStatisticsDir());
+
+        addStep("Test the Alma configuration", "Should have the default values");
+        Assert.assertNotNull(conf.getAlmaConfiguration());
+        Assert.assertEquals(conf.getAlmaConfiguration().getBatchSize(), AlmaConfiguration.DEFAULT_BATCH_SIZE);
+        Assert.assertEquals(conf.getAlmaConfiguration().getWorkers(), AlmaConfiguration.DEFAULT_WORKERS);
+
+        addStep("Test the characterization configuration", "Should have the default values");
+        Assert.assertNotNull(conf.getCharacterizationConfiguration());
+        Assert.assertEquals(conf.getCharacterizationConfiguration().getCampaignThreads(), 
+                CharacterizationConfiguration.DEFAULT_CAMPAIGN_THREADS);
+        Assert.assertEquals(conf.getCharacterizationConfiguration().getCampaignFilesPerMinute(), 
+                CharacterizationConfiguration.DEFAULT_CAMPAIGN_FILES_PER_MINUTE);
 
         addStep("Test the transfer configuration", "");
         Assert.assertNotNull(conf.getTransferConfiguration());
@@ -80,4 +98,150 @@ public class ConfigurationTest extends ExtendedTestCase {
         Configuration conf = TestConfigurations.getConfigurationForTestWithoutTransfer();
         Assert.assertNull(conf.getTransferConfiguration());
     }
+    
+    @Test
+    public void testCharacterizationConfiguration() throws IOException {
+        Configuration conf = TestConfigurations.getConfigurationForTestWithoutTransfer();
+        Map<String, Object> characterizationMap = new HashMap<String, Object>();
+        characterizationMap.put(Configuration.CONF_CHARACTERIZATION_CAMPAIGN_THREADS, 4);
+        characterizationMap.put(Configuration.CONF_CHARACTERIZATION_CAMPAIGN_FILES_PER_MINUTE, "120");
+        characterizationMap.put(Configuration.CONF_CHARACTERIZATION_QUARANTINE_FAILURES, 3);
+        characterizationMap.put(Configuration.CONF_CHARACTERIZATION_QUARANTINE_MAX_BACKOFF, 2592000000L);
+        CharacterizationConfiguration characterizationConf = conf.getCharacterizationConfiguration(characterizationMap);
+        Assert.assertEquals(characterizationConf.getCampaignThreads(), 4);
+        Assert.assertEquals(characterizationConf.getCampaignFilesPerMinute(), 120L);
+        Assert.assertEquals(characterizationConf.getQuarantineDuration(), 
+                CharacterizationConfiguration.DEFAULT_QUARANTINE_DURATION);
+        Assert.assertEquals(characterizationConf.getQuarantineFailures(), 3);
+        Assert.assertEquals(characterizationConf.getQuarantineBackoff(), 
+                CharacterizationConfiguration.DEFAULT_QUARANTINE_BACKOFF);
+        Assert.assertEquals(characterizationConf.getQuarantineMaxBackoff(), 2592000000L);
+    }
+
+    @Test
+    public void testAlmaConfiguration() throws IOException {
+        Configuration conf = TestConfigurations.getConfigurationForTestWithoutTransfer();
+        Map<String, Object> almaMap = new HashMap<String, Object>();
+        almaMap.put(Configuration.CONF_ALMA_BATCH_SIZE, 25);
+        almaMap.put(Configuration.CONF_ALMA_WORKERS, 4);
+        almaMap.put(Configuration.CONF_ALMA_REQUESTS_PER_SECOND, 2.5);
+        almaMap.put(Configuration.CONF_ALMA_MIN_REQUESTS_PER_SECOND, "0.1");
+        almaMap.put(Configuration.CONF_ALMA_NOT_FOUND_BACKOFF, 3600000);
+        almaMap.put(Configuration.CONF_ALMA_REFRESH_FRACTION, 0.05);
+        AlmaConfiguration almaConf = conf.getAlmaConfiguration(almaMap);
+        Assert.assertEquals(almaConf.getBatchSize(), 25);
+        Assert.assertEquals(almaConf.getWorkers(), 4);
+        Assert.assertEquals(almaConf.getRequestsPerSecond(), 2.5);
+        Assert.assertEquals(almaConf.getMinRequestsPerSecond(), 0.1);
+        Assert.assertEquals(almaConf.getLatencyThreshold(), AlmaConfiguration.DEFAULT_LATENCY_THRESHOLD);
+        Assert.assertEquals(almaConf.getCacheTtl(), AlmaConfiguration.DEFAULT_CACHE_TTL);
+        Assert.assertEquals(almaConf.getNotFoundBackoff(), 3600000L);
+        Assert.assertEquals(almaConf.getMaxBackoff(), AlmaConfiguration.DEFAULT_MAX_BACKOFF);
+        Assert.assertEquals(almaConf.getRefreshFraction(), 0.05);
+        Assert.assertEquals(conf.getAlmaConfiguration(new HashMap<String, Object>()).getBatchSize(), 
+                AlmaConfiguration.DEFAULT_BATCH_SIZE);
+    }
+
+    @Test
+    public void testTransferConfigurationConcurrency() throws IOException {
+        Configuration conf = TestConfigurations.getConfigurationForTestWithoutTransfer();
+        String dir = TestFileUtils.getTempDir().getAbsolutePath();
+        Map<String, Object> transferMap = new HashMap<String, Object>();
+        transferMap.put(Configuration.CONF_TRANSFER_EBOOK_INGEST_PATH, dir);
+        transferMap.put(Configuration.CONF_TRANSFER_EBOOK_UPDATE_CONTENT_PATH, dir);
+        transferMap.put(Configuration.CONF_TRANSFER_EBOOK_UPDATE_METADATA_PATH, dir);
+        transferMap.put(Configuration.CONF_TRANSFER_AUDIO_INGEST_PATH, dir);
+        transferMap.put(Configuration.CONF_TRANSFER_AUDIO_UPDATE_CONTENT_PATH, dir);
+        transferMap.put(Configuration.CONF_TRANSFER_AUDIO_UPDATE_METADATA_PATH, dir);
+        transferMap.put(Configuration.CONF_TRANSFER_RETAIN_CREATE_DATE, -1);
+        transferMap.put(Configuration.CONF_TRANSFER_RETAIN_MODIFY_DATE, -1);
+        transferMap.put(Configuration.CONF_TRANSFER_RETAIN_PUBLICATION_DATE, -1);
+        transferMap.put(Configuration.CONF_TRANSFER_REQUIRED_FORMATS, Arrays.asList("mods.xml"));
+        TransferConfiguration transferConf = conf.getTransferConfiguration(transferMap);
+        Assert.assertEquals(transferConf.getWorkers(), TransferConfiguration.DEFAULT_WORKERS);
+        Assert.assertEquals(transferConf.getLaneConcurrency(), TransferConfiguration.DEFAULT_LANE_CONCURRENCY);
+        Assert.assertFalse(transferConf.isManifestSha256());
+        Assert.assertEquals(transferConf.getParallelCopyThreshold(), 
+                TransferConfiguration.DEFAULT_PARALLEL_COPY_THRESHOLD);
+        Assert.assertEquals(transferConf.getParallelCopyStreams(), TransferConfiguration.DEFAULT_PARALLEL_COPY_STREAMS);
+
+        transferMap.put(Configuration.CONF_TRANSFER_WORKERS, 4);
+        transferMap.put(Configuration.CONF_TRANSFER_LANE_CONCURRENCY, "3");
+        transferMap.put(Configuration.CONF_TRANSFER_MANIFEST_SHA256, true);
+        transferMap.put(Configuration.CONF_TRANSFER_PARALLEL_COPY_THRESHOLD, 1000000);
+        transferMap.put(Configuration.CONF_TRANSFER_PARALLEL_COPY_STREAMS, 8);
+        transferConf = conf.getTransferConfiguration(transferMap);
+        Assert.assertEquals(transferConf.getWorkers(), 4);
+        Assert.assertEquals(transferConf.getLaneConcurrency(), 3);
+        Assert.assertTrue(transferConf.isManifestSha256());
+        Assert.assertEquals(transferConf.getParallelCopyThreshold(), 1000000L);
+        Assert.assertEquals(transferConf.getParallelCopyStreams(), 8);
+    }
+    
+    @Test
+    public void testTransferConfigurationSchedule() throws IOException {
+        Configuration conf = TestConfigurations.getConfigurationForTestWithoutTransfer();
+        String dir = TestFileUtils.getTempDir().getAbsolutePath();
+        Map<String, Object> transferMap = new HashMap<String, Object>();
+        transferMap.put(Configuration.CONF_TRANSFER_EBOOK_INGEST_PATH, dir);
+        transferMap.put(Configuration.CONF_TRANSFER_EBOOK_UPDATE_CONTENT_PATH, dir);
+        transferMap.put(Configuration.CONF_TRANSFER_EBOOK_UPDATE_METADATA_PATH, dir);
+        transferMap.put(Configuration.CONF_TRANSFER_AUDIO_INGEST_PATH, dir);
+        transferMap.put(Configuration.CONF_TRANSFER_AUDIO_UPDATE_CONTENT_PATH, dir);
+        transferMap.put(Configuration.CONF_TRANSFER_AUDIO_UPDATE_METADATA_PATH, dir);
+        transferMap.put(Configuration.CONF_TRANSFER_RETAIN_CREATE_DATE, -1);
+        transferMap.put(Configuration.CONF_TRANSFER_RETAIN_MODIFY_DATE, -1);
+        transferMap.put(Configuration.CONF_TRANSFER_RETAIN_PUBLICATION_DATE, -1);
+        transferMap.put(Configuration.CONF_TRANSFER_REQUIRED_FORMATS, Arrays.asList("mods.xml"));
+        TransferConfiguration transferConf = conf.getTransferConfiguration(transferMap);
+        Assert.assertEquals(transferConf.getBytesPerSecond(), 0L);
+        Assert.assertEquals(transferConf.getRunByteBudget(), 0L);
+        Assert.assertEquals(transferConf.getRunBookBudget(), 0);
+        Assert.assertEquals(transferConf.getOrder(), TransferConfiguration.ORDER_DIRECTORY);
+        Assert.assertFalse(transferConf.isLowPriorityIo());
+        Assert.assertFalse(transferConf.isScheduled());
+        Assert.assertFalse(transferConf.isEligibilityQueue());
+        Assert.assertFalse(transferConf.isSkipUnchangedBooks());
+        Assert.assertEquals(transferConf.getPackageFormat(), TransferConfiguration.PACKAGE_FORMAT_DIRECTORY);
+        Assert.assertEquals(transferConf.getUpdateBatchFiles(), 0);
+        Assert.assertEquals(transferConf.getUpdateBatchBytes(), 0L);
+        Assert.assertFalse(transferConf.isRegistryStore());
+
+        transferMap.put(Configuration.CONF_TRANSFER_BYTES_PER_SECOND, 50000000);
+        transferMap.put(Configuration.CONF_TRANSFER_RUN_BYTE_BUDGET, "1000000000000");
+        transferMap.put(Configuration.CONF_TRANSFER_RUN_BOOK_BUDGET, 100);
+        transferMap.put(Configuration.CONF_TRANSFER_ORDER, TransferConfiguration.ORDER_SMALLEST_FIRST);
+        transferMap.put(Configuration.CONF_TRANSFER_LOW_PRIORITY_IO, true);
+        transferMap.put(Configuration.CONF_TRANSFER_ELIGIBILITY_QUEUE, "true");
+        transferMap.put(Configuration.CONF_TRANSFER_SKIP_UNCHANGED_BOOKS, true);
+        transferMap.put(Configuration.CONF_TRANSFER_PACKAGE_FORMAT, TransferConfiguration.PACKAGE_FORMAT_TAR);
+        transferMap.put(Configuration.CONF_TRANSFER_UPDATE_BATCH_FILES, 1000);
+        transferMap.put(Configuration.CONF_TRANSFER_UPDATE_BATCH_BYTES, "10000000");
+        transferMap.put(Configuration.CONF_TRANSFER_REGISTRY_STORE, true);
+        transferConf = conf.getTransferConfiguration(transferMap);
+        Assert.assertEquals(transferConf.getBytesPerSecond(), 50000000L);
+        Assert.assertEquals(transferConf.getRunByteBudget(), 1000000000000L);
+        Assert.assertEquals(transferConf.getRunBookBudget(), 100);
+        Assert.assertEquals(transferConf.getOrder(), TransferConfiguration.ORDER_SMALLEST_FIRST);
+        Assert.assertTrue(transferConf.isLowPriorityIo());
+        Assert.assertTrue(transferConf.isScheduled());
+        Assert.assertTrue(transferConf.isEligibilityQueue());
+        Assert.assertTrue(transferConf.isSkipUnchangedBooks());
+        Assert.assertEquals(transferConf.getPackageFormat(), TransferConfiguration.PACKAGE_FORMAT_TAR);
+        Assert.assertEquals(transferConf.getUpdateBatchFiles(), 1000);
+        Assert.assertEquals(transferConf.getUpdateBatchBytes(), 10000000L);
+        Assert.assertTrue(transferConf.isRegistryStore());
+    }
+    
+    @Test(expectedExceptions = ArgumentCheck.class)
+    public void testTransferConfigurationUnknownOrder() throws IOException {
+        new TransferOptions(1, 1, false, 1L, 1, 0L, 0L, 0, "largest_first", false, true, true,
+                TransferConfiguration.PACKAGE_FORMAT_DIRECTORY, 0, 0L, false);
+    }
+
+    @Test(expectedExceptions = ArgumentCheck.class)
+    public void testTransferConfigurationUnknownPackageFormat() throws IOException {
+        new TransferOptions(1, 1, false, 1L, 1, 0L, 0L, 0, TransferConfiguration.ORDER_DIRECTORY, false, true, true,
+                "zip", 0, 0L, false);
+    }
 }
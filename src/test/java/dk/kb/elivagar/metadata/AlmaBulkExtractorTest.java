@@ -0,0 +1,142 @@
+package dk.kb.elivagar.metadata;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import org.jaccept.structure.ExtendedTestCase;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import dk.kb.elivagar.exception.NumberOfResultsException;
+import dk.kb.elivagar.testutils.TestFileUtils;
+
+public class AlmaBulkExtractorTest extends ExtendedTestCase {
+
+    String FOUND_ISBN = "9788711436981";
+    String NOT_FOUND_ISBN = "9780000000002";
+    String FAILING_ISBN = "9788792875068";
+
+    @BeforeClass
+    public void setup() {
+        TestFileUtils.setup();
+    }
+    
+    @AfterClass
+    public void tearDown() {
+        TestFileUtils.tearDown();
+    }
+    
+    @Test
+    public void testReadIsbns() throws Exception {
+        addDescription("Test that the ISBNs are read without empty lines, comments and duplicates.");
+        List<String> isbns = AlmaBulkExtractor.readIsbns(new StringReader("# comment\n 123 \n\n456\n123\n"));
+        Assert.assertEquals(isbns, Arrays.asList("123", "456"));
+    }
+    
+    @Test
+    public void testExtractToDirectoryAndResume() throws Exception {
+        addDescription("Test the extraction to a directory, and that a new run only retries the failed ISBNs.");
+        AlmaMetadataRetriever retriever = createRetriever();
+        File dir = new File(TestFileUtils.getTempDir(), UUID.randomUUID().toString());
+        List<String> isbns = Arrays.asList(FOUND_ISBN, NOT_FOUND_ISBN, FAILING_ISBN);
+        
+        AlmaBulkExtractor extractor = new AlmaBulkExtractor(retriever, 2, new AlmaBulkExtractor.DirectoryOutput(dir));
+        extractor.extract(isbns);
+        
+        Assert.assertEquals(extractor.getCount(AlmaBulkExtractor.Status.OK), 1);
+        Assert.assertEquals(extractor.getCount(AlmaBulkExtractor.Status.NOT_FOUND), 1);
+        Assert.assertEquals(extractor.getCount(AlmaBulkExtractor.Status.ERROR), 1);
+        Assert.assertEquals(TestFileUtils.readFile(new File(dir, FOUND_ISBN + AlmaBulkExtractor.MODS_SUFFIX)), "MODS");
+        Map<String, AlmaBulkExtractor.Status> manifest = AlmaBulkExtractor.readManifest(
+                new File(dir, AlmaBulkExtractor.DirectoryOutput.MANIFEST_NAME));
+        Assert.assertEquals(manifest.get(FOUND_ISBN), AlmaBulkExtractor.Status.OK);
+        Assert.assertEquals(manifest.get(NOT_FOUND_ISBN), AlmaBulkExtractor.Status.NOT_FOUND);
+        Assert.assertEquals(manifest.get(FAILING_ISBN), AlmaBulkExtractor.Status.ERROR);
+        
+        addStep("Run the extraction again", "Only the failed ISBN is retrieved again");
+        extractor = new AlmaBulkExtractor(retriever, 2, new AlmaBulkExtractor.DirectoryOutput(dir));
+        extractor.extract(isbns);
+        Assert.assertEquals(extractor.getCount(AlmaBulkExtractor.Status.ERROR), 1);
+        Assert.assertEquals(extractor.getCount(AlmaBulkExtractor.Status.OK), 0);
+        verify(retriever).retrieveMetadataForISBN(eq(FOUND_ISBN), any(OutputStream.class));
+        verify(retriever).retrieveMetadataForISBN(eq(NOT_FOUND_ISBN), any(OutputStream.class));
+        verify(retriever, times(2)).retrieveMetadataForISBN(eq(FAILING_ISBN), any(OutputStream.class));
+    }
+    
+    @Test
+    public void testExtractToZipAndResume() throws Exception {
+        addDescription("Test the extraction to a ZIP archive, which keeps the entries from the previous run.");
+        AlmaMetadataRetriever retriever = createRetriever();
+        File zipFile = new File(TestFileUtils.getTempDir(), UUID.randomUUID().toString() + ".zip");
+        
+        AlmaBulkExtractor extractor = new AlmaBulkExtractor(retriever, 1, new AlmaBulkExtractor.ZipOutput(zipFile));
+        extractor.extract(Arrays.asList(FOUND_ISBN));
+        Assert.assertEquals(readZipEntries(zipFile).get(FOUND_ISBN + AlmaBulkExtractor.MODS_SUFFIX), "MODS");
+        
+        addStep("Run the extraction again with another ISBN", "Both MODS records are in the archive");
+        String otherIsbn = "9788711436998";
+        extractor = new AlmaBulkExtractor(retriever, 1, new AlmaBulkExtractor.ZipOutput(zipFile));
+        extractor.extract(Arrays.asList(FOUND_ISBN, otherIsbn));
+        Map<String, String> entries = readZipEntries(zipFile);
+        Assert.assertEquals(entries.size(), 2);
+        Assert.assertEquals(entries.get(otherIsbn + AlmaBulkExtractor.MODS_SUFFIX), "MODS");
+        Assert.assertFalse(new File(zipFile.getAbsolutePath() + AlmaBulkExtractor.ZipOutput.TMP_SUFFIX).exists());
+        Assert.assertTrue(new File(zipFile.getAbsolutePath() + AlmaBulkExtractor.ZipOutput.MANIFEST_SUFFIX).isFile());
+        verify(retriever).retrieveMetadataForISBN(eq(FOUND_ISBN), any(OutputStream.class));
+        verify(retriever, never()).retrieveMetadataForISBN(eq(NOT_FOUND_ISBN), any(OutputStream.class));
+    }
+    
+    protected AlmaMetadataRetriever createRetriever() {
+        AlmaMetadataRetriever retriever = mock(AlmaMetadataRetriever.class);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                ((OutputStream) invocation.getArgument(1)).write("MODS".getBytes());
+                return null;
+            }
+        }).when(retriever).retrieveMetadataForISBN(anyString(), any(OutputStream.class));
+        doThrow(new NumberOfResultsException("Not found", 0)).when(retriever).retrieveMetadataForISBN(eq(NOT_FOUND_ISBN), any(OutputStream.class));
+        doThrow(new IllegalStateException("Failure")).when(retriever).retrieveMetadataForISBN(eq(FAILING_ISBN), any(OutputStream.class));
+        return retriever;
+    }
+    
+    protected Map<String, String> readZipEntries(File zipFile) throws Exception {
+        Map<String, String> res = new HashMap<String, String>();
+        try (ZipInputStream in = new ZipInputStream(new FileInputStream(zipFile))) {
+            ZipEntry entry;
+            while((entry = in.getNextEntry()) != null) {
+                byte[] buf = new byte[1024];
+                StringBuilder content = new StringBuilder();
+                int read;
+                while((read = in.read(buf)) != -1) {
+                    content.append(new String(buf, 0, read));
+                }
+                res.put(entry.getName(), content.toString());
+            }
+        }
+        return res;
+    }
+}
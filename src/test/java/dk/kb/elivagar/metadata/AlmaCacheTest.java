@@ -0,0 +1,109 @@
+package dk.kb.elivagar.metadata;
+
+import java.io.File;
+import java.util.UUID;
+
+import org.jaccept.structure.ExtendedTestCase;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import dk.kb.elivagar.config.AlmaConfiguration;
+import dk.kb.elivagar.testutils.TestFileUtils;
+
+public class AlmaCacheTest extends ExtendedTestCase {
+
+    @BeforeClass
+    public void setup() {
+        TestFileUtils.setup();
+    }
+    
+    @AfterClass
+    public void tearDown() {
+        TestFileUtils.tearDown();
+    }
+    
+    @Test
+    public void testFoundRecords() throws Exception {
+        addDescription("Test that the found MODS records are cached by the normalized ISBN, and persisted.");
+        File stateDir = new File(TestFileUtils.getTempDir(), UUID.randomUUID().toString());
+        AlmaConfiguration conf = new AlmaConfiguration(1, 1, 0.0, 0.0, 0L, 60000L, 60000L, 60000L, 600000L);
+        
+        AlmaCache cache = new AlmaCache(stateDir, conf);
+        Assert.assertNull(cache.getRecord("9788792875068"));
+        
+        cache.recordFound("978-87-92875-06-8", "MODS".getBytes());
+        Assert.assertEquals(new String(cache.getRecord("9788792875068")), "MODS");
+        Assert.assertFalse(cache.isBackingOff("9788792875068"));
+        
+        addStep("Load the cache again", "Still has the record");
+        cache = new AlmaCache(stateDir, conf);
+        Assert.assertEquals(new String(cache.getRecord("9788792875068")), "MODS");
+    }
+    
+    @Test
+    public void testNoCachingOfRecords() throws Exception {
+        addDescription("Test that the records are not cached, when the time-to-live is not positive.");
+        File stateDir = new File(TestFileUtils.getTempDir(), UUID.randomUUID().toString());
+        AlmaConfiguration conf = new AlmaConfiguration(1, 1, 0.0, 0.0, 0L, 0L, 60000L, 60000L, 600000L);
+        
+        AlmaCache cache = new AlmaCache(stateDir, conf);
+        cache.recordFound("9788792875068", "MODS".getBytes());
+        Assert.assertNull(cache.getRecord("9788792875068"));
+    }
+    
+    @Test
+    public void testNotFoundAndAmbiguous() throws Exception {
+        addDescription("Test the back-off for the ISBNs, which are not found or ambiguous.");
+        File stateDir = new File(TestFileUtils.getTempDir(), UUID.randomUUID().toString());
+        AlmaConfiguration conf = new AlmaConfiguration(1, 1, 0.0, 0.0, 0L, 60000L, 1000L, 5000L, 3000L);
+        
+        AlmaCache cache = new AlmaCache(stateDir, conf);
+        cache.recordNotFound("9788711436981");
+        Assert.assertTrue(cache.isBackingOff("9788711436981"));
+        Assert.assertNull(cache.getRecord("9788711436981"));
+        
+        addStep("Test the exponential back-off", "Doubled for each lookup in a row, but limited by the max back-off");
+        AlmaCache.Entry entry = cache.entries.get("9788711436981");
+        Assert.assertEquals(cache.getBackoff(entry), 1000L);
+        cache.recordNotFound("9788711436981");
+        Assert.assertEquals(cache.getBackoff(cache.entries.get("9788711436981")), 2000L);
+        cache.recordNotFound("9788711436981");
+        Assert.assertEquals(cache.getBackoff(cache.entries.get("9788711436981")), 3000L);
+        
+        addStep("Test ambiguous", "Uses its own back-off, which is restarted");
+        cache.recordAmbiguous("9788711436981");
+        Assert.assertEquals(cache.entries.get("9788711436981").attempts, 1);
+        Assert.assertEquals(cache.getBackoff(cache.entries.get("9788711436981")), 3000L);
+        
+        addStep("Record it as found", "No longer backing off");
+        cache.recordFound("9788711436981", "MODS".getBytes());
+        Assert.assertFalse(cache.isBackingOff("9788711436981"));
+        
+        addStep("Load the cache again", "Has the latest outcome");
+        cache = new AlmaCache(stateDir, conf);
+        Assert.assertEquals(cache.entries.size(), 1);
+        Assert.assertEquals(cache.entries.get("9788711436981").outcome, AlmaCache.Outcome.FOUND);
+    }
+
+    @Test
+    public void testInvalid() throws Exception {
+        addDescription("Test that the ISBNs with an invalid record are backed off like the ones not found.");
+        File stateDir = new File(TestFileUtils.getTempDir(), UUID.randomUUID().toString());
+        AlmaConfiguration conf = new AlmaConfiguration(1, 1, 0.0, 0.0, 0L, 60000L, 1000L, 5000L, 30000L);
+
+        AlmaCache cache = new AlmaCache(stateDir, conf);
+        cache.recordInvalid("9788711436981");
+        Assert.assertTrue(cache.isBackingOff("9788711436981"));
+        Assert.assertNull(cache.getRecord("9788711436981"));
+        Assert.assertEquals(cache.getBackoff(cache.entries.get("9788711436981")), 1000L);
+        cache.recordInvalid("9788711436981");
+        Assert.assertEquals(cache.getBackoff(cache.entries.get("9788711436981")), 2000L);
+
+        addStep("Load the cache again", "Still backing off the invalid record");
+        cache = new AlmaCache(stateDir, conf);
+        Assert.assertEquals(cache.entries.get("9788711436981").outcome, AlmaCache.Outcome.INVALID);
+        Assert.assertTrue(cache.isBackingOff("9788711436981"));
+    }
+}
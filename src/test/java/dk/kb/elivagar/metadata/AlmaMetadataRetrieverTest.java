@@ -10,12 +10,24 @@ import org.testng.annotations.AfterClass;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
 import java.util.UUID;
 
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import static org.mockito.Mockito.*;
+
 public class AlmaMetadataRetrieverTest extends ExtendedTestCase {
 
     String VALID_ID = "9789777641364";
@@ -60,4 +72,72 @@ public class AlmaMetadataRetrieverTest extends ExtendedTestCase {
         File output = new File(TestFileUtils.getTempDir(), UUID.randomUUID().toString());
         retriever.retrieveMetadataForISBN(INVALID_ID, new FileOutputStream(output));
     }
+
+    @Test
+    public void testExtractModsRecordsForIsbns() throws IOException {
+        addDescription("Test extracting the MODS records for several ISBNs from a single Alma response.");
+        AlmaMetadataRetriever retriever = new AlmaMetadataRetriever(configuration, mock(HttpClient.class));
+
+        List<String> isbns = Arrays.asList("9788792875068", "9788711436981", "9780000000002");
+        try (InputStream in = new FileInputStream("src/test/resources/metadata/alma_sru_batch.xml")) {
+            Map<String, byte[]> records = retriever.extractModsRecordsForIsbns(in, isbns);
+            Assert.assertEquals(records.size(), 1);
+            Assert.assertTrue(records.containsKey("9788792875068"));
+            Assert.assertTrue(new String(records.get("9788792875068"), "UTF-8").contains("Der var engang en barndom"));
+        }
+    }
+
+    @Test
+    public void testRetrieveMetadataForISBNs() throws IOException {
+        addDescription("Test that the batch request contains all the ISBNs, and a matching maximum number of records.");
+        HttpClient httpClient = mock(HttpClient.class);
+        AlmaMetadataRetriever retriever = new AlmaMetadataRetriever(configuration, httpClient);
+
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                try (InputStream in = new FileInputStream("src/test/resources/metadata/alma_sru_batch.xml")) {
+                    ((HttpClient.ContentHandler) invocation.getArgument(1)).handleContent(in);
+                }
+                return null;
+            }
+        }).when(httpClient).retrieveUrlContent(anyString(), any(HttpClient.ContentHandler.class));
+
+        Map<String, byte[]> records = retriever.retrieveMetadataForISBNs(Arrays.asList("9788792875068", "9788711436981"));
+        Assert.assertEquals(records.size(), 1);
+
+        verify(httpClient).retrieveUrlContent(eq(configuration.getAlmaSruSearch() 
+                + "startRecord=1&maximumRecords=4&recordSchema=mods&query=isbn%3D9788792875068%20or%20isbn%3D9788711436981"), 
+                any(HttpClient.ContentHandler.class));
+        verifyNoMoreInteractions(httpClient);
+    }
+
+    @Test
+    public void testExtractModsFromAlma() throws IOException {
+        addDescription("Test the streaming extraction of the MODS record from an Alma response with a single record.");
+        AlmaMetadataRetriever retriever = new AlmaMetadataRetriever(configuration, mock(HttpClient.class));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream in = new FileInputStream("src/test/resources/metadata/alma_sru_single.xml")) {
+            retriever.extractModsFromAlma(in, out);
+        }
+        String mods = out.toString("UTF-8");
+        Assert.assertTrue(mods.startsWith("<?xml"));
+        Assert.assertTrue(mods.contains("<mods xmlns=\"http://www.loc.gov/mods/v3\""));
+        Assert.assertTrue(mods.contains("xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\""));
+        Assert.assertTrue(mods.contains("<identifier type=\"isbn\">9788792875068</identifier>"));
+        Assert.assertFalse(mods.contains("searchRetrieveResponse"));
+        Assert.assertFalse(mods.contains("recordData"));
+        Assert.assertTrue(mods.trim().endsWith("</mods>"));
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void testExtractModsFromAlmaWithSeveralRecords() throws IOException {
+        addDescription("Test that the streaming extraction fails, when the Alma response has more than one record.");
+        AlmaMetadataRetriever retriever = new AlmaMetadataRetriever(configuration, mock(HttpClient.class));
+
+        try (InputStream in = new FileInputStream("src/test/resources/metadata/alma_sru_batch.xml")) {
+            retriever.extractModsFromAlma(in, new ByteArrayOutputStream());
+        }
+    }
 }
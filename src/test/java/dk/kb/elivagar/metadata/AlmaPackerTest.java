@@ -1,8 +1,10 @@
 package dk.kb.elivagar.metadata;
 
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyCollectionOf;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
@@ -13,6 +15,11 @@ import static org.mockito.Mockito.when;
 import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.UUID;
 
 import org.jaccept.structure.ExtendedTestCase;
@@ -24,13 +31,17 @@ import org.testng.annotations.BeforeClass;
 import org.testng.annotations.Test;
 
 import dk.kb.elivagar.Constants;
+import dk.kb.elivagar.config.AlmaConfiguration;
 import dk.kb.elivagar.config.Configuration;
+import dk.kb.elivagar.exception.NumberOfResultsException;
 import dk.kb.elivagar.testutils.TestConfigurations;
 import dk.kb.elivagar.testutils.TestFileUtils;
 
 @SuppressWarnings("ResultOfMethodCallIgnored")
 public class AlmaPackerTest extends ExtendedTestCase {
 
+    static final String MODS = "<mods xmlns=\"http://www.loc.gov/mods/v3\"><titleInfo><title>TITLE</title></titleInfo></mods>";
+
     Configuration configuration;
 
     @BeforeClass
@@ -112,7 +123,7 @@ public class AlmaPackerTest extends ExtendedTestCase {
     
     @Test
     public void testPackageMetadataForBook() throws Exception {
-        addDescription("Test the packageMetadataForBook method for the success scenario.");
+        addDescription("Test the packageMetadataForBookDirs method for the success scenario.");
         AlmaMetadataRetriever retriever = mock(AlmaMetadataRetriever.class);
 
         AlmaPacker packer = new AlmaPacker(configuration, retriever);
@@ -129,7 +140,7 @@ public class AlmaPackerTest extends ExtendedTestCase {
             @Override
             public Void answer(InvocationOnMock invocationOnMock) throws Throwable {
                 OutputStream out = (OutputStream) invocationOnMock.getArgument(1);
-                out.write(UUID.randomUUID().toString().getBytes());
+                out.write(Files.readAllBytes(modsTestFile.toPath()));
                 return null;
             }
         }).when(retriever).retrieveMetadataForISBN(eq(expectedIsbn), any(OutputStream.class));
@@ -137,7 +148,7 @@ public class AlmaPackerTest extends ExtendedTestCase {
         File modsFile = new File(dir, dir.getName() + Constants.MODS_METADATA_SUFFIX);
         Assert.assertFalse(modsFile.exists());
 
-        packer.packageMetadataForBook(dir);
+        packer.packageMetadataForBookDirs(Arrays.asList(dir));
 
         Assert.assertTrue(modsFile.exists());
         
@@ -147,7 +158,7 @@ public class AlmaPackerTest extends ExtendedTestCase {
 
     @Test
     public void testPackageMetadataForBookFailureToRetrieveMods() throws Exception {
-        addDescription("Test the packageMetadataForBook method when no MODS record is retrieved.");
+        addDescription("Test the packageMetadataForBookDirs method when no MODS record is retrieved.");
         AlmaMetadataRetriever retriever = mock(AlmaMetadataRetriever.class);
 
         AlmaPacker packer = new AlmaPacker(configuration, retriever);
@@ -171,7 +182,7 @@ public class AlmaPackerTest extends ExtendedTestCase {
         File modsFile = new File(dir, dir.getName() + Constants.MODS_METADATA_SUFFIX);
         Assert.assertFalse(modsFile.exists());
 
-        packer.packageMetadataForBook(dir);
+        packer.packageMetadataForBookDirs(Arrays.asList(dir));
 
         Assert.assertFalse(modsFile.exists());
 
@@ -181,7 +192,7 @@ public class AlmaPackerTest extends ExtendedTestCase {
 
     @Test
     public void testPackageMetadataForBookModsAlreadyExists() throws Exception {
-        addDescription("Test the packageMetadataForBook method for the scenario, when the MODS record already exists.");
+        addDescription("Test the packageMetadataForBookDirs method for the scenario, when the MODS record already exists.");
         AlmaMetadataRetriever retriever = mock(AlmaMetadataRetriever.class);
 
         AlmaPacker packer = new AlmaPacker(configuration, retriever);
@@ -193,14 +204,14 @@ public class AlmaPackerTest extends ExtendedTestCase {
         TestFileUtils.createFile(modsFile, UUID.randomUUID().toString());
         Assert.assertTrue(modsFile.exists());
         
-        packer.packageMetadataForBook(dir);
+        packer.packageMetadataForBookDirs(Arrays.asList(dir));
 
         verifyZeroInteractions(retriever);
     }
     
     @Test
     public void testPackageMetadataForBookNoIsbn() throws Exception {
-        addDescription("Test the packageMetadataForBook method for the scenario, when no ISBN can be found.");
+        addDescription("Test the packageMetadataForBookDirs method for the scenario, when no ISBN can be found.");
         AlmaMetadataRetriever retriever = mock(AlmaMetadataRetriever.class);
 
         AlmaPacker packer = new AlmaPacker(configuration, retriever);
@@ -208,14 +219,14 @@ public class AlmaPackerTest extends ExtendedTestCase {
         String id = UUID.randomUUID().toString();
         File dir = TestFileUtils.createEmptyDirectory(new File(TestFileUtils.getTempDir(), id).getAbsolutePath());
         
-        packer.packageMetadataForBook(dir);
+        packer.packageMetadataForBookDirs(Arrays.asList(dir));
 
         verifyZeroInteractions(retriever);
     }
 
     @Test(enabled = false)
     public void testPackageMetadataForBookException() throws Exception {
-        addDescription("Test the packageMetadataForBook method for the scenario, when it throws an exception.");
+        addDescription("Test the packageMetadataForBookDirs method for the scenario, when it throws an exception.");
         AlmaMetadataRetriever retriever = mock(AlmaMetadataRetriever.class);
 
         AlmaPacker packer = new AlmaPacker(configuration, retriever);
@@ -236,7 +247,7 @@ public class AlmaPackerTest extends ExtendedTestCase {
         File modsFile = new File(dir, dir.getName() + Constants.MODS_METADATA_SUFFIX);
         Assert.assertFalse(modsFile.exists());
         
-        packer.packageMetadataForBook(dir);
+        packer.packageMetadataForBookDirs(Arrays.asList(dir));
 
         Assert.assertFalse(modsFile.exists());
         
@@ -354,4 +365,240 @@ public class AlmaPackerTest extends ExtendedTestCase {
         verify(retriever).retrieveMetadataForISBN(eq(isbn), any(OutputStream.class));
         verifyNoMoreInteractions(retriever);
     }
+
+    @Test
+    public void testTraverseBooksInFolderInBatches() throws Exception {
+        addDescription("Test the traverseBooksInFolder method when looking up the ISBNs in batches.");
+        AlmaMetadataRetriever retriever = mock(AlmaMetadataRetriever.class);
+        Configuration conf = mock(Configuration.class);
+        when(conf.getAlmaConfiguration()).thenReturn(new AlmaConfiguration(10));
+
+        AlmaPacker packer = new AlmaPacker(conf, retriever);
+        
+        String expectedIsbn = "9788711436981";
+        File baseDir = TestFileUtils.createEmptyDirectory(new File(TestFileUtils.getTempDir(), UUID.randomUUID().toString()).getAbsolutePath());
+        File dir = TestFileUtils.createEmptyDirectory(new File(baseDir, UUID.randomUUID().toString()).getAbsolutePath());
+        TestFileUtils.copyFile(new File("src/test/resources/metadata/pubhub_metadata.xml"), new File(dir, dir.getName() + Constants.PUBHUB_METADATA_SUFFIX));
+        File modsFile = new File(dir, dir.getName() + Constants.MODS_METADATA_SUFFIX);
+        
+        Map<String, byte[]> records = new HashMap<String, byte[]>();
+        records.put(expectedIsbn, MODS.getBytes());
+        when(retriever.retrieveMetadataForISBNs(anyCollectionOf(String.class))).thenReturn(records);
+        
+        packer.traverseBooksInFolder(baseDir);
+        
+        Assert.assertTrue(modsFile.exists());
+        Assert.assertEquals(TestFileUtils.readFile(modsFile), MODS);
+        verify(conf).getAlmaConfiguration();
+        verifyNoMoreInteractions(conf);
+        verify(retriever).retrieveMetadataForISBNs(anyCollectionOf(String.class));
+        verifyNoMoreInteractions(retriever);
+    }
+    
+    @Test
+    public void testTraverseBooksInFolderInBatchesFallback() throws Exception {
+        addDescription("Test the traverseBooksInFolder method when the ISBN is not matched in the batch lookup.");
+        AlmaMetadataRetriever retriever = mock(AlmaMetadataRetriever.class);
+        Configuration conf = mock(Configuration.class);
+        when(conf.getAlmaConfiguration()).thenReturn(new AlmaConfiguration(10));
+
+        AlmaPacker packer = new AlmaPacker(conf, retriever);
+        
+        String expectedIsbn = "9788711436981";
+        File baseDir = TestFileUtils.createEmptyDirectory(new File(TestFileUtils.getTempDir(), UUID.randomUUID().toString()).getAbsolutePath());
+        File dir = TestFileUtils.createEmptyDirectory(new File(baseDir, UUID.randomUUID().toString()).getAbsolutePath());
+        TestFileUtils.copyFile(new File("src/test/resources/metadata/pubhub_metadata.xml"), new File(dir, dir.getName() + Constants.PUBHUB_METADATA_SUFFIX));
+        
+        when(retriever.retrieveMetadataForISBNs(anyCollectionOf(String.class))).thenReturn(new HashMap<String, byte[]>());
+        
+        packer.traverseBooksInFolder(baseDir);
+        
+        verify(retriever).retrieveMetadataForISBNs(anyCollectionOf(String.class));
+        verify(retriever).retrieveMetadataForISBN(eq(expectedIsbn), any(OutputStream.class));
+        verifyNoMoreInteractions(retriever);
+    }
+
+    @Test
+    public void testTraverseBooksInFolderWithWorkers() throws Exception {
+        addDescription("Test the traverseBooksInFolder method when several workers retrieve the metadata concurrently, "
+                + "and the books with the same ISBN share the lookup.");
+        AlmaMetadataRetriever retriever = mock(AlmaMetadataRetriever.class);
+        Configuration conf = mock(Configuration.class);
+        when(conf.getAlmaConfiguration()).thenReturn(new AlmaConfiguration(1, 3, 0.0, 0.0, 0L));
+
+        AlmaPacker packer = new AlmaPacker(conf, retriever);
+        
+        String expectedIsbn = "9788711436981";
+        int numberOfBooks = 5;
+        File baseDir = TestFileUtils.createEmptyDirectory(new File(TestFileUtils.getTempDir(), UUID.randomUUID().toString()).getAbsolutePath());
+        for(int i = 0; i < numberOfBooks; i++) {
+            File dir = TestFileUtils.createEmptyDirectory(new File(baseDir, UUID.randomUUID().toString()).getAbsolutePath());
+            TestFileUtils.copyFile(new File("src/test/resources/metadata/pubhub_metadata.xml"), new File(dir, dir.getName() + Constants.PUBHUB_METADATA_SUFFIX));
+        }
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                ((OutputStream) invocation.getArgument(1)).write(MODS.getBytes());
+                return null;
+            }
+        }).when(retriever).retrieveMetadataForISBN(eq(expectedIsbn), any(OutputStream.class));
+        
+        packer.traverseBooksInFolder(baseDir);
+        
+        for(File dir : baseDir.listFiles()) {
+            File modsFile = new File(dir, dir.getName() + Constants.MODS_METADATA_SUFFIX);
+            Assert.assertEquals(TestFileUtils.readFile(modsFile), MODS);
+        }
+        verify(conf).getAlmaConfiguration();
+        verifyNoMoreInteractions(conf);
+        verify(retriever).retrieveMetadataForISBN(eq(expectedIsbn), any(OutputStream.class));
+        verifyNoMoreInteractions(retriever);
+    }
+
+    @Test
+    public void testGetAlmaMetadataWithCache() throws Exception {
+        addDescription("Test that the Alma cache is used for the ISBNs, which were not found or found recently.");
+        AlmaMetadataRetriever retriever = mock(AlmaMetadataRetriever.class);
+        File stateDir = new File(TestFileUtils.getTempDir(), UUID.randomUUID().toString());
+        AlmaCache cache = new AlmaCache(stateDir, new AlmaConfiguration());
+        AlmaPacker packer = new AlmaPacker(configuration, retriever, cache);
+        
+        String notFoundIsbn = "9780000000002";
+        String foundIsbn = "9788711436981";
+        File modsFile = new File(TestFileUtils.getTempDir(), UUID.randomUUID().toString());
+        
+        addStep("Retrieve an ISBN, which is not in Alma", "Recorded as not found, and not looked up again");
+        doThrow(new NumberOfResultsException("Not found", 0)).when(retriever).retrieveMetadataForISBN(eq(notFoundIsbn), any(OutputStream.class));
+        try {
+            packer.getAlmaMetadata(notFoundIsbn, modsFile);
+            Assert.fail("Should throw an exception");
+        } catch (NumberOfResultsException e) {
+            // expected
+        }
+        Assert.assertFalse(modsFile.exists());
+        packer.getAlmaMetadata(notFoundIsbn, modsFile);
+        Assert.assertFalse(modsFile.exists());
+        verify(retriever).retrieveMetadataForISBN(eq(notFoundIsbn), any(OutputStream.class));
+        
+        addStep("Retrieve an ISBN, which is in Alma", "Cached, and not looked up again");
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                ((OutputStream) invocation.getArgument(1)).write(MODS.getBytes());
+                return null;
+            }
+        }).when(retriever).retrieveMetadataForISBN(eq(foundIsbn), any(OutputStream.class));
+        packer.getAlmaMetadata(foundIsbn, modsFile);
+        Assert.assertEquals(TestFileUtils.readFile(modsFile), MODS);
+        modsFile.delete();
+        packer.getAlmaMetadata(foundIsbn, modsFile);
+        Assert.assertEquals(TestFileUtils.readFile(modsFile), MODS);
+        verify(retriever).retrieveMetadataForISBN(eq(foundIsbn), any(OutputStream.class));
+        verifyNoMoreInteractions(retriever);
+    }
+
+    @Test
+    public void testRefreshOfMetadata() throws Exception {
+        addDescription("Test that the configured fraction of the MODS records is refreshed, and the MODS files are only "
+                + "replaced, when the normalized content has changed.");
+        AlmaMetadataRetriever retriever = mock(AlmaMetadataRetriever.class);
+        Configuration conf = mock(Configuration.class);
+        AlmaConfiguration almaConf = new AlmaConfiguration(AlmaConfiguration.DEFAULT_BATCH_SIZE,
+                AlmaConfiguration.DEFAULT_WORKERS, AlmaConfiguration.DEFAULT_REQUESTS_PER_SECOND,
+                AlmaConfiguration.DEFAULT_MIN_REQUESTS_PER_SECOND, AlmaConfiguration.DEFAULT_LATENCY_THRESHOLD,
+                AlmaConfiguration.DEFAULT_CACHE_TTL, AlmaConfiguration.DEFAULT_NOT_FOUND_BACKOFF,
+                AlmaConfiguration.DEFAULT_AMBIGUOUS_BACKOFF, AlmaConfiguration.DEFAULT_MAX_BACKOFF, 1.0);
+        when(conf.getAlmaConfiguration()).thenReturn(almaConf);
+        when(conf.getStateDir()).thenReturn(new File(TestFileUtils.getTempDir(), UUID.randomUUID().toString()));
+
+        AlmaPacker packer = new AlmaPacker(conf, retriever);
+        
+        String expectedIsbn = "9788711436981";
+        File baseDir = TestFileUtils.createEmptyDirectory(new File(TestFileUtils.getTempDir(), UUID.randomUUID().toString()).getAbsolutePath());
+        File dir = TestFileUtils.createEmptyDirectory(new File(baseDir, UUID.randomUUID().toString()).getAbsolutePath());
+        TestFileUtils.copyFile(new File("src/test/resources/metadata/pubhub_metadata.xml"), new File(dir, dir.getName() + Constants.PUBHUB_METADATA_SUFFIX));
+        File modsFile = new File(dir, dir.getName() + Constants.MODS_METADATA_SUFFIX);
+        TestFileUtils.createFile(modsFile, "<mods xmlns=\"http://www.loc.gov/mods/v3\">\n  <titleInfo><title>OLD</title></titleInfo>\n</mods>");
+        
+        final StringBuilder mods = new StringBuilder("<mods xmlns=\"http://www.loc.gov/mods/v3\"><titleInfo><title>OLD</title></titleInfo></mods>");
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                ((OutputStream) invocation.getArgument(1)).write(mods.toString().getBytes());
+                return null;
+            }
+        }).when(retriever).retrieveMetadataForISBN(eq(expectedIsbn), any(OutputStream.class));
+        
+        addStep("Refresh with the same record, only formatted differently", "The MODS file is not replaced");
+        packer.traverseBooksInFolder(baseDir);
+        Assert.assertEquals(TestFileUtils.readFile(modsFile), "<mods xmlns=\"http://www.loc.gov/mods/v3\">  <titleInfo><title>OLD</title></titleInfo></mods>");
+        
+        addStep("Refresh with a changed record", "The MODS file is replaced");
+        mods.setLength(0);
+        mods.append("<mods xmlns=\"http://www.loc.gov/mods/v3\"><titleInfo><title>NEW</title></titleInfo></mods>");
+        packer.traverseBooksInFolder(baseDir);
+        Assert.assertEquals(TestFileUtils.readFile(modsFile), "<mods xmlns=\"http://www.loc.gov/mods/v3\"><titleInfo><title>NEW</title></titleInfo></mods>");
+        verify(retriever, times(2)).retrieveMetadataForISBN(eq(expectedIsbn), any(OutputStream.class));
+        verifyNoMoreInteractions(retriever);
+    }
+
+    @Test
+    public void testPackageMetadataForBookInvalidMods() throws Exception {
+        addDescription("Test the packageMetadataForBookDirs method, when the retrieved MODS record is invalid.");
+        AlmaMetadataRetriever retriever = mock(AlmaMetadataRetriever.class);
+
+        AlmaPacker packer = new AlmaPacker(configuration, retriever);
+        
+        String expectedIsbn = "9788711436981";
+        File dir = TestFileUtils.createEmptyDirectory(new File(TestFileUtils.getTempDir(), UUID.randomUUID().toString()).getAbsolutePath());
+        TestFileUtils.copyFile(new File("src/test/resources/metadata/pubhub_metadata.xml"), new File(dir, dir.getName() + Constants.PUBHUB_METADATA_SUFFIX));
+
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocationOnMock) throws Throwable {
+                ((OutputStream) invocationOnMock.getArgument(1)).write("<mods xmlns=\"http://www.loc.gov/mods/v3\"><title/></mods>".getBytes());
+                return null;
+            }
+        }).when(retriever).retrieveMetadataForISBN(eq(expectedIsbn), any(OutputStream.class));
+
+        packer.packageMetadataForBookDirs(Arrays.asList(dir));
+
+        File modsFile = new File(dir, dir.getName() + Constants.MODS_METADATA_SUFFIX);
+        Assert.assertFalse(modsFile.exists());
+        Assert.assertTrue(new File(modsFile.getAbsolutePath() + Constants.ERROR_SUFFIX).exists());
+    }
+
+    @Test
+    public void testInvalidModsIsBackedOff() throws Exception {
+        addDescription("Test that an ISBN with an invalid MODS record is recorded in the Alma cache, and not looked "
+                + "up again during its back-off.");
+        AlmaMetadataRetriever retriever = mock(AlmaMetadataRetriever.class);
+        File stateDir = new File(TestFileUtils.getTempDir(), UUID.randomUUID().toString());
+        AlmaCache cache = new AlmaCache(stateDir, new AlmaConfiguration());
+        AlmaPacker packer = new AlmaPacker(configuration, retriever, cache);
+
+        String expectedIsbn = "9788711436981";
+        File dir = TestFileUtils.createEmptyDirectory(new File(TestFileUtils.getTempDir(), UUID.randomUUID().toString()).getAbsolutePath());
+        TestFileUtils.copyFile(new File("src/test/resources/metadata/pubhub_metadata.xml"), new File(dir, dir.getName() + Constants.PUBHUB_METADATA_SUFFIX));
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocationOnMock) throws Throwable {
+                ((OutputStream) invocationOnMock.getArgument(1)).write("<mods xmlns=\"http://www.loc.gov/mods/v3\"><typeOfResource>e-book</typeOfResource></mods>".getBytes());
+                return null;
+            }
+        }).when(retriever).retrieveMetadataForISBN(eq(expectedIsbn), any(OutputStream.class));
+
+        addStep("Retrieve the invalid record", "Moved to error, and recorded as invalid");
+        packer.packageMetadataForBookDirs(Arrays.asList(dir));
+        File modsFile = new File(dir, dir.getName() + Constants.MODS_METADATA_SUFFIX);
+        Assert.assertFalse(modsFile.exists());
+        Assert.assertTrue(new File(modsFile.getAbsolutePath() + Constants.ERROR_SUFFIX).exists());
+        Assert.assertTrue(cache.isBackingOff(expectedIsbn));
+
+        addStep("Package the book again", "Not looked up again");
+        packer.packageMetadataForBookDirs(Arrays.asList(dir));
+        Assert.assertFalse(modsFile.exists());
+        verify(retriever).retrieveMetadataForISBN(eq(expectedIsbn), any(OutputStream.class));
+        verifyNoMoreInteractions(retriever);
+    }
 }
@@ -0,0 +1,81 @@
+package dk.kb.elivagar.metadata;
+
+import java.io.IOException;
+
+import org.jaccept.structure.ExtendedTestCase;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import dk.kb.elivagar.config.AlmaConfiguration;
+import dk.kb.elivagar.exception.HttpStatusException;
+
+public class AlmaRateControllerTest extends ExtendedTestCase {
+
+    @Test
+    public void testBackOffOnOverload() throws Exception {
+        addDescription("Test that the rate is halved on 429 and 5xx, but not below the minimum rate.");
+        AlmaRateController controller = new AlmaRateController(new AlmaConfiguration(1, 1, 100.0, 20.0, 1000L));
+        Assert.assertEquals(controller.getRate(), 100.0);
+
+        addStep("Too many requests", "Halves the rate");
+        controller.onFailure(controller.acquire(), new HttpStatusException("Too many requests", 429));
+        Assert.assertEquals(controller.getRate(), 50.0);
+
+        addStep("Server error", "Halves the rate, but not below the minimum");
+        controller.onFailure(controller.acquire(), new HttpStatusException("Service unavailable", 503));
+        Assert.assertEquals(controller.getRate(), 25.0);
+        controller.onFailure(controller.acquire(), new HttpStatusException("Internal server error", 500));
+        Assert.assertEquals(controller.getRate(), 20.0);
+
+        addStep("Other failures", "Does not change the rate");
+        controller.onFailure(controller.acquire(), new HttpStatusException("Not found", 404));
+        controller.onFailure(controller.acquire(), new IOException("Connection reset"));
+        Assert.assertEquals(controller.getRate(), 20.0);
+    }
+
+    @Test
+    public void testConcurrentOverload() throws Exception {
+        addDescription("Test that concurrent requests, which all fail with 429, only halve the rate once.");
+        AlmaRateController controller = new AlmaRateController(new AlmaConfiguration(1, 1, 100.0, 1.0, 1000L));
+        long[] requests = new long[5];
+        for(int i = 0; i < requests.length; i++) {
+            requests[i] = controller.acquire();
+        }
+
+        addStep("All the outstanding requests fail", "The rate is only halved once");
+        for(long request : requests) {
+            controller.onFailure(request, new HttpStatusException("Too many requests", 429));
+        }
+        Assert.assertEquals(controller.getRate(), 50.0);
+
+        addStep("A request issued after the decrease fails", "The rate is halved again");
+        controller.onFailure(controller.acquire(), new HttpStatusException("Too many requests", 429));
+        Assert.assertEquals(controller.getRate(), 25.0);
+    }
+
+    @Test
+    public void testLatency() throws Exception {
+        addDescription("Test that the rate is decreased on high latency, and increased on healthy responses.");
+        AlmaRateController controller = new AlmaRateController(new AlmaConfiguration(1, 1, 100.0, 1.0, 1000L));
+
+        controller.onSuccess(controller.acquire(), 5000L);
+        Assert.assertEquals(controller.getRate(), 50.0);
+
+        addStep("Healthy responses", "Increases the rate by a hundredth of the maximum rate, up to the maximum");
+        controller.onSuccess(controller.acquire(), 100L);
+        Assert.assertEquals(controller.getRate(), 51.0, 0.000001);
+        for(int i = 0; i < 100; i++) {
+            controller.onSuccess(controller.acquire(), 100L);
+        }
+        Assert.assertEquals(controller.getRate(), 100.0);
+    }
+
+    @Test
+    public void testNoLimit() throws Exception {
+        addDescription("Test that a non-positive rate means no limit, also after overload.");
+        AlmaRateController controller = new AlmaRateController(new AlmaConfiguration(1, 1, 0.0, 0.0, 0L));
+        controller.onFailure(controller.acquire(), new HttpStatusException("Too many requests", 429));
+        controller.onSuccess(controller.acquire(), 100000L);
+        Assert.assertEquals(controller.getRate(), 0.0);
+    }
+}
@@ -0,0 +1,80 @@
+package dk.kb.elivagar.metadata;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+import org.jaccept.structure.ExtendedTestCase;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import dk.kb.elivagar.Constants;
+import dk.kb.elivagar.config.AlmaConfiguration;
+import dk.kb.elivagar.testutils.TestFileUtils;
+
+public class AlmaRefreshSchedulerTest extends ExtendedTestCase {
+
+    @BeforeClass
+    public void setup() {
+        TestFileUtils.setup();
+    }
+    
+    @AfterClass
+    public void tearDown() {
+        TestFileUtils.tearDown();
+    }
+    
+    @Test
+    public void testSelectBooksForRefresh() throws Exception {
+        addDescription("Test that the books with changed Pubhub metadata are selected first, then the oldest.");
+        File stateDir = new File(TestFileUtils.getTempDir(), UUID.randomUUID().toString());
+        AlmaConfiguration conf = new AlmaConfiguration(AlmaConfiguration.DEFAULT_BATCH_SIZE,
+                AlmaConfiguration.DEFAULT_WORKERS, AlmaConfiguration.DEFAULT_REQUESTS_PER_SECOND,
+                AlmaConfiguration.DEFAULT_MIN_REQUESTS_PER_SECOND, AlmaConfiguration.DEFAULT_LATENCY_THRESHOLD,
+                AlmaConfiguration.DEFAULT_CACHE_TTL, AlmaConfiguration.DEFAULT_NOT_FOUND_BACKOFF,
+                AlmaConfiguration.DEFAULT_AMBIGUOUS_BACKOFF, AlmaConfiguration.DEFAULT_MAX_BACKOFF, 0.5);
+        long now = System.currentTimeMillis();
+        
+        File oldDir = createBookDir(now - 300000L, now - 400000L);
+        File newDir = createBookDir(now - 100000L, now - 400000L);
+        File changedDir = createBookDir(now - 200000L, now - 50000L);
+        File noModsDir = TestFileUtils.createEmptyDirectory(new File(TestFileUtils.getTempDir(), UUID.randomUUID().toString()).getAbsolutePath());
+        List<File> dirs = Arrays.asList(oldDir, newDir, changedDir, noModsDir);
+        
+        AlmaRefreshScheduler scheduler = new AlmaRefreshScheduler(stateDir, conf);
+        Assert.assertEquals(scheduler.selectBooksForRefresh(dirs), Arrays.asList(changedDir, oldDir));
+        
+        addStep("Record the refresh, and load the scheduler again", "The refreshed books are selected last");
+        scheduler.recordRefreshed(changedDir);
+        scheduler.recordRefreshed(oldDir);
+        scheduler.save();
+        scheduler = new AlmaRefreshScheduler(stateDir, conf);
+        List<File> selected = scheduler.selectBooksForRefresh(dirs);
+        Assert.assertEquals(selected.size(), 2);
+        Assert.assertEquals(selected.get(0), newDir);
+    }
+    
+    @Test
+    public void testNoRefresh() throws Exception {
+        addDescription("Test that no books are selected, when the refresh fraction is 0.");
+        File stateDir = new File(TestFileUtils.getTempDir(), UUID.randomUUID().toString());
+        File dir = createBookDir(System.currentTimeMillis(), System.currentTimeMillis());
+        
+        AlmaRefreshScheduler scheduler = new AlmaRefreshScheduler(stateDir, new AlmaConfiguration());
+        Assert.assertTrue(scheduler.selectBooksForRefresh(Arrays.asList(dir)).isEmpty());
+    }
+    
+    protected File createBookDir(long modsDate, long pubhubDate) throws Exception {
+        File dir = TestFileUtils.createEmptyDirectory(new File(TestFileUtils.getTempDir(), UUID.randomUUID().toString()).getAbsolutePath());
+        File modsFile = new File(dir, dir.getName() + Constants.MODS_METADATA_SUFFIX);
+        TestFileUtils.createFile(modsFile, "MODS");
+        modsFile.setLastModified(modsDate);
+        File pubhubFile = new File(dir, dir.getName() + Constants.PUBHUB_METADATA_SUFFIX);
+        TestFileUtils.createFile(pubhubFile, "PUBHUB");
+        pubhubFile.setLastModified(pubhubDate);
+        return dir;
+    }
+}
@@ -5,6 +5,14 @@ import org.testng.Assert;
 import org.testng.annotations.Test;
 
 import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class MetadataValidatorTest extends ExtendedTestCase {
 
@@ -23,4 +31,70 @@ public class MetadataValidatorTest extends ExtendedTestCase {
         File f = new File("src/test/resources/elivagar.yml");
         Assert.assertFalse(validator.isValid(f));
     }
+
+    @Test
+    public void testInvalidMods() throws Exception {
+        addDescription("Tests that it fails the validation of a MODS record with an unknown top-level element.");
+        MetadataValidator validator = new MetadataValidator();
+        Assert.assertFalse(validator.isValid("<mods xmlns=\"http://www.loc.gov/mods/v3\"><title/></mods>".getBytes()));
+        Assert.assertFalse(validator.isValid("<mods xmlns=\"http://www.loc.gov/mods/v3\"/>".getBytes()));
+    }
+
+    @Test
+    public void testInvalidModsContent() throws Exception {
+        addDescription("Tests that it fails the validation of MODS records, which are structurally invalid within the "
+                + "top-level elements.");
+        MetadataValidator validator = new MetadataValidator();
+
+        addStep("Validate a record with a known type of resource", "Valid");
+        Assert.assertTrue(validator.isValid(createMods("<typeOfResource>text</typeOfResource>")));
+
+        addStep("Validate a record with an unknown type of resource", "Not valid");
+        Assert.assertFalse(validator.isValid(createMods("<typeOfResource>e-book</typeOfResource>")));
+
+        addStep("Validate a record with a name part in the title info", "Not valid");
+        Assert.assertFalse(validator.isValid(createMods("<titleInfo><namePart>Vagt</namePart></titleInfo>")));
+
+        addStep("Validate a record with an unknown issuance", "Not valid");
+        Assert.assertFalse(validator.isValid(createMods("<originInfo><issuance>daily</issuance></originInfo>")));
+    }
+
+    @Test
+    public void testImportedSchemas() throws Exception {
+        addDescription("Tests that the attributes from the imported XLink and XML schemas are validated.");
+        MetadataValidator validator = new MetadataValidator();
+        Assert.assertTrue(validator.isValid(createMods("<titleInfo xml:lang=\"da\" xlink:href=\"http://kb.dk/\" "
+                + "xlink:show=\"new\"><title>Titel</title></titleInfo>")));
+        Assert.assertFalse(validator.isValid(createMods("<titleInfo xlink:show=\"always\"><title>Titel</title>"
+                + "</titleInfo>")));
+        Assert.assertFalse(validator.isValid(createMods("<titleInfo xml:lang=\"not a language\"><title>Titel"
+                + "</title></titleInfo>")));
+    }
+
+    @Test
+    public void testConcurrentValidation() throws Exception {
+        addDescription("Tests that the validator can be used by several threads concurrently.");
+        final MetadataValidator validator = new MetadataValidator();
+        final byte[] mods = Files.readAllBytes(new File("src/test/resources/metadata/mods.xml").toPath());
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+        for(int i = 0; i < 20; i++) {
+            results.add(executor.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    return validator.isValid(mods);
+                }
+            }));
+        }
+        for(Future<Boolean> result : results) {
+            Assert.assertTrue(result.get());
+        }
+        executor.shutdown();
+    }
+
+    protected byte[] createMods(String content) {
+        return ("<mods xmlns=\"http://www.loc.gov/mods/v3\" xmlns:xlink=\"http://www.w3.org/1999/xlink\" "
+                + "version=\"3.5\">" + content + "<identifier type=\"isbn\">9788792875068</identifier></mods>")
+                .getBytes(StandardCharsets.UTF_8);
+    }
 }
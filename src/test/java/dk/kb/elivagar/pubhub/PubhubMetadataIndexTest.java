@@ -0,0 +1,84 @@
+package dk.kb.elivagar.pubhub;
+
+import java.io.File;
+import java.util.UUID;
+
+import org.jaccept.structure.ExtendedTestCase;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import dk.kb.elivagar.testutils.TestFileUtils;
+import dk.kb.elivagar.utils.FileUtils;
+import dk.pubhub.service.Book;
+import dk.pubhub.service.BookTypeEnum;
+
+public class PubhubMetadataIndexTest extends ExtendedTestCase {
+
+    File pubhubFile;
+    
+    @BeforeClass
+    public void setup() throws Exception {
+        TestFileUtils.setup();
+        File dir = TestFileUtils.createEmptyDirectory(
+                new File(TestFileUtils.getTempDir(), UUID.randomUUID().toString()).getAbsolutePath());
+        pubhubFile = new File(dir, "book.xml");
+        FileUtils.copyFileFollowSymbolicLinks(new File("src/test/resources/metadata/pubhub_metadata.xml"), pubhubFile);
+    }
+    
+    @AfterClass
+    public void tearDown() {
+        TestFileUtils.tearDown();
+    }
+    
+    @Test
+    public void testParse() throws Exception {
+        addDescription("Test extracting the fields from a pubhub metadata file.");
+        PubhubMetadataIndex.Entry entry = PubhubMetadataIndex.parse(pubhubFile);
+        Assert.assertEquals(entry.getIdentifier(), "9788711436981");
+        Assert.assertEquals(entry.getIdentifierType(), "ISBN13");
+        Assert.assertEquals(entry.getPublicationDate(), "31-07-2017");
+        Assert.assertEquals(entry.getBookType(), "Ebog");
+        Assert.assertEquals(entry.getModified(), pubhubFile.lastModified());
+    }
+    
+    @Test
+    public void testPutAndGet() throws Exception {
+        addDescription("Test that the indexed fields are persisted and used instead of the file.");
+        File stateDir = new File(TestFileUtils.getTempDir(), UUID.randomUUID().toString());
+        PubhubMetadataIndex index = new PubhubMetadataIndex(stateDir);
+        Book book = new Book();
+        book.setIdentifier("1234567890");
+        book.setIdentifierType("ISBN10");
+        book.setPublicationDate("01-01-2000");
+        book.setBookType(BookTypeEnum.LYDBOG);
+        index.put(pubhubFile, book);
+        
+        addStep("Load the index again", "The indexed fields are returned, not the fields of the file");
+        index = new PubhubMetadataIndex(stateDir);
+        PubhubMetadataIndex.Entry entry = index.get(pubhubFile);
+        Assert.assertEquals(entry.getIdentifier(), "1234567890");
+        Assert.assertEquals(entry.getIdentifierType(), "ISBN10");
+        Assert.assertEquals(entry.getPublicationDate(), "01-01-2000");
+        Assert.assertEquals(entry.getBookType(), "Lydbog");
+    }
+    
+    @Test
+    public void testStaleEntry() throws Exception {
+        addDescription("Test that the file is parsed again, when it has been modified since it was indexed.");
+        File stateDir = new File(TestFileUtils.getTempDir(), UUID.randomUUID().toString());
+        PubhubMetadataIndex index = new PubhubMetadataIndex(stateDir);
+        Book book = new Book();
+        book.setIdentifier("1234567890");
+        index.put(pubhubFile, book);
+        Assert.assertTrue(pubhubFile.setLastModified(pubhubFile.lastModified() - 10000L));
+        
+        PubhubMetadataIndex.Entry entry = index.get(pubhubFile);
+        Assert.assertEquals(entry.getIdentifier(), "9788711436981");
+        
+        addStep("Load the index again", "The re-extracted fields are indexed");
+        index = new PubhubMetadataIndex(stateDir);
+        Assert.assertEquals(index.entries.get(pubhubFile.getAbsolutePath()), entry);
+    }
+}
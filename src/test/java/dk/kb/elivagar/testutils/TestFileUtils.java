@@ -90,4 +90,8 @@ public class TestFileUtils {
     public static void copyFile(File from, File to) throws IOException {
         StreamUtils.copyInputStreamToOutputStream(new FileInputStream(from), new FileOutputStream(to));
     }
+
+    public static int getNumberOfHardLinks(File f) throws IOException {
+        return ((Number) Files.getAttribute(f.toPath(), "unix:nlink")).intValue();
+    }
 }
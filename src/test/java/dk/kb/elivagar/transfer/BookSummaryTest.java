@@ -0,0 +1,100 @@
+package dk.kb.elivagar.transfer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Date;
+import java.util.UUID;
+
+import org.jaccept.structure.ExtendedTestCase;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import dk.kb.elivagar.exception.ArgumentCheck;
+import dk.kb.elivagar.testutils.TestFileUtils;
+import dk.kb.elivagar.utils.FileUtils;
+
+public class BookSummaryTest extends ExtendedTestCase {
+
+    @BeforeClass
+    public void setup() {
+        TestFileUtils.setup();
+    }
+
+    @AfterClass
+    public void tearDown() {
+        TestFileUtils.tearDown();
+    }
+
+    @Test(expectedExceptions = ArgumentCheck.class)
+    public void testMissingBookDir() throws Exception {
+        addDescription("Test that the summary requires an existing book directory.");
+        new BookSummary(new File(TestFileUtils.getTempDir(), UUID.randomUUID().toString()));
+    }
+
+    @Test
+    public void testMatches() throws Exception {
+        addDescription("Test that the summary matches the registered summary, until the files change.");
+        File bookDir = createBook();
+        File contentFile = new File(bookDir, bookDir.getName() + ".pdf");
+        TransferRegistry register = createRegistry(bookDir);
+
+        addStep("Check the summary without any registered summary", "No match");
+        Assert.assertFalse(new BookSummary(bookDir).matches(register));
+
+        addStep("Register the summary", "It matches, also with the registry file in the book directory");
+        register.setSummary(new BookSummary(bookDir).getSummary(register));
+        register.flush();
+        Assert.assertTrue(new BookSummary(bookDir).matches(register));
+
+        addStep("Change the date of the content file", "No match, though the directory tier is unchanged");
+        String directoryTier = new BookSummary(bookDir).directoryTier;
+        contentFile.setLastModified(contentFile.lastModified() - 100000L);
+        Assert.assertEquals(new BookSummary(bookDir).directoryTier, directoryTier);
+        Assert.assertFalse(new BookSummary(bookDir).matches(register));
+    }
+
+    @Test
+    public void testDirectoryTier() throws Exception {
+        addDescription("Test that adding a file changes the directory tier, so the files are not looked at.");
+        File bookDir = createBook();
+        TransferRegistry register = createRegistry(bookDir);
+        register.setSummary(new BookSummary(bookDir).getSummary(register));
+
+        TestFileUtils.createFile(new File(bookDir, bookDir.getName() + ".mods.xml"), UUID.randomUUID().toString());
+        bookDir.setLastModified(bookDir.lastModified() + 100000L);
+        BookSummary summary = new BookSummary(bookDir);
+        Assert.assertFalse(summary.matches(register));
+        Assert.assertNull(summary.fileEntries);
+    }
+
+    @Test
+    public void testRegisteredChecksum() throws Exception {
+        addDescription("Test that the summary includes the registered checksums of the files.");
+        File bookDir = createBook();
+        File contentFile = new File(bookDir, bookDir.getName() + ".pdf");
+        TransferRegistry register = createRegistry(bookDir);
+        BookSummary summary = new BookSummary(bookDir);
+        String before = summary.getSummary(register);
+
+        register.setChecksumAndDate(contentFile, "0123456789abcdef");
+        Assert.assertNotEquals(summary.getSummary(register), before);
+        Assert.assertTrue(summary.getSummary(register).startsWith(summary.directoryTier + BookSummary.SEPARATOR));
+    }
+
+    protected File createBook() throws IOException {
+        File bookDir = FileUtils.createDirectory(TestFileUtils.getTempDir().getAbsolutePath() + "/"
+                + UUID.randomUUID().toString());
+        TestFileUtils.createFile(new File(bookDir, bookDir.getName() + ".pdf"), UUID.randomUUID().toString());
+        return bookDir;
+    }
+
+    protected TransferRegistry createRegistry(File bookDir) {
+        TransferRegistry register = new TransferRegistry(bookDir);
+        register.setIngestDate(new Date());
+        register.setChecksumAndDate(new File(bookDir, bookDir.getName() + ".pdf"));
+        register.flush();
+        return new TransferRegistry(bookDir);
+    }
+}
@@ -0,0 +1,154 @@
+package dk.kb.elivagar.transfer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.UUID;
+
+import org.jaccept.structure.ExtendedTestCase;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import dk.kb.elivagar.config.TransferConfiguration;
+import dk.kb.elivagar.testutils.TestFileUtils;
+import dk.kb.elivagar.utils.FileUtils;
+
+public class EligibilityQueueTest extends ExtendedTestCase {
+
+    @BeforeClass
+    public void setup() {
+        TestFileUtils.setup();
+    }
+
+    @AfterClass
+    public void tearDown() {
+        TestFileUtils.tearDown();
+    }
+
+    @Test
+    public void testIsDue() throws Exception {
+        addDescription("Test when a book is due for being checked for ingest.");
+        EligibilityQueue queue = new EligibilityQueue(createDir(), 1L);
+        File bookDir = createBook();
+        long fingerprint = EligibilityQueue.fingerprint(bookDir);
+
+        addStep("Check a book, which is not queued", "It is due");
+        Assert.assertTrue(queue.isDue(bookDir, fingerprint, 1000L));
+
+        addStep("Queue the book", "It is only due from its eligible time");
+        queue.defer(bookDir, fingerprint, 2000L);
+        Assert.assertFalse(queue.isDue(bookDir, fingerprint, 1000L));
+        Assert.assertTrue(queue.isDue(bookDir, fingerprint, 2000L));
+
+        addStep("Check the book with another fingerprint", "It is due, since its files have changed");
+        Assert.assertTrue(queue.isDue(bookDir, fingerprint + 1, 1000L));
+
+        addStep("Remove the book", "It is due again");
+        queue.remove(bookDir);
+        Assert.assertTrue(queue.isDue(bookDir, fingerprint, 1000L));
+        Assert.assertEquals(queue.size(), 0);
+    }
+
+    @Test
+    public void testNeverEligible() throws Exception {
+        addDescription("Test that a book queued as never eligible is only due, when its files change.");
+        EligibilityQueue queue = new EligibilityQueue(createDir(), 1L);
+        File bookDir = createBook();
+        queue.defer(bookDir, EligibilityQueue.fingerprint(bookDir), EligibilityQueue.NEVER);
+        Assert.assertFalse(queue.isDue(bookDir, EligibilityQueue.fingerprint(bookDir), Long.MAX_VALUE - 1));
+
+        TestFileUtils.createFile(new File(bookDir, bookDir.getName() + ".mods.xml"), UUID.randomUUID().toString());
+        Assert.assertTrue(queue.isDue(bookDir, EligibilityQueue.fingerprint(bookDir), System.currentTimeMillis()));
+    }
+
+    @Test
+    public void testFingerprint() throws Exception {
+        addDescription("Test that the fingerprint changes with the files, but not with the transfer registry.");
+        File bookDir = createBook();
+        long fingerprint = EligibilityQueue.fingerprint(bookDir);
+        Assert.assertEquals(EligibilityQueue.fingerprint(bookDir), fingerprint);
+
+        TestFileUtils.createFile(new File(bookDir, TransferRegistry.REGISTRY_NAME), UUID.randomUUID().toString());
+        Assert.assertEquals(EligibilityQueue.fingerprint(bookDir), fingerprint);
+
+        File contentFile = new File(bookDir, bookDir.getName() + ".pdf");
+        contentFile.setLastModified(contentFile.lastModified() - 100000L);
+        Assert.assertNotEquals(EligibilityQueue.fingerprint(bookDir), fingerprint);
+    }
+
+    @Test
+    public void testSaveAndLoad() throws Exception {
+        addDescription("Test that the queue is kept in the state directory in the order of the eligible time.");
+        File stateDir = createDir();
+        EligibilityQueue queue = new EligibilityQueue(stateDir, 1L);
+        File bookDir1 = createBook();
+        File bookDir2 = createBook();
+        File removedBookDir = createBook();
+        queue.defer(bookDir1, 1L, 3000L);
+        queue.defer(bookDir2, 2L, 2000L);
+        queue.defer(removedBookDir, 3L, 1000L);
+        Assert.assertEquals(queue.getNextEligibleTime(), 1000L);
+        FileUtils.deleteDirectory(removedBookDir);
+        queue.save();
+
+        addStep("Load the queue in a new instance", "The books, which still exist, are queued");
+        EligibilityQueue loaded = new EligibilityQueue(stateDir, 1L);
+        Assert.assertEquals(loaded.size(), 2);
+        Assert.assertEquals(loaded.getNextEligibleTime(), 2000L);
+        Assert.assertFalse(loaded.isDue(bookDir1, 1L, 2500L));
+        Assert.assertTrue(loaded.isDue(bookDir2, 2L, 2500L));
+        Assert.assertTrue(loaded.isDue(removedBookDir, 3L, 0L));
+
+        String content = TestFileUtils.readFile(new File(stateDir, EligibilityQueue.QUEUE_FILE_NAME));
+        Assert.assertTrue(content.indexOf(bookDir2.getAbsolutePath()) < content.indexOf(bookDir1.getAbsolutePath()));
+    }
+
+    @Test
+    public void testConfigurationChanged() throws Exception {
+        addDescription("Test that the queue is dropped, when it is loaded with another configuration hash.");
+        File stateDir = createDir();
+        EligibilityQueue queue = new EligibilityQueue(stateDir, 1L);
+        File bookDir = createBook();
+        queue.defer(bookDir, 1L, 3000L);
+        queue.save();
+
+        Assert.assertEquals(new EligibilityQueue(stateDir, 1L).size(), 1);
+        EligibilityQueue loaded = new EligibilityQueue(stateDir, 2L);
+        Assert.assertEquals(loaded.size(), 0);
+        Assert.assertTrue(loaded.isDue(bookDir, 1L, 0L));
+    }
+
+    @Test
+    public void testConfigurationHash() throws Exception {
+        addDescription("Test that the configuration hash changes with the retain intervals and required formats.");
+        TransferConfiguration transferConf = mock(TransferConfiguration.class);
+        when(transferConf.getRequiredFormats()).thenReturn(Arrays.asList("pdf", "mods.xml"));
+        when(transferConf.getRetainCreateDate()).thenReturn(-1L);
+        when(transferConf.getRetainModifyDate()).thenReturn(1000L);
+        when(transferConf.getRetainPublicationDate()).thenReturn(-1L);
+        long hash = EligibilityQueue.getConfigurationHash(transferConf);
+        Assert.assertEquals(EligibilityQueue.getConfigurationHash(transferConf), hash);
+
+        when(transferConf.getRetainModifyDate()).thenReturn(2000L);
+        Assert.assertNotEquals(EligibilityQueue.getConfigurationHash(transferConf), hash);
+        when(transferConf.getRetainModifyDate()).thenReturn(1000L);
+        when(transferConf.getRequiredFormats()).thenReturn(Arrays.asList("pdf"));
+        Assert.assertNotEquals(EligibilityQueue.getConfigurationHash(transferConf), hash);
+    }
+
+    protected File createDir() throws IOException {
+        return FileUtils.createDirectory(TestFileUtils.getTempDir().getAbsolutePath() + "/"
+                + UUID.randomUUID().toString());
+    }
+
+    protected File createBook() throws IOException {
+        File bookDir = createDir();
+        TestFileUtils.createFile(new File(bookDir, bookDir.getName() + ".pdf"), UUID.randomUUID().toString());
+        return bookDir;
+    }
+}
@@ -7,6 +7,8 @@ import dk.kb.elivagar.testutils.TestFileUtils;
 import dk.kb.elivagar.utils.CalendarUtils;
 import dk.kb.elivagar.utils.ChecksumUtils;
 import dk.kb.elivagar.utils.FileUtils;
+import dk.kb.elivagar.utils.ParallelFileCopier;
+import dk.kb.elivagar.utils.RateLimiter;
 import dk.pubhub.service.BookTypeEnum;
 import org.jaccept.structure.ExtendedTestCase;
 import org.testng.Assert;
@@ -17,6 +19,8 @@ import org.testng.annotations.Test;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.*;
 
@@ -85,6 +89,47 @@ public class PreIngestTransferTest extends ExtendedTestCase {
         verifyZeroInteractions(transferConf);
     }
     
+    @Test
+    public void testTransferReadyBooksInParallel() throws Exception {
+        addDescription("Test the transferReadyBooks method with the transfer engine, which ingests the books in parallel.");
+        Configuration conf = mock(Configuration.class);
+        TransferConfiguration transferConf = mock(TransferConfiguration.class);
+        
+        File bookBaseDir = FileUtils.createDirectory(TestFileUtils.getTempDir().getAbsolutePath() + "/" + UUID.randomUUID().toString());
+        File ingestDir = FileUtils.createDirectory(TestFileUtils.getTempDir().getAbsolutePath() + "/" + UUID.randomUUID().toString());
+        List<File> bookDirs = new ArrayList<File>();
+        for(int i = 0; i < 6; i++) {
+            File bookDir = FileUtils.createDirectory(bookBaseDir.getAbsolutePath() + "/" + UUID.randomUUID().toString());
+            TestFileUtils.createFile(new File(bookDir, bookDir.getName() + ".pdf"), UUID.randomUUID().toString());
+            TestFileUtils.createFile(new File(bookDir, bookDir.getName() + Constants.MODS_METADATA_SUFFIX), UUID.randomUUID().toString());
+            bookDirs.add(bookDir);
+        }
+        
+        when(conf.getEbookOutputDir()).thenReturn(bookBaseDir);
+        when(conf.getAudioOutputDir()).thenReturn(bookBaseDir);
+        when(conf.getTransferConfiguration()).thenReturn(transferConf);
+        when(conf.getEbookFormats()).thenReturn(Arrays.asList("pdf"));
+        when(conf.getAudioFormats()).thenReturn(Arrays.asList("mp3"));
+        when(transferConf.getRequiredFormats()).thenReturn(Arrays.asList("pdf"));
+        when(transferConf.getRetainCreateDate()).thenReturn(-1L);
+        when(transferConf.getRetainModifyDate()).thenReturn(-1L);
+        when(transferConf.getRetainPublicationDate()).thenReturn(-1L);
+        when(transferConf.getEbookIngestDir()).thenReturn(ingestDir);
+        
+        PreIngestTransfer pit = new PreIngestTransfer(conf, null, null, new TransferEngine(3, 2));
+        pit.transferReadyBooks();
+        
+        addStep("Check the ingest directory", "All the books are ingested, and no transfer directories are left");
+        Assert.assertEquals(ingestDir.list().length, bookDirs.size());
+        for(File bookDir : bookDirs) {
+            File ingestedBookDir = new File(ingestDir, bookDir.getName());
+            Assert.assertTrue(ingestedBookDir.isDirectory());
+            Assert.assertEquals(ingestedBookDir.list().length, 3);
+            Assert.assertTrue(new File(ingestedBookDir, "manifest-md5.txt").isFile());
+            Assert.assertNotNull(new TransferRegistry(bookDir).getIngestDate());
+        }
+    }
+    
     @Test
     public void testTransferBookNotBookDir() throws Exception {
         addDescription("Test the transferBook method when the 'book dir' is not a directory, but a file.");
@@ -143,6 +188,7 @@ public class PreIngestTransferTest extends ExtendedTestCase {
         TransferRegistry register = new TransferRegistry(bookDir);
         register.setIngestDate(new Date(System.currentTimeMillis() + 60000L));
         register.setChecksumAndDate(bookFile);
+        register.flush();
         
         File registryFileBeforeTransfer = register.registryFile.getCanonicalFile();
         String registryFileChecksumBeforeTransfer = ChecksumUtils.generateMD5Checksum(new FileInputStream(registryFileBeforeTransfer));
@@ -182,6 +228,7 @@ public class PreIngestTransferTest extends ExtendedTestCase {
         
         TransferRegistry register = new TransferRegistry(bookDir);
         register.setIngestDate(new Date(System.currentTimeMillis() - 60000L));
+        register.flush();
 
         when(conf.getAudioFormats()).thenReturn(new ArrayList<String>());
         when(conf.getEbookFormats()).thenReturn(Arrays.asList("pdf"));
@@ -238,6 +285,8 @@ public class PreIngestTransferTest extends ExtendedTestCase {
         when(register.getLatestUpdateDate()).thenReturn(new Date(0L));
         when(register.hasFileEntry(eq(bookFile))).thenReturn(true);
         when(register.verifyFile(eq(bookFile))).thenReturn(false);
+        when(register.hasChangedContent(eq(fitsFile))).thenReturn(true);
+        when(register.hasChangedContent(eq(modsFile))).thenReturn(true);
         
         PreIngestTransfer pit = new PreIngestTransfer(conf);
         
@@ -268,7 +317,11 @@ public class PreIngestTransferTest extends ExtendedTestCase {
         verify(register).setUpdateDate(any(Date.class));
         verify(register).hasFileEntry(eq(bookFile));
         verify(register).verifyFile(eq(bookFile));
-        verify(register).updateFileEntries(eq(Arrays.asList(bookFile)));
+        verify(register).setChecksumAndDate(eq(bookFile), anyString());
+        verify(register).hasChangedContent(eq(fitsFile));
+        verify(register).hasChangedContent(eq(modsFile));
+        verify(register).setChecksumAndDate(eq(fitsFile), anyString());
+        verify(register).setChecksumAndDate(eq(modsFile), anyString());
         verifyNoMoreInteractions(register);
     }
 
@@ -303,6 +356,8 @@ public class PreIngestTransferTest extends ExtendedTestCase {
         when(register.getLatestUpdateDate()).thenReturn(new Date(oneHourAgo));
         when(register.hasFileEntry(eq(bookFile))).thenReturn(true);
         when(register.verifyFile(eq(bookFile))).thenReturn(false);
+        when(register.hasChangedContent(eq(fitsFile))).thenReturn(true);
+        when(register.hasChangedContent(eq(modsFile))).thenReturn(true);
 
         File updateBookFile = new File(updateContentBookDir, bookFile.getName());
         File updateFitsFile = new File(updateContentBookDir, fitsFile.getName());
@@ -350,7 +405,11 @@ public class PreIngestTransferTest extends ExtendedTestCase {
         verify(register).setUpdateDate(any(Date.class));
         verify(register).hasFileEntry(eq(bookFile));
         verify(register).verifyFile(eq(bookFile));
-        verify(register).updateFileEntries(eq(Arrays.asList(bookFile)));
+        verify(register).setChecksumAndDate(eq(bookFile), anyString());
+        verify(register).hasChangedContent(eq(fitsFile));
+        verify(register).hasChangedContent(eq(modsFile));
+        verify(register).setChecksumAndDate(eq(fitsFile), anyString());
+        verify(register).setChecksumAndDate(eq(modsFile), anyString());
         verifyNoMoreInteractions(register);
     }
 
@@ -444,6 +503,188 @@ public class PreIngestTransferTest extends ExtendedTestCase {
         verifyZeroInteractions(register);
     }
     
+    @Test
+    public void testIngestBookManifests() throws Exception {
+        addDescription("Test that the ingestBook method writes the manifests, and registers the checksums from the copy.");
+        Configuration conf = mock(Configuration.class);
+        TransferRegistry register = mock(TransferRegistry.class);
+        TransferConfiguration transferConf = mock(TransferConfiguration.class);
+        
+        File bookDir = FileUtils.createDirectory(TestFileUtils.getTempDir().getAbsolutePath() + "/" + UUID.randomUUID().toString());
+        File bookFile = new File(bookDir, bookDir.getName() + ".pdf");
+        TestFileUtils.createFile(bookFile, "The quick brown fox jumps over the lazy dog");
+        File destinationDir = FileUtils.createDirectory(TestFileUtils.getTempDir().getAbsolutePath() + "/" + UUID.randomUUID().toString());
+        
+        when(conf.getTransferConfiguration()).thenReturn(transferConf);
+        when(conf.getEbookFormats()).thenReturn(Arrays.asList("pdf"));
+        when(conf.getAudioFormats()).thenReturn(Arrays.asList("mp3"));
+        when(transferConf.getRequiredFormats()).thenReturn(Arrays.asList("pdf"));
+        when(transferConf.getRetainCreateDate()).thenReturn(-1L);
+        when(transferConf.getRetainModifyDate()).thenReturn(-1L);
+        when(transferConf.getRetainPublicationDate()).thenReturn(-1L);
+        when(transferConf.getEbookIngestDir()).thenReturn(destinationDir);
+        
+        PreIngestTransfer pit = new PreIngestTransfer(conf);
+        pit.addManifestAlgorithm(ChecksumUtils.SHA256_ALGORITHM);
+        pit.ingestBook(bookDir, register, BookTypeEnum.EBOG);
+        
+        addStep("Check the manifests", "Must have a line with the checksum for the book file");
+        File ingestedBookDir = new File(destinationDir, bookDir.getName());
+        List<String> md5Lines = Files.readAllLines(new File(ingestedBookDir, "manifest-md5.txt").toPath(), 
+                StandardCharsets.UTF_8);
+        Assert.assertEquals(md5Lines, Arrays.asList("9e107d9d372bb6826bd81d3542a419d6  " + bookFile.getName()));
+        List<String> sha256Lines = Files.readAllLines(new File(ingestedBookDir, "manifest-sha256.txt").toPath(), 
+                StandardCharsets.UTF_8);
+        Assert.assertEquals(sha256Lines, Arrays.asList("d7a8fbb307d7809469ca9abcb0082e4f8d5651e46d3cdb762d02d0bf37c9e592  " 
+                + bookFile.getName()));
+        
+        addStep("Check the registry", "Must have the MD5 checksum from the copy");
+        verify(register).setIngestDate(any(Date.class));
+        verify(register).setChecksumAndDate(eq(bookFile), eq("9e107d9d372bb6826bd81d3542a419d6"));
+        verifyNoMoreInteractions(register);
+    }
+
+    @Test
+    public void testTransferFileWithParallelCopier() throws Exception {
+        addDescription("Test that transferFile copies the files above the threshold with the parallel copier.");
+        Configuration conf = mock(Configuration.class);
+        File origFile = TestFileUtils.createTempFile("The quick brown fox jumps over the lazy dog");
+        File destFile = new File(TestFileUtils.getTempDir(), UUID.randomUUID().toString());
+        ParallelFileCopier copier = spy(new ParallelFileCopier(10L, 2, 8));
+        
+        PreIngestTransfer pit = new PreIngestTransfer(conf);
+        pit.setParallelCopier(copier);
+        Map<String, String> checksums = pit.transferFile(origFile, destFile, false);
+        
+        Assert.assertTrue(FileUtils.areFilesIdentical(origFile, destFile));
+        Assert.assertEquals(checksums.get(ChecksumUtils.MD5_ALGORITHM), "9e107d9d372bb6826bd81d3542a419d6");
+        verify(copier).isAboveThreshold(eq(origFile));
+        verify(copier).copyFile(eq(origFile), eq(destFile), anyCollectionOf(String.class), 
+                (RateLimiter) isNull());
+        verifyZeroInteractions(conf);
+    }
+
+    @Test
+    public void testTransferFileHardLinkIsScheduled() throws Exception {
+        addDescription("Test that the checksum read of a hard linked content file is limited and counted by the "
+                + "scheduler like a copy.");
+        Configuration conf = mock(Configuration.class);
+        File origFile = TestFileUtils.createTempFile("The quick brown fox jumps over the lazy dog");
+        File destFile = new File(TestFileUtils.getTempDir(), UUID.randomUUID().toString());
+        TransferScheduler scheduler = mock(TransferScheduler.class);
+        when(scheduler.getRateLimiter()).thenReturn(new RateLimiter(1000000.0));
+        
+        PreIngestTransfer pit = new PreIngestTransfer(conf);
+        pit.setScheduler(scheduler);
+        Map<String, String> checksums = pit.transferFile(origFile, destFile, true);
+        
+        Assert.assertEquals(TestFileUtils.getNumberOfHardLinks(origFile), 2);
+        Assert.assertEquals(checksums.get(ChecksumUtils.MD5_ALGORITHM), "9e107d9d372bb6826bd81d3542a419d6");
+        verify(scheduler).getRateLimiter();
+        verify(scheduler).bytesTransferred(origFile.length());
+        verifyNoMoreInteractions(scheduler);
+        verifyZeroInteractions(conf);
+    }
+
+    @Test
+    public void testTransferBookDirWithoutBudget() throws Exception {
+        addDescription("Test that transferBookDir carries the book into the next run, when the budget is spent.");
+        Configuration conf = mock(Configuration.class);
+        File bookDir = FileUtils.createDirectory(TestFileUtils.getTempDir().getAbsolutePath() + "/" 
+                + UUID.randomUUID().toString());
+        TestFileUtils.createFile(new File(bookDir, bookDir.getName() + ".pdf"), UUID.randomUUID().toString());
+        File stateDir = FileUtils.createDirectory(TestFileUtils.getTempDir().getAbsolutePath() + "/" 
+                + UUID.randomUUID().toString());
+        TransferScheduler scheduler = new TransferScheduler(0L, 0L, 1, TransferConfiguration.ORDER_DIRECTORY, 
+                false, stateDir);
+        scheduler.start();
+        scheduler.bookTransferred();
+        
+        PreIngestTransfer pit = new PreIngestTransfer(conf);
+        pit.setScheduler(scheduler);
+        pit.transferBookDir(bookDir, BookTypeEnum.EBOG);
+        
+        Assert.assertEquals(bookDir.list().length, 1);
+        Assert.assertTrue(scheduler.deferred.contains(bookDir.getAbsolutePath()));
+        verifyZeroInteractions(conf);
+    }
+
+    @Test
+    public void testTransferBookDirSkipsUnchangedBook() throws Exception {
+        addDescription("Test that transferBookDir skips an ingested book, which matches its registered summary.");
+        Configuration conf = mock(Configuration.class);
+        File bookDir = FileUtils.createDirectory(TestFileUtils.getTempDir().getAbsolutePath() + "/" 
+                + UUID.randomUUID().toString());
+        File bookFile = new File(bookDir, bookDir.getName() + ".pdf");
+        TestFileUtils.createFile(bookFile, UUID.randomUUID().toString());
+        TransferRegistry register = new TransferRegistry(bookDir);
+        register.setIngestDate(new Date());
+        register.setChecksumAndDate(bookFile);
+        register.flush();
+        register = new TransferRegistry(bookDir);
+        register.setSummary(new BookSummary(bookDir).getSummary(register));
+        register.flush();
+        
+        PreIngestTransfer pit = new PreIngestTransfer(conf);
+        pit.setSkipUnchangedBooks(true);
+        
+        addStep("Transfer the unchanged book", "It is skipped without looking at its files");
+        pit.transferBookDir(bookDir, BookTypeEnum.EBOG);
+        verifyZeroInteractions(conf);
+        
+        addStep("Touch the content file, and transfer the book again", 
+                "It is checked, but not updated, and the new summary is registered");
+        bookFile.setLastModified(bookFile.lastModified() - 100000L);
+        when(conf.getEbookFormats()).thenReturn(Arrays.asList("pdf"));
+        when(conf.getAudioFormats()).thenReturn(Arrays.asList("mp3"));
+        pit.transferBookDir(bookDir, BookTypeEnum.EBOG);
+        verify(conf, times(2)).getEbookFormats();
+        verify(conf, times(2)).getAudioFormats();
+        verifyNoMoreInteractions(conf);
+        
+        register = new TransferRegistry(bookDir);
+        Assert.assertEquals(register.getLatestUpdateDate(), register.getIngestDate());
+        Assert.assertTrue(new BookSummary(bookDir).matches(register));
+    }
+
+    @Test
+    public void testTransferBookDirRegistersSummaryAfterIngest() throws Exception {
+        addDescription("Test that transferBookDir registers the summary of a newly ingested book, so it is skipped "
+                + "in the next run.");
+        Configuration conf = mock(Configuration.class);
+        TransferConfiguration transferConf = mock(TransferConfiguration.class);
+        File bookDir = FileUtils.createDirectory(TestFileUtils.getTempDir().getAbsolutePath() + "/" 
+                + UUID.randomUUID().toString());
+        File bookFile = new File(bookDir, bookDir.getName() + ".pdf");
+        TestFileUtils.createFile(bookFile, UUID.randomUUID().toString());
+        File destinationDir = FileUtils.createDirectory(TestFileUtils.getTempDir().getAbsolutePath() + "/" 
+                + UUID.randomUUID().toString());
+        
+        when(conf.getTransferConfiguration()).thenReturn(transferConf);
+        when(conf.getEbookFormats()).thenReturn(Arrays.asList("pdf"));
+        when(conf.getAudioFormats()).thenReturn(Arrays.asList("mp3"));
+        when(transferConf.getRequiredFormats()).thenReturn(Arrays.asList("pdf"));
+        when(transferConf.getRetainCreateDate()).thenReturn(-1L);
+        when(transferConf.getRetainModifyDate()).thenReturn(-1L);
+        when(transferConf.getRetainPublicationDate()).thenReturn(-1L);
+        when(transferConf.getEbookIngestDir()).thenReturn(destinationDir);
+        
+        PreIngestTransfer pit = new PreIngestTransfer(conf);
+        pit.setSkipUnchangedBooks(true);
+        
+        addStep("Transfer the new book", "It is ingested, and its summary is registered");
+        pit.transferBookDir(bookDir, BookTypeEnum.EBOG);
+        Assert.assertEquals(destinationDir.list().length, 1);
+        TransferRegistry register = new TransferRegistry(bookDir);
+        Assert.assertNotNull(register.getIngestDate());
+        Assert.assertTrue(new BookSummary(bookDir).matches(register));
+        
+        addStep("Transfer the book again", "It is skipped without looking at its files");
+        reset(conf);
+        pit.transferBookDir(bookDir, BookTypeEnum.EBOG);
+        verifyZeroInteractions(conf);
+    }
+
     @Test
     public void testIngestBookSuccess() throws Exception {
         addDescription("Test the ingestBook method when it successfully is ingested");
@@ -471,7 +712,8 @@ public class PreIngestTransferTest extends ExtendedTestCase {
         pit.ingestBook(bookDir, register, BookTypeEnum.EBOG);
         Assert.assertEquals(destinationDir.list().length, 1);
         Assert.assertEquals(destinationDir.listFiles()[0].getName(), bookDir.getName());
-        Assert.assertEquals(destinationDir.listFiles()[0].list().length, bookDir.list().length);
+        Assert.assertEquals(destinationDir.listFiles()[0].list().length, bookDir.list().length + 1);
+        Assert.assertTrue(new File(destinationDir.listFiles()[0], "manifest-md5.txt").isFile());
 
         verify(conf, times(5)).getTransferConfiguration();
         verify(conf, times(2)).getEbookFormats();
@@ -485,10 +727,301 @@ public class PreIngestTransferTest extends ExtendedTestCase {
         verifyNoMoreInteractions(transferConf);
         
         verify(register).setIngestDate(any(Date.class));
-        verify(register).setChecksumAndDate(any(File.class));
+        verify(register).setChecksumAndDate(any(File.class), anyString());
+        verifyNoMoreInteractions(register);
+    }
+
+    @Test
+    public void testIngestBookWithTarPackage() throws Exception {
+        addDescription("Test that ingestBook writes a single tar package with the files and the manifest.");
+        Configuration conf = mock(Configuration.class);
+        TransferRegistry register = mock(TransferRegistry.class);
+        TransferConfiguration transferConf = mock(TransferConfiguration.class);
+        
+        File bookDir = FileUtils.createDirectory(TestFileUtils.getTempDir().getAbsolutePath() + "/" + UUID.randomUUID().toString());
+        File bookFile = new File(bookDir, bookDir.getName() + ".pdf");
+        String content = UUID.randomUUID().toString();
+        TestFileUtils.createFile(bookFile, content);
+        File destinationDir = FileUtils.createDirectory(TestFileUtils.getTempDir().getAbsolutePath() + "/" + UUID.randomUUID().toString());
+        
+        when(conf.getTransferConfiguration()).thenReturn(transferConf);
+        when(conf.getEbookFormats()).thenReturn(Arrays.asList("pdf"));
+        when(conf.getAudioFormats()).thenReturn(Arrays.asList("mp3"));
+        when(transferConf.getRequiredFormats()).thenReturn(Arrays.asList("pdf"));
+        when(transferConf.getRetainCreateDate()).thenReturn(-1L);
+        when(transferConf.getRetainModifyDate()).thenReturn(-1L);
+        when(transferConf.getRetainPublicationDate()).thenReturn(-1L);
+        when(transferConf.getEbookIngestDir()).thenReturn(destinationDir);
+        
+        PreIngestTransfer pit = new PreIngestTransfer(conf);
+        pit.setTarPackages(true);
+        pit.ingestBook(bookDir, register, BookTypeEnum.EBOG);
+        
+        addStep("Check the destination", "Only the tar package, with the file and the manifest");
+        Assert.assertEquals(destinationDir.list(), new String[]{bookDir.getName() + PreIngestTransfer.TAR_PACKAGE_SUFFIX});
+        String tar = new String(Files.readAllBytes(destinationDir.listFiles()[0].toPath()), StandardCharsets.UTF_8);
+        Assert.assertTrue(tar.startsWith(bookDir.getName() + "/" + bookFile.getName()));
+        Assert.assertTrue(tar.contains(content));
+        Assert.assertTrue(tar.contains(bookDir.getName() + "/manifest-md5.txt"));
+        Assert.assertTrue(tar.contains(ChecksumUtils.calculateMD5Checksum(bookFile) + "  " + bookFile.getName()));
+        
+        verify(register).setIngestDate(any(Date.class));
+        verify(register).setChecksumAndDate(eq(bookFile), eq(ChecksumUtils.calculateMD5Checksum(bookFile)));
         verifyNoMoreInteractions(register);
     }
 
+    @Test
+    public void testCopyUpdatedFilesWithTarPackage() throws Exception {
+        addDescription("Test that copyUpdatedFiles writes the updated files as a tar package next to the update dir.");
+        Configuration conf = mock(Configuration.class);
+        File bookDir = FileUtils.createDirectory(TestFileUtils.getTempDir().getAbsolutePath() + "/" + UUID.randomUUID().toString());
+        File modsFile = new File(bookDir, bookDir.getName() + Constants.MODS_METADATA_SUFFIX);
+        TestFileUtils.createFile(modsFile, UUID.randomUUID().toString());
+        File updateBaseDir = FileUtils.createDirectory(TestFileUtils.getTempDir().getAbsolutePath() + "/" + UUID.randomUUID().toString());
+        
+        PreIngestTransfer pit = new PreIngestTransfer(conf);
+        pit.setTarPackages(true);
+        Map<String, Map<String, String>> checksums = pit.copyUpdatedFiles(Arrays.asList(modsFile), 
+                new File(updateBaseDir, bookDir.getName()).getAbsolutePath(), false);
+        
+        Assert.assertEquals(checksums.get(modsFile.getName()).get(ChecksumUtils.MD5_ALGORITHM), 
+                ChecksumUtils.calculateMD5Checksum(modsFile));
+        Assert.assertEquals(updateBaseDir.list().length, 1);
+        String name = updateBaseDir.list()[0];
+        Assert.assertTrue(name.startsWith(bookDir.getName() + "_"), name);
+        Assert.assertTrue(name.endsWith(PreIngestTransfer.TAR_PACKAGE_SUFFIX), name);
+        verifyZeroInteractions(conf);
+    }
+
+    @Test
+    public void testTransferUpdatedFilesWithBatches() throws Exception {
+        addDescription("Test that the updated files of several books are delivered together in a batch.");
+        Configuration conf = mock(Configuration.class);
+        File updateBaseDir = FileUtils.createDirectory(TestFileUtils.getTempDir().getAbsolutePath() + "/" + UUID.randomUUID().toString());
+        
+        PreIngestTransfer pit = new PreIngestTransfer(conf);
+        pit.setUpdateBatches(0, 0L);
+        Assert.assertNull(pit.updateBatcher);
+        pit.setUpdateBatches(0, 1000000L);
+        Assert.assertNotNull(pit.updateBatcher);
+        pit.setUpdateBatches(10, 0L);
+        Assert.assertNotNull(pit.updateBatcher);
+        
+        List<String> bookIds = new ArrayList<String>();
+        for(int i = 0; i < 2; i++) {
+            File bookDir = FileUtils.createDirectory(TestFileUtils.getTempDir().getAbsolutePath() + "/" + UUID.randomUUID().toString());
+            File modsFile = new File(bookDir, bookDir.getName() + Constants.MODS_METADATA_SUFFIX);
+            TestFileUtils.createFile(modsFile, UUID.randomUUID().toString());
+            TransferRegistry register = new TransferRegistry(bookDir);
+            Map<String, Map<String, String>> checksums = pit.transferUpdatedFiles(Arrays.asList(modsFile), 
+                    new File(updateBaseDir, bookDir.getName()).getAbsolutePath(), false, register);
+            Assert.assertEquals(checksums.get(modsFile.getName()).get(ChecksumUtils.MD5_ALGORITHM), 
+                    ChecksumUtils.calculateMD5Checksum(modsFile));
+            register.setUpdateDate(new Date());
+            pit.updateBatcher.bookFinished(register);
+            Assert.assertFalse(register.registryFile.exists());
+            bookIds.add(bookDir.getName());
+        }
+        
+        addStep("Deliver the batches", "A single batch directory with both books and the manifest");
+        pit.updateBatcher.deliverAll();
+        Assert.assertEquals(updateBaseDir.list().length, 1);
+        File batchDir = updateBaseDir.listFiles()[0];
+        Assert.assertTrue(batchDir.getName().startsWith(UpdateBatcher.BATCH_NAME_PREFIX));
+        for(String bookId : bookIds) {
+            Assert.assertTrue(new File(batchDir, bookId + "/" + bookId + Constants.MODS_METADATA_SUFFIX).isFile());
+        }
+        Assert.assertTrue(new File(batchDir, "manifest-md5.txt").isFile());
+        verifyZeroInteractions(conf);
+    }
+
+    @Test
+    public void testIngestBookResumesTransfer() throws Exception {
+        addDescription("Test that ingestBook resumes an interrupted transfer, and skips the transferred files.");
+        Configuration conf = mock(Configuration.class);
+        TransferRegistry register = mock(TransferRegistry.class);
+        TransferConfiguration transferConf = mock(TransferConfiguration.class);
+        
+        File bookDir = FileUtils.createDirectory(TestFileUtils.getTempDir().getAbsolutePath() + "/" + UUID.randomUUID().toString());
+        File bookFile = new File(bookDir, bookDir.getName() + ".pdf");
+        TestFileUtils.createFile(bookFile, UUID.randomUUID().toString());
+        File modsFile = new File(bookDir, bookDir.getName() + Constants.MODS_METADATA_SUFFIX);
+        TestFileUtils.createFile(modsFile, UUID.randomUUID().toString());
+        File destinationDir = FileUtils.createDirectory(TestFileUtils.getTempDir().getAbsolutePath() + "/" + UUID.randomUUID().toString());
+        
+        addStep("Create the transfer directory of an interrupted transfer", 
+                "The content file is journaled, and the metadata file is partially written");
+        File transferDir = FileUtils.createDirectory(destinationDir.getAbsolutePath() + "/" + bookDir.getName() 
+                + PreIngestTransfer.TRANSFERRING_DIR_SUFFIX);
+        List<String> algorithms = Arrays.asList(ChecksumUtils.MD5_ALGORITHM);
+        TransferJournal journal = new TransferJournal(transferDir, bookDir, Arrays.asList(bookFile, modsFile), 
+                algorithms);
+        File transferredFile = new File(transferDir, bookFile.getName());
+        journal.fileTransferred(bookFile, transferredFile, 
+                FileUtils.copyFileWithChecksums(bookFile, transferredFile, algorithms));
+        journal.close();
+        TestFileUtils.createFile(new File(transferDir, modsFile.getName()), "partial");
+        
+        when(conf.getTransferConfiguration()).thenReturn(transferConf);
+        when(conf.getEbookFormats()).thenReturn(Arrays.asList("pdf"));
+        when(conf.getAudioFormats()).thenReturn(Arrays.asList("mp3"));
+        when(transferConf.getRequiredFormats()).thenReturn(Arrays.asList("pdf"));
+        when(transferConf.getRetainCreateDate()).thenReturn(-1L);
+        when(transferConf.getRetainModifyDate()).thenReturn(-1L);
+        when(transferConf.getRetainPublicationDate()).thenReturn(-1L);
+        when(transferConf.getEbookIngestDir()).thenReturn(destinationDir);
+        
+        PreIngestTransfer pit = spy(new PreIngestTransfer(conf));
+        pit.ingestBook(bookDir, register, BookTypeEnum.EBOG);
+        
+        addStep("Check the ingested book", "Only the metadata file is transferred again, and the journal is removed");
+        verify(pit, never()).transferFile(eq(bookFile), any(File.class), anyBoolean());
+        verify(pit).transferFile(eq(modsFile), any(File.class), eq(false));
+        File ingestedDir = new File(destinationDir, bookDir.getName());
+        Assert.assertEquals(destinationDir.list(), new String[]{bookDir.getName()});
+        Assert.assertEquals(ingestedDir.list().length, 3);
+        Assert.assertTrue(FileUtils.areFilesIdentical(bookFile, new File(ingestedDir, bookFile.getName())));
+        Assert.assertTrue(FileUtils.areFilesIdentical(modsFile, new File(ingestedDir, modsFile.getName())));
+        Assert.assertTrue(new File(ingestedDir, "manifest-md5.txt").isFile());
+        verify(register).setIngestDate(any(Date.class));
+    }
+
+    @Test
+    public void testIngestBookHardLinksContentFiles() throws Exception {
+        addDescription("Test that only the content files are hard linked, when the destination is on the same file "
+                + "system, and that the other files are copied, even when they already have several links.");
+        Configuration conf = mock(Configuration.class);
+        TransferRegistry register = mock(TransferRegistry.class);
+        TransferConfiguration transferConf = mock(TransferConfiguration.class);
+        
+        File bookDir = FileUtils.createDirectory(TestFileUtils.getTempDir().getAbsolutePath() + "/" + UUID.randomUUID().toString());
+        File bookFile = new File(bookDir, bookDir.getName() + ".pdf");
+        TestFileUtils.createFile(bookFile, UUID.randomUUID().toString());
+        File modsFile = new File(bookDir, bookDir.getName() + Constants.MODS_METADATA_SUFFIX);
+        TestFileUtils.createFile(modsFile, UUID.randomUUID().toString());
+        Assert.assertTrue(FileUtils.createHardLink(modsFile, new File(TestFileUtils.getTempDir(), 
+                UUID.randomUUID().toString())));
+        File destinationDir = FileUtils.createDirectory(TestFileUtils.getTempDir().getAbsolutePath() + "/" + UUID.randomUUID().toString());
+        
+        when(conf.getTransferConfiguration()).thenReturn(transferConf);
+        when(conf.getEbookFormats()).thenReturn(Arrays.asList("pdf"));
+        when(conf.getAudioFormats()).thenReturn(Arrays.asList("mp3"));
+        when(transferConf.getRequiredFormats()).thenReturn(Arrays.asList("pdf"));
+        when(transferConf.getRetainCreateDate()).thenReturn(-1L);
+        when(transferConf.getRetainModifyDate()).thenReturn(-1L);
+        when(transferConf.getRetainPublicationDate()).thenReturn(-1L);
+        when(transferConf.getEbookIngestDir()).thenReturn(destinationDir);
+        
+        PreIngestTransfer pit = new PreIngestTransfer(conf);
+        pit.ingestBook(bookDir, register, BookTypeEnum.EBOG);
+        
+        File ingestedDir = new File(destinationDir, bookDir.getName());
+        Assert.assertEquals(TestFileUtils.getNumberOfHardLinks(bookFile), 2);
+        Assert.assertEquals(TestFileUtils.getNumberOfHardLinks(new File(ingestedDir, bookFile.getName())), 2);
+        Assert.assertEquals(TestFileUtils.getNumberOfHardLinks(modsFile), 2);
+        Assert.assertEquals(TestFileUtils.getNumberOfHardLinks(new File(ingestedDir, modsFile.getName())), 1);
+        Assert.assertTrue(FileUtils.areFilesIdentical(modsFile, new File(ingestedDir, modsFile.getName())));
+    }
+
+    @Test
+    public void testIngestBookWithEligibilityQueue() throws Exception {
+        addDescription("Test that a book, which is not yet eligible for ingest, is only checked again when it is due "
+                + "or when its files change.");
+        Configuration conf = mock(Configuration.class);
+        TransferRegistry register = mock(TransferRegistry.class);
+        TransferConfiguration transferConf = mock(TransferConfiguration.class);
+        long retainModifyDate = 24L * 3600L * 1000L;
+        
+        File bookDir = FileUtils.createDirectory(TestFileUtils.getTempDir().getAbsolutePath() + "/" + UUID.randomUUID().toString());
+        File bookFile = new File(bookDir, bookDir.getName() + ".pdf");
+        TestFileUtils.createFile(bookFile, UUID.randomUUID().toString());
+        File destinationDir = FileUtils.createDirectory(TestFileUtils.getTempDir().getAbsolutePath() + "/" + UUID.randomUUID().toString());
+        File stateDir = FileUtils.createDirectory(TestFileUtils.getTempDir().getAbsolutePath() + "/" + UUID.randomUUID().toString());
+        
+        when(conf.getTransferConfiguration()).thenReturn(transferConf);
+        when(conf.getEbookFormats()).thenReturn(Arrays.asList("pdf"));
+        when(conf.getAudioFormats()).thenReturn(Arrays.asList("mp3"));
+        when(transferConf.getRequiredFormats()).thenReturn(Arrays.asList("pdf"));
+        when(transferConf.getRetainCreateDate()).thenReturn(-1L);
+        when(transferConf.getRetainModifyDate()).thenReturn(retainModifyDate);
+        when(transferConf.getRetainPublicationDate()).thenReturn(-1L);
+        when(transferConf.getEbookIngestDir()).thenReturn(destinationDir);
+        
+        EligibilityQueue queue = new EligibilityQueue(stateDir, EligibilityQueue.getConfigurationHash(transferConf));
+        PreIngestTransfer pit = spy(new PreIngestTransfer(conf));
+        pit.setEligibilityQueue(queue);
+        
+        addStep("Try to ingest the new book twice", "It is only checked once, and queued until its embargo ends");
+        pit.ingestBook(bookDir, register, BookTypeEnum.EBOG);
+        pit.ingestBook(bookDir, register, BookTypeEnum.EBOG);
+        verify(pit, times(1)).readyForIngest(eq(bookDir));
+        Assert.assertEquals(queue.getNextEligibleTime(), bookFile.lastModified() + retainModifyDate);
+        Assert.assertEquals(destinationDir.list().length, 0);
+        
+        addStep("Make the content file old enough", "The book is checked again, ingested and removed from the queue");
+        bookFile.setLastModified(System.currentTimeMillis() - 2 * retainModifyDate);
+        pit.ingestBook(bookDir, register, BookTypeEnum.EBOG);
+        verify(pit, times(2)).readyForIngest(eq(bookDir));
+        Assert.assertEquals(destinationDir.list().length, 1);
+        Assert.assertEquals(queue.size(), 0);
+        verify(register).setIngestDate(any(Date.class));
+    }
+
+    @Test
+    public void testGetEligibleTime() throws Exception {
+        addDescription("Test the calculation of the earliest time a book can become ready for ingest.");
+        Configuration conf = mock(Configuration.class);
+        TransferConfiguration transferConf = mock(TransferConfiguration.class);
+        when(conf.getTransferConfiguration()).thenReturn(transferConf);
+        when(conf.getEbookFormats()).thenReturn(Arrays.asList("pdf"));
+        when(conf.getAudioFormats()).thenReturn(new ArrayList<String>());
+        when(transferConf.getRequiredFormats()).thenReturn(Arrays.asList("pdf"));
+        when(transferConf.getRetainCreateDate()).thenReturn(-1L);
+        when(transferConf.getRetainModifyDate()).thenReturn(1000000L);
+        when(transferConf.getRetainPublicationDate()).thenReturn(-1L);
+        
+        File bookDir = FileUtils.createDirectory(TestFileUtils.getTempDir().getAbsolutePath() + "/" + UUID.randomUUID().toString());
+        File bookFile = new File(bookDir, bookDir.getName() + ".pdf");
+        TestFileUtils.createFile(bookFile, UUID.randomUUID().toString());
+        
+        PreIngestTransfer pit = new PreIngestTransfer(conf);
+        Assert.assertEquals(pit.getEligibleTime(bookDir), bookFile.lastModified() + 1000000L);
+        
+        addStep("Require a file, which the book does not have", "It can never become eligible");
+        when(transferConf.getRequiredFormats()).thenReturn(Arrays.asList("pdf", "mods.xml"));
+        Assert.assertEquals(pit.getEligibleTime(bookDir), EligibilityQueue.NEVER);
+        
+        addStep("Require a publication date without the pubhub metadata", "It can never become eligible");
+        when(transferConf.getRequiredFormats()).thenReturn(Arrays.asList("pdf"));
+        when(transferConf.getRetainPublicationDate()).thenReturn(0L);
+        Assert.assertEquals(pit.getEligibleTime(bookDir), EligibilityQueue.NEVER);
+    }
+
+    @Test
+    public void testTransferReadyBooksRecoversTransferDirs() throws Exception {
+        addDescription("Test that transferReadyBooks removes the orphaned transfer directories.");
+        Configuration conf = mock(Configuration.class);
+        File bookBaseDir = FileUtils.createDirectory(TestFileUtils.getTempDir().getAbsolutePath() + "/" + UUID.randomUUID().toString());
+        File destinationDir = FileUtils.createDirectory(TestFileUtils.getTempDir().getAbsolutePath() + "/" + UUID.randomUUID().toString());
+        File orphanedDir = FileUtils.createDirectory(destinationDir.getAbsolutePath() + "/" + UUID.randomUUID().toString() 
+                + PreIngestTransfer.TRANSFERRING_DIR_SUFFIX);
+        TestFileUtils.createFile(new File(orphanedDir, "partial.pdf"), UUID.randomUUID().toString());
+        File partialTarFile = new File(destinationDir, UUID.randomUUID().toString() 
+                + PreIngestTransfer.TAR_PACKAGE_SUFFIX + PreIngestTransfer.TRANSFERRING_DIR_SUFFIX);
+        TestFileUtils.createFile(partialTarFile, UUID.randomUUID().toString());
+        
+        when(conf.getEbookOutputDir()).thenReturn(bookBaseDir);
+        when(conf.getAudioOutputDir()).thenReturn(bookBaseDir);
+        
+        PreIngestTransfer pit = new PreIngestTransfer(conf);
+        pit.addDestinationBaseDir(destinationDir);
+        pit.transferReadyBooks();
+        
+        Assert.assertFalse(orphanedDir.exists());
+        Assert.assertFalse(partialTarFile.exists());
+        Assert.assertEquals(destinationDir.list().length, 0);
+    }
+
     @Test
     public void testIngestBookWithSeveralFilesSuccess() throws Exception {
         addDescription("Test the ingestBook method when it successfully is ingested a book with two different e-book files (both epub and pdf)");
@@ -518,7 +1051,8 @@ public class PreIngestTransferTest extends ExtendedTestCase {
         pit.ingestBook(bookDir, register, BookTypeEnum.EBOG);
         Assert.assertEquals(destinationDir.list().length, 1);
         Assert.assertEquals(destinationDir.listFiles()[0].getName(), bookDir.getName());
-        Assert.assertEquals(destinationDir.listFiles()[0].list().length, bookDir.list().length);
+        Assert.assertEquals(destinationDir.listFiles()[0].list().length, bookDir.list().length + 1);
+        Assert.assertTrue(new File(destinationDir.listFiles()[0], "manifest-md5.txt").isFile());
 
         verify(conf, times(7)).getTransferConfiguration();
         verify(conf, times(2)).getEbookFormats();
@@ -532,8 +1066,8 @@ public class PreIngestTransferTest extends ExtendedTestCase {
         verifyNoMoreInteractions(transferConf);
 
         verify(register).setIngestDate(any(Date.class));
-        verify(register).setChecksumAndDate(eq(bookFile1));
-        verify(register).setChecksumAndDate(eq(bookFile2));
+        verify(register).setChecksumAndDate(eq(bookFile1), anyString());
+        verify(register).setChecksumAndDate(eq(bookFile2), anyString());
         verifyNoMoreInteractions(register);
     }
     
@@ -800,7 +1334,7 @@ public class PreIngestTransferTest extends ExtendedTestCase {
         
         Assert.assertEquals(destinationDir.list().length, 0);
         Assert.assertEquals(origDir.list().length, 1);
-        pit.copyUpdatedFiles(Arrays.asList(origFile), destinationDir.getAbsolutePath());
+        pit.copyUpdatedFiles(Arrays.asList(origFile), destinationDir.getAbsolutePath(), false);
         Assert.assertEquals(destinationDir.list().length, 1);
         Assert.assertEquals(origDir.list().length, 1);
     }
@@ -1074,6 +1608,7 @@ public class PreIngestTransferTest extends ExtendedTestCase {
                 "No record of the file. ");
         TransferRegistry registry = new TransferRegistry(bookDir);
         registry.setIngestDate(new Date(System.currentTimeMillis() - 3600000L));
+        registry.flush();
         Assert.assertFalse(registry.hasFileEntry(bookFile));
 
         addStep("Check transfer folders", "Should all be empty.");
@@ -0,0 +1,185 @@
+package dk.kb.elivagar.transfer;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
+
+import org.jaccept.structure.ExtendedTestCase;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import dk.kb.elivagar.testutils.TestFileUtils;
+import dk.kb.elivagar.utils.FileUtils;
+import dk.kb.elivagar.utils.StreamUtils;
+
+public class RegistryStoreTest extends ExtendedTestCase {
+
+    @BeforeClass
+    public void setup() {
+        TestFileUtils.setup();
+    }
+    
+    @AfterClass
+    public void tearDown() {
+        TestFileUtils.tearDown();
+    }
+    
+    @Test
+    public void testQueries() throws Exception {
+        addDescription("Test the queries across the books in the store.");
+        File baseDir = createDir(TestFileUtils.getTempDir());
+        RegistryStore store = new RegistryStore(createDir(TestFileUtils.getTempDir()));
+        File ingestedDir = createBook(baseDir, store, 1000L, null, "checksum1");
+        File updatedDir = createBook(baseDir, store, 2000L, 5000L, "checksum2");
+        File bothDir = createBook(baseDir, store, 3000L, 4000L, "checksum1");
+        
+        Assert.assertEquals(store.size(), 3);
+        Assert.assertEquals(store.getBooksIngestedBetween(new Date(1000L), new Date(3000L)), 
+                asSet(ingestedDir, updatedDir));
+        Assert.assertEquals(store.getBooksUpdatedBetween(new Date(0L), new Date(4500L)), asSet(bothDir));
+        Assert.assertEquals(store.getBooksChangedSince(new Date(3500L)), asSet(updatedDir, bothDir));
+        Assert.assertEquals(store.getBooksNeverUpdated(), asSet(ingestedDir));
+        Assert.assertEquals(store.getBooksWithChecksum("checksum1"), asSet(ingestedDir, bothDir));
+        Assert.assertTrue(store.getBooksWithChecksum("unknown").isEmpty());
+        Assert.assertEquals(store.getIngestDate(updatedDir.getName()).getTime(), 2000L);
+        Assert.assertEquals(store.getLatestUpdateDate(updatedDir.getName()).getTime(), 5000L);
+        
+        addStep("Update a book", "The indexes are updated");
+        TransferRegistry registry = new TransferRegistry(ingestedDir, store);
+        registry.setUpdateDate(new Date(6000L));
+        registry.flush();
+        Assert.assertTrue(store.getBooksNeverUpdated().isEmpty());
+        Assert.assertEquals(store.getBooksChangedSince(new Date(5500L)), asSet(ingestedDir));
+    }
+    
+    @Test
+    public void testPersistenceAndCompaction() throws Exception {
+        addDescription("Test that the store is persisted with only the appended lines of a registry, and compacted "
+                + "when it is loaded with more superseded records than books.");
+        File baseDir = createDir(TestFileUtils.getTempDir());
+        File stateDir = createDir(TestFileUtils.getTempDir());
+        RegistryStore store = new RegistryStore(stateDir);
+        File bookDir = createBook(baseDir, store, 1000L, null, "checksum");
+        long sizeOfRecord = store.storeFile.length();
+        
+        addStep("Update the book", "Only the new line is appended to the store");
+        TransferRegistry registry = new TransferRegistry(bookDir, store);
+        registry.setUpdateDate(new Date(2000L));
+        registry.flush();
+        long sizeBefore = store.storeFile.length();
+        Assert.assertTrue(sizeBefore - sizeOfRecord < sizeOfRecord);
+        
+        addStep("Reload the store with two records for the book", "The store is not compacted");
+        store = new RegistryStore(stateDir);
+        Assert.assertEquals(store.size(), 1);
+        Assert.assertEquals(store.storeFile.length(), sizeBefore);
+        Assert.assertEquals(store.getLatestUpdateDate(bookDir.getName()).getTime(), 2000L);
+        Assert.assertNotNull(store.getLines(bookDir));
+        
+        addStep("Update the book again, and reload the store", "The store is compacted into a single record");
+        registry = new TransferRegistry(bookDir, store);
+        registry.setUpdateDate(new Date(3000L));
+        registry.flush();
+        sizeBefore = store.storeFile.length();
+        store = new RegistryStore(stateDir);
+        Assert.assertEquals(store.size(), 1);
+        Assert.assertTrue(store.storeFile.length() < sizeBefore);
+        Assert.assertEquals(store.getLatestUpdateDate(bookDir.getName()).getTime(), 3000L);
+        Assert.assertNotNull(store.getLines(bookDir));
+        
+        addStep("Change the registry file outside the store", "The stored lines are not used");
+        Assert.assertTrue(new File(bookDir, TransferRegistry.REGISTRY_NAME).setLastModified(1000L));
+        Assert.assertNull(store.getLines(bookDir));
+    }
+    
+    @Test
+    public void testTruncatedStore() throws Exception {
+        addDescription("Test that a truncated record at the end of the store is ignored.");
+        File stateDir = createDir(TestFileUtils.getTempDir());
+        RegistryStore store = new RegistryStore(stateDir);
+        File bookDir = createBook(createDir(TestFileUtils.getTempDir()), store, 1000L, null, "checksum");
+        try (FileOutputStream out = new FileOutputStream(store.storeFile, true)) {
+            out.write((RegistryStore.RECORD_PREFIX + "id##path##1##1##3\n" + "ingest date: 1\n").getBytes());
+        }
+        
+        store = new RegistryStore(stateDir);
+        Assert.assertEquals(store.size(), 1);
+        Assert.assertNotNull(store.getLines(bookDir));
+    }
+    
+    @Test
+    public void testImportAndExport() throws Exception {
+        addDescription("Test importing the registry files, and exporting them again.");
+        File baseDir = createDir(TestFileUtils.getTempDir());
+        File bookDir = createBook(baseDir, null, 1000L, 2000L, "checksum");
+        createDir(baseDir);
+        
+        RegistryStore store = new RegistryStore(createDir(TestFileUtils.getTempDir()));
+        Assert.assertEquals(store.importRegistries(baseDir), 1);
+        Assert.assertEquals(store.importRegistries(baseDir), 0);
+        Assert.assertEquals(store.getBooksNeverUpdated().size(), 0);
+        Assert.assertEquals(store.getIngestDate(bookDir.getName()).getTime(), 1000L);
+        
+        File exportDir = createDir(TestFileUtils.getTempDir());
+        Assert.assertEquals(store.exportRegistries(exportDir), 1);
+        File exported = new File(new File(exportDir, bookDir.getName()), TransferRegistry.REGISTRY_NAME);
+        Assert.assertEquals(readFile(exported), readFile(new File(bookDir, TransferRegistry.REGISTRY_NAME)));
+    }
+    
+    @Test
+    public void testRegistryUsesStore() throws Exception {
+        addDescription("Test that the registry uses the lines from the store, when the registry file is unchanged.");
+        File bookDir = createDir(createDir(TestFileUtils.getTempDir()));
+        RegistryStore store = new RegistryStore(createDir(TestFileUtils.getTempDir()));
+        TransferRegistry registry = new TransferRegistry(bookDir, store);
+        registry.setIngestDate(new Date(1000L));
+        registry.flush();
+        
+        addStep("Make the registry file unreadable", "The registry can still be read from the store");
+        File registryFile = new File(bookDir, TransferRegistry.REGISTRY_NAME);
+        try {
+            registryFile.setReadable(false);
+            Assert.assertEquals(new TransferRegistry(bookDir, store).getIngestDate().getTime(), 1000L);
+        } finally {
+            registryFile.setReadable(true);
+        }
+    }
+    
+    protected File createBook(File baseDir, RegistryStore store, Long ingest, Long update, String checksum) 
+            throws IOException {
+        File bookDir = createDir(baseDir);
+        TransferRegistry registry = new TransferRegistry(bookDir, store);
+        registry.setIngestDate(new Date(ingest));
+        registry.writeLine(TransferRegistry.LINE_PREFIX_CHECKSUM + bookDir.getName() + ".pdf" 
+                + TransferRegistry.LINE_FILENAME_VALUE_SEPARATOR + checksum);
+        if(update != null) {
+            registry.setUpdateDate(new Date(update));
+        }
+        registry.flush();
+        return bookDir;
+    }
+    
+    protected File createDir(File parent) throws IOException {
+        return FileUtils.createDirectory(new File(parent, UUID.randomUUID().toString()).getAbsolutePath());
+    }
+    
+    protected Set<String> asSet(File ... dirs) {
+        Set<String> res = new TreeSet<String>();
+        for(File dir : Arrays.asList(dirs)) {
+            res.add(dir.getName());
+        }
+        return res;
+    }
+    
+    protected String readFile(File f) throws IOException {
+        return StreamUtils.extractInputStreamAsString(new FileInputStream(f));
+    }
+}
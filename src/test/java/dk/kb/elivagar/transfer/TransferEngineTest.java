@@ -0,0 +1,114 @@
+package dk.kb.elivagar.transfer;
+
+import java.io.File;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.jaccept.structure.ExtendedTestCase;
+import org.testng.Assert;
+import org.testng.SkipException;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import dk.kb.elivagar.exception.ArgumentCheck;
+import dk.kb.elivagar.testutils.TestFileUtils;
+import dk.kb.elivagar.utils.IoPriority;
+
+public class TransferEngineTest extends ExtendedTestCase {
+
+    @BeforeClass
+    public void setup() {
+        TestFileUtils.setup();
+    }
+    
+    @AfterClass
+    public void tearDown() {
+        TestFileUtils.tearDown();
+    }
+    
+    @Test(expectedExceptions = ArgumentCheck.class)
+    public void testInvalidWorkers() {
+        addDescription("Test that the engine requires at least one worker.");
+        new TransferEngine(0, 1);
+    }
+    
+    @Test
+    public void testSubmitWithoutStart() throws Exception {
+        addDescription("Test that the tasks are run directly, when the engine is not started.");
+        TransferEngine engine = new TransferEngine(2, 1);
+        final Thread caller = Thread.currentThread();
+        final AtomicInteger sameThread = new AtomicInteger();
+        engine.submit(new Runnable() {
+            @Override
+            public void run() {
+                if(Thread.currentThread() == caller) {
+                    sameThread.incrementAndGet();
+                }
+            }
+        });
+        Assert.assertEquals(sameThread.get(), 1);
+    }
+    
+    @Test
+    public void testLowPriorityWorkers() throws Exception {
+        addDescription("Test that the workers lower their own I/O priority, when the engine has low priority I/O.");
+        String priority = IoPriority.getPriorityOfCurrentThread();
+        if(priority == null || priority.equals("best-effort: prio 7")) {
+            throw new SkipException("The I/O priority of the threads cannot be checked on this system.");
+        }
+        TransferEngine engine = new TransferEngine(2, 1, true);
+        final AtomicReference<String> workerPriority = new AtomicReference<String>();
+        engine.start();
+        engine.submit(new Runnable() {
+            @Override
+            public void run() {
+                workerPriority.set(IoPriority.getPriorityOfCurrentThread());
+            }
+        });
+        engine.finish();
+        Assert.assertEquals(workerPriority.get(), "best-effort: prio 7");
+        Assert.assertEquals(IoPriority.getPriorityOfCurrentThread(), priority);
+    }
+    
+    @Test
+    public void testParallelTransferWithLanes() throws Exception {
+        addDescription("Test that all the tasks are run by the workers, and that the lane limits the concurrency.");
+        final TransferEngine engine = new TransferEngine(4, 2);
+        final File destination = new File(TestFileUtils.getTempDir(), "not/yet/created");
+        final AtomicInteger inLane = new AtomicInteger();
+        final AtomicInteger maxInLane = new AtomicInteger();
+        final AtomicInteger finished = new AtomicInteger();
+        
+        engine.start();
+        for(int i = 0; i < 20; i++) {
+            engine.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Semaphore lane = engine.enterLane(destination);
+                        try {
+                            int current = inLane.incrementAndGet();
+                            synchronized(maxInLane) {
+                                maxInLane.set(Math.max(maxInLane.get(), current));
+                            }
+                            Thread.sleep(5);
+                            inLane.decrementAndGet();
+                        } finally {
+                            engine.leaveLane(lane);
+                        }
+                        finished.incrementAndGet();
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            });
+        }
+        engine.finish();
+        
+        Assert.assertEquals(finished.get(), 20);
+        Assert.assertTrue(maxInLane.get() <= 2, "At most 2 in the lane, but was " + maxInLane.get());
+        Assert.assertEquals(engine.lanes.size(), 1);
+    }
+}
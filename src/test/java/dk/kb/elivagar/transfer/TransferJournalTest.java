@@ -0,0 +1,143 @@
+package dk.kb.elivagar.transfer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import org.jaccept.structure.ExtendedTestCase;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import dk.kb.elivagar.testutils.TestFileUtils;
+import dk.kb.elivagar.utils.ChecksumUtils;
+import dk.kb.elivagar.utils.FileUtils;
+
+public class TransferJournalTest extends ExtendedTestCase {
+
+    List<String> algorithms = Arrays.asList(ChecksumUtils.MD5_ALGORITHM);
+
+    @BeforeClass
+    public void setup() {
+        TestFileUtils.setup();
+    }
+
+    @AfterClass
+    public void tearDown() {
+        TestFileUtils.tearDown();
+    }
+
+    @Test
+    public void testResumeWithVerifiedFile() throws Exception {
+        addDescription("Test that a journaled file is verified and skipped, when the transfer is resumed.");
+        File bookDir = createDir();
+        File transferDir = createDir();
+        File fromFile = createFile(bookDir, "book.pdf");
+        File toFile = new File(transferDir, fromFile.getName());
+
+        TransferJournal journal = new TransferJournal(transferDir, bookDir, Arrays.asList(fromFile), algorithms);
+        Assert.assertNull(journal.getVerifiedChecksums(fromFile, toFile));
+        Map<String, String> checksums = FileUtils.copyFileWithChecksums(fromFile, toFile, algorithms);
+        journal.fileTransferred(fromFile, toFile, checksums);
+        journal.close();
+
+        addStep("Resume the transfer with a new journal", "The file is verified with the same checksums");
+        journal = new TransferJournal(transferDir, bookDir, Arrays.asList(fromFile), algorithms);
+        Assert.assertEquals(journal.getVerifiedChecksums(fromFile, toFile), checksums);
+        Assert.assertTrue(toFile.isFile());
+        Assert.assertEquals(TransferJournal.getBookDir(transferDir), bookDir.getAbsoluteFile());
+
+        addStep("Commit the transfer", "The journal is removed");
+        journal.commit();
+        Assert.assertEquals(transferDir.list(), new String[]{fromFile.getName()});
+        Assert.assertNull(TransferJournal.getBookDir(transferDir));
+    }
+
+    @Test
+    public void testResumeWithCorruptFile() throws Exception {
+        addDescription("Test that a journaled file is transferred again, when it no longer matches the journal.");
+        File bookDir = createDir();
+        File transferDir = createDir();
+        File fromFile = createFile(bookDir, "book.pdf");
+        File toFile = new File(transferDir, fromFile.getName());
+
+        TransferJournal journal = new TransferJournal(transferDir, bookDir, Arrays.asList(fromFile), algorithms);
+        journal.fileTransferred(fromFile, toFile, FileUtils.copyFileWithChecksums(fromFile, toFile, algorithms));
+        journal.close();
+        TestFileUtils.createFile(toFile, UUID.randomUUID().toString().toUpperCase());
+
+        journal = new TransferJournal(transferDir, bookDir, Arrays.asList(fromFile), algorithms);
+        Assert.assertNull(journal.getVerifiedChecksums(fromFile, toFile));
+        journal.close();
+    }
+
+    @Test
+    public void testResumeWithChangedOriginal() throws Exception {
+        addDescription("Test that a journaled file is transferred again, when the original file has changed.");
+        File bookDir = createDir();
+        File transferDir = createDir();
+        File fromFile = createFile(bookDir, "book.xml");
+        File toFile = new File(transferDir, fromFile.getName());
+
+        TransferJournal journal = new TransferJournal(transferDir, bookDir, Arrays.asList(fromFile), algorithms);
+        journal.fileTransferred(fromFile, toFile, FileUtils.copyFileWithChecksums(fromFile, toFile, algorithms));
+        journal.close();
+        TestFileUtils.createFile(fromFile, UUID.randomUUID().toString() + UUID.randomUUID().toString());
+
+        journal = new TransferJournal(transferDir, bookDir, Arrays.asList(fromFile), algorithms);
+        Assert.assertNull(journal.getVerifiedChecksums(fromFile, toFile));
+        journal.close();
+    }
+
+    @Test
+    public void testResumeRemovesUnjournaledFiles() throws Exception {
+        addDescription("Test that the partially written and unknown files are removed, when the transfer is resumed.");
+        File bookDir = createDir();
+        File transferDir = createDir();
+        File fromFile = createFile(bookDir, "book.pdf");
+        File partialFile = createFile(transferDir, fromFile.getName());
+        File unknownFile = createFile(transferDir, "unknown.xml");
+        new TransferJournal(transferDir, bookDir, Arrays.asList(fromFile), algorithms).close();
+
+        Assert.assertFalse(partialFile.exists());
+        Assert.assertFalse(unknownFile.exists());
+        Assert.assertEquals(transferDir.list(), new String[]{TransferJournal.JOURNAL_FILE_NAME});
+    }
+
+    @Test
+    public void testRecoverTransferDirs() throws Exception {
+        addDescription("Test the recovery of the transfer directories in a destination base directory.");
+        File baseDir = createDir();
+        File bookDir = createDir();
+        File resumableDir = FileUtils.createDirectory(baseDir.getAbsolutePath() + "/book1_transfer");
+        new TransferJournal(resumableDir, bookDir, Arrays.asList(bookDir), algorithms).close();
+        File orphanedDir = FileUtils.createDirectory(baseDir.getAbsolutePath() + "/book2_transfer");
+        new TransferJournal(orphanedDir, new File(bookDir, "missing"), Arrays.asList(bookDir), algorithms).close();
+        File unjournaledDir = FileUtils.createDirectory(baseDir.getAbsolutePath() + "/book3_transfer");
+        createFile(unjournaledDir, "book3.pdf");
+        File destDir = FileUtils.createDirectory(baseDir.getAbsolutePath() + "/book4");
+
+        List<File> kept = TransferJournal.recoverTransferDirs(baseDir, "_transfer");
+
+        Assert.assertEquals(kept, Arrays.asList(resumableDir));
+        Assert.assertTrue(resumableDir.isDirectory());
+        Assert.assertFalse(orphanedDir.exists());
+        Assert.assertFalse(unjournaledDir.exists());
+        Assert.assertTrue(destDir.isDirectory());
+    }
+
+    protected File createDir() throws IOException {
+        return FileUtils.createDirectory(TestFileUtils.getTempDir().getAbsolutePath() + "/"
+                + UUID.randomUUID().toString());
+    }
+
+    protected File createFile(File dir, String name) throws IOException {
+        File res = new File(dir, name);
+        TestFileUtils.createFile(res, UUID.randomUUID().toString());
+        return res;
+    }
+}
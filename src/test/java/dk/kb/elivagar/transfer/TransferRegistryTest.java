@@ -65,6 +65,7 @@ public class TransferRegistryTest extends ExtendedTestCase {
             bookDir.setWritable(false);
             TransferRegistry registry = new TransferRegistry(bookDir);
             registry.setIngestDate(new Date());
+            registry.flush();
         } finally {
             bookDir.setWritable(true);
         }
@@ -76,8 +77,10 @@ public class TransferRegistryTest extends ExtendedTestCase {
         TransferRegistry registry = new TransferRegistry(bookDir);
         try {
             registry.setIngestDate(new Date());
+            registry.flush();
             
             registry.registryFile.setReadable(false);
+            registry = new TransferRegistry(bookDir);
             Assert.assertNull(registry.getIngestDate());
         } finally {
             registry.registryFile.setReadable(true);
@@ -115,6 +118,7 @@ public class TransferRegistryTest extends ExtendedTestCase {
             TransferRegistry registry = new TransferRegistry(bookDir);
             bookDir.setWritable(false);
             registry.setUpdateDate(new Date());
+            registry.flush();
         } finally {
             bookDir.setWritable(true);
         }
@@ -141,8 +145,10 @@ public class TransferRegistryTest extends ExtendedTestCase {
         TransferRegistry registry = new TransferRegistry(bookDir);
         try {
             registry.setIngestDate(new Date());
+            registry.flush();
             
             registry.registryFile.setReadable(false);
+            registry = new TransferRegistry(bookDir);
             Assert.assertNull(registry.getLatestUpdateDate());
         } finally {
             registry.registryFile.setReadable(true);
@@ -213,12 +219,31 @@ public class TransferRegistryTest extends ExtendedTestCase {
 
         addStep("Insert the file into the registry", "Now the registry has entry");
         registry.setChecksumAndDate(bookFile);
+        Assert.assertFalse(registry.registryFile.exists());
+        registry.flush();
 
         Assert.assertTrue(registry.registryFile.exists());
 
         Assert.assertTrue(registry.hasFileEntry(bookFile));
-        Assert.assertTrue(registry.getLatestEntryWithPrefix(TransferRegistry.LINE_PREFIX_CHECKSUM).contains(bookFile.getName()));
-        Assert.assertTrue(registry.getLatestEntryWithPrefix(TransferRegistry.LINE_PREFIX_FILE_DATE).contains(bookFile.getName()));
+        Assert.assertEquals(registry.getChecksum(bookFile.getName()), ChecksumUtils.calculateMD5Checksum(bookFile));
+        Assert.assertEquals(registry.fileDates.get(bookFile.getName()), String.valueOf(bookFile.lastModified()));
+    }
+
+    @Test
+    public void testSetChecksumAndDateWithGivenChecksum() throws IOException {
+        addDescription("Test the setChecksumAndDate method with an already calculated checksum");
+        File bookDir = FileUtils.createDirectory(TestFileUtils.getTempDir().getAbsoluteFile() + "/" + UUID.randomUUID().toString());
+        TransferRegistry registry = new TransferRegistry(bookDir);
+        File bookFile = new File(bookDir, bookDir.getName() + ".suffix");
+        TestFileUtils.createFile(bookFile, UUID.randomUUID().toString());
+
+        addStep("Insert the file with a given checksum", "The registry has the given checksum, and verifies the file");
+        registry.setChecksumAndDate(bookFile, "0123456789abcdef");
+        registry.flush();
+
+        Assert.assertTrue(registry.hasFileEntry(bookFile));
+        Assert.assertEquals(registry.getChecksum(bookFile.getName()), "0123456789abcdef");
+        Assert.assertTrue(registry.verifyFile(bookFile));
     }
 
     @Test(expectedExceptions = IllegalStateException.class)
@@ -250,6 +275,7 @@ public class TransferRegistryTest extends ExtendedTestCase {
         TestFileUtils.createFile(bookFile2, UUID.randomUUID().toString());
 
         registry.updateFileEntries(Arrays.asList(bookFile1, bookFile2));
+        registry.flush();
 
         Assert.assertTrue(registry.registryFile.exists());
 
@@ -302,4 +328,78 @@ public class TransferRegistryTest extends ExtendedTestCase {
         Assert.assertTrue(registry.verifyFile(bookFile));
     }
 
+    @Test
+    public void testHasChangedContent() throws IOException {
+        addDescription("Test the hasChangedContent method");
+        File bookDir = FileUtils.createDirectory(TestFileUtils.getTempDir().getAbsoluteFile() + "/" + UUID.randomUUID().toString());
+        TransferRegistry registry = new TransferRegistry(bookDir);
+        File metadataFile = new File(bookDir, bookDir.getName() + ".mods.xml");
+        TestFileUtils.createFile(metadataFile, UUID.randomUUID().toString());
+
+        addStep("Not in registry", "Changed");
+        Assert.assertTrue(registry.hasChangedContent(metadataFile));
+
+        addStep("Register the file", "Unchanged");
+        registry.setChecksumAndDate(metadataFile);
+        Assert.assertFalse(registry.hasChangedContent(metadataFile));
+
+        addStep("Touch the file", "Unchanged, and the new date is registered");
+        metadataFile.setLastModified(metadataFile.lastModified() - 100000L);
+        Assert.assertFalse(registry.hasChangedContent(metadataFile));
+        Assert.assertEquals(registry.fileDates.get(metadataFile.getName()), 
+                String.valueOf(metadataFile.lastModified()));
+        Assert.assertTrue(registry.verifyFile(metadataFile));
+
+        addStep("Change the content of the file", "Changed");
+        TestFileUtils.createFile(metadataFile, UUID.randomUUID().toString());
+        metadataFile.setLastModified(metadataFile.lastModified() + 100000L);
+        Assert.assertTrue(registry.hasChangedContent(metadataFile));
+    }
+
+    @Test
+    public void testSummary() throws IOException {
+        addDescription("Test setting and getting the summary of the book directory");
+        File bookDir = FileUtils.createDirectory(TestFileUtils.getTempDir().getAbsoluteFile() + "/" + UUID.randomUUID().toString());
+        TransferRegistry registry = new TransferRegistry(bookDir);
+        Assert.assertNull(registry.getSummary());
+
+        addStep("Set the summary twice, and then another summary", "Only the changed summaries are written");
+        registry.setIngestDate(new Date());
+        registry.setSummary("1##2##checksum");
+        registry.setSummary("1##2##checksum");
+        registry.setSummary("3##2##checksum");
+        registry.flush();
+
+        registry = new TransferRegistry(bookDir);
+        Assert.assertEquals(registry.getSummary(), "3##2##checksum");
+        String content = StreamUtils.extractInputStreamAsString(new FileInputStream(registry.registryFile));
+        Assert.assertEquals(content.split(TransferRegistry.LINE_PREFIX_SUMMARY).length, 3);
+    }
+
+    @Test
+    public void testReadOnceAndFlush() throws IOException {
+        addDescription("Test that the registry file is only read once, and that the lines are written at the flush.");
+        File bookDir = FileUtils.createDirectory(TestFileUtils.getTempDir().getAbsoluteFile() + "/" + UUID.randomUUID().toString());
+        File bookFile = new File(bookDir, bookDir.getName() + ".suffix");
+        TestFileUtils.createFile(bookFile, UUID.randomUUID().toString());
+        TransferRegistry registry = new TransferRegistry(bookDir);
+        registry.setIngestDate(new Date(1000L));
+        registry.setChecksumAndDate(bookFile);
+        registry.flush();
+
+        addStep("Read the registry, and then change the registry file", "The change is not read");
+        registry = new TransferRegistry(bookDir);
+        Assert.assertTrue(registry.verifyFile(bookFile));
+        TestFileUtils.createFile(registry.registryFile, TransferRegistry.LINE_PREFIX_UPDATE + "2000\n");
+        Assert.assertEquals(registry.getLatestUpdateDate().getTime(), 1000L);
+
+        addStep("Set an update date", "It is used, but only written to the registry file at the flush");
+        registry.setUpdateDate(new Date(3000L));
+        Assert.assertEquals(registry.getLatestUpdateDate().getTime(), 3000L);
+        String content = StreamUtils.extractInputStreamAsString(new FileInputStream(registry.registryFile));
+        Assert.assertFalse(content.contains("3000"));
+        registry.flush();
+        content = StreamUtils.extractInputStreamAsString(new FileInputStream(registry.registryFile));
+        Assert.assertTrue(content.endsWith(TransferRegistry.LINE_PREFIX_UPDATE + "3000\n"));
+    }
 }
@@ -0,0 +1,210 @@
+package dk.kb.elivagar.transfer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.jaccept.structure.ExtendedTestCase;
+import org.testng.Assert;
+import org.testng.SkipException;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import dk.kb.elivagar.config.TransferConfiguration;
+import dk.kb.elivagar.exception.ArgumentCheck;
+import dk.kb.elivagar.testutils.TestFileUtils;
+import dk.kb.elivagar.utils.FileUtils;
+import dk.kb.elivagar.utils.IoPriority;
+
+public class TransferSchedulerTest extends ExtendedTestCase {
+
+    @BeforeClass
+    public void setup() {
+        TestFileUtils.setup();
+    }
+
+    @AfterClass
+    public void tearDown() {
+        TestFileUtils.tearDown();
+    }
+
+    @Test(expectedExceptions = ArgumentCheck.class)
+    public void testUnknownOrder() throws Exception {
+        addDescription("Test that the scheduler requires a known order.");
+        new TransferScheduler(0L, 0L, 0, "largest_first", false, createStateDir());
+    }
+
+    @Test
+    public void testNoLimits() throws Exception {
+        addDescription("Test that the scheduler without any limits allows all the books.");
+        TransferScheduler scheduler = new TransferScheduler(0L, 0L, 0, TransferConfiguration.ORDER_DIRECTORY,
+                false, createStateDir());
+        scheduler.start();
+        Assert.assertNull(scheduler.getRateLimiter());
+        for(int i = 0; i < 10; i++) {
+            Assert.assertTrue(scheduler.allowBook(new File(UUID.randomUUID().toString())));
+            scheduler.bookTransferred();
+            scheduler.bytesTransferred(Long.MAX_VALUE / 100);
+        }
+        Assert.assertTrue(scheduler.hasBudget());
+    }
+
+    @Test
+    public void testRateLimiter() throws Exception {
+        addDescription("Test that the scheduler has a rate limiter, when the rate is capped.");
+        TransferScheduler scheduler = new TransferScheduler(1000000L, 0L, 0, TransferConfiguration.ORDER_DIRECTORY,
+                false, createStateDir());
+        Assert.assertNotNull(scheduler.getRateLimiter());
+    }
+
+    @Test
+    public void testLowPriorityIoIsRestored() throws Exception {
+        addDescription("Test that the I/O priority of the thread running the transfer is only lowered during the run.");
+        final TransferScheduler scheduler = new TransferScheduler(0L, 0L, 0, TransferConfiguration.ORDER_DIRECTORY,
+                true, createStateDir());
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            List<String> priorities = executor.submit(new Callable<List<String>>() {
+                @Override
+                public List<String> call() throws Exception {
+                    String before = IoPriority.getPriorityOfCurrentThread();
+                    scheduler.start();
+                    String during = IoPriority.getPriorityOfCurrentThread();
+                    scheduler.finish();
+                    return Arrays.asList(before, during, IoPriority.getPriorityOfCurrentThread());
+                }
+            }).get();
+            if(priorities.get(0) == null || priorities.get(0).equals(priorities.get(1))) {
+                throw new SkipException("The I/O priority of the threads cannot be changed on this system.");
+            }
+            Assert.assertEquals(priorities.get(1), "best-effort: prio 7");
+            Assert.assertEquals(priorities.get(2), priorities.get(0));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testByteBudget() throws Exception {
+        addDescription("Test that the books are deferred, when the byte budget is spent.");
+        TransferScheduler scheduler = new TransferScheduler(0L, 100L, 0, TransferConfiguration.ORDER_DIRECTORY,
+                false, createStateDir());
+        scheduler.start();
+        Assert.assertTrue(scheduler.allowBook(new File("book1")));
+        scheduler.bytesTransferred(99L);
+        Assert.assertTrue(scheduler.allowBook(new File("book2")));
+        scheduler.bytesTransferred(1L);
+        Assert.assertFalse(scheduler.allowBook(new File("book3")));
+        Assert.assertEquals(scheduler.deferred.size(), 1);
+
+        addStep("Start a new run", "The budget is reset");
+        scheduler.start();
+        Assert.assertTrue(scheduler.hasBudget());
+        Assert.assertTrue(scheduler.deferred.isEmpty());
+    }
+
+    @Test
+    public void testBookBudgetCarriesBooksIntoNextRun() throws Exception {
+        addDescription("Test that the books deferred by the book budget are visited first in the next run.");
+        File stateDir = createStateDir();
+        File bookDir = createBookDir();
+        File book1 = createBook(bookDir, "book1", 100);
+        File book2 = createBook(bookDir, "book2", 200);
+        File book3 = createBook(bookDir, "book3", 300);
+
+        TransferScheduler scheduler = new TransferScheduler(0L, 0L, 1, TransferConfiguration.ORDER_DIRECTORY,
+                false, stateDir);
+        scheduler.start();
+        Assert.assertTrue(scheduler.allowBook(book1));
+        scheduler.bookTransferred();
+        Assert.assertFalse(scheduler.allowBook(book3));
+        Assert.assertFalse(scheduler.allowBook(book2));
+        scheduler.finish();
+
+        File backlogFile = new File(stateDir, TransferScheduler.BACKLOG_FILE_NAME);
+        Assert.assertTrue(backlogFile.isFile());
+
+        addStep("Load the backlog in a new scheduler", "The deferred books come first, in the deferred order");
+        TransferScheduler nextScheduler = new TransferScheduler(0L, 0L, 1, TransferConfiguration.ORDER_DIRECTORY,
+                false, stateDir);
+        List<File> ordered = nextScheduler.orderBooks(Arrays.asList(book1, book2, book3));
+        Assert.assertEquals(ordered, Arrays.asList(book3, book2, book1));
+
+        addStep("Finish a run where all the books are transferred", "The backlog file is removed");
+        nextScheduler.start();
+        nextScheduler.finish();
+        Assert.assertFalse(backlogFile.exists());
+    }
+
+    @Test
+    public void testOrderSmallestFirst() throws Exception {
+        addDescription("Test ordering the books with the smallest books first.");
+        File bookDir = createBookDir();
+        File book1 = createBook(bookDir, "book1", 300);
+        File book2 = createBook(bookDir, "book2", 100);
+        File book3 = createBook(bookDir, "book3", 200);
+        TransferScheduler scheduler = new TransferScheduler(0L, 0L, 0, TransferConfiguration.ORDER_SMALLEST_FIRST,
+                false, createStateDir());
+        Assert.assertEquals(scheduler.orderBooks(Arrays.asList(book1, book2, book3)),
+                Arrays.asList(book2, book3, book1));
+    }
+
+    @Test
+    public void testOrderOldestFirst() throws Exception {
+        addDescription("Test ordering the books with the oldest books first.");
+        File bookDir = createBookDir();
+        File book1 = createBook(bookDir, "book1", 100);
+        File book2 = createBook(bookDir, "book2", 100);
+        File book3 = createBook(bookDir, "book3", 100);
+        setDate(book1, 3000000L);
+        setDate(book2, 1000000L);
+        setDate(book3, 2000000L);
+        TransferScheduler scheduler = new TransferScheduler(0L, 0L, 0, TransferConfiguration.ORDER_OLDEST_FIRST,
+                false, createStateDir());
+        Assert.assertEquals(scheduler.orderBooks(Arrays.asList(book1, book2, book3)),
+                Arrays.asList(book2, book3, book1));
+    }
+
+    @Test
+    public void testOrderDirectory() throws Exception {
+        addDescription("Test that the books keep the order of the directory.");
+        File bookDir = createBookDir();
+        File book1 = createBook(bookDir, "book1", 300);
+        File book2 = createBook(bookDir, "book2", 100);
+        TransferScheduler scheduler = new TransferScheduler(0L, 0L, 0, TransferConfiguration.ORDER_DIRECTORY,
+                false, createStateDir());
+        Assert.assertEquals(scheduler.orderBooks(Arrays.asList(book1, book2)), Arrays.asList(book1, book2));
+    }
+
+    protected File createStateDir() throws IOException {
+        return FileUtils.createDirectory(TestFileUtils.getTempDir().getAbsolutePath() + "/"
+                + UUID.randomUUID().toString());
+    }
+
+    protected File createBookDir() throws IOException {
+        return FileUtils.createDirectory(TestFileUtils.getTempDir().getAbsolutePath() + "/"
+                + UUID.randomUUID().toString());
+    }
+
+    protected File createBook(File dir, String id, int size) throws IOException {
+        File bookDir = FileUtils.createDirectory(dir.getAbsolutePath() + "/" + id);
+        StringBuilder content = new StringBuilder();
+        for(int i = 0; i < size; i++) {
+            content.append('x');
+        }
+        TestFileUtils.createFile(new File(bookDir, id + ".pdf"), content.toString());
+        return bookDir;
+    }
+
+    protected void setDate(File bookDir, long date) {
+        for(File f : bookDir.listFiles()) {
+            f.setLastModified(date);
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package dk.kb.elivagar.transfer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.jaccept.structure.ExtendedTestCase;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import dk.kb.elivagar.exception.ArgumentCheck;
+import dk.kb.elivagar.testutils.TestFileUtils;
+import dk.kb.elivagar.utils.ChecksumUtils;
+import dk.kb.elivagar.utils.FileUtils;
+
+public class UpdateBatcherTest extends ExtendedTestCase {
+
+    @BeforeClass
+    public void setup() {
+        TestFileUtils.setup();
+    }
+
+    @AfterClass
+    public void tearDown() {
+        TestFileUtils.tearDown();
+    }
+
+    @Test(expectedExceptions = ArgumentCheck.class)
+    public void testNoFiles() throws Exception {
+        addDescription("Test that a batch must be limited by either the number of files or bytes.");
+        new UpdateBatcher(0, 0L, Arrays.asList(ChecksumUtils.MD5_ALGORITHM));
+    }
+
+    @Test
+    public void testBatchByCount() throws Exception {
+        addDescription("Test that the batch is delivered, when the next book would exceed the number of files.");
+        File updateDir = createDir();
+        UpdateBatcher batcher = new UpdateBatcher(2, 0L, Arrays.asList(ChecksumUtils.MD5_ALGORITHM));
+        TransferRegistry register1 = createRegistry();
+        TransferRegistry register2 = createRegistry();
+        TransferRegistry register3 = createRegistry();
+
+        addBook(batcher, updateDir, register1);
+        addBook(batcher, updateDir, register2);
+        batcher.bookFinished(register1);
+        batcher.bookFinished(register2);
+
+        addStep("Check before the batch is full", "Only the transfer directory, and the registries are held");
+        Assert.assertEquals(updateDir.list().length, 1);
+        Assert.assertTrue(updateDir.list()[0].endsWith(PreIngestTransfer.TRANSFERRING_DIR_SUFFIX));
+        Assert.assertFalse(register1.registryFile.exists());
+
+        addStep("Add a third book", "The first batch is delivered, and the registries are flushed");
+        addBook(batcher, updateDir, register3);
+        File batchDir = getBatchDir(updateDir);
+        Assert.assertNotNull(batchDir);
+        Assert.assertEquals(batchDir.list().length, 3);
+        Assert.assertTrue(register1.registryFile.exists());
+        Assert.assertTrue(register2.registryFile.exists());
+        Assert.assertFalse(register3.registryFile.exists());
+
+        String manifest = TestFileUtils.readFile(new File(batchDir, PreIngestTransfer.getManifestName(
+                ChecksumUtils.MD5_ALGORITHM)));
+        Assert.assertTrue(manifest.contains("  " + register1.bookDir.getName() + "/"), manifest);
+        Assert.assertTrue(manifest.contains("  " + register2.bookDir.getName() + "/"), manifest);
+
+        addStep("Deliver the rest, before the last book is finished", "Its registry is flushed, when it finishes");
+        batcher.deliverAll();
+        Assert.assertFalse(register3.registryFile.exists());
+        batcher.bookFinished(register3);
+        Assert.assertTrue(register3.registryFile.exists());
+        Assert.assertEquals(updateDir.list().length, 2);
+    }
+
+    @Test
+    public void testBatchByBytes() throws Exception {
+        addDescription("Test that the batch is delivered, when the next book would exceed the number of bytes.");
+        File updateDir = createDir();
+        UpdateBatcher batcher = new UpdateBatcher(100, 40L, Arrays.asList(ChecksumUtils.MD5_ALGORITHM));
+        addBook(batcher, updateDir, createRegistry());
+        Assert.assertNull(getBatchDir(updateDir));
+        addBook(batcher, updateDir, createRegistry());
+        Assert.assertNotNull(getBatchDir(updateDir));
+    }
+
+    @Test
+    public void testBatchByBytesOnly() throws Exception {
+        addDescription("Test that the number of files is not limited, when only the number of bytes is.");
+        File updateDir = createDir();
+        UpdateBatcher batcher = new UpdateBatcher(0, 1000L, Arrays.asList(ChecksumUtils.MD5_ALGORITHM));
+        for(int i = 0; i < 5; i++) {
+            addBook(batcher, updateDir, createRegistry());
+        }
+        Assert.assertNull(getBatchDir(updateDir));
+        batcher.deliverAll();
+        Assert.assertEquals(getBatchDir(updateDir).list().length, 6);
+    }
+
+    @Test
+    public void testEmptyBatchIsRemoved() throws Exception {
+        addDescription("Test that a batch without any files is removed instead of delivered.");
+        File updateDir = createDir();
+        UpdateBatcher batcher = new UpdateBatcher(10, 0L, Arrays.asList(ChecksumUtils.MD5_ALGORITHM));
+        batcher.cancel(batcher.reserve(updateDir, "book", Arrays.asList(new File("book.xml"))));
+        batcher.deliverAll();
+        Assert.assertEquals(updateDir.list().length, 0);
+    }
+
+    @Test
+    public void testDeliveryWaitsForCopies() throws Exception {
+        addDescription("Test that a batch is not delivered, while files are still being copied into it.");
+        final File updateDir = createDir();
+        final UpdateBatcher batcher = new UpdateBatcher(1, 0L, Arrays.asList(ChecksumUtils.MD5_ALGORITHM));
+        TransferRegistry register = createRegistry();
+        File f = new File(register.bookDir, register.bookDir.getName() + ".mods.xml");
+        TestFileUtils.createFile(f, UUID.randomUUID().toString());
+        UpdateBatcher.Reservation reservation = batcher.reserve(updateDir, register.bookDir.getName(), 
+                Arrays.asList(f));
+
+        addStep("Reserve the next book in another thread", "It waits for the copy in progress");
+        final TransferRegistry nextRegister = createRegistry();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<UpdateBatcher.Reservation> next = executor.submit(new Callable<UpdateBatcher.Reservation>() {
+                @Override
+                public UpdateBatcher.Reservation call() throws Exception {
+                    return batcher.reserve(updateDir, nextRegister.bookDir.getName(), 
+                            Arrays.asList(new File("book.xml")));
+                }
+            });
+            Thread.sleep(200L);
+            Assert.assertFalse(next.isDone());
+            Assert.assertNull(getBatchDir(updateDir));
+
+            addStep("Finish the copy", "The batch is delivered with the file, and the next book gets a new batch");
+            Map<String, Map<String, String>> checksums = new HashMap<String, Map<String, String>>();
+            checksums.put(f.getName(), FileUtils.copyFileWithChecksums(f, new File(reservation.getBookDir(), 
+                    f.getName()), Arrays.asList(ChecksumUtils.MD5_ALGORITHM)));
+            batcher.filesAdded(reservation, checksums, register);
+            UpdateBatcher.Reservation nextReservation = next.get(10L, TimeUnit.SECONDS);
+            File batchDir = getBatchDir(updateDir);
+            Assert.assertNotNull(batchDir);
+            Assert.assertTrue(new File(new File(batchDir, register.bookDir.getName()), f.getName()).isFile());
+            Assert.assertFalse(nextReservation.getBookDir().getAbsolutePath().startsWith(
+                    batchDir.getAbsolutePath()));
+            batcher.cancel(nextReservation);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    protected void addBook(UpdateBatcher batcher, File updateDir, TransferRegistry register) throws IOException {
+        String bookId = register.bookDir.getName();
+        File f = new File(register.bookDir, bookId + ".mods.xml");
+        TestFileUtils.createFile(f, UUID.randomUUID().toString());
+        UpdateBatcher.Reservation reservation = batcher.reserve(updateDir, bookId, Arrays.asList(f));
+        Map<String, Map<String, String>> checksums = new HashMap<String, Map<String, String>>();
+        checksums.put(f.getName(), FileUtils.copyFileWithChecksums(f, new File(reservation.getBookDir(), f.getName()),
+                Arrays.asList(ChecksumUtils.MD5_ALGORITHM)));
+        batcher.filesAdded(reservation, checksums, register);
+        register.setUpdateDate(new Date());
+    }
+
+    protected File getBatchDir(File updateDir) {
+        for(File f : updateDir.listFiles()) {
+            if(f.getName().startsWith(UpdateBatcher.BATCH_NAME_PREFIX)
+                    && !f.getName().endsWith(PreIngestTransfer.TRANSFERRING_DIR_SUFFIX)) {
+                return f;
+            }
+        }
+        return null;
+    }
+
+    protected TransferRegistry createRegistry() throws IOException {
+        return new TransferRegistry(createDir());
+    }
+
+    protected File createDir() throws IOException {
+        return FileUtils.createDirectory(TestFileUtils.getTempDir().getAbsolutePath() + "/"
+                + UUID.randomUUID().toString());
+    }
+}
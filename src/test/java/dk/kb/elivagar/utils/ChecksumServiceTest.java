@@ -0,0 +1,64 @@
+package dk.kb.elivagar.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import org.jaccept.structure.ExtendedTestCase;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import dk.kb.elivagar.testutils.TestFileUtils;
+
+public class ChecksumServiceTest extends ExtendedTestCase {
+
+    @BeforeClass
+    public void setup() throws Exception {
+        TestFileUtils.setup();
+    }
+    
+    @AfterClass
+    public void tearDown() {
+        TestFileUtils.tearDown();
+    }
+    
+    @Test
+    public void testCalculateChecksums() throws Exception {
+        addDescription("Test calculating the checksums of several files concurrently.");
+        List<File> files = new ArrayList<File>();
+        for(int i = 0; i < 5; i++) {
+            files.add(TestFileUtils.createTempFile(UUID.randomUUID().toString()));
+        }
+        ChecksumService service = new ChecksumService(2);
+        List<String> algorithms = Arrays.asList(ChecksumUtils.MD5_ALGORITHM, ChecksumUtils.SHA256_ALGORITHM);
+        
+        Map<File, Map<String, String>> checksums = service.calculateChecksums(files, algorithms);
+        
+        addStep("Check the result", "Same files in the same order, with the same checksums as calculated directly");
+        Assert.assertEquals(new ArrayList<File>(checksums.keySet()), files);
+        for(File f : files) {
+            Assert.assertEquals(checksums.get(f), ChecksumUtils.calculateChecksums(f, algorithms));
+        }
+        
+        addStep("Calculate the MD5 checksums", "Same as the MD5 checksums calculated directly");
+        Map<File, String> md5Checksums = service.calculateMD5Checksums(files);
+        for(File f : files) {
+            Assert.assertEquals(md5Checksums.get(f), ChecksumUtils.calculateMD5Checksum(f));
+        }
+    }
+    
+    @Test(expectedExceptions = IOException.class)
+    public void testCalculateChecksumsMissingFile() throws Exception {
+        addDescription("Test calculating the checksums, when one of the files does not exist.");
+        File existing = TestFileUtils.createTempFile(UUID.randomUUID().toString());
+        File missing = new File(TestFileUtils.getTempDir(), UUID.randomUUID().toString());
+        
+        new ChecksumService(2).calculateMD5Checksums(Arrays.asList(existing, missing));
+    }
+}
@@ -1,7 +1,13 @@
 package dk.kb.elivagar.utils;
 
 import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
 
 import org.jaccept.structure.ExtendedTestCase;
 import org.testng.Assert;
@@ -32,4 +38,61 @@ public class ChecksumUtilsTest extends ExtendedTestCase {
         Assert.assertEquals(ChecksumUtils.generateMD5Checksum(data2),
                 "9e107d9d372bb6826bd81d3542a419d6");
     }
+    
+    @Test
+    public void testCalculateChecksums() throws Exception {
+        addDescription("Tests calculating several checksums of a file at once.");
+        File f = File.createTempFile("checksum", ".txt");
+        try {
+            Files.write(f.toPath(), "The quick brown fox jumps over the lazy dog".getBytes(StandardCharsets.UTF_8));
+            Map<String, String> checksums = ChecksumUtils.calculateChecksums(f, 
+                    Arrays.asList(ChecksumUtils.MD5_ALGORITHM, ChecksumUtils.SHA256_ALGORITHM));
+            Assert.assertEquals(checksums.size(), 2);
+            Assert.assertEquals(checksums.get(ChecksumUtils.MD5_ALGORITHM), "9e107d9d372bb6826bd81d3542a419d6");
+            Assert.assertEquals(checksums.get(ChecksumUtils.SHA256_ALGORITHM), 
+                    "d7a8fbb307d7809469ca9abcb0082e4f8d5651e46d3cdb762d02d0bf37c9e592");
+        } finally {
+            f.delete();
+        }
+    }
+    
+    @Test
+    public void testCalculateChecksumsWithRateLimiter() throws Exception {
+        addDescription("Tests that the read of the file is limited by the rate limiter.");
+        File f = File.createTempFile("checksum", ".txt");
+        try {
+            byte[] data = new byte[3000];
+            new Random(42L).nextBytes(data);
+            Files.write(f.toPath(), data);
+            long start = System.currentTimeMillis();
+            Map<String, String> checksums = ChecksumUtils.calculateChecksums(f, 
+                    Arrays.asList(ChecksumUtils.MD5_ALGORITHM), new RateLimiter(10000.0, 1000.0));
+            Assert.assertTrue(System.currentTimeMillis() - start >= 150L);
+            Assert.assertEquals(checksums.get(ChecksumUtils.MD5_ALGORITHM), 
+                    ChecksumUtils.generateMD5Checksum(new ByteArrayInputStream(data)));
+        } finally {
+            f.delete();
+        }
+    }
+    
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void testCreateDigestersUnknownAlgorithm() {
+        addDescription("Tests that an unknown checksum algorithm is rejected.");
+        ChecksumUtils.createDigesters(Arrays.asList("NO-SUCH-ALGORITHM"));
+    }
+    
+    @Test
+    public void testCalculateChecksumsMemoryMapped() throws Exception {
+        addDescription("Tests that a file above the memory map threshold gets the same checksum as through a stream.");
+        File f = File.createTempFile("checksum", ".bin");
+        try {
+            byte[] data = new byte[(int) ChecksumUtils.MEMORY_MAP_THRESHOLD + 12345];
+            new Random(42L).nextBytes(data);
+            Files.write(f.toPath(), data);
+            Assert.assertEquals(ChecksumUtils.calculateMD5Checksum(f), 
+                    ChecksumUtils.generateMD5Checksum(new ByteArrayInputStream(data)));
+        } finally {
+            f.delete();
+        }
+    }
 }
@@ -3,7 +3,9 @@ package dk.kb.elivagar.utils;
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Map;
 import java.util.UUID;
 
 import org.jaccept.structure.ExtendedTestCase;
@@ -59,6 +61,18 @@ public class FileUtilsTest extends ExtendedTestCase {
         Assert.assertFalse(testDelete.exists());
     }
     
+    @Test
+    public void testDeleteDirectory() throws Exception {
+        File dir = FileUtils.createDirectory(TestFileUtils.getTempDir().getAbsolutePath() + "/" 
+                + UUID.randomUUID().toString());
+        File subDir = FileUtils.createDirectory(dir.getAbsolutePath() + "/" + UUID.randomUUID().toString());
+        TestFileUtils.createFile(new File(dir, UUID.randomUUID().toString()), UUID.randomUUID().toString());
+        TestFileUtils.createFile(new File(subDir, UUID.randomUUID().toString()), UUID.randomUUID().toString());
+        
+        FileUtils.deleteDirectory(dir);
+        Assert.assertFalse(dir.exists());
+    }
+    
     @Test(expectedExceptions = IllegalStateException.class)
     public void testDeleteFileFailure() throws Exception {   
         File testNonDelete = new File(TestFileUtils.getTempDir(), UUID.randomUUID().toString());
@@ -252,4 +266,42 @@ public class FileUtilsTest extends ExtendedTestCase {
         
         FileUtils.moveDirectory(origDir, destDir);
     }
+    
+    @Test
+    public void testCreateHardLink() throws Exception {
+        addDescription("Test the createHardLink method, when the destination is on the same file system.");
+        File orig = TestFileUtils.createTempFile(UUID.randomUUID().toString());
+        File dest = new File(TestFileUtils.getTempDir(), UUID.randomUUID().toString());
+        Assert.assertEquals(TestFileUtils.getNumberOfHardLinks(orig), 1);
+        
+        Assert.assertTrue(FileUtils.createHardLink(orig, dest));
+        
+        Assert.assertTrue(FileUtils.areFilesIdentical(orig, dest));
+        Assert.assertEquals(TestFileUtils.getNumberOfHardLinks(orig), 2);
+        Assert.assertEquals(TestFileUtils.getNumberOfHardLinks(dest), 2);
+        
+        addStep("Link again, when the destination already exists", "Must replace the destination with a link");
+        Assert.assertTrue(FileUtils.createHardLink(orig, dest));
+        Assert.assertEquals(TestFileUtils.getNumberOfHardLinks(orig), 2);
+    }
+    
+    @Test
+    public void testCopyFileWithChecksums() throws Exception {
+        addDescription("Test the copyFileWithChecksums method.");
+        String content = UUID.randomUUID().toString();
+        File orig = TestFileUtils.createTempFile(content);
+        File dest = new File(TestFileUtils.getTempDir(), UUID.randomUUID().toString());
+        
+        Map<String, String> checksums = FileUtils.copyFileWithChecksums(orig, dest, 
+                Arrays.asList(ChecksumUtils.MD5_ALGORITHM, ChecksumUtils.SHA256_ALGORITHM));
+        
+        Assert.assertTrue(FileUtils.areFilesIdentical(orig, dest));
+        Assert.assertEquals(dest.lastModified(), orig.lastModified());
+        Assert.assertEquals(checksums.get(ChecksumUtils.MD5_ALGORITHM), 
+                ChecksumUtils.calculateChecksums(orig, Arrays.asList(ChecksumUtils.MD5_ALGORITHM))
+                .get(ChecksumUtils.MD5_ALGORITHM));
+        Assert.assertEquals(checksums.get(ChecksumUtils.SHA256_ALGORITHM), 
+                ChecksumUtils.calculateChecksums(orig, Arrays.asList(ChecksumUtils.SHA256_ALGORITHM))
+                .get(ChecksumUtils.SHA256_ALGORITHM));
+    }
 }
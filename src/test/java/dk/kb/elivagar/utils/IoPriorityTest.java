@@ -0,0 +1,90 @@
+package dk.kb.elivagar.utils;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.jaccept.structure.ExtendedTestCase;
+import org.testng.Assert;
+import org.testng.SkipException;
+import org.testng.annotations.Test;
+
+public class IoPriorityTest extends ExtendedTestCase {
+
+    /** The I/O priority printed by 'ionice' for the lowered threads.*/
+    protected static final String LOWERED_PRIORITY = "best-effort: prio 7";
+
+    @Test
+    public void testThreadId() throws Exception {
+        addDescription("Test that the threads have different thread ids.");
+        String threadId = IoPriority.getThreadId();
+        if(threadId == null) {
+            throw new SkipException("The thread ids are not available on this system.");
+        }
+        Assert.assertNotEquals(runInThread(Executors.defaultThreadFactory(), new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                return IoPriority.getThreadId();
+            }
+        }), threadId);
+    }
+
+    @Test
+    public void testLowPriorityThreadFactory() throws Exception {
+        addDescription("Test that the threads of the low priority thread factory have the lowered I/O priority, "
+                + "while the other threads keep their I/O priority.");
+        String priority = IoPriority.getPriorityOfCurrentThread();
+        if(priority == null || priority.equals(LOWERED_PRIORITY)) {
+            throw new SkipException("The I/O priority of the threads cannot be checked on this system.");
+        }
+        Callable<String> getPriority = new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                return IoPriority.getPriorityOfCurrentThread();
+            }
+        };
+
+        addStep("Retrieve the I/O priority in a thread of the low priority thread factory", "It has been lowered");
+        Assert.assertEquals(runInThread(new IoPriority.LowPriorityThreadFactory(Executors.defaultThreadFactory()),
+                getPriority), LOWERED_PRIORITY);
+
+        addStep("Retrieve the I/O priority of the current thread and of an ordinary thread", "They are unchanged");
+        Assert.assertEquals(IoPriority.getPriorityOfCurrentThread(), priority);
+        Assert.assertEquals(runInThread(Executors.defaultThreadFactory(), getPriority), priority);
+    }
+
+    @Test
+    public void testRestorePriority() throws Exception {
+        addDescription("Test that a lowered I/O priority can be restored.");
+        String priority = IoPriority.getPriorityOfCurrentThread();
+        if(priority == null || priority.equals(LOWERED_PRIORITY)) {
+            throw new SkipException("The I/O priority of the threads cannot be checked on this system.");
+        }
+        Assert.assertEquals(runInThread(Executors.defaultThreadFactory(), new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                String before = IoPriority.getPriorityOfCurrentThread();
+                IoPriority.lowerPriorityOfCurrentThread();
+                Assert.assertEquals(IoPriority.getPriorityOfCurrentThread(), LOWERED_PRIORITY);
+                Assert.assertTrue(IoPriority.restorePriorityOfCurrentThread(before));
+                return IoPriority.getPriorityOfCurrentThread();
+            }
+        }), priority);
+    }
+
+    @Test
+    public void testRestoreUnknownPriority() throws Exception {
+        addDescription("Test that an unknown I/O priority is not restored.");
+        Assert.assertFalse(IoPriority.restorePriorityOfCurrentThread("unknown priority"));
+    }
+
+    protected String runInThread(ThreadFactory threadFactory, Callable<String> task) throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor(threadFactory);
+        try {
+            return executor.submit(task).get();
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package dk.kb.elivagar.utils;
+
+import org.jaccept.structure.ExtendedTestCase;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class IsbnUtilsTest extends ExtendedTestCase {
+
+    @Test
+    public void testNormalize() {
+        addDescription("Test the normalization of the ISBNs.");
+        addStep("Normalize an ISBN-13 with hyphens and qualifier", "Only the digits");
+        Assert.assertEquals(IsbnUtils.normalize("978-87-92875-06-8 (hft.)"), "9788792875068");
+        Assert.assertEquals(IsbnUtils.normalize("9788711436981"), "9788711436981");
+
+        addStep("Normalize an ISBN-10", "Converted to ISBN-13");
+        Assert.assertEquals(IsbnUtils.normalize("87-92875-06-7"), "9788792875068");
+        Assert.assertEquals(IsbnUtils.normalize("0-306-40615-2"), "9780306406157");
+        Assert.assertEquals(IsbnUtils.normalize("87-7724-858-x"), "9788777248580");
+    }
+
+    @Test
+    public void testCalculateIsbn13CheckDigit() {
+        addDescription("Test the calculation of the ISBN-13 check digit.");
+        Assert.assertEquals(IsbnUtils.calculateIsbn13CheckDigit("978871143698"), 1);
+        Assert.assertEquals(IsbnUtils.calculateIsbn13CheckDigit("978030640615"), 7);
+    }
+}
@@ -0,0 +1,71 @@
+package dk.kb.elivagar.utils;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+
+import org.jaccept.structure.ExtendedTestCase;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import dk.kb.elivagar.testutils.TestFileUtils;
+
+public class ParallelFileCopierTest extends ExtendedTestCase {
+
+    @BeforeClass
+    public void setup() throws Exception {
+        TestFileUtils.setup();
+    }
+    
+    @AfterClass
+    public void tearDown() {
+        TestFileUtils.tearDown();
+    }
+    
+    @Test
+    public void testIsAboveThreshold() throws Exception {
+        addDescription("Test the threshold for the parallel copy.");
+        File f = TestFileUtils.createTempFile("0123456789");
+        Assert.assertTrue(new ParallelFileCopier(10L, 2).isAboveThreshold(f));
+        Assert.assertFalse(new ParallelFileCopier(11L, 2).isAboveThreshold(f));
+    }
+    
+    @Test
+    public void testCopyFile() throws Exception {
+        addDescription("Test copying a file in parallel ranges, where the last range is not full.");
+        File orig = new File(TestFileUtils.getTempDir(), UUID.randomUUID().toString());
+        byte[] data = new byte[10500];
+        new Random(42L).nextBytes(data);
+        Files.write(orig.toPath(), data);
+        orig.setLastModified(1234000L);
+        File dest = new File(TestFileUtils.getTempDir(), UUID.randomUUID().toString());
+        TestFileUtils.createFile(dest, UUID.randomUUID().toString());
+        List<String> algorithms = Arrays.asList(ChecksumUtils.MD5_ALGORITHM, ChecksumUtils.SHA256_ALGORITHM);
+        
+        Map<String, String> checksums = new ParallelFileCopier(1L, 3, 1000).copyFile(orig, dest, algorithms);
+        
+        addStep("Check the copy", "Identical content and date, and the checksums of the whole file");
+        Assert.assertEquals(Files.readAllBytes(dest.toPath()), data);
+        Assert.assertEquals(dest.lastModified(), orig.lastModified());
+        Assert.assertEquals(checksums, ChecksumUtils.calculateChecksums(orig, algorithms));
+    }
+    
+    @Test
+    public void testCopyEmptyFile() throws Exception {
+        addDescription("Test copying an empty file in parallel ranges.");
+        File orig = TestFileUtils.createTempFile("");
+        File dest = new File(TestFileUtils.getTempDir(), UUID.randomUUID().toString());
+        
+        Map<String, String> checksums = new ParallelFileCopier(1L, 2, 1000).copyFile(orig, dest, 
+                Arrays.asList(ChecksumUtils.MD5_ALGORITHM));
+        
+        Assert.assertEquals(dest.length(), 0L);
+        Assert.assertEquals(checksums.get(ChecksumUtils.MD5_ALGORITHM), "d41d8cd98f00b204e9800998ecf8427e");
+    }
+}
@@ -0,0 +1,48 @@
+package dk.kb.elivagar.utils;
+
+import org.jaccept.structure.ExtendedTestCase;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class RateLimiterTest extends ExtendedTestCase {
+
+    @Test
+    public void testNoLimit() throws Exception {
+        addDescription("Test that a non-positive rate does not block.");
+        RateLimiter limiter = new RateLimiter(0.0);
+        long start = System.currentTimeMillis();
+        for(int i = 0; i < 1000; i++) {
+            limiter.acquire();
+        }
+        Assert.assertTrue(System.currentTimeMillis() - start < 1000L);
+    }
+
+    @Test
+    public void testLimit() throws Exception {
+        addDescription("Test that the rate is limited, when the burst has been used.");
+        RateLimiter limiter = new RateLimiter(20.0, 1.0);
+        long start = System.currentTimeMillis();
+        for(int i = 0; i < 5; i++) {
+            limiter.acquire();
+        }
+        Assert.assertTrue(System.currentTimeMillis() - start >= 150L);
+    }
+
+    @Test
+    public void testDebt() throws Exception {
+        addDescription("Test that acquiring more permits than available results in a wait.");
+        RateLimiter limiter = new RateLimiter(1000.0, 100.0);
+        Assert.assertEquals(limiter.reserve(100L), 0L);
+        Assert.assertTrue(limiter.reserve(100L) > 0L);
+    }
+
+    @Test
+    public void testSetRate() throws Exception {
+        addDescription("Test changing the rate.");
+        RateLimiter limiter = new RateLimiter(10.0);
+        Assert.assertEquals(limiter.getRate(), 10.0);
+        limiter.setRate(-1.0);
+        Assert.assertEquals(limiter.getRate(), -1.0);
+        Assert.assertEquals(limiter.reserve(1000L), 0L);
+    }
+}
@@ -0,0 +1,101 @@
+package dk.kb.elivagar.utils;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.UUID;
+
+import org.jaccept.structure.ExtendedTestCase;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import dk.kb.elivagar.testutils.TestFileUtils;
+
+public class TarWriterTest extends ExtendedTestCase {
+
+    @BeforeClass
+    public void setup() throws Exception {
+        TestFileUtils.setup();
+    }
+
+    @AfterClass
+    public void tearDown() {
+        TestFileUtils.tearDown();
+    }
+
+    @Test
+    public void testAddFile() throws Exception {
+        addDescription("Test writing a tar file with a file and an entry.");
+        String content = UUID.randomUUID().toString();
+        File f = TestFileUtils.createTempFile(content);
+        File tarFile = new File(TestFileUtils.getTempDir(), UUID.randomUUID().toString() + ".tar");
+
+        Map<String, String> checksums;
+        try (TarWriter tar = new TarWriter(tarFile)) {
+            checksums = tar.addFile("book/book.pdf", f, Arrays.asList(ChecksumUtils.MD5_ALGORITHM), null);
+            tar.addEntry("book/manifest-md5.txt", "manifest".getBytes(StandardCharsets.UTF_8), 1000000L);
+        }
+        Assert.assertEquals(checksums.get(ChecksumUtils.MD5_ALGORITHM), ChecksumUtils.calculateMD5Checksum(f));
+
+        addStep("Read the tar file", "It has the headers, the padded content and the two empty end blocks");
+        byte[] tar = Files.readAllBytes(tarFile.toPath());
+        Assert.assertEquals(tar.length, 6 * TarWriter.BLOCK_SIZE);
+        assertHeader(tar, 0, "book/book.pdf", content.length());
+        Assert.assertEquals(new String(tar, TarWriter.BLOCK_SIZE, content.length(), StandardCharsets.UTF_8), content);
+        assertHeader(tar, 2 * TarWriter.BLOCK_SIZE, "book/manifest-md5.txt", 8);
+        Assert.assertEquals(readOctal(tar, 2 * TarWriter.BLOCK_SIZE + 136, 12), 1000L);
+        for(int i = 4 * TarWriter.BLOCK_SIZE; i < tar.length; i++) {
+            Assert.assertEquals(tar[i], 0);
+        }
+    }
+
+    @Test
+    public void testLongName() throws Exception {
+        addDescription("Test that a name longer than the header gets a PAX extended header.");
+        StringBuilder name = new StringBuilder("book/");
+        while(name.length() <= TarWriter.MAX_NAME_LENGTH) {
+            name.append(UUID.randomUUID().toString());
+        }
+        File tarFile = new File(TestFileUtils.getTempDir(), UUID.randomUUID().toString() + ".tar");
+        try (TarWriter tar = new TarWriter(tarFile)) {
+            tar.addEntry(name.toString(), new byte[0], 0L);
+        }
+
+        byte[] tar = Files.readAllBytes(tarFile.toPath());
+        Assert.assertEquals(tar[156], TarWriter.TYPE_PAX_HEADER);
+        String record = TarWriter.getPaxRecord("path", name.toString());
+        Assert.assertEquals(new String(tar, TarWriter.BLOCK_SIZE, record.length(), StandardCharsets.UTF_8), record);
+        Assert.assertEquals(tar[2 * TarWriter.BLOCK_SIZE + 156], TarWriter.TYPE_FILE);
+    }
+
+    @Test
+    public void testPaxRecord() throws Exception {
+        addDescription("Test that the length of a PAX record includes its own digits.");
+        Assert.assertEquals(TarWriter.getPaxRecord("path", "abc"), "12 path=abc\n");
+        String record = TarWriter.getPaxRecord("path", "123456789012345678901234567890123456789012345678901234567890"
+                + "12345678901234567890123456789");
+        Assert.assertEquals(record.length(), Integer.parseInt(record.substring(0, record.indexOf(' '))));
+    }
+
+    protected void assertHeader(byte[] tar, int offset, String name, long size) {
+        Assert.assertEquals(new String(tar, offset, name.length(), StandardCharsets.UTF_8), name);
+        Assert.assertEquals(tar[offset + name.length()], 0);
+        Assert.assertEquals(readOctal(tar, offset + 124, 12), size);
+        Assert.assertEquals(tar[offset + 156], TarWriter.TYPE_FILE);
+        Assert.assertEquals(new String(tar, offset + 257, 5, StandardCharsets.US_ASCII), "ustar");
+
+        long checksum = 0L;
+        for(int i = 0; i < TarWriter.BLOCK_SIZE; i++) {
+            checksum += (i >= 148 && i < 156) ? ' ' : tar[offset + i] & 0xff;
+        }
+        Assert.assertEquals(readOctal(tar, offset + 148, 7), checksum);
+    }
+
+    protected long readOctal(byte[] tar, int offset, int length) {
+        return Long.parseLong(new String(tar, offset, length - 1, StandardCharsets.US_ASCII), 8);
+    }
+}